@@ -0,0 +1,562 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * BTreeBulkLoader builds a BTreeFile bottom-up from tuples in any order,
+ * instead of inserting them one at a time.
+ * <p>
+ * The input is first sorted on the key field with an external merge sort:
+ * runs of at most {@link #DEFAULT_RUN_SIZE} tuples are sorted in memory and
+ * written to temporary files, and the runs are then merged, at most
+ * {@link #MAX_FAN_IN} at a time. Since the number of tuples is known once the
+ * runs are written, the shape of the whole tree is computed up front: the
+ * leaf pages are filled to the fill factor and appended to the file in key
+ * order, followed by each level of internal pages, with the root last. All
+ * parent and sibling pointers are set as the pages are written, so the file
+ * is written sequentially, exactly once.
+ * <p>
+ * Memory use is bounded by the run size, plus one key per leaf page for
+ * building the internal levels.
+ * <p>
+ * The pages are written to the file directly, bypassing the buffer pool, so
+ * the load is not undone if a transaction aborts.
+ */
+public class BTreeBulkLoader {
+    /** Default fraction of each page filled with tuples or entries */
+    public static final double DEFAULT_FILL_FACTOR = 0.9;
+    /** Default number of tuples sorted in memory at a time */
+    public static final int DEFAULT_RUN_SIZE = 100000;
+    /** Maximum number of runs merged at a time */
+    public static final int MAX_FAN_IN = 64;
+
+    /** Number of leaf pages appended to the file with one write */
+    private static final int WRITE_BATCH = 64;
+    private static final int INDEX_SIZE = BTreePage.INDEX_SIZE;
+
+    private final double fillFactor;
+    private final int runSize;
+
+    /**
+     * Creates a loader with the default fill factor and run size.
+     */
+    public BTreeBulkLoader() {
+        this(DEFAULT_FILL_FACTOR, DEFAULT_RUN_SIZE);
+    }
+
+    /**
+     * @param fillFactor the fraction of each page to fill, between 0.5 and 1.
+     *            Pages that are not full leave room for later inserts
+     *            without splits.
+     * @param runSize the number of tuples sorted in memory at a time
+     */
+    public BTreeBulkLoader(double fillFactor, int runSize) {
+        if (fillFactor < 0.5 || fillFactor > 1.0) {
+            throw new IllegalArgumentException("fill factor must be between 0.5 and 1");
+        }
+        if (runSize < 1) {
+            throw new IllegalArgumentException("run size must be positive");
+        }
+        this.fillFactor = fillFactor;
+        this.runSize = runSize;
+    }
+
+    /**
+     * Loads the tuples of an iterator into an empty B+ tree file. The
+     * iterator must be open, and is read to the end but not closed.
+     *
+     * @param in the tuples to load, in any order
+     * @param out the B+ tree file to load into, which must not have any pages
+     * @return the number of tuples loaded
+     * @throws DbException if the B+ tree file is not empty, or its pages are
+     *         in the compact format, whose page capacity depends on the keys
+     */
+    public int load(DbFileIterator in, BTreeFile out)
+            throws DbException, TransactionAbortedException, IOException {
+        if (out.numPages() > 0) {
+            throw new DbException("bulk load requires an empty B+ tree");
+        }
+        if (out.isCompact()) {
+            throw new DbException("bulk load does not support compact B+ tree pages");
+        }
+        Sorter sorter = new Sorter(out.getTupleDesc(), out.keyField(), out.isUnique());
+        try {
+            while (in.hasNext()) {
+                sorter.add(in.next());
+            }
+            int numTuples = sorter.size();
+            if (numTuples > 0) {
+                new TreeWriter(out).write(sorter.merge(), numTuples);
+            }
+            return numTuples;
+        } finally {
+            sorter.deleteRuns();
+        }
+    }
+
+    /**
+     * Splits n items into pages of the target size. If the last page would
+     * have fewer than min items, the last two pages share their items
+     * instead, or are combined if the items fit on one page.
+     *
+     * @return the number of items on each page
+     */
+    static int[] pageSizes(int n, int target, int min, int max) {
+        int pages = (int) (((long) n + target - 1) / target);
+        int[] sizes = new int[pages];
+        Arrays.fill(sizes, target);
+        sizes[pages - 1] = n - (pages - 1) * target;
+        if (pages > 1 && sizes[pages - 1] < min) {
+            int both = target + sizes[pages - 1];
+            if (both <= max) {
+                sizes = Arrays.copyOf(sizes, pages - 1);
+                sizes[pages - 2] = both;
+            } else {
+                sizes[pages - 2] = both / 2;
+                sizes[pages - 1] = both - both / 2;
+            }
+        }
+        return sizes;
+    }
+
+    /**
+     * A sorted sequence of encoded tuples, either in a temporary file or, for
+     * the last run, in memory.
+     */
+    private static class Run {
+        final File file;
+        final byte[] data;
+
+        Run(File file, byte[] data) {
+            this.file = file;
+            this.data = data;
+        }
+
+        InputStream open() throws IOException {
+            if (file != null) {
+                return new BufferedInputStream(new FileInputStream(file), 1 << 16);
+            }
+            return new ByteArrayInputStream(data);
+        }
+
+        void delete() {
+            if (file != null) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Reads the tuples of a run one at a time, as encoded records.
+     */
+    private static class RunReader {
+        final InputStream in;
+        final byte[] record;
+        final ByteBuffer buf;
+
+        RunReader(Run run, int recordSize) throws IOException {
+            this.in = run.open();
+            this.record = new byte[recordSize];
+            this.buf = ByteBuffer.wrap(record);
+        }
+
+        /**
+         * Reads the next record into {@link #record}.
+         *
+         * @return false at the end of the run
+         */
+        boolean advance() throws IOException {
+            int n = 0;
+            while (n < record.length) {
+                int read = in.read(record, n, record.length - n);
+                if (read < 0) {
+                    if (n > 0) {
+                        throw new EOFException("truncated run");
+                    }
+                    in.close();
+                    return false;
+                }
+                n += read;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Produces the tuples of the input in key order, as encoded records.
+     */
+    private interface RecordSource {
+        /**
+         * @return the next record, or null at the end. The array may be
+         *         reused by the next call.
+         */
+        byte[] next() throws IOException;
+    }
+
+    /**
+     * Collects the input into sorted runs and merges them. Tuples are sorted
+     * on the key field, and for a unique file then on the other fields.
+     */
+    private class Sorter {
+        private final TupleDesc td;
+        /** The fields compared, in order, and their offsets in a record */
+        private final int[] sortFields;
+        private final int[] sortOffsets;
+        private final int recordSize;
+        private final Comparator<Tuple> tupleOrder;
+        private final Comparator<RunReader> recordOrder;
+
+        private final ArrayList<Tuple> buffer = new ArrayList<Tuple>();
+        private final ArrayList<Run> runs = new ArrayList<Run>();
+        private int size;
+
+        Sorter(TupleDesc td, int keyField, boolean unique) {
+            this.td = td;
+            int[] offsets = new int[td.numFields()];
+            for (int i = 1; i < offsets.length; i++) {
+                offsets[i] = offsets[i - 1] + td.getFieldType(i - 1).getLen();
+            }
+            this.sortFields = new int[unique ? td.numFields() : 1];
+            this.sortOffsets = new int[sortFields.length];
+            sortFields[0] = keyField;
+            for (int i = 0, j = 1; j < sortFields.length; i++) {
+                if (i != keyField) {
+                    sortFields[j++] = i;
+                }
+            }
+            for (int j = 0; j < sortFields.length; j++) {
+                sortOffsets[j] = offsets[sortFields[j]];
+            }
+            this.recordSize = td.getSize();
+
+            this.tupleOrder = new Comparator<Tuple>() {
+                public int compare(Tuple t1, Tuple t2) {
+                    for (int field : sortFields) {
+                        int cmp = td.getFieldType(field) == Type.INT_TYPE
+                                ? Integer.compare(t1.getInt(field), t2.getInt(field))
+                                : compareFields(t1.getField(field), t2.getField(field));
+                        if (cmp != 0) {
+                            return cmp;
+                        }
+                    }
+                    return 0;
+                }
+            };
+            this.recordOrder = new Comparator<RunReader>() {
+                public int compare(RunReader r1, RunReader r2) {
+                    for (int j = 0; j < sortFields.length; j++) {
+                        Type type = td.getFieldType(sortFields[j]);
+                        int offset = sortOffsets[j];
+                        int cmp = type == Type.INT_TYPE
+                                ? Integer.compare(r1.buf.getInt(offset), r2.buf.getInt(offset))
+                                : compareFields(type.parse(r1.buf, offset), type.parse(r2.buf, offset));
+                        if (cmp != 0) {
+                            return cmp;
+                        }
+                    }
+                    return 0;
+                }
+            };
+        }
+
+        private int compareFields(Field f1, Field f2) {
+            if (f1.compare(Predicate.Op.LESS_THAN, f2)) {
+                return -1;
+            }
+            return f1.compare(Predicate.Op.GREATER_THAN, f2) ? 1 : 0;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void add(Tuple t) throws IOException {
+            buffer.add(t);
+            size++;
+            if (buffer.size() >= runSize) {
+                runs.add(sortBuffer(true));
+            }
+        }
+
+        /**
+         * Sorts the buffered tuples and encodes them as a run.
+         *
+         * @param spill whether to write the run to a temporary file
+         */
+        private Run sortBuffer(boolean spill) throws IOException {
+            Collections.sort(buffer, tupleOrder);
+            byte[] data = new byte[buffer.size() * recordSize];
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            int offset = 0;
+            for (Tuple t : buffer) {
+                for (int i = 0; i < td.numFields(); i++) {
+                    Type type = td.getFieldType(i);
+                    if (type == Type.INT_TYPE) {
+                        buf.putInt(offset, t.getInt(i));
+                    } else {
+                        t.getField(i).serialize(buf, offset);
+                    }
+                    offset += type.getLen();
+                }
+            }
+            buffer.clear();
+            if (!spill) {
+                return new Run(null, data);
+            }
+            File file = File.createTempFile("btreerun", ".tmp");
+            file.deleteOnExit();
+            OutputStream os = new FileOutputStream(file);
+            try {
+                os.write(data);
+            } finally {
+                os.close();
+            }
+            return new Run(file, null);
+        }
+
+        /**
+         * Merges the runs until few enough are left to merge in one pass.
+         *
+         * @return the merged sequence of all the tuples added
+         */
+        RecordSource merge() throws IOException {
+            if (!buffer.isEmpty()) {
+                runs.add(sortBuffer(false));
+            }
+            while (runs.size() > MAX_FAN_IN) {
+                List<Run> group = runs.subList(0, MAX_FAN_IN);
+                File file = File.createTempFile("btreerun", ".tmp");
+                file.deleteOnExit();
+                OutputStream os = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+                try {
+                    RecordSource merged = merge(group);
+                    byte[] record;
+                    while ((record = merged.next()) != null) {
+                        os.write(record);
+                    }
+                } finally {
+                    os.close();
+                }
+                for (Run run : group) {
+                    run.delete();
+                }
+                group.clear();
+                runs.add(new Run(file, null));
+            }
+            return merge(runs);
+        }
+
+        private RecordSource merge(List<Run> group) throws IOException {
+            final PriorityQueue<RunReader> heap = new PriorityQueue<RunReader>(group.size(), recordOrder);
+            for (Run run : group) {
+                RunReader reader = new RunReader(run, recordSize);
+                if (reader.advance()) {
+                    heap.add(reader);
+                }
+            }
+            return new RecordSource() {
+                private final byte[] current = new byte[recordSize];
+
+                public byte[] next() throws IOException {
+                    RunReader reader = heap.poll();
+                    if (reader == null) {
+                        return null;
+                    }
+                    System.arraycopy(reader.record, 0, current, 0, recordSize);
+                    if (reader.advance()) {
+                        heap.add(reader);
+                    }
+                    return current;
+                }
+            };
+        }
+
+        void deleteRuns() {
+            for (Run run : runs) {
+                run.delete();
+            }
+            runs.clear();
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Lays out the pages of the tree and writes them to the file.
+     */
+    private class TreeWriter {
+        private final BTreeFile out;
+        private final int tableid;
+        private final TupleDesc td;
+        private final Type keyType;
+        private final int keyOffset;
+        private final int keySize;
+        private final int recordSize;
+        private final int pageSize = BufferPool.getPageSize();
+
+        // same layout as BTreeLeafPage
+        private final int maxTuples;
+        private final int leafHeaderSize;
+        // same layout as BTreeInternalPage
+        private final int maxEntries;
+        private final int internalHeaderSize;
+
+        TreeWriter(BTreeFile out) {
+            this.td = out.getTupleDesc();
+            this.out = out;
+            this.tableid = out.getId();
+            this.keyType = td.getFieldType(out.keyField());
+            int offset = 0;
+            for (int i = 0; i < out.keyField(); i++) {
+                offset += td.getFieldType(i).getLen();
+            }
+            this.keyOffset = offset;
+            this.recordSize = td.getSize();
+            // the keys of a unique file hold all the fields of a tuple
+            this.keySize = out.isUnique() ? recordSize : keyType.getLen();
+
+            this.maxTuples = (pageSize * 8 - 3 * INDEX_SIZE * 8) / (recordSize * 8 + 1);
+            this.leafHeaderSize = (maxTuples + 7) / 8;
+            this.maxEntries = (pageSize * 8 - 2 * INDEX_SIZE * 8 - 8 - 1) / (keySize * 8 + INDEX_SIZE * 8 + 1);
+            this.internalHeaderSize = (maxEntries + 1 + 7) / 8;
+        }
+
+        void write(RecordSource records, int numTuples) throws IOException {
+            // levels.get(0) holds the number of tuples on each leaf page, and
+            // levels.get(k) the number of children of each page on level k
+            ArrayList<int[]> levels = new ArrayList<int[]>();
+            levels.add(pageSizes(numTuples, (int) (fillFactor * maxTuples), maxTuples / 2, maxTuples));
+            while (levels.get(levels.size() - 1).length > 1) {
+                int numChildren = levels.get(levels.size() - 1).length;
+                levels.add(pageSizes(numChildren, (int) (fillFactor * maxEntries) + 1, maxEntries / 2 + 1,
+                        maxEntries + 1));
+            }
+            // page numbers start at 1, after the root pointer page
+            int[] firstPage = new int[levels.size() + 1];
+            firstPage[0] = 1;
+            for (int k = 0; k < levels.size(); k++) {
+                firstPage[k + 1] = firstPage[k] + levels.get(k).length;
+            }
+
+            ArrayList<Field> firstKeys = writeLeaves(records, levels, firstPage);
+            for (int k = 1; k < levels.size(); k++) {
+                firstKeys = writeInternalLevel(k, firstKeys, levels, firstPage);
+            }
+
+            int root = firstPage[levels.size()] - 1;
+            int rootCategory = levels.size() > 1 ? BTreePageId.INTERNAL : BTreePageId.LEAF;
+            BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+            out.writePage(new BTreeRootPtrPage(rootPtrId, BTreeFileEncoder.convertToRootPtrPage(root, rootCategory, 0)));
+            Database.getBufferPool().discardPage(rootPtrId);
+        }
+
+        /**
+         * Reads the key of an encoded tuple.
+         */
+        private Field parseKey(ByteBuffer record) {
+            if (!out.isUnique()) {
+                return keyType.parse(record, keyOffset);
+            }
+            Tuple t = new Tuple(td);
+            for (int i = 0, offset = 0; i < td.numFields(); offset += td.getFieldType(i).getLen(), i++) {
+                t.setField(i, td.getFieldType(i).parse(record, offset));
+            }
+            return out.getKey(t);
+        }
+
+        /**
+         * Writes the leaf pages.
+         *
+         * @return the first key of each leaf page
+         */
+        private ArrayList<Field> writeLeaves(RecordSource records, ArrayList<int[]> levels, int[] firstPage)
+                throws IOException {
+            int[] sizes = levels.get(0);
+            int[] parentSizes = levels.size() > 1 ? levels.get(1) : null;
+            ArrayList<Field> firstKeys = new ArrayList<Field>(sizes.length);
+            ByteBuffer batch = ByteBuffer.allocate(Math.min(sizes.length, WRITE_BATCH) * pageSize);
+
+            int parent = 0;
+            int siblingsLeft = parentSizes != null ? parentSizes[0] : 0;
+            for (int i = 0; i < sizes.length; i++) {
+                int pageNo = firstPage[0] + i;
+                if (parentSizes != null && siblingsLeft == 0) {
+                    parent++;
+                    siblingsLeft = parentSizes[parent];
+                }
+                siblingsLeft--;
+
+                int page = batch.position();
+                batch.putInt(page, parentSizes != null ? firstPage[1] + parent : 0);
+                batch.putInt(page + INDEX_SIZE, i > 0 ? pageNo - 1 : 0);
+                batch.putInt(page + 2 * INDEX_SIZE, i < sizes.length - 1 ? pageNo + 1 : 0);
+                int header = page + 3 * INDEX_SIZE;
+                int offset = header + leafHeaderSize;
+                for (int slot = 0; slot < sizes[i]; slot++, offset += recordSize) {
+                    byte[] record = records.next();
+                    if (slot == 0) {
+                        firstKeys.add(parseKey(ByteBuffer.wrap(record)));
+                    }
+                    batch.put(header + slot / 8, (byte) (batch.get(header + slot / 8) | (1 << (slot % 8))));
+                    System.arraycopy(record, 0, batch.array(), offset, recordSize);
+                }
+                batch.position(page + pageSize);
+
+                if (!batch.hasRemaining() || i == sizes.length - 1) {
+                    batch.flip();
+                    out.appendPages(batch);
+                    batch.clear();
+                    Arrays.fill(batch.array(), (byte) 0);
+                }
+            }
+            return firstKeys;
+        }
+
+        /**
+         * Writes the internal pages of level k, whose children are on level
+         * k - 1.
+         *
+         * @param childKeys the smallest key under each child page
+         * @return the smallest key under each page of this level
+         */
+        private ArrayList<Field> writeInternalLevel(int k, ArrayList<Field> childKeys, ArrayList<int[]> levels,
+                int[] firstPage) throws IOException {
+            int[] sizes = levels.get(k);
+            int[] parentSizes = k + 1 < levels.size() ? levels.get(k + 1) : null;
+            int childCategory = k == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL;
+            int childrenOffset = INDEX_SIZE + 1 + internalHeaderSize + maxEntries * keySize;
+
+            ArrayList<Field> firstKeys = new ArrayList<Field>(sizes.length);
+            // the upper levels are small, so each is written with one write
+            ByteBuffer level = ByteBuffer.allocate(sizes.length * pageSize);
+            int child = 0;
+            int parent = 0;
+            int siblingsLeft = parentSizes != null ? parentSizes[0] : 0;
+            for (int i = 0; i < sizes.length; i++) {
+                if (parentSizes != null && siblingsLeft == 0) {
+                    parent++;
+                    siblingsLeft = parentSizes[parent];
+                }
+                siblingsLeft--;
+
+                int page = i * pageSize;
+                level.putInt(page, parentSizes != null ? firstPage[k + 1] + parent : 0);
+                level.put(page + INDEX_SIZE, (byte) childCategory);
+                int header = page + INDEX_SIZE + 1;
+                firstKeys.add(childKeys.get(child));
+                // slot 0 holds only a child pointer; slot j > 0 holds the key
+                // separating child j - 1 from child j
+                for (int slot = 0; slot < sizes[i]; slot++, child++) {
+                    level.put(header + slot / 8, (byte) (level.get(header + slot / 8) | (1 << (slot % 8))));
+                    if (slot > 0) {
+                        childKeys.get(child).serialize(level, header + internalHeaderSize + (slot - 1) * keySize);
+                    }
+                    level.putInt(page + childrenOffset + slot * INDEX_SIZE, firstPage[k - 1] + child);
+                }
+            }
+            out.appendPages(level);
+            return firstKeys;
+        }
+    }
+}
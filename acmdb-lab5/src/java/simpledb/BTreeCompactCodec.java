@@ -0,0 +1,191 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * BTreeCompactCodec reads and writes the fields of B+ tree pages in the
+ * compact page format, see {@link BTreeFile#BTreeFile(java.io.File, int, TupleDesc, boolean)}.
+ * Int fields take 4 bytes. String fields take a length byte followed by
+ * their characters, without the padding up to Type.STRING_LEN.
+ * <p>
+ * Keys are front coded: a string key is stored as the number of leading
+ * characters it shares with the previous key on the page, followed by the
+ * length and characters of the rest of the key. Since the keys of a page are
+ * sorted, neighbouring keys tend to share long prefixes. Int keys are stored
+ * as they are.
+ * <p>
+ * A codec is a cursor over a page: each read or write starts where the
+ * previous one ended.
+ */
+class BTreeCompactCodec {
+    private static final int INT_SIZE = Type.INT_TYPE.getLen();
+
+    private final ByteBuffer buf;
+    private int offset;
+
+    /**
+     * Creates a cursor over buf that starts at the given offset.
+     */
+    BTreeCompactCodec(ByteBuffer buf, int offset) {
+        this.buf = buf;
+        this.offset = offset;
+    }
+
+    /**
+     * Returns the offset of the next field.
+     */
+    int getOffset() {
+        return offset;
+    }
+
+    /**
+     * Returns the number of characters of a string field that are stored.
+     */
+    private static int length(String s) {
+        return Math.min(s.length(), Type.STRING_LEN);
+    }
+
+    /**
+     * Returns the number of leading characters two stored strings share.
+     */
+    static int commonPrefix(String a, String b) {
+        int n = Math.min(length(a), length(b));
+        int i = 0;
+        while (i < n && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Returns the number of bytes a field takes.
+     */
+    static int fieldSize(Field f) {
+        if (f.getType() == Type.INT_TYPE) {
+            return INT_SIZE;
+        }
+        return 1 + length(((StringField) f).getValue());
+    }
+
+    /**
+     * Returns the number of bytes a key takes when it follows the key prev,
+     * which is null for the first key of a page.
+     */
+    static int keySize(Field prev, Field key) {
+        if (key.getType() == Type.INT_TYPE) {
+            return INT_SIZE;
+        }
+        String s = ((StringField) key).getValue();
+        int shared = prev == null ? 0 : commonPrefix(((StringField) prev).getValue(), s);
+        return 2 + length(s) - shared;
+    }
+
+    /**
+     * Returns the largest number of bytes a field of the given type takes.
+     */
+    static int maxFieldSize(Type type) {
+        return type == Type.INT_TYPE ? INT_SIZE : 1 + Type.STRING_LEN;
+    }
+
+    /**
+     * Returns the largest number of bytes a key of the given type takes.
+     */
+    static int maxKeySize(Type type) {
+        return type == Type.INT_TYPE ? INT_SIZE : 2 + Type.STRING_LEN;
+    }
+
+    /**
+     * Returns the smallest number of bytes a field of the given type takes.
+     */
+    static int minFieldSize(Type type) {
+        return type == Type.INT_TYPE ? INT_SIZE : 1;
+    }
+
+    /**
+     * Returns the smallest number of bytes a key of the given type takes.
+     */
+    static int minKeySize(Type type) {
+        return type == Type.INT_TYPE ? INT_SIZE : 2;
+    }
+
+    int readInt() {
+        int value = buf.getInt(offset);
+        offset += INT_SIZE;
+        return value;
+    }
+
+    void writeInt(int value) {
+        buf.putInt(offset, value);
+        offset += INT_SIZE;
+    }
+
+    private String readString(String prefix) {
+        int len = buf.get(offset++) & 0xFF;
+        String s;
+        if (buf.hasArray()) {
+            s = new String(buf.array(), buf.arrayOffset() + offset, len, StandardCharsets.ISO_8859_1);
+        } else {
+            s = Type.decodeString(buf, offset, len);
+        }
+        offset += len;
+        return prefix.isEmpty() ? s : prefix + s;
+    }
+
+    private void writeString(String s, int from) {
+        int len = length(s);
+        buf.put(offset++, (byte) (len - from));
+        for (int i = from; i < len; i++) {
+            buf.put(offset++, (byte) s.charAt(i));
+        }
+    }
+
+    /**
+     * Reads a field of the given type.
+     */
+    Field readField(Type type) {
+        if (type == Type.INT_TYPE) {
+            return new IntField(readInt());
+        }
+        return new StringField(readString(""), Type.STRING_LEN);
+    }
+
+    /**
+     * Writes a field.
+     */
+    void writeField(Field f) {
+        if (f.getType() == Type.INT_TYPE) {
+            writeInt(((IntField) f).getValue());
+        } else {
+            writeString(((StringField) f).getValue(), 0);
+        }
+    }
+
+    /**
+     * Reads a key of the given type that follows the key prev, which is null
+     * for the first key of a page.
+     */
+    Field readKey(Type type, Field prev) {
+        if (type == Type.INT_TYPE) {
+            return new IntField(readInt());
+        }
+        int shared = buf.get(offset++) & 0xFF;
+        String prefix = shared == 0 ? "" : ((StringField) prev).getValue().substring(0, shared);
+        return new StringField(readString(prefix), Type.STRING_LEN);
+    }
+
+    /**
+     * Writes a key that follows the key prev, which is null for the first key
+     * of a page.
+     */
+    void writeKey(Field prev, Field key) {
+        if (key.getType() == Type.INT_TYPE) {
+            writeInt(((IntField) key).getValue());
+            return;
+        }
+        String s = ((StringField) key).getValue();
+        int shared = prev == null ? 0 : commonPrefix(((StringField) prev).getValue(), s);
+        buf.put(offset++, (byte) shared);
+        writeString(s, shared);
+    }
+}
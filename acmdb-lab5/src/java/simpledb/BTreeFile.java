@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 import simpledb.Predicate.Op;
@@ -24,6 +25,10 @@ public class BTreeFile implements DbFile {
     private final TupleDesc td;
     private final int tableid;
     private int keyField;
+    private final boolean compact;
+    private final boolean unique;
+    private final ExtentAllocator extents;
+    private final FreePageCache freePages = new FreePageCache();
 
     /**
      * Constructs a B+ tree file backed by the specified file.
@@ -34,10 +39,91 @@ public class BTreeFile implements DbFile {
      * @param td - the tuple descriptor of tuples in the file
      */
     public BTreeFile(File f, int key, TupleDesc td) {
+        this(f, key, td, false);
+    }
+
+    /**
+     * Constructs a B+ tree file backed by the specified file, with its leaf and
+     * internal pages in the fixed or the compact page format. A file must
+     * always be opened with the format it was created with.
+     * <p>
+     * In the fixed format every key and tuple takes a slot of the size of its
+     * type, so a string key takes Type.STRING_LEN + 4 bytes whatever its
+     * length. In the compact format strings are stored without padding and
+     * the keys of a page are front coded, see {@link BTreeCompactCodec}, so a
+     * page holds as many entries as fit in its bytes. This gives string keyed
+     * trees a much higher fanout, and so fewer levels and fewer pages to
+     * cache. The separator keys that leaf splits copy up are also truncated
+     * to the shortest prefix of the right page's first key that is still
+     * greater than the left page's last key.
+     * <p>
+     * For int keys the compact format has no benefit. Compact files cannot be
+     * bulk loaded or built with BTreeFileEncoder.
+     *
+     * @param f - the file that stores the on-disk backing store for this B+ tree
+     *            file.
+     * @param key - the field which index is keyed on
+     * @param td - the tuple descriptor of tuples in the file
+     * @param compact - whether the pages are in the compact format
+     */
+    public BTreeFile(File f, int key, TupleDesc td, boolean compact) {
+        this(f, key, td, compact, false);
+    }
+
+    /**
+     * Constructs a B+ tree file that may be unique. In a unique file tuples
+     * with equal keys are sorted on their other fields, in order, and the
+     * internal pages hold all the fields of the tuples they were split on,
+     * see {@link CompositeField}. A tuple can then be found by all of its
+     * fields without reading the other tuples with the same key, see
+     * {@link #findTuple}, at the cost of larger internal pages. Searches for
+     * a single key field work as in any other file. The tuples of a unique
+     * file should differ in at least one field.
+     *
+     * @param f - the file that stores the on-disk backing store for this B+ tree
+     *            file.
+     * @param key - the field which index is keyed on
+     * @param td - the tuple descriptor of tuples in the file
+     * @param compact - whether the pages are in the compact format
+     * @param unique - whether the file is unique
+     * @throws IllegalArgumentException if the file is both compact and unique
+     */
+    public BTreeFile(File f, int key, TupleDesc td, boolean compact, boolean unique) {
+        if (compact && unique) {
+            throw new IllegalArgumentException("compact B+ tree files cannot be unique");
+        }
         this.f = f;
         this.tableid = f.getAbsoluteFile().hashCode();
         this.keyField = key;
         this.td = td;
+        this.compact = compact;
+        this.unique = unique;
+        this.extents = new ExtentAllocator(f, BTreeRootPtrPage.getPageSize());
+    }
+
+    /**
+     * Returns whether the leaf and internal pages of this file are in the
+     * compact page format.
+     * @see #BTreeFile(File, int, TupleDesc, boolean)
+     */
+    public boolean isCompact() {
+        return compact;
+    }
+
+    /**
+     * Returns whether the tuples of this file are sorted on all their fields.
+     * @see #BTreeFile(File, int, TupleDesc, boolean, boolean)
+     */
+    public boolean isUnique() {
+        return unique;
+    }
+
+    /**
+     * Returns the key a tuple is sorted on: its key field, or for a unique
+     * file its key field followed by its other fields.
+     */
+    public Field getKey(Tuple t) {
+        return unique ? CompositeField.of(t, keyField) : t.getField(keyField);
     }
 
     /**
@@ -112,10 +198,10 @@ public class BTreeFile implements DbFile {
                 }
                 Debug.log(1, "BTreeFile.readPage: read page %d", id.pageNumber());
                 if (id.pgcateg() == BTreePageId.INTERNAL) {
-                    BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
+                    BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField, compact, unique);
                     return p;
                 } else if (id.pgcateg() == BTreePageId.LEAF) {
-                    BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyField);
+                    BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyField, compact, unique);
                     return p;
                 } else { // id.pgcateg() == BTreePageId.HEADER
                     BTreeHeaderPage p = new BTreeHeaderPage(id, pageBuf);
@@ -153,15 +239,31 @@ public class BTreeFile implements DbFile {
             rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().pageNumber() - 1) * BufferPool.getPageSize());
             rf.write(data);
             rf.close();
+            extents.pageWritten(page.getId().pageNumber() - 1);
         }
     }
 
+    /**
+     * Appends already encoded pages to the end of this file with one
+     * sequential write, bypassing the buffer pool. Used for bulk loading, see
+     * {@link BTreeBulkLoader}.
+     *
+     * @param pages
+     *            the raw data of one or more B+ tree pages, as returned by
+     *            {@link Page#getPageData}
+     * @return the number of the first page appended
+     */
+    public int appendPages(ByteBuffer pages) throws IOException {
+        // page numbers of a BTreeFile start at 1
+        return extents.appendPages(pages) + 1;
+    }
+
     /**
      * Returns the number of pages in this BTreeFile.
      */
     public int numPages() {
-        // we only ever write full pages
-        return (int) ((f.length() - BTreeRootPtrPage.getPageSize()) / BufferPool.getPageSize());
+        // pages past the high-water mark are preallocated, but not in use
+        return extents.numPages();
     }
 
     /**
@@ -195,14 +297,32 @@ public class BTreeFile implements DbFile {
         }
         BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
 
-        BTreeEntry entry = null;
-        for (Iterator<BTreeEntry> it = page.iterator(); it.hasNext();) {
-            entry = it.next();
-            if (f == null || f.compare(Op.LESS_THAN_OR_EQ, entry.getKey())) {
-                return findLeafPage(tid, dirtypages, entry.getLeftChild(), perm, f);
-            }
+        return findLeafPage(tid, dirtypages, page.findChildId(f), perm, f);
+    }
+
+    /**
+     * Finds and locks the right-most leaf page possibly containing the key
+     * field f, the mirror image of
+     * {@link #findLeafPage(TransactionId, BTreePageId, Permissions, Field)}.
+     * Internal nodes along the path are locked with READ_ONLY permission.
+     * 
+     * If f is null, it finds the right-most leaf page -- used for the reverse
+     * iterator
+     * 
+     * @param tid - the transaction id
+     * @param pid - the current page being searched
+     * @param perm - the permissions with which to lock the leaf page
+     * @param f - the field to search for
+     * @return the right-most leaf page possibly containing the key field f
+     */
+    BTreeLeafPage findLastLeafPage(TransactionId tid, BTreePageId pid, Permissions perm, Field f)
+            throws DbException, TransactionAbortedException {
+        while (pid.pgcateg() != BTreePageId.LEAF) {
+            BTreeInternalPage page = (BTreeInternalPage) Database.getBufferPool().getPage(tid, pid,
+                    Permissions.READ_ONLY);
+            pid = page.findLastChildId(f);
         }
-        return findLeafPage(tid, dirtypages, entry.getRightChild(), perm, f);
+        return (BTreeLeafPage) Database.getBufferPool().getPage(tid, pid, perm);
     }
 
     /**
@@ -222,6 +342,109 @@ public class BTreeFile implements DbFile {
         return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
     }
 
+    /**
+     * Finds the left-most (or right-most) leaf page possibly containing the
+     * key field f and locks it with READ_ONLY permission, for the iterators.
+     * 
+     * The root pointer and internal pages are first read optimistically,
+     * without locking them, see {@link BufferPool#peekPage}: the write version
+     * of each page is checked before and after it is read, and the one of the
+     * parent of the leaf once more after the leaf is locked, since a split or
+     * merge of the leaf changes its parent. Readers then neither wait for nor
+     * hold up writers on the upper levels of the tree. If another transaction
+     * modified or holds write permission on any of these pages, or one of
+     * them is not in the buffer pool, the pages are locked along the path
+     * instead.
+     * 
+     * @param tid - the transaction id
+     * @param f - the field to search for, or null for the left-most (or
+     *        right-most) leaf page
+     * @param last - whether to find the right-most leaf page, see
+     *        {@link #findLastLeafPage(TransactionId, BTreePageId, Permissions, Field)}
+     * @return the leaf page
+     */
+    BTreeLeafPage findReadOnlyLeafPage(TransactionId tid, Field f, boolean last)
+            throws DbException, TransactionAbortedException {
+        BTreeLeafPage leaf = findLeafPageOptimistic(tid, f, last);
+        if (leaf != null) {
+            return leaf;
+        }
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+                BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+        BTreePageId root = rootPtr.getRootId();
+        if (last) {
+            return findLastLeafPage(tid, root, Permissions.READ_ONLY, f);
+        }
+        return findLeafPage(tid, root, Permissions.READ_ONLY, f);
+    }
+
+    /**
+     * The optimistic descent of {@link #findReadOnlyLeafPage}. The version of
+     * each child is read before its parent is checked once more, so that the
+     * child was still referenced by the parent when its version was taken.
+     * @return the leaf page locked with READ_ONLY permission, or null if the
+     *         descent saw a concurrent modification or reached a page that is
+     *         not in the buffer pool
+     */
+    private BTreeLeafPage findLeafPageOptimistic(TransactionId tid, Field f, boolean last)
+            throws DbException, TransactionAbortedException {
+        BufferPool bp = Database.getBufferPool();
+        BTreePageId pid = BTreeRootPtrPage.getId(tableid);
+        long version = bp.getWriteVersion(tid, pid);
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bp.peekPage(pid);
+        if (version < 0 || rootPtr == null) {
+            return null;
+        }
+        BTreePageId childId = rootPtr.getRootId();
+        while (childId != null && childId.pgcateg() != BTreePageId.LEAF) {
+            long childVersion = bp.getWriteVersion(tid, childId);
+            // the child id is only valid if the page did not change while it was read
+            if (childVersion < 0 || bp.getWriteVersion(tid, pid) != version) {
+                return null;
+            }
+            BTreeInternalPage page = (BTreeInternalPage) bp.peekPage(childId);
+            if (page == null) {
+                return null;
+            }
+            pid = childId;
+            version = childVersion;
+            childId = last ? page.findLastChildId(f) : page.findChildId(f);
+        }
+        if (childId == null) {
+            return null;
+        }
+        boolean locked = bp.holdsLock(tid, childId);
+        BTreeLeafPage leaf = (BTreeLeafPage) bp.getPage(tid, childId, Permissions.READ_ONLY);
+        if (bp.getWriteVersion(tid, pid) != version) {
+            // the leaf may not hold the key any more; the lock was only taken for it
+            if (!locked) {
+                bp.releasePage(tid, childId);
+            }
+            return null;
+        }
+        return leaf;
+    }
+
+    /**
+     * Returns the key to separate two adjacent leaf pages in their parent,
+     * given the last key of the left page and the first key of the right
+     * page. This is the first key of the right page, except in compact files,
+     * where string keys are truncated to the shortest prefix of it that is
+     * still greater than the last key of the left page.
+     */
+    private Field getSeparator(Field leftKey, Field rightKey) {
+        if (!compact || rightKey.getType() != Type.STRING_TYPE) {
+            return rightKey;
+        }
+        String left = ((StringField) leftKey).getValue();
+        String right = ((StringField) rightKey).getValue();
+        int n = BTreeCompactCodec.commonPrefix(left, right);
+        if (n + 1 >= right.length()) {
+            return rightKey;
+        }
+        return new StringField(right.substring(0, n + 1), Type.STRING_LEN);
+    }
+
     /**
      * Split a leaf page to make room for new tuples and recursively split the parent node
      * as needed to accommodate a new entry. The new entry should have a key matching the key field
@@ -255,16 +478,16 @@ public class BTreeFile implements DbFile {
         // tuple with the given key field should be inserted.
         BTreeLeafPage newRightPage = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
 
-        int half = (page.getNumTuples() + 1) / 2;
-
+        // move the upper half of the tuples, by the space they take
         Iterator<Tuple> it = page.reverseIterator();
         Tuple tuple = null;
-        for (int i = 0; i < half; i++) {
+        while (page.getUsedSpace() > newRightPage.getUsedSpace()) {
             tuple = it.next();
             page.deleteTuple(tuple);
             newRightPage.insertTuple(tuple);
         }
         // now tuple is the first element of newPage
+        Field separator = getSeparator(getKey(it.next()), getKey(tuple));
 
         BTreePageId oldRightId = page.getRightSiblingId();
         BTreePageId newRightId = newRightPage.getId();
@@ -280,10 +503,10 @@ public class BTreeFile implements DbFile {
         }
 
         BTreeInternalPage parentPage = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), field);
-        parentPage.insertEntry(new BTreeEntry(tuple.getField(this.keyField), pageId, newRightId));
+        parentPage.insertEntry(new BTreeEntry(separator, pageId, newRightId));
 
         newRightPage.setParentId(parentPage.getId());
-        return field.compare(Op.LESS_THAN_OR_EQ, tuple.getField(this.keyField)) ? page : newRightPage;
+        return field.compare(Op.LESS_THAN_OR_EQ, separator) ? page : newRightPage;
     }
 
     /**
@@ -313,11 +536,10 @@ public class BTreeFile implements DbFile {
         // some code goes here
         BTreeInternalPage newRightPage = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
 
-        int half = (page.getNumEntries() + 1) / 2;
-
+        // move the upper half of the entries, by the space they take
         Iterator<BTreeEntry> it = page.reverseIterator();
         BTreeEntry entry = null;
-        for (int i = 0; i < half; i++) {
+        while (page.getUsedSpace() > newRightPage.getUsedSpace()) {
             entry = it.next();
             page.deleteKeyAndRightChild(entry);
             newRightPage.insertEntry(entry);
@@ -330,6 +552,7 @@ public class BTreeFile implements DbFile {
         BTreeInternalPage parentPage = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), field);
         parentPage.insertEntry(newEntry);
 
+        newRightPage.setParentId(parentPage.getId());
         updateParentPointers(tid, dirtypages, newRightPage);
 
         return field.compare(Op.LESS_THAN_OR_EQ, newEntry.getKey()) ? page : newRightPage;
@@ -377,7 +600,7 @@ public class BTreeFile implements DbFile {
         }
 
         // split the parent if needed
-        if (parent.getNumEmptySlots() == 0) {
+        if (parent.isFull()) {
             parent = splitInternalPage(tid, dirtypages, parent, field);
         }
 
@@ -493,9 +716,10 @@ public class BTreeFile implements DbFile {
         }
         // find and lock the left-most leaf page corresponding to the key field,
         // and split the leaf page if there are no more slots available
-        BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
-        if (leafPage.getNumEmptySlots() == 0) {
-            leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));
+        Field key = getKey(t);
+        BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, key);
+        if (leafPage.isFull()) {
+            leafPage = splitLeafPage(tid, dirtypages, leafPage, key);
         }
 
         // insert the tuple into the leaf page
@@ -580,14 +804,15 @@ public class BTreeFile implements DbFile {
         if (rightEntry != null)
             rightSiblingId = rightEntry.getRightChild();
 
-        int maxEmptySlots = (page.getMaxTuples() + 1) / 2; // ceiling
+        // stealing changes the key in the parent; if a compact parent has no
+        // room for a longer key, the page is left underfull for now
         if (leftSiblingId != null) {
             BTreeLeafPage leftSibling = (BTreeLeafPage) getPage(tid, dirtypages, leftSiblingId, Permissions.READ_WRITE);
             // if the left sibling is at minimum occupancy, merge with it. Otherwise
             // steal some tuples from it
-            if (leftSibling.getNumEmptySlots() >= maxEmptySlots) {
+            if (page.canMergeWith(leftSibling)) {
                 mergeLeafPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
-            } else {
+            } else if (parent.canReplaceKey()) {
                 stealFromLeafPage(page, leftSibling, parent, leftEntry, false);
             }
         } else if (rightSiblingId != null) {
@@ -595,9 +820,9 @@ public class BTreeFile implements DbFile {
                     Permissions.READ_WRITE);
             // if the right sibling is at minimum occupancy, merge with it. Otherwise
             // steal some tuples from it
-            if (rightSibling.getNumEmptySlots() >= maxEmptySlots) {
+            if (page.canMergeWith(rightSibling)) {
                 mergeLeafPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
-            } else {
+            } else if (parent.canReplaceKey()) {
                 stealFromLeafPage(page, rightSibling, parent, rightEntry, true);
             }
         }
@@ -623,20 +848,29 @@ public class BTreeFile implements DbFile {
         // Move some of the tuples from the sibling to the page so
         // that the tuples are evenly distributed. Be sure to update
         // the corresponding parent entry.
+        // move tuples while that leaves the sibling with at least as much
+        // space used as the page
         Iterator<Tuple> it = isRightSibling ? sibling.iterator() : sibling.reverseIterator();
-        int count = (sibling.getNumTuples() - page.getNumTuples()) / 2;
-
-        Tuple tuple = null;
-        for (int i = 0; i < count; i++) {
-            tuple = it.next();
-            sibling.deleteTuple(tuple);
-            page.insertTuple(tuple);
+        Tuple next = it.next();
+        Tuple moved = null;
+        while (sibling.getUsedSpace() - page.getUsedSpace() >= 2 * page.getSpace(next)) {
+            sibling.deleteTuple(next);
+            page.insertTuple(next);
+            moved = next;
+            next = it.next();
         }
-        if (isRightSibling) {
-            tuple = it.next();
+        if (moved == null) {
+            return;
         }
 
-        entry.setKey(tuple.getField(this.keyField));
+        // next is the first tuple left on the sibling
+        Field separator;
+        if (isRightSibling) {
+            separator = getSeparator(getKey(moved), getKey(next));
+        } else {
+            separator = getSeparator(getKey(next), getKey(moved));
+        }
+        entry.setKey(separator);
         parent.updateEntry(entry);
     }
 
@@ -671,13 +905,12 @@ public class BTreeFile implements DbFile {
             rightSiblingId = rightEntry.getRightChild();
         }
 
-        int maxEmptySlots = (page.getMaxEntries() + 1) / 2; // ceiling
         if (leftSiblingId != null) {
             BTreeInternalPage leftSibling = (BTreeInternalPage) getPage(tid, dirtypages, leftSiblingId,
                     Permissions.READ_WRITE);
             // if the left sibling is at minimum occupancy, merge with it. Otherwise
             // steal some entries from it
-            if (leftSibling.getNumEmptySlots() >= maxEmptySlots) {
+            if (page.canMergeWith(leftSibling)) {
                 mergeInternalPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
             } else {
                 stealFromLeftInternalPage(tid, dirtypages, page, leftSibling, parent, leftEntry);
@@ -687,7 +920,7 @@ public class BTreeFile implements DbFile {
                     Permissions.READ_WRITE);
             // if the right sibling is at minimum occupancy, merge with it. Otherwise
             // steal some entries from it
-            if (rightSibling.getNumEmptySlots() >= maxEmptySlots) {
+            if (page.canMergeWith(rightSibling)) {
                 mergeInternalPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
             } else {
                 stealFromRightInternalPage(tid, dirtypages, page, rightSibling, parent, rightEntry);
@@ -717,13 +950,14 @@ public class BTreeFile implements DbFile {
             BTreeInternalPage page, BTreeInternalPage leftSibling, BTreeInternalPage parent, BTreeEntry parentEntry)
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
-        int count = (leftSibling.getNumEntries() - page.getNumEntries()) / 2;
+        // rotate entries through the parent while that leaves the sibling
+        // with at least as much space used as the page, the page has room for
+        // the keys pulled down and the parent for the keys pushed up
         Iterator<BTreeEntry> it = leftSibling.reverseIterator();
-        BTreeEntry siblingEntry;
+        BTreeEntry siblingEntry = it.next();
         BTreeEntry entry = page.iterator().next();
-        for (int i = 0; i < count; i++) {
-            siblingEntry = it.next();
-
+        while (leftSibling.getUsedSpace() - page.getUsedSpace() >= 2 * page.getSpace(siblingEntry)
+                && !page.isFull() && parent.canReplaceKey()) {
             parent.deleteKeyAndRightChild(parentEntry);
             parentEntry.setLeftChild(siblingEntry.getRightChild());
             parentEntry.setRightChild(entry.getLeftChild());
@@ -735,6 +969,7 @@ public class BTreeFile implements DbFile {
             siblingEntry.setRightChild(page.getId());
             parent.insertEntry(siblingEntry);
             parentEntry = siblingEntry;
+            siblingEntry = it.next();
         }
         updateParentPointers(tid, dirtypages, page);
     }
@@ -765,12 +1000,14 @@ public class BTreeFile implements DbFile {
         // that the entries are evenly distributed. Be sure to update
         // the corresponding parent entry. Be sure to update the parent
         // pointers of all children in the entries that were moved.
-        int count = (rightSibling.getNumEntries() - page.getNumEntries()) / 2;
+        // rotate entries through the parent while that leaves the sibling
+        // with at least as much space used as the page, the page has room for
+        // the keys pulled down and the parent for the keys pushed up
         Iterator<BTreeEntry> it = rightSibling.iterator();
-        BTreeEntry siblingEntry;
+        BTreeEntry siblingEntry = it.next();
         BTreeEntry entry = page.reverseIterator().next();
-        for (int i = 0; i < count; i++) {
-            siblingEntry = it.next();
+        while (rightSibling.getUsedSpace() - page.getUsedSpace() >= 2 * page.getSpace(siblingEntry)
+                && !page.isFull() && parent.canReplaceKey()) {
             parent.deleteKeyAndLeftChild(parentEntry);
             parentEntry.setRightChild(siblingEntry.getLeftChild());
             parentEntry.setLeftChild(entry.getRightChild());
@@ -782,6 +1019,7 @@ public class BTreeFile implements DbFile {
             siblingEntry.setLeftChild(page.getId());
             parent.insertEntry(siblingEntry);
             parentEntry = siblingEntry;
+            siblingEntry = it.next();
         }
         // parent.markDirty(true, tid);
         // page.markDirty(true, tid);
@@ -909,7 +1147,6 @@ public class BTreeFile implements DbFile {
         // the parent is below minimum occupancy, get some tuples from its siblings
         // or merge with one of the siblings
         parent.deleteKeyAndRightChild(parentEntry);
-        int maxEmptySlots = (parent.getMaxEntries() + 1) / 2; // ceiling
         if (parent.getNumEmptySlots() == parent.getMaxEntries()) {
             // This was the last entry in the parent.
             // In this case, the parent (root node) should be deleted, and the merged 
@@ -924,7 +1161,7 @@ public class BTreeFile implements DbFile {
 
             // release the parent page for reuse
             setEmptyPage(tid, dirtypages, parent.getId().pageNumber());
-        } else if (parent.getNumEmptySlots() > maxEmptySlots) {
+        } else if (parent.isUnderfull()) {
             handleMinOccupancyPage(tid, dirtypages, parent);
         }
     }
@@ -950,8 +1187,7 @@ public class BTreeFile implements DbFile {
 
         // if the page is below minimum occupancy, get some tuples from its siblings
         // or merge with one of the siblings
-        int maxEmptySlots = (page.getMaxTuples() + 1) / 2; // ceiling
-        if (page.getNumEmptySlots() > maxEmptySlots) {
+        if (page.isUnderfull()) {
             handleMinOccupancyPage(tid, dirtypages, page);
         }
 
@@ -990,12 +1226,17 @@ public class BTreeFile implements DbFile {
     }
 
     /**
-     * Get the page number of the first empty page in this BTreeFile.
+     * Get the page number of an empty page in this BTreeFile.
      * Creates a new page if none of the existing pages are empty.
      * 
+     * The free pages recorded in the header pages are cached in memory, see
+     * {@link FreePageCache}, and each page the cache offers is checked in its
+     * header page before it is marked used. When no page is free, the file
+     * is extended without reading the header pages at all.
+     * 
      * @param tid - the transaction id
      * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
-     * @return the page number of the first empty page
+     * @return the page number of the empty page
      * 
      * @throws DbException
      * @throws IOException
@@ -1006,45 +1247,72 @@ public class BTreeFile implements DbFile {
         // get a read lock on the root pointer page and use it to locate the first header page
         BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
         BTreePageId headerId = rootPtr.getHeaderId();
-        int emptyPageNo = 0;
-
-        if (headerId != null) {
-            BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-            int headerPageCount = 0;
-            // try to find a header page with an empty slot
-            while (headerPage != null && headerPage.getEmptySlot() == -1) {
-                headerId = headerPage.getNextPageId();
-                if (headerId != null) {
-                    headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-                    headerPageCount++;
-                } else {
-                    headerPage = null;
-                }
-            }
+        freePages.forgetCompleted(rootPtr.getId());
+        if (freePages.needsRebuild()) {
+            rebuildFreePages(tid, dirtypages, headerId);
+        }
 
-            // if headerPage is not null, it must have an empty slot
-            if (headerPage != null) {
-                headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
-                int emptySlot = headerPage.getEmptySlot();
+        int emptyPageNo;
+        while ((emptyPageNo = freePages.take(tid)) >= 0) {
+            BTreeHeaderPage headerPage = getHeaderPage(tid, dirtypages, headerId,
+                    emptyPageNo / BTreeHeaderPage.getNumSlots());
+            int emptySlot = emptyPageNo % BTreeHeaderPage.getNumSlots();
+            if (headerPage != null && !headerPage.isSlotUsed(emptySlot)) {
                 headerPage.markSlotUsed(emptySlot, true);
-                emptyPageNo = headerPageCount * BTreeHeaderPage.getNumSlots() + emptySlot;
+                return emptyPageNo;
             }
         }
 
-        // at this point if headerId is null, either there are no header pages 
-        // or there are no free slots
+        // create the new page; page numbers start at 1 after the root pointer page
+        return extents.allocatePage() + 1;
+    }
+
+    /**
+     * Walks the chain of header pages to the given one and locks it with
+     * read-write permission.
+     * 
+     * @param tid - the transaction id
+     * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+     * @param headerId - the id of the first header page, or null if there is none
+     * @param index - the position of the header page in the chain
+     * @return the header page, or null if the chain is shorter
+     */
+    private BTreeHeaderPage getHeaderPage(TransactionId tid, HashMap<PageId, Page> dirtypages,
+            BTreePageId headerId, int index) throws DbException, TransactionAbortedException {
+        for (int i = 0; i < index && headerId != null; i++) {
+            BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
+            headerId = headerPage.getNextPageId();
+        }
         if (headerId == null) {
-            synchronized (this) {
-                // create the new page
-                BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(f, true));
-                byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-                bw.write(emptyData);
-                bw.close();
-                emptyPageNo = numPages();
-            }
+            return null;
         }
+        return (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
+    }
 
-        return emptyPageNo;
+    /**
+     * Reads the free pages of this file from its header pages into the cache.
+     * 
+     * @param tid - the transaction id
+     * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+     * @param headerId - the id of the first header page, or null if there is none
+     */
+    private void rebuildFreePages(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId headerId)
+            throws DbException, TransactionAbortedException {
+        int generation = freePages.getGeneration();
+        BitSet free = new BitSet();
+        int headerPageCount = 0;
+        while (headerId != null) {
+            BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
+            int base = headerPageCount * BTreeHeaderPage.getNumSlots();
+            for (int slot = headerPage.getEmptySlot(0); slot >= 0; slot = headerPage.getEmptySlot(slot + 1)) {
+                free.set(base + slot);
+            }
+            headerId = headerPage.getNextPageId();
+            headerPageCount++;
+        }
+        // page numbers start at 1
+        free.clear(0);
+        freePages.rebuilt(free, generation);
     }
 
     /**
@@ -1139,7 +1407,8 @@ public class BTreeFile implements DbFile {
 
         // iterate through all the existing header pages to find the one containing the slot
         // corresponding to emptyPageNo
-        while (headerId != null && (headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
+        int headerIndex = emptyPageNo / BTreeHeaderPage.getNumSlots();
+        while (headerId != null && headerPageCount < headerIndex) {
             BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
             prevId = headerId;
             headerId = headerPage.getNextPageId();
@@ -1149,7 +1418,7 @@ public class BTreeFile implements DbFile {
         // at this point headerId should either be null or set with 
         // the headerPage containing the slot corresponding to emptyPageNo.
         // Add header pages until we have one with a slot corresponding to emptyPageNo
-        while ((headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
+        while (headerPageCount < headerIndex) {
             BTreeHeaderPage prevPage = (BTreeHeaderPage) getPage(tid, dirtypages, prevId, Permissions.READ_WRITE);
 
             BTreeHeaderPage headerPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER);
@@ -1165,8 +1434,56 @@ public class BTreeFile implements DbFile {
         // now headerId should be set with the headerPage containing the slot corresponding to 
         // emptyPageNo
         BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
-        int emptySlot = emptyPageNo - headerPageCount * BTreeHeaderPage.getNumSlots();
+        int emptySlot = emptyPageNo % BTreeHeaderPage.getNumSlots();
         headerPage.markSlotUsed(emptySlot, false);
+        freePages.freed(tid, emptyPageNo);
+    }
+
+    /**
+     * Finds the tuple of this file whose fields are all equal to those of t,
+     * on behalf of the specified transaction. The search starts at the
+     * left-most leaf page possibly containing the key of t, and follows the
+     * right sibling pointers while the keys are not greater. In a unique file
+     * the key is made of all the fields, so only the tuples that equal t
+     * are read; otherwise all the tuples with the same key field may be.
+     * The leaf pages read are locked with READ_ONLY permission.
+     *
+     * @param tid - the transaction id
+     * @param t - the tuple to find, whose RecordId is ignored
+     * @return the tuple stored in this file, with its RecordId, or null if
+     *         there is none
+     */
+    public Tuple findTuple(TransactionId tid, Tuple t) throws DbException, TransactionAbortedException {
+        Field key = getKey(t);
+        BTreeLeafPage page = findReadOnlyLeafPage(tid, key, false);
+        Iterator<Tuple> it = page.iterator(key);
+        while (true) {
+            while (it.hasNext()) {
+                Tuple found = it.next();
+                int cmp = BTreePage.compareKeys(getKey(found), key);
+                if (cmp > 0) {
+                    return null;
+                }
+                if (cmp == 0 && sameFields(found, t)) {
+                    return found;
+                }
+            }
+            BTreePageId next = page.getRightSiblingId();
+            if (next == null) {
+                return null;
+            }
+            page = (BTreeLeafPage) Database.getBufferPool().getPage(tid, next, Permissions.READ_ONLY);
+            it = page.iterator();
+        }
+    }
+
+    private boolean sameFields(Tuple t1, Tuple t2) {
+        for (int i = 0; i < td.numFields(); i++) {
+            if (!t1.getField(i).equals(t2.getField(i))) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
@@ -1183,6 +1500,35 @@ public class BTreeFile implements DbFile {
         return new BTreeSearchIterator(this, tid, ipred);
     }
 
+    /**
+     * get the specified tuples from the file based on its IndexPredicate value,
+     * in descending key order, by walking the leaf pages through their left
+     * sibling pointers. Predicates with an upper bound (EQUALS, LESS_THAN and
+     * LESS_THAN_OR_EQ) start at the leaf holding the bound, the others at the
+     * right-most leaf. This method will acquire a read lock on the affected
+     * pages of the file, and may block until the lock can be acquired.
+     * 
+     * @param tid - the transaction id
+     * @param ipred - the index predicate value to filter on, or null for all
+     *        tuples
+     * @return an iterator for the filtered tuples in descending key order
+     */
+    public DbFileIterator reverseIndexIterator(TransactionId tid, IndexPredicate ipred) {
+        return new BTreeReverseSearchIterator(this, tid, ipred);
+    }
+
+    /**
+     * Get an iterator for all tuples in this B+ tree file in descending key
+     * order.
+     * 
+     * @param tid - the transaction id
+     * @return an iterator for all the tuples in this file in reverse order
+     * @see #reverseIndexIterator(TransactionId, IndexPredicate)
+     */
+    public DbFileIterator reverseIterator(TransactionId tid) {
+        return new BTreeReverseSearchIterator(this, tid, null);
+    }
+
     /**
      * Get an iterator for all tuples in this B+ tree file in sorted order. This method 
      * will acquire a read lock on the affected pages of the file, and may block until 
@@ -1222,10 +1568,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
      * Open this iterator by getting an iterator on the first leaf page
      */
     public void open() throws DbException, TransactionAbortedException {
-        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
-                BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-        BTreePageId root = rootPtr.getRootId();
-        curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+        curp = f.findReadOnlyLeafPage(tid, null, false);
         it = curp.iterator();
     }
 
@@ -1308,15 +1651,13 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
      * for the given predicate operation
      */
     public void open() throws DbException, TransactionAbortedException {
-        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
-                BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-        BTreePageId root = rootPtr.getRootId();
         if (ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN || ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-            curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+            curp = f.findReadOnlyLeafPage(tid, ipred.getField(), false);
+            it = curp.iterator(ipred.getField());
         } else {
-            curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+            curp = f.findReadOnlyLeafPage(tid, null, false);
+            it = curp.iterator();
         }
-        it = curp.iterator();
     }
 
     /**
@@ -1373,3 +1714,99 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
         it = null;
     }
 }
+
+/**
+ * Helper class that implements the DbFileIterator for tuples on a B+ Tree
+ * File in descending key order, optionally filtered by a predicate on the key
+ */
+class BTreeReverseSearchIterator extends AbstractDbFileIterator {
+
+    Iterator<Tuple> it = null;
+    BTreeLeafPage curp = null;
+
+    TransactionId tid;
+    BTreeFile f;
+    IndexPredicate ipred;
+
+    /**
+     * Constructor for this iterator
+     * @param f - the BTreeFile containing the tuples
+     * @param tid - the transaction id
+     * @param ipred - the predicate to filter on, or null for all tuples
+     */
+    public BTreeReverseSearchIterator(BTreeFile f, TransactionId tid, IndexPredicate ipred) {
+        this.f = f;
+        this.tid = tid;
+        this.ipred = ipred;
+    }
+
+    /**
+     * Open this iterator by getting a reverse iterator on the last leaf page
+     * applicable for the given predicate operation
+     */
+    public void open() throws DbException, TransactionAbortedException {
+        if (ipred != null && (ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.LESS_THAN
+                || ipred.getOp() == Op.LESS_THAN_OR_EQ)) {
+            curp = f.findReadOnlyLeafPage(tid, ipred.getField(), true);
+            it = curp.reverseIterator(ipred.getField());
+        } else {
+            curp = f.findReadOnlyLeafPage(tid, null, true);
+            it = curp.reverseIterator();
+        }
+    }
+
+    /**
+     * Read the next tuple either from the current page if it has more tuples matching
+     * the predicate or from the previous page by following the left sibling pointer.
+     * 
+     * @return the next tuple matching the predicate, or null if none exists
+     */
+    @Override
+    protected Tuple readNext() throws TransactionAbortedException, DbException, NoSuchElementException {
+        while (it != null) {
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                if (ipred == null || t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
+                    return t;
+                } else if (ipred.getOp() == Op.GREATER_THAN || ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
+                    // if the predicate was not satisfied and the operation is greater than,
+                    // we have hit the end
+                    return null;
+                } else if (ipred.getOp() == Op.EQUALS
+                        && t.getField(f.keyField()).compare(Op.LESS_THAN, ipred.getField())) {
+                    // if the tuple is now less than the field passed in and the operation
+                    // is equals, we have reached the end
+                    return null;
+                }
+            }
+
+            BTreePageId prevp = curp.getLeftSiblingId();
+            // if there are no more pages to the left, end the iteration
+            if (prevp == null) {
+                return null;
+            } else {
+                curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid, prevp, Permissions.READ_ONLY);
+                it = curp.reverseIterator();
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * rewind this iterator back to the beginning of the tuples
+     */
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    /**
+     * close the iterator
+     */
+    public void close() {
+        super.close();
+        it = null;
+        curp = null;
+    }
+}
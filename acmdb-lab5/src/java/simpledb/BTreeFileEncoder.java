@@ -127,6 +127,9 @@ public class BTreeFileEncoder {
          * @return -1 if t1 < t2, 1 if t1 > t2, 0 if t1 == t2
          */
         public int compare(Tuple t1, Tuple t2) {
+            if (t1.getTupleDesc().getFieldType(keyField) == Type.INT_TYPE) {
+                return Integer.compare(t1.getInt(keyField), t2.getInt(keyField));
+            }
             int cmp = 0;
             if (t1.getField(keyField).compare(Op.LESS_THAN, t2.getField(keyField))) {
                 cmp = -1;
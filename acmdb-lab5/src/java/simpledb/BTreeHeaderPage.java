@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of BTreeHeaderPage stores data for one page of a BTreeFile and 
@@ -37,29 +38,18 @@ public class BTreeHeaderPage implements Page {
     public BTreeHeaderPage(BTreePageId id, byte[] data) throws IOException {
         this.pid = id;
         this.numSlots = getNumSlots();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // Read the next and prev pointers
-        try {
-            Field f = Type.INT_TYPE.parse(dis);
-            this.nextPage = ((IntField) f).getValue();
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
+        if (data.length < BufferPool.getPageSize()) {
+            throw new IOException("page data is shorter than the page size");
         }
+        ByteBuffer buf = ByteBuffer.wrap(data);
 
-        try {
-            Field f = Type.INT_TYPE.parse(dis);
-            this.prevPage = ((IntField) f).getValue();
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-        }
+        // Read the next and prev pointers
+        this.nextPage = buf.getInt(0);
+        this.prevPage = buf.getInt(INDEX_SIZE);
 
         // allocate and read the header slots of this page
         header = new byte[getHeaderSize()];
-        for (int i = 0; i < header.length; i++)
-            header[i] = dis.readByte();
-
-        dis.close();
+        System.arraycopy(data, 2 * INDEX_SIZE, header, 0, header.length);
 
         setBeforeImage();
     }
@@ -107,7 +97,7 @@ public class BTreeHeaderPage implements Page {
 
     public void setBeforeImage() {
         synchronized (oldDataLock) {
-            oldData = getPageData().clone();
+            oldData = getPageData();
         }
     }
 
@@ -130,41 +120,17 @@ public class BTreeHeaderPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
+        byte[] data = new byte[BufferPool.getPageSize()];
+        ByteBuffer buf = ByteBuffer.wrap(data);
 
         // write out the next and prev pointers
-        try {
-            dos.writeInt(nextPage);
-
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        try {
-            dos.writeInt(prevPage);
-
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        buf.putInt(0, nextPage);
+        buf.putInt(INDEX_SIZE, prevPage);
 
         // create the header of the page
-        for (int i = 0; i < header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        System.arraycopy(header, 0, data, 2 * INDEX_SIZE, header.length);
 
-        return baos.toByteArray();
+        return data;
     }
 
     /**
@@ -289,15 +255,42 @@ public class BTreeHeaderPage implements Page {
      * @return the index of the first empty slot or -1 if none exists
      */
     public int getEmptySlot() {
-        for (int i = 0; i < header.length; i++) {
-            if ((int) header[i] != 0xFF) {
-                for (int j = 0; j < 8; j++) {
-                    if (!isSlotUsed(i * 8 + j)) {
-                        return i * 8 + j;
-                    }
+        return getEmptySlot(0);
+    }
+
+    /**
+     * get the index of the first empty slot at or after slot from. The header
+     * is scanned 64 slots at a time where it is aligned to 8 bytes.
+     * @return the index of the empty slot or -1 if none exists
+     */
+    public int getEmptySlot(int from) {
+        int i = from;
+        while (i < numSlots) {
+            if ((i & 63) == 0 && (i >> 3) + 8 <= header.length) {
+                long word = getWord(i >> 3);
+                if (word != -1L) {
+                    return i + Long.numberOfTrailingZeros(~word);
                 }
+                i += 64;
+            } else {
+                if (!isSlotUsed(i)) {
+                    return i;
+                }
+                i++;
             }
         }
         return -1;
     }
+
+    /**
+     * Returns the 8 header bytes starting at the given one as a long, so that
+     * bit j of the result is slot 8 * off + j.
+     */
+    private long getWord(int off) {
+        long word = 0;
+        for (int b = 7; b >= 0; b--) {
+            word = (word << 8) | (header[off + b] & 0xFFL);
+        }
+        return word;
+    }
 }
@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 import simpledb.Predicate.Op;
 
@@ -21,6 +22,9 @@ public class BTreeInternalPage extends BTreePage {
 
     private int childCategory; // either leaf or internal
 
+    private volatile int[] usedSlots; // used slots in key order, or null until needed
+    private volatile int usedSpace = -1; // bytes used by a compact page, or -1 until needed
+
     public void checkRep(Field lowerBound, Field upperBound, boolean checkOccupancy, int depth) {
         Field prev = lowerBound;
         assert (this.getId().pgcateg() == BTreePageId.INTERNAL);
@@ -28,15 +32,17 @@ public class BTreeInternalPage extends BTreePage {
         Iterator<BTreeEntry> it = this.iterator();
         while (it.hasNext()) {
             Field f = it.next().getKey();
-            assert (null == prev || prev.compare(Op.LESS_THAN_OR_EQ, f));
+            assert (null == prev || compareKeys(prev, f) <= 0);
             prev = f;
         }
 
         if (null != upperBound && null != prev) {
-            assert (prev.compare(Op.LESS_THAN_OR_EQ, upperBound));
+            assert (compareKeys(prev, upperBound) <= 0);
         }
 
-        if (checkOccupancy && depth > 0) {
+        // compact pages may stay underfull when their parent has no room
+        // for a longer key, so their occupancy is not checked
+        if (checkOccupancy && depth > 0 && !compact) {
             assert (getNumEntries() >= getMaxEntries() / 2);
         }
     }
@@ -66,56 +72,108 @@ public class BTreeInternalPage extends BTreePage {
      * @param key - the field which the index is keyed on
      */
     public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
-        super(id, key);
+        this(id, data, key, false);
+    }
+
+    /**
+     * Create a BTreeInternalPage in the fixed format described above, or in
+     * the compact format. A compact page has the same parent pointer, child
+     * category and header, but only the used slots are stored, one after the
+     * other in slot order: the child pointer of the slot, followed by its key
+     * except for slot 0. Keys are front coded against the key before them,
+     * see {@link BTreeCompactCodec}. The number of slots is computed as if
+     * every key had the smallest possible size, and whether an entry fits is
+     * decided by the bytes that are left, see {@link #getCapacity()}.
+     *
+     * @param id - the id of this page
+     * @param data - the raw data of this page
+     * @param key - the field which the index is keyed on
+     * @param compact - whether the page is in the compact format
+     */
+    public BTreeInternalPage(BTreePageId id, byte[] data, int key, boolean compact) throws IOException {
+        this(id, data, key, compact, false);
+    }
+
+    /**
+     * Create a BTreeInternalPage of a file that may be unique, whose keys
+     * are then made of all the fields of a tuple, see
+     * {@link #getKey(Tuple)}.
+     *
+     * @param id - the id of this page
+     * @param data - the raw data of this page
+     * @param key - the field which the index is keyed on
+     * @param compact - whether the page is in the compact format
+     * @param unique - whether the file is unique
+     */
+    public BTreeInternalPage(BTreePageId id, byte[] data, int key, boolean compact, boolean unique)
+            throws IOException {
+        super(id, key, compact, unique);
         this.numSlots = getMaxEntries() + 1;
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        if (data.length < BufferPool.getPageSize()) {
+            throw new IOException("page data is shorter than the page size");
+        }
+        ByteBuffer buf = ByteBuffer.wrap(data);
 
         // Read the parent pointer
-        try {
-            Field f = Type.INT_TYPE.parse(dis);
-            this.parent = ((IntField) f).getValue();
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-        }
+        this.parent = buf.getInt(0);
 
         // read the child page category
-        childCategory = (int) dis.readByte();
+        childCategory = (int) buf.get(INDEX_SIZE);
 
         // allocate and read the header slots of this page
         header = new byte[getHeaderSize()];
-        for (int i = 0; i < header.length; i++)
-            header[i] = dis.readByte();
+        System.arraycopy(data, INDEX_SIZE + 1, header, 0, header.length);
 
+        // allocate and read the keys of this page
+        // start from 1 because the first key slot is not used
+        // since a node with m keys has m+1 pointers
+        Type keyType = td.getFieldType(keyField);
         keys = new Field[numSlots];
-        try {
-            // allocate and read the keys of this page
-            // start from 1 because the first key slot is not used
-            // since a node with m keys has m+1 pointers
-            keys[0] = null;
-            for (int i = 1; i < keys.length; i++)
-                keys[i] = readNextKey(dis, i);
-        } catch (NoSuchElementException e) {
-            e.printStackTrace();
-        }
-
         children = new int[numSlots];
-        try {
-            // allocate and read the child pointers of this page
-            for (int i = 0; i < children.length; i++)
-                children[i] = readNextChild(dis, i);
-        } catch (NoSuchElementException e) {
-            e.printStackTrace();
+        int offset = INDEX_SIZE + 1 + header.length;
+        if (compact) {
+            BTreeCompactCodec codec = new BTreeCompactCodec(buf, offset);
+            Field prev = null;
+            for (int i = 0; i < numSlots; i++) {
+                if (!isSlotUsed(i)) {
+                    children[i] = -1;
+                    continue;
+                }
+                children[i] = codec.readInt();
+                if (i > 0) {
+                    keys[i] = codec.readKey(keyType, prev);
+                    prev = keys[i];
+                }
+            }
+            synchronized (oldDataLock) {
+                oldData = data.clone();
+            }
+            return;
         }
-        dis.close();
+        for (int i = 1; i < keys.length; i++, offset += getKeySize())
+            keys[i] = isSlotUsed(i) ? parseKey(buf, offset) : null;
+
+        // read the child pointers of this page
+        for (int i = 0; i < children.length; i++, offset += INDEX_SIZE)
+            children[i] = isSlotUsed(i) ? buf.getInt(offset) : -1;
 
-        setBeforeImage();
+        // the data we were parsed from is the before image
+        synchronized (oldDataLock) {
+            oldData = data.clone();
+        }
     }
 
     /** 
      * Retrieve the maximum number of entries this page can hold. (The number of keys)
      */
     public int getMaxEntries() {
-        int keySize = td.getFieldType(keyField).getLen();
+        if (compact) {
+            // the header bits are left out, so that any set of entries that
+            // fits in the capacity also fits in the slots
+            int minEntrySize = BTreeCompactCodec.minKeySize(td.getFieldType(keyField)) + INDEX_SIZE;
+            return (BufferPool.getPageSize() - 2 * INDEX_SIZE - 1) / minEntrySize;
+        }
+        int keySize = getKeySize();
         int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
         // extraBits are: one parent pointer, 1 byte for child page category, 
         // one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
@@ -141,11 +199,11 @@ public class BTreeInternalPage extends BTreePage {
         -- used by recovery */
     public BTreeInternalPage getBeforeImage() {
         try {
-            byte[] oldDataRef = null;
+            // setBeforeImage rewrites the array in place, and the new page
+            // copies it
             synchronized (oldDataLock) {
-                oldDataRef = oldData;
+                return new BTreeInternalPage(pid, oldData, keyField, compact, unique);
             }
-            return new BTreeInternalPage(pid, oldDataRef, keyField);
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -156,69 +214,13 @@ public class BTreeInternalPage extends BTreePage {
 
     public void setBeforeImage() {
         synchronized (oldDataLock) {
-            oldData = getPageData().clone();
+            // the before image is only read by getBeforeImage, so its array
+            // is reused
+            Arrays.fill(oldData, (byte) 0);
+            writePageData(oldData);
         }
     }
 
-    /**
-     * Read keys from the source file.
-     */
-    private Field readNextKey(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next key, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i = 0; i < td.getFieldType(keyField).getLen(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty key");
-                }
-            }
-            return null;
-        }
-
-        // read the key field
-        Field f = null;
-        try {
-            f = td.getFieldType(keyField).parse(dis);
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
-        }
-
-        return f;
-    }
-
-    /**
-     * Read child pointers from the source file.
-     */
-    private int readNextChild(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next child pointer, and
-        // return -1.
-        if (!isSlotUsed(slotId)) {
-            for (int i = 0; i < INDEX_SIZE; i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty child pointer");
-                }
-            }
-            return -1;
-        }
-
-        // read child pointer
-        int child = -1;
-        try {
-            Field f = Type.INT_TYPE.parse(dis);
-            child = ((IntField) f).getValue();
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
-        }
-
-        return child;
-    }
-
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -231,105 +233,59 @@ public class BTreeInternalPage extends BTreePage {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
+        return writePageData(new byte[BufferPool.getPageSize()]);
+    }
 
-        // write out the parent pointer
-        try {
-            dos.writeInt(parent);
+    /**
+     * Writes the contents of this page into data, which must be zero, in the
+     * format of {@link #getPageData}.
+     *
+     * @return data
+     */
+    private byte[] writePageData(byte[] data) {
+        ByteBuffer buf = ByteBuffer.wrap(data);
 
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        // write out the parent pointer
+        buf.putInt(0, parent);
 
         // write out the child page category
-        try {
-            dos.writeByte((byte) childCategory);
-
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        buf.put(INDEX_SIZE, (byte) childCategory);
 
         // create the header of the page
-        for (int i = 0; i < header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
+        System.arraycopy(header, 0, data, INDEX_SIZE + 1, header.length);
+
+        int offset = INDEX_SIZE + 1 + header.length;
+        if (compact) {
+            BTreeCompactCodec codec = new BTreeCompactCodec(buf, offset);
+            Field prev = null;
+            for (int i : usedSlots()) {
+                codec.writeInt(children[i]);
+                if (i > 0) {
+                    codec.writeKey(prev, keys[i]);
+                    prev = keys[i];
+                }
             }
+            return data;
         }
 
-        // create the keys
+        // create the keys; empty slots and the padding stay zero
         // start from 1 because the first key slot is not used
         // since a node with m keys has m+1 pointers
-        for (int i = 1; i < keys.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j = 0; j < td.getFieldType(keyField).getLen(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            try {
-                keys[i].serialize(dos);
-            } catch (IOException e) {
-                e.printStackTrace();
+        int keySize = getKeySize();
+        for (int i = 1; i < keys.length; i++, offset += keySize) {
+            if (isSlotUsed(i)) {
+                keys[i].serialize(buf, offset);
             }
-
         }
 
         // create the child pointers
-        for (int i = 0; i < children.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j = 0; j < INDEX_SIZE; j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            try {
-                dos.writeInt(children[i]);
-
-            } catch (IOException e) {
-                e.printStackTrace();
+        for (int i = 0; i < children.length; i++, offset += INDEX_SIZE) {
+            if (isSlotUsed(i)) {
+                buf.putInt(offset, children[i]);
             }
         }
 
-        // padding
-        int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length
-                + td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length);
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        return data;
     }
 
     /**
@@ -429,19 +385,24 @@ public class BTreeInternalPage extends BTreePage {
         }
         children[rid.tupleno()] = e.getRightChild().pageNumber();
         keys[rid.tupleno()] = e.getKey();
+        usedSpace = -1;
     }
 
     /**
      * Adds the specified entry to the page; the entry's recordId should be updated to 
      * reflect that it is now stored on this page.
-     * @throws DbException if the page is full (no empty slots) or key field type,
-     *         table id, or child page category is a mismatch, or the entry is invalid
+     * @throws DbException if the page is full (no empty slots, or for a compact
+     *         page not enough bytes) or key field type, table id, or child page
+     *         category is a mismatch, or the entry is invalid
      * @param e The entry to add.
      */
     public void insertEntry(BTreeEntry e) throws DbException {
         if (!e.getKey().getType().equals(td.getFieldType(keyField)))
             throw new DbException("key field type mismatch, in insertEntry");
 
+        if (compact && getUsedSpace() + getSpace(e) > getCapacity())
+            throw new DbException("called insertEntry on compact page with no room for the entry.");
+
         if (e.getLeftChild().getTableId() != pid.getTableId() || e.getRightChild().getTableId() != pid.getTableId())
             throw new DbException("table id mismatch in insertEntry");
 
@@ -593,6 +554,147 @@ public class BTreeInternalPage extends BTreePage {
             header[headerbyte] |= 1 << headerbit;
         else
             header[headerbyte] &= (0xFF ^ (1 << headerbit));
+        usedSlots = null;
+        usedSpace = -1;
+    }
+
+    /**
+     * Returns the number of slots for entries for the fixed format, or the
+     * number of bytes after the header and the left-most child pointer for
+     * the compact format.
+     */
+    public int getCapacity() {
+        if (!compact) {
+            return getMaxEntries();
+        }
+        return BufferPool.getPageSize() - 2 * INDEX_SIZE - 1 - header.length;
+    }
+
+    /**
+     * Returns the number of entries for the fixed format, or the number of
+     * bytes their keys and right child pointers take for the compact format.
+     */
+    public int getUsedSpace() {
+        if (!compact) {
+            return getNumEntries();
+        }
+        int used = usedSpace;
+        if (used < 0) {
+            used = 0;
+            Field prev = null;
+            for (int i : usedSlots()) {
+                if (i > 0) {
+                    used += INDEX_SIZE + BTreeCompactCodec.keySize(prev, keys[i]);
+                    prev = keys[i];
+                }
+            }
+            usedSpace = used;
+        }
+        return used;
+    }
+
+    /**
+     * Returns 1 for the fixed format, or the size of a child pointer and a
+     * key of the largest size for the compact format.
+     */
+    public int getMaxEntrySpace() {
+        if (!compact) {
+            return 1;
+        }
+        return INDEX_SIZE + BTreeCompactCodec.maxKeySize(td.getFieldType(keyField));
+    }
+
+    /**
+     * Returns the space the given entry takes on its own, which is at least
+     * the space inserting it takes.
+     * @see #getCapacity()
+     */
+    public int getSpace(BTreeEntry e) {
+        return compact ? INDEX_SIZE + BTreeCompactCodec.keySize(null, e.getKey()) : 1;
+    }
+
+    /**
+     * Returns the used slots of this page in order, slot 0 (which only holds
+     * the left-most child) first. Deleting an entry leaves a gap between the
+     * used slots, so the binary search works on this array rather than on the
+     * slots themselves. It is built when first needed and dropped whenever a
+     * slot is filled or cleared.
+     */
+    private int[] usedSlots() {
+        int[] slots = usedSlots;
+        if (slots == null) {
+            int n = 0;
+            for (int i = 0; i < numSlots; i++) {
+                if (isSlotUsed(i))
+                    n++;
+            }
+            slots = new int[n];
+            for (int i = 0, j = 0; i < numSlots; i++) {
+                if (isSlotUsed(i))
+                    slots[j++] = i;
+            }
+            usedSlots = slots;
+        }
+        return slots;
+    }
+
+    /**
+     * Finds the child to descend into to reach the left-most leaf possibly
+     * containing the key f: the left child of the first entry whose key is
+     * greater than or equal to f, or the right child of the last entry if
+     * there is none. The keys are binary searched in place, without creating
+     * a BTreeEntry for each of them.
+     * @param f - the key to search for, or null for the left-most child
+     * @return the id of the child page, or null if the page has no entries or
+     *         was modified while it was read without a lock, see
+     *         {@link BTreeFile#findReadOnlyLeafPage}
+     */
+    public BTreePageId findChildId(Field f) {
+        int[] slots = usedSlots();
+        if (slots.length < 2)
+            return null;
+        int lo = 1;
+        int hi = f == null ? 1 : slots.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            Field key = keys[slots[mid]];
+            if (key == null)
+                return null; // the entry was deleted while the page was read unlocked
+            if (compareKeys(key, f) >= 0)
+                hi = mid;
+            else
+                lo = mid + 1;
+        }
+        return new BTreePageId(pid.getTableId(), children[slots[lo - 1]], childCategory);
+    }
+
+    /**
+     * Finds the child to descend into to reach the right-most leaf possibly
+     * containing the key f: the right child of the last entry whose key is
+     * less than or equal to f, or the left child of the first entry if there
+     * is none. Used by the descending iterators of the BTreeFile.
+     * @param f - the key to search for, or null for the right-most child
+     * @return the id of the child page, or null if the page has no entries or
+     *         was modified while it was read without a lock
+     * @see #findChildId(Field)
+     */
+    public BTreePageId findLastChildId(Field f) {
+        int[] slots = usedSlots();
+        if (slots.length < 2)
+            return null;
+        int lo = f == null ? slots.length : 1;
+        int hi = slots.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            Field key = keys[slots[mid]];
+            if (key == null)
+                return null; // the entry was deleted while the page was read unlocked
+            if (compareKeys(key, f) > 0)
+                hi = mid;
+            else
+                lo = mid + 1;
+        }
+        return new BTreePageId(pid.getTableId(), children[slots[lo - 1]], childCategory);
     }
 
     /**
@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of BTreeLeafPage stores data for one page of a BTreeFile and 
@@ -19,6 +20,9 @@ public class BTreeLeafPage extends BTreePage {
     private int leftSibling; // leaf node or 0
     private int rightSibling; // leaf node or 0
 
+    private volatile int[] usedSlots; // used slots in key order, or null until needed
+    private volatile int usedSpace = -1; // bytes used by a compact page, or -1 until needed
+
     public void checkRep(int fieldid, Field lowerBound, Field upperBound, boolean checkoccupancy,
             int depth) {
         Field prev = lowerBound;
@@ -27,17 +31,19 @@ public class BTreeLeafPage extends BTreePage {
         Iterator<Tuple> it = this.iterator();
         while (it.hasNext()) {
             Tuple t = it.next();
-            assert (null == prev
-                    || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, t.getField(fieldid)));
-            prev = t.getField(fieldid);
+            Field key = unique ? getKey(t) : t.getField(fieldid);
+            assert (null == prev || compareKeys(prev, key) <= 0);
+            prev = key;
             assert (t.getRecordId().getPageId().equals(this.getId()));
         }
 
         if (null != upperBound && null != prev) {
-            assert (prev.compare(Predicate.Op.LESS_THAN_OR_EQ, upperBound));
+            assert (compareKeys(prev, upperBound) <= 0);
         }
 
-        if (checkoccupancy && depth > 0) {
+        // compact pages may stay underfull when their parent has no room
+        // for a new separator, so their occupancy is not checked
+        if (checkoccupancy && depth > 0 && !compact) {
             assert (getNumTuples() >= getMaxTuples() / 2);
         }
     }
@@ -64,54 +70,94 @@ public class BTreeLeafPage extends BTreePage {
      * @param key - the field which the index is keyed on
      */
     public BTreeLeafPage(BTreePageId id, byte[] data, int key) throws IOException {
-        super(id, key);
-        this.numSlots = getMaxTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        this(id, data, key, false);
+    }
 
-        // Read the parent and sibling pointers
-        try {
-            Field f = Type.INT_TYPE.parse(dis);
-            this.parent = ((IntField) f).getValue();
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-        }
+    /**
+     * Create a BTreeLeafPage in the fixed format described above, or in the
+     * compact format. A compact page has the same pointers and header, but
+     * only the used slots are stored, one after the other in slot order. The
+     * fields of a tuple are encoded with {@link BTreeCompactCodec}, and the
+     * key of each tuple is front coded against the key of the tuple before
+     * it. The number of slots is computed as if every tuple had the smallest
+     * possible size, and whether a tuple fits is decided by the bytes that
+     * are left, see {@link #getCapacity()}.
+     *
+     * @param id - the id of this page
+     * @param data - the raw data of this page
+     * @param key - the field which the index is keyed on
+     * @param compact - whether the page is in the compact format
+     */
+    public BTreeLeafPage(BTreePageId id, byte[] data, int key, boolean compact) throws IOException {
+        this(id, data, key, compact, false);
+    }
 
-        try {
-            Field f = Type.INT_TYPE.parse(dis);
-            this.leftSibling = ((IntField) f).getValue();
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
+    /**
+     * Create a BTreeLeafPage of a file that may be unique, whose tuples are
+     * then sorted on all their fields, see {@link #getKey(Tuple)}.
+     *
+     * @param id - the id of this page
+     * @param data - the raw data of this page
+     * @param key - the field which the index is keyed on
+     * @param compact - whether the page is in the compact format
+     * @param unique - whether the file is unique
+     */
+    public BTreeLeafPage(BTreePageId id, byte[] data, int key, boolean compact, boolean unique)
+            throws IOException {
+        super(id, key, compact, unique);
+        this.numSlots = getMaxTuples();
+        if (data.length < BufferPool.getPageSize()) {
+            throw new IOException("page data is shorter than the page size");
         }
+        ByteBuffer buf = ByteBuffer.wrap(data);
 
-        try {
-            Field f = Type.INT_TYPE.parse(dis);
-            this.rightSibling = ((IntField) f).getValue();
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-        }
+        // Read the parent and sibling pointers
+        this.parent = buf.getInt(0);
+        this.leftSibling = buf.getInt(INDEX_SIZE);
+        this.rightSibling = buf.getInt(2 * INDEX_SIZE);
 
         // allocate and read the header slots of this page
         header = new byte[getHeaderSize()];
-        for (int i = 0; i < header.length; i++)
-            header[i] = dis.readByte();
+        System.arraycopy(data, 3 * INDEX_SIZE, header, 0, header.length);
 
+        // allocate and read the actual records of this page
         tuples = new Tuple[numSlots];
-        try {
-            // allocate and read the actual records of this page
-            for (int i = 0; i < tuples.length; i++)
-                tuples[i] = readNextTuple(dis, i);
-        } catch (NoSuchElementException e) {
-            e.printStackTrace();
+        int offset = 3 * INDEX_SIZE + header.length;
+        if (compact) {
+            BTreeCompactCodec codec = new BTreeCompactCodec(buf, offset);
+            Field prev = null;
+            for (int i = 0; i < tuples.length; i++) {
+                if (isSlotUsed(i)) {
+                    tuples[i] = readCompactTuple(codec, prev, i);
+                    prev = tuples[i].getField(keyField);
+                }
+            }
+        } else {
+            for (int i = 0; i < tuples.length; i++, offset += td.getSize())
+                tuples[i] = readTuple(buf, offset, i);
         }
-        dis.close();
 
-        setBeforeImage();
+        // the data we were parsed from is the before image
+        synchronized (oldDataLock) {
+            oldData = data.clone();
+        }
     }
 
     /** 
      * Retrieve the maximum number of tuples this page can hold.
      */
     public int getMaxTuples() {
+        if (compact) {
+            // the header bits are left out, so that any set of tuples that
+            // fits in the capacity also fits in the slots
+            int minTupleSize = 0;
+            for (int i = 0; i < td.numFields(); i++) {
+                Type type = td.getFieldType(i);
+                minTupleSize += i == keyField ? BTreeCompactCodec.minKeySize(type)
+                        : BTreeCompactCodec.minFieldSize(type);
+            }
+            return (BufferPool.getPageSize() - 3 * INDEX_SIZE) / minTupleSize;
+        }
         int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
         // extraBits are: left sibling pointer, right sibling pointer, parent pointer
         int extraBits = 3 * INDEX_SIZE * 8;
@@ -136,11 +182,11 @@ public class BTreeLeafPage extends BTreePage {
         -- used by recovery */
     public BTreeLeafPage getBeforeImage() {
         try {
-            byte[] oldDataRef = null;
+            // setBeforeImage rewrites the array in place, and the new page
+            // copies it
             synchronized (oldDataLock) {
-                oldDataRef = oldData;
+                return new BTreeLeafPage(pid, oldData, keyField, compact, unique);
             }
-            return new BTreeLeafPage(pid, oldDataRef, keyField);
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -151,24 +197,21 @@ public class BTreeLeafPage extends BTreePage {
 
     public void setBeforeImage() {
         synchronized (oldDataLock) {
-            oldData = getPageData().clone();
+            // the before image is only read by getBeforeImage, so its array
+            // is reused
+            Arrays.fill(oldData, (byte) 0);
+            writePageData(oldData);
         }
     }
 
     /**
-     * Read tuples from the source file.
+     * Read the tuple stored in the given slot, starting at the given offset
+     * of the page data.
+     *
+     * @return the tuple, or null if the slot is empty
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
+    private Tuple readTuple(ByteBuffer buf, int offset, int slotId) {
         if (!isSlotUsed(slotId)) {
-            for (int i = 0; i < td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
             return null;
         }
 
@@ -176,19 +219,114 @@ public class BTreeLeafPage extends BTreePage {
         Tuple t = new Tuple(td);
         RecordId rid = new RecordId(pid, slotId);
         t.setRecordId(rid);
-        try {
-            for (int j = 0; j < td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
+        for (int j = 0; j < td.numFields(); j++) {
+            Type type = td.getFieldType(j);
+            if (type == Type.INT_TYPE) {
+                t.setInt(j, buf.getInt(offset));
+            } else {
+                t.setField(j, type.parse(buf, offset));
             }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+            offset += type.getLen();
         }
 
         return t;
     }
 
+    /**
+     * Read the tuple stored in the given slot of a compact page, whose key
+     * follows the key prev.
+     */
+    private Tuple readCompactTuple(BTreeCompactCodec codec, Field prev, int slotId) {
+        Tuple t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, slotId));
+        for (int j = 0; j < td.numFields(); j++) {
+            Type type = td.getFieldType(j);
+            if (j == keyField) {
+                t.setField(j, codec.readKey(type, prev));
+            } else if (type == Type.INT_TYPE) {
+                t.setInt(j, codec.readInt());
+            } else {
+                t.setField(j, codec.readField(type));
+            }
+        }
+        return t;
+    }
+
+    /**
+     * Returns the number of bytes a tuple takes on a compact page when its
+     * key follows the key prev.
+     */
+    private int getCompactSize(Tuple t, Field prev) {
+        int size = 0;
+        for (int j = 0; j < td.numFields(); j++) {
+            if (j == keyField) {
+                size += BTreeCompactCodec.keySize(prev, t.getField(j));
+            } else if (td.getFieldType(j) == Type.INT_TYPE) {
+                size += INDEX_SIZE;
+            } else {
+                size += BTreeCompactCodec.fieldSize(t.getField(j));
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns the number of slots for the fixed format, or the number of
+     * bytes after the header for the compact format.
+     */
+    public int getCapacity() {
+        if (!compact) {
+            return numSlots;
+        }
+        return BufferPool.getPageSize() - 3 * INDEX_SIZE - header.length;
+    }
+
+    /**
+     * Returns the number of tuples for the fixed format, or the number of
+     * bytes they take for the compact format.
+     */
+    public int getUsedSpace() {
+        if (!compact) {
+            return getNumTuples();
+        }
+        int used = usedSpace;
+        if (used < 0) {
+            used = 0;
+            Field prev = null;
+            for (int slot : usedSlots()) {
+                used += getCompactSize(tuples[slot], prev);
+                prev = tuples[slot].getField(keyField);
+            }
+            usedSpace = used;
+        }
+        return used;
+    }
+
+    /**
+     * Returns 1 for the fixed format, or the size of a tuple whose fields
+     * all have the largest size for the compact format.
+     */
+    public int getMaxEntrySpace() {
+        if (!compact) {
+            return 1;
+        }
+        int size = 0;
+        for (int i = 0; i < td.numFields(); i++) {
+            Type type = td.getFieldType(i);
+            size += i == keyField ? BTreeCompactCodec.maxKeySize(type) : BTreeCompactCodec.maxFieldSize(type);
+        }
+        return size;
+    }
+
+    /**
+     * Returns the space the given tuple takes on its own, which is at least
+     * the space inserting it takes.
+     * @see #getCapacity()
+     */
+    public int getSpace(Tuple t) {
+        return compact ? getCompactSize(t, null) : 1;
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -201,85 +339,61 @@ public class BTreeLeafPage extends BTreePage {
      * @return A byte array corresponding to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // write out the parent and sibling pointers
-        try {
-            dos.writeInt(parent);
-
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        try {
-            dos.writeInt(leftSibling);
+        return writePageData(new byte[BufferPool.getPageSize()]);
+    }
 
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        try {
-            dos.writeInt(rightSibling);
+    /**
+     * Writes the contents of this page into data, which must be zero, in the
+     * format of {@link #getPageData}.
+     *
+     * @return data
+     */
+    private byte[] writePageData(byte[] data) {
+        ByteBuffer buf = ByteBuffer.wrap(data);
 
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        // write out the parent and sibling pointers
+        buf.putInt(0, parent);
+        buf.putInt(INDEX_SIZE, leftSibling);
+        buf.putInt(2 * INDEX_SIZE, rightSibling);
 
         // create the header of the page
-        for (int i = 0; i < header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
+        System.arraycopy(header, 0, data, 3 * INDEX_SIZE, header.length);
+
+        // create the tuples; empty slots and the padding stay zero
+        int offset = 3 * INDEX_SIZE + header.length;
+        if (compact) {
+            BTreeCompactCodec codec = new BTreeCompactCodec(buf, offset);
+            Field prev = null;
+            for (int i : usedSlots()) {
+                for (int j = 0; j < td.numFields(); j++) {
+                    if (j == keyField) {
+                        codec.writeKey(prev, tuples[i].getField(j));
+                    } else if (td.getFieldType(j) == Type.INT_TYPE) {
+                        codec.writeInt(tuples[i].getInt(j));
+                    } else {
+                        codec.writeField(tuples[i].getField(j));
+                    }
+                }
+                prev = tuples[i].getField(keyField);
             }
+            return data;
         }
-
-        // create the tuples
-        for (int i = 0; i < tuples.length; i++) {
-
-            // empty slot
+        for (int i = 0; i < tuples.length; i++, offset += td.getSize()) {
             if (!isSlotUsed(i)) {
-                for (int j = 0; j < td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
                 continue;
             }
-
-            // non-empty slot
+            int fieldOffset = offset;
             for (int j = 0; j < td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-
-                } catch (IOException e) {
-                    e.printStackTrace();
+                if (td.getFieldType(j) == Type.INT_TYPE) {
+                    buf.putInt(fieldOffset, tuples[i].getInt(j));
+                } else {
+                    tuples[i].getField(j).serialize(buf, fieldOffset);
                 }
+                fieldOffset += td.getFieldType(j).getLen();
             }
         }
 
-        // padding
-        int zerolen = BufferPool.getPageSize()
-                - (header.length + td.getSize() * tuples.length + 3 * INDEX_SIZE); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        return data;
     }
 
     /**
@@ -309,13 +423,15 @@ public class BTreeLeafPage extends BTreePage {
      * Adds the specified tuple to the page such that all records remain in sorted order;  
      * the tuple should be updated to reflect
      *  that it is now stored on this page.
-     * @throws DbException if the page is full (no empty slots) or tupledesc
-     *         is mismatch.
+     * @throws DbException if the page is full (no empty slots, or for a
+     *         compact page not enough bytes) or tupledesc is mismatch.
      * @param t The tuple to add.
      */
     public void insertTuple(Tuple t) throws DbException {
         if (!t.getTupleDesc().equals(td))
             throw new DbException("type mismatch, in addTuple");
+        if (compact && getUsedSpace() + getSpace(t) > getCapacity())
+            throw new DbException("called addTuple on compact page with no room for the tuple.");
 
         // find the first empty slot 
         int emptySlot = -1;
@@ -330,16 +446,9 @@ public class BTreeLeafPage extends BTreePage {
             throw new DbException("called addTuple on page with no empty slots.");
 
         // find the last key less than or equal to the key being inserted
-        int lessOrEqKey = -1;
-        Field key = t.getField(keyField);
-        for (int i = 0; i < numSlots; i++) {
-            if (isSlotUsed(i)) {
-                if (tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
-                    lessOrEqKey = i;
-                else
-                    break;
-            }
-        }
+        int[] slots = usedSlots();
+        int greater = search(slots, getKey(t), true);
+        int lessOrEqKey = greater == 0 ? -1 : slots[greater - 1];
 
         // shift records back or forward to fill empty slot and make room for new record
         // while keeping records in sorted order
@@ -478,6 +587,57 @@ public class BTreeLeafPage extends BTreePage {
             header[headerbyte] |= 1 << headerbit;
         else
             header[headerbyte] &= (0xFF ^ (1 << headerbit));
+        usedSlots = null;
+        usedSpace = -1;
+    }
+
+    /**
+     * Returns the used slots of this page in order. The tuples are kept
+     * sorted but deletes leave gaps between them, so the binary searches
+     * work on this array rather than on the slots themselves. It is built
+     * when first needed and dropped whenever a slot is filled or cleared.
+     */
+    private int[] usedSlots() {
+        int[] slots = usedSlots;
+        if (slots == null) {
+            slots = new int[getNumTuples()];
+            for (int i = 0, j = 0; i < numSlots; i++) {
+                if (isSlotUsed(i))
+                    slots[j++] = i;
+            }
+            usedSlots = slots;
+        }
+        return slots;
+    }
+
+    /**
+     * Binary search for the first of the given slots whose key is greater
+     * than or equal to f, or strictly greater than f if strict is set.
+     * @return an index into slots, or slots.length if there is no such key
+     */
+    private int search(int[] slots, Field f, boolean strict) {
+        int lo = 0;
+        int hi = slots.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareKeys(getKey(tuples[slots[mid]]), f);
+            if (cmp > 0 || (cmp == 0 && !strict))
+                hi = mid;
+            else
+                lo = mid + 1;
+        }
+        return lo;
+    }
+
+    /**
+     * Returns the slot of the first tuple whose key is greater than or equal
+     * to f, found by binary search, or getMaxTuples() if there is none.
+     * @param f - the key to search for
+     */
+    public int findSlot(Field f) {
+        int[] slots = usedSlots();
+        int i = search(slots, f, false);
+        return i < slots.length ? slots[i] : numSlots;
     }
 
     /**
@@ -488,6 +648,15 @@ public class BTreeLeafPage extends BTreePage {
         return new BTreeLeafPageIterator(this);
     }
 
+    /**
+     * @return an iterator over the tuples on this page starting at the first
+     * one whose key is greater than or equal to f
+     * @see #findSlot(Field)
+     */
+    public Iterator<Tuple> iterator(Field f) {
+        return new BTreeLeafPageIterator(this, findSlot(f));
+    }
+
     /**
      * @return a reverse iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
@@ -496,6 +665,26 @@ public class BTreeLeafPage extends BTreePage {
         return new BTreeLeafPageReverseIterator(this);
     }
 
+    /**
+     * Returns the slot of the last tuple whose key is less than or equal to
+     * f, found by binary search, or -1 if there is none.
+     * @param f - the key to search for
+     */
+    public int findLastSlot(Field f) {
+        int[] slots = usedSlots();
+        int i = search(slots, f, true);
+        return i > 0 ? slots[i - 1] : -1;
+    }
+
+    /**
+     * @return a reverse iterator over the tuples on this page starting at the
+     * last one whose key is less than or equal to f
+     * @see #findLastSlot(Field)
+     */
+    public Iterator<Tuple> reverseIterator(Field f) {
+        return new BTreeLeafPageReverseIterator(this, findLastSlot(f));
+    }
+
     /**
      * protected method used by the iterator to get the ith tuple out of this page
      * @param i - the index of the tuple
@@ -547,6 +736,11 @@ class BTreeLeafPageIterator implements Iterator<Tuple> {
         this.p = p;
     }
 
+    public BTreeLeafPageIterator(BTreeLeafPage p, int startSlot) {
+        this.p = p;
+        this.curTuple = startSlot;
+    }
+
     public boolean hasNext() {
         if (nextToReturn != null)
             return true;
@@ -597,6 +791,11 @@ class BTreeLeafPageReverseIterator implements Iterator<Tuple> {
         this.curTuple = p.getMaxTuples() - 1;
     }
 
+    public BTreeLeafPageReverseIterator(BTreeLeafPage p, int startSlot) {
+        this.p = p;
+        this.curTuple = startSlot;
+    }
+
     public boolean hasNext() {
         if (nextToReturn != null)
             return true;
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of BTreeInternalPage stores data for one page of a BTreeFile and 
@@ -19,6 +20,8 @@ public abstract class BTreePage implements Page {
     protected final BTreePageId pid;
     protected final TupleDesc td;
     protected final int keyField;
+    protected final boolean compact;
+    protected final boolean unique;
 
     protected int parent; // parent is always internal node or 0 for root node
     protected byte[] oldData;
@@ -49,8 +52,36 @@ public abstract class BTreePage implements Page {
      * @param key - the field which the index is keyed on
      */
     public BTreePage(BTreePageId id, int key) throws IOException {
+        this(id, key, false);
+    }
+
+    /**
+     * Create a BTreePage in the fixed or the compact page format.
+     *
+     * @param id - the id of this page
+     * @param key - the field which the index is keyed on
+     * @param compact - whether the page is in the compact format
+     * @see BTreeFile#BTreeFile(File, int, TupleDesc, boolean)
+     */
+    public BTreePage(BTreePageId id, int key, boolean compact) throws IOException {
+        this(id, key, compact, false);
+    }
+
+    /**
+     * Create a BTreePage of a file that may be unique, whose keys are then
+     * made of all the fields of a tuple, see {@link #getKey(Tuple)}.
+     *
+     * @param id - the id of this page
+     * @param key - the field which the index is keyed on
+     * @param compact - whether the page is in the compact format
+     * @param unique - whether the file is unique
+     * @see BTreeFile#BTreeFile(File, int, TupleDesc, boolean, boolean)
+     */
+    public BTreePage(BTreePageId id, int key, boolean compact, boolean unique) throws IOException {
         this.pid = id;
         this.keyField = key;
+        this.compact = compact;
+        this.unique = unique;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
     }
 
@@ -75,6 +106,61 @@ public abstract class BTreePage implements Page {
         return new byte[len]; //all 0
     }
 
+    /**
+     * Compares two keys, as used by the binary searches of the pages. Int and
+     * string keys are compared on their values directly rather than through
+     * {@link Field#compare} and a {@link Predicate.Op}. A composite key is
+     * compared to a single field on its first field only.
+     *
+     * @return a negative number, zero or a positive number as a is less than,
+     *         equal to or greater than b
+     */
+    static int compareKeys(Field a, Field b) {
+        if (a instanceof CompositeField) {
+            return ((CompositeField) a).compareTo(b);
+        }
+        if (b instanceof CompositeField) {
+            return -((CompositeField) b).compareTo(a);
+        }
+        if (a instanceof IntField && b instanceof IntField) {
+            return Integer.compare(((IntField) a).getValue(), ((IntField) b).getValue());
+        }
+        if (a instanceof StringField && b instanceof StringField) {
+            return ((StringField) a).getValue().compareTo(((StringField) b).getValue());
+        }
+        if (a.compare(Predicate.Op.LESS_THAN, b)) {
+            return -1;
+        }
+        return a.compare(Predicate.Op.EQUALS, b) ? 0 : 1;
+    }
+
+    /**
+     * Returns the key of a tuple of this page: its key field, or for a unique
+     * file the key field followed by its other fields.
+     * @see CompositeField#of(Tuple, int)
+     */
+    Field getKey(Tuple t) {
+        return unique ? CompositeField.of(t, keyField) : t.getField(keyField);
+    }
+
+    /**
+     * Returns the number of bytes a key takes on an internal page in the
+     * fixed format.
+     */
+    int getKeySize() {
+        return unique ? td.getSize() : td.getFieldType(keyField).getLen();
+    }
+
+    /**
+     * Reads a key of an internal page in the fixed format.
+     */
+    Field parseKey(ByteBuffer buf, int offset) {
+        if (unique) {
+            return CompositeField.parse(td, keyField, buf, offset);
+        }
+        return td.getFieldType(keyField).parse(buf, offset);
+    }
+
     /**
      * Get the parent id of this page
      * @return the parent id
@@ -140,4 +226,76 @@ public abstract class BTreePage implements Page {
      */
     public abstract boolean isSlotUsed(int i);
 
+    /**
+     * Returns whether this page is in the compact page format.
+     */
+    public boolean isCompact() {
+        return compact;
+    }
+
+    /**
+     * Returns the space available for the entries of this page. Space is
+     * counted in slots for the fixed format, and in bytes for the compact
+     * format, where the size of an entry depends on its key and the key
+     * before it.
+     */
+    public abstract int getCapacity();
+
+    /**
+     * Returns the space taken by the entries of this page.
+     * @see #getCapacity()
+     */
+    public abstract int getUsedSpace();
+
+    /**
+     * Returns the largest space a single entry can take.
+     * @see #getCapacity()
+     */
+    public abstract int getMaxEntrySpace();
+
+    /**
+     * Returns whether this page must be split before another entry is
+     * inserted. A compact page is full when an entry of the largest possible
+     * size may not fit.
+     */
+    public boolean isFull() {
+        return getNumEmptySlots() == 0 || getUsedSpace() + getMaxEntrySpace() > getCapacity();
+    }
+
+    /**
+     * Returns whether this page is less than half full, so that it should
+     * take entries from a sibling or be merged with it. For compact pages
+     * the threshold leaves room for the entries of the largest size that the
+     * split of a full page may leave on either side.
+     */
+    public boolean isUnderfull() {
+        if (!compact) {
+            return getCapacity() - getUsedSpace() > (getCapacity() + 1) / 2;
+        }
+        return getUsedSpace() < getCapacity() / 2 - 2 * getMaxEntrySpace();
+    }
+
+    /**
+     * Returns whether the entries of an underfull page and its sibling fit on
+     * one page, together with the key pulled down from the parent when two
+     * internal pages are merged. Otherwise entries are moved from the sibling.
+     * @param sibling - a sibling of this page with the same parent
+     */
+    public boolean canMergeWith(BTreePage sibling) {
+        if (!compact) {
+            return sibling.getCapacity() - sibling.getUsedSpace() >= (getCapacity() + 1) / 2;
+        }
+        return getUsedSpace() + sibling.getUsedSpace() + getMaxEntrySpace() <= getCapacity();
+    }
+
+    /**
+     * Returns whether the key of an entry of this page can be replaced by
+     * another key, as done when entries are moved between two of its
+     * children. A longer key may need more space on a compact page, and so
+     * may change the front coding of the key after it.
+     */
+    public boolean canReplaceKey() {
+        return !compact || getUsedSpace() + 2 * getMaxEntrySpace() <= getCapacity();
+    }
+
 }
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * BTreeRootPtrPage stores the pointer to the root node used in the B+ tree and
@@ -16,7 +17,6 @@ public class BTreeRootPtrPage implements Page {
     private TransactionId dirtier = null;
 
     private BTreePageId pid;
-    private DataInputStream dis;
 
     private int root;
     private int rootCategory;
@@ -35,20 +35,23 @@ public class BTreeRootPtrPage implements Page {
      */
     public BTreeRootPtrPage(BTreePageId id, byte[] data) throws IOException {
         this.pid = id;
-        this.dis = new DataInputStream(new ByteArrayInputStream(data));
+        if (data.length < PAGE_SIZE) {
+            throw new IOException("page data is shorter than the page size");
+        }
+        ByteBuffer buf = ByteBuffer.wrap(data);
 
         // read in the root pointer
-        root = dis.readInt();
-        rootCategory = (int) dis.readByte();
+        root = buf.getInt(0);
+        rootCategory = (int) buf.get(4);
 
         // read in the header pointer
-        header = dis.readInt();
+        header = buf.getInt(5);
 
         setBeforeImage();
     }
 
     public void setBeforeImage() {
-        oldData = getPageData().clone();
+        oldData = getPageData();
     }
 
     /**
@@ -78,38 +81,19 @@ public class BTreeRootPtrPage implements Page {
      * @return A byte array corresponding to the bytes of this root pointer page.
      */
     public byte[] getPageData() {
-        int len = PAGE_SIZE;
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
+        byte[] data = new byte[PAGE_SIZE];
+        ByteBuffer buf = ByteBuffer.wrap(data);
 
         // write out the root pointer (page number of the root page)
-        try {
-            dos.writeInt(root);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        buf.putInt(0, root);
 
         // write out the category of the root page (leaf or internal)
-        try {
-            dos.writeByte((byte) rootCategory);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        buf.put(4, (byte) rootCategory);
 
         // write out the header pointer (page number of the first header page)
-        try {
-            dos.writeInt(header);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        buf.putInt(5, header);
 
-        return baos.toByteArray();
+        return data;
     }
 
     /**
@@ -3,25 +3,36 @@ package simpledb;
 import java.util.*;
 
 /**
- * BTreeScan is an operator which reads tuples in sorted order 
- * according to a predicate
+ * BTreeScan is an operator which reads tuples in sorted order
+ * according to a predicate. It reads the leaf pages of the B+ tree table
+ * itself, which hold every field of its tuples, so it is a scan of the table
+ * rather than of an index; the predicate and the {@link Mode} are fixed when
+ * the scan is created.
  */
-public class BTreeScan implements DbIterator {
+public class BTreeScan extends SeqScan {
 
     private static final long serialVersionUID = 1L;
 
+    /**
+     * The order a BTreeScan returns the tuples in.
+     */
+    public enum Mode {
+        /** all matching tuples in ascending key order */
+        ASCENDING,
+        /** all matching tuples in descending key order, see {@link BTreeFile#reverseIndexIterator} */
+        DESCENDING,
+        /** only the matching tuple with the largest key, usually read from a single leaf page */
+        MAX
+    }
+
     private boolean isOpen = false;
-    private TransactionId tid;
-    private TupleDesc myTd;
     private IndexPredicate ipred = null;
-    private transient DbFileIterator it;
-    private String tablename;
-    private String alias;
+    private final Mode mode;
 
     /**
      * Creates a B+ tree scan over the specified table as a part of the
      * specified transaction.
-     * 
+     *
      * @param tid
      *            The transaction this scan is running as a part of.
      * @param tableid
@@ -38,25 +49,37 @@ public class BTreeScan implements DbIterator {
      *            in sorted order
      */
     public BTreeScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate ipred) {
-        this.tid = tid;
+        this(tid, tableid, tableAlias, ipred, Mode.ASCENDING);
+    }
+
+    /**
+     * Creates a B+ tree scan over the specified table as a part of the
+     * specified transaction, returning the tuples in the given mode.
+     *
+     * @see #BTreeScan(TransactionId, int, String, IndexPredicate)
+     */
+    public BTreeScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate ipred, Mode mode) {
+        super(tid, tableid, tableAlias);
         this.ipred = ipred;
-        reset(tableid, tableAlias);
+        this.mode = mode;
+    }
+
+    public BTreeScan(TransactionId tid, int tableid, IndexPredicate ipred) {
+        this(tid, tableid, Database.getCatalog().getTableName(tableid), ipred);
     }
 
     /**
-     * @return
-     *       return the table name of the table the operator scans. This should
-     *       be the actual name of the table in the catalog of the database
-     * */
-    public String getTableName() {
-        return this.tablename;
+     * @return the order this scan returns the tuples in
+     */
+    public Mode getMode() {
+        return mode;
     }
 
     /**
-     * @return Return the alias of the table this operator scans. 
-     * */
-    public String getAlias() {
-        return this.alias;
+     * @return the predicate on the key field, or null for all tuples
+     */
+    public IndexPredicate getIndexPredicate() {
+        return ipred;
     }
 
     /**
@@ -71,72 +94,81 @@ public class BTreeScan implements DbIterator {
      *            are, but the resulting name can be null.fieldName,
      *            tableAlias.null, or null.null).
      */
+    @Override
     public void reset(int tableid, String tableAlias) {
         this.isOpen = false;
-        this.alias = tableAlias;
-        this.tablename = Database.getCatalog().getTableName(tableid);
-        if (ipred == null) {
-            this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
-        } else {
-            this.it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid))
-                    .indexIterator(tid, ipred);
-        }
-        myTd = Database.getCatalog().getTupleDesc(tableid);
-        String[] newNames = new String[myTd.numFields()];
-        Type[] newTypes = new Type[myTd.numFields()];
-        for (int i = 0; i < myTd.numFields(); i++) {
-            String name = myTd.getFieldName(i);
-            Type t = myTd.getFieldType(i);
-
-            newNames[i] = tableAlias + "." + name;
-            newTypes[i] = t;
-        }
-        myTd = new TupleDesc(newTypes, newNames);
+        super.reset(tableid, tableAlias);
     }
 
-    public BTreeScan(TransactionId tid, int tableid, IndexPredicate ipred) {
-        this(tid, tableid, Database.getCatalog().getTableName(tableid), ipred);
+    @Override
+    protected DbFileIterator createIterator() {
+        BTreeFile file = (BTreeFile) getFile();
+        if (mode == Mode.ASCENDING) {
+            return ipred == null ? file.iterator(getTransactionId()) : file.indexIterator(getTransactionId(), ipred);
+        }
+        final DbFileIterator reverse = file.reverseIndexIterator(getTransactionId(), ipred);
+        if (mode == Mode.DESCENDING) {
+            return reverse;
+        }
+        return new AbstractDbFileIterator() {
+            private boolean done;
+
+            public void open() throws DbException, TransactionAbortedException {
+                reverse.open();
+                done = false;
+            }
+
+            protected Tuple readNext() throws DbException, TransactionAbortedException {
+                if (done || !reverse.hasNext()) {
+                    return null;
+                }
+                done = true;
+                return reverse.next();
+            }
+
+            public void rewind() throws DbException, TransactionAbortedException {
+                close();
+                open();
+            }
+
+            public void close() {
+                super.close();
+                reverse.close();
+            }
+        };
     }
 
+    @Override
     public void open() throws DbException, TransactionAbortedException {
         if (isOpen)
             throw new DbException("double open on one DbIterator.");
 
-        it.open();
+        super.open();
         isOpen = true;
     }
 
-    /**
-     * Returns the TupleDesc with field names from the underlying BTreeFile,
-     * prefixed with the tableAlias string from the constructor. This prefix
-     * becomes useful when joining tables containing a field(s) with the same
-     * name.
-     * 
-     * @return the TupleDesc with field names from the underlying BTreeFile,
-     *         prefixed with the tableAlias string from the constructor.
-     */
-    public TupleDesc getTupleDesc() {
-        return myTd;
-    }
-
+    @Override
     public boolean hasNext() throws TransactionAbortedException, DbException {
         if (!isOpen)
             throw new IllegalStateException("iterator is closed");
-        return it.hasNext();
+        return super.hasNext();
     }
 
+    @Override
     public Tuple next() throws NoSuchElementException, TransactionAbortedException, DbException {
         if (!isOpen)
             throw new IllegalStateException("iterator is closed");
 
-        return it.next();
+        return super.next();
     }
 
+    @Override
     public void close() {
-        it.close();
+        super.close();
         isOpen = false;
     }
 
+    @Override
     public void rewind() throws DbException, NoSuchElementException, TransactionAbortedException {
         close();
         open();
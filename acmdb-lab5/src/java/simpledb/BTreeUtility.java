@@ -146,6 +146,7 @@ public class BTreeUtility {
         // Convert the tuples list to a B+ tree file
         File hFile = File.createTempFile("table", ".dat");
         hFile.deleteOnExit();
+        HeapFile.deleteSideFilesOnExit(hFile);
 
         File bFile = File.createTempFile("table_index", ".dat");
         bFile.deleteOnExit();
@@ -407,6 +408,7 @@ public class BTreeUtility {
         // Convert the tuples list to a B+ tree file
         File hFile = File.createTempFile("table", ".dat");
         hFile.deleteOnExit();
+        HeapFile.deleteSideFilesOnExit(hFile);
 
         File bFile = File.createTempFile("table_index", ".dat");
         bFile.deleteOnExit();
@@ -0,0 +1,105 @@
+package simpledb;
+
+/**
+ * A Bloom filter over field values: a set that answers "maybe" or "no" to
+ * whether a value was added, in a fixed number of bits. Values are hashed
+ * by {@link Field#hashCode}, which is the value itself for an IntField and
+ * the hash of the string for a StringField, so the bits do not depend on the
+ * JVM and can be stored.
+ */
+public class BloomFilter {
+    private final long[] words;
+    private final int numBits;
+    private final int numHashes;
+
+    /**
+     * Creates an empty filter.
+     *
+     * @param numBits the number of bits, rounded up to a multiple of 64
+     * @param numHashes the number of bits set per value
+     */
+    public BloomFilter(int numBits, int numHashes) {
+        this(new long[(Math.max(numBits, 1) + 63) / 64], numHashes);
+    }
+
+    /**
+     * Creates a filter over stored bits.
+     */
+    BloomFilter(long[] words, int numHashes) {
+        if (numHashes < 1) {
+            throw new IllegalArgumentException("a Bloom filter needs at least one hash");
+        }
+        this.words = words;
+        this.numBits = words.length * 64;
+        this.numHashes = numHashes;
+    }
+
+    /**
+     * Adds a value.
+     */
+    public void add(Field f) {
+        long h = mix(f.hashCode());
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        for (int i = 0; i < numHashes; i++) {
+            int bit = bit(h1 + i * h2);
+            words[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Returns false if the value was never added, and true if it may have
+     * been.
+     */
+    public boolean mightContain(Field f) {
+        long h = mix(f.hashCode());
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        for (int i = 0; i < numHashes; i++) {
+            int bit = bit(h1 + i * h2);
+            if ((words[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int bit(int combined) {
+        return (combined & Integer.MAX_VALUE) % numBits;
+    }
+
+    /**
+     * Spreads the bits of a hash code over a long (the finalizer of
+     * MurmurHash3), so that close values set unrelated bits.
+     */
+    private static long mix(int hash) {
+        long h = hash;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Returns the number of bits of the filter.
+     */
+    public int numBits() {
+        return numBits;
+    }
+
+    /**
+     * Returns the number of bits set per value.
+     */
+    public int numHashes() {
+        return numHashes;
+    }
+
+    /**
+     * Returns the bits of the filter, for storing them.
+     */
+    long[] words() {
+        return words;
+    }
+}
@@ -2,6 +2,10 @@ package simpledb;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -58,6 +62,17 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
+    /** Number of threads that read pages for {@link #getPageAsync} */
+    public static final int IO_THREADS = 8;
+
+    /** Maximum number of asynchronous page reads waiting for an I/O thread */
+    public static final int IO_QUEUE_DEPTH = 64;
+
+    private static ThreadPoolExecutor ioExecutor;
+
+    /** Asynchronous page reads not yet finished, by transaction */
+    private final HashMap<TransactionId, HashSet<PageRead>> pendingReads = new HashMap<TransactionId, HashSet<PageRead>>();
+
     /**
      * Creates a BufferPool that caches up to numPages pages.
      *
@@ -108,12 +123,175 @@ public class BufferPool {
             p.flush();
             return p.page;
         }
+        DbFile dbfile = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        Page page = dbfile.readPage(pid);
+        return cachePage(page);
+    }
+
+    /**
+     * Acquires a lock on the specified page without reading it. Used by
+     * callers that decide from metadata kept beside a file, such as a zone
+     * map, that they need not read the page; holding the lock keeps that
+     * decision valid until the transaction completes, as reading the page
+     * would. May block if the lock is held by another transaction.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param pid the ID of the page to lock
+     * @param perm the requested permissions on the page
+     */
+    public void lockPage(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException {
+        lockManager.acquireLock(tid, pid, perm);
+    }
+
+    /**
+     * Retrieve the specified page without locking it, if it is in the buffer
+     * pool. The page may be modified by another transaction while it is
+     * read, so callers must check that its write version, see
+     * {@link #getWriteVersion}, did not change, and must not modify it.
+     * Pages are not read from disk, since a page that is not cached may have
+     * been freed and reused since the caller found its id.
+     *
+     * @param pid the ID of the requested page
+     * @return the page, or null if it is not in the buffer pool
+     */
+    public Page peekPage(PageId pid) {
+        PageWithPriority p = findPage(pid);
+        if (p == null) {
+            return null;
+        }
+        p.flush();
+        return p.page;
+    }
+
+    /**
+     * Returns the write version of a page, which changes whenever a
+     * transaction is granted write permission on it, or -1 if a transaction
+     * other than tid holds write permission on it now.
+     *
+     * @param tid the ID of the transaction reading the page
+     * @param pid the ID of the page
+     * @see #peekPage
+     */
+    public long getWriteVersion(TransactionId tid, PageId pid) {
+        return lockManager.getWriteVersion(tid, pid);
+    }
+
+    /**
+     * Retrieve the specified page with the associated permissions without
+     * blocking the calling thread. The lock is acquired and the page is read
+     * by one of {@link #IO_THREADS} I/O threads, so a caller can keep several
+     * page reads in flight and wait for them as it needs them.
+     * <p>
+     * At most {@link #IO_QUEUE_DEPTH} requests wait for an I/O thread. When
+     * the queue is full, the request is carried out on the calling thread
+     * before this method returns.
+     * <p>
+     * Reads still pending when the transaction completes fail with a
+     * TransactionAbortedException without waiting for the lock, and a lock
+     * granted to one after that is released again, so that no lock outlives
+     * its transaction.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @return a future holding the page, or the TransactionAbortedException
+     *         or DbException that {@link #getPage} threw
+     */
+    public Future<Page> getPageAsync(TransactionId tid, PageId pid, Permissions perm) {
+        PageRead read = new PageRead(tid, pid, perm);
+        synchronized (this) {
+            HashSet<PageRead> reads = pendingReads.get(tid);
+            if (reads == null) {
+                reads = new HashSet<PageRead>();
+                pendingReads.put(tid, reads);
+            }
+            reads.add(read);
+        }
+        getIoExecutor().execute(read.future);
+        return read.future;
+    }
+
+    /**
+     * A page read carried out by an I/O thread for {@link #getPageAsync}.
+     */
+    private class PageRead implements Callable<Page> {
+        private final TransactionId tid;
+        private final PageId pid;
+        private final Permissions perm;
+        private final FutureTask<Page> future = new FutureTask<Page>(this);
+        /** Set when the transaction completed before the read finished */
+        private boolean retired = false;
+
+        PageRead(TransactionId tid, PageId pid, Permissions perm) {
+            this.tid = tid;
+            this.pid = pid;
+            this.perm = perm;
+        }
+
+        @Override
+        public Page call() throws TransactionAbortedException, DbException {
+            try {
+                synchronized (BufferPool.this) {
+                    if (retired) {
+                        throw new TransactionAbortedException();
+                    }
+                }
+                lockManager.acquireLock(tid, pid, perm);
+                synchronized (BufferPool.this) {
+                    if (retired) {
+                        // the transaction released its locks before this one
+                        // was granted
+                        lockManager.releasePage(tid, pid);
+                        throw new TransactionAbortedException();
+                    }
+                }
+                return getPage(tid, pid, perm);
+            } finally {
+                synchronized (BufferPool.this) {
+                    HashSet<PageRead> reads = pendingReads.get(tid);
+                    if (reads != null) {
+                        reads.remove(this);
+                        if (reads.isEmpty()) {
+                            pendingReads.remove(tid);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static synchronized ExecutorService getIoExecutor() {
+        if (ioExecutor == null) {
+            ioExecutor = new ThreadPoolExecutor(IO_THREADS, IO_THREADS, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(IO_QUEUE_DEPTH), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "BufferPool-io");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    }, new ThreadPoolExecutor.CallerRunsPolicy());
+            ioExecutor.allowCoreThreadTimeOut(true);
+        }
+        return ioExecutor;
+    }
+
+    /**
+     * Adds a page that was just read from disk to the buffer pool, evicting a
+     * page if the pool is full. If another thread read and added the same page
+     * in the meantime, the cached copy is kept and returned instead, so that
+     * all transactions see the same copy of a page.
+     */
+    private synchronized Page cachePage(Page page) throws DbException {
+        PageWithPriority p = findPage(page.getId());
+        if (p != null) {
+            p.flush();
+            return p.page;
+        }
         if (pages.size() >= numPages) {
             evictPage();
         }
-        DbFile dbfile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-        Page page = dbfile.readPage(pid);
-        addPage(page);
+        pages.add(new PageWithPriority(page, page.getId()));
         return page;
     }
 
@@ -158,6 +336,12 @@ public class BufferPool {
      * @param commit a flag indicating whether we should commit or abort
      */
     public synchronized void transactionComplete(TransactionId tid, boolean commit) throws IOException {
+        HashSet<PageRead> reads = pendingReads.remove(tid);
+        if (reads != null) {
+            for (PageRead read : reads) {
+                read.retired = true;
+            }
+        }
         if (commit) {
             for (PageId pid : lockManager.getPagesInTransaction(tid)) {
                 PageWithPriority p = findPage(pid);
@@ -193,6 +377,9 @@ public class BufferPool {
      * their markDirty bit, and adds versions of any pages that have 
      * been dirtied to the cache (replacing any existing versions of those pages) so 
      * that future requests see up-to-date pages. 
+     * The statistics of the table are updated, see
+     * {@link TableStats#tupleInserted}, and the tuple is added to the
+     * secondary indexes of the table.
      *
      * @param tid the transaction adding the tuple
      * @param tableId the table to add the tuple to
@@ -208,6 +395,10 @@ public class BufferPool {
             addPage(page);
             page.markDirty(true, tid);
         }
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            index.tupleInserted(tid, t);
+        }
+        TableStats.tupleInserted(tableId, t);
     }
 
     /**
@@ -219,6 +410,9 @@ public class BufferPool {
      * their markDirty bit, and adds versions of any pages that have 
      * been dirtied to the cache (replacing any existing versions of those pages) so 
      * that future requests see up-to-date pages. 
+     * The statistics of the table are updated, see
+     * {@link TableStats#tupleDeleted}, and the tuple is removed from the
+     * secondary indexes of the table.
      *
      * @param tid the transaction deleting the tuple.
      * @param t the tuple to delete
@@ -226,12 +420,17 @@ public class BufferPool {
     public void deleteTuple(TransactionId tid, Tuple t) throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
-        DbFile file = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
+        int tableId = t.getRecordId().getPageId().getTableId();
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            index.tupleDeleted(tid, t);
+        }
         ArrayList<Page> pageList = file.deleteTuple(tid, t);
         for (Page page : pageList) {
             addPage(page);
             page.markDirty(true, tid);
         }
+        TableStats.tupleDeleted(tableId, t);
     }
 
     /**
@@ -269,6 +468,26 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
         pages.remove(findPage(pid));
+        lockManager.forgetWriteVersion(pid);
+    }
+
+    /**
+     * Removes the pages of a table from the given page number on from the
+     * buffer pool, without flushing them. Used when pages are written to a
+     * file without going through the buffer pool.
+     *
+     * @param tableid the table
+     * @param pageNo the first page number to remove
+     */
+    public synchronized void discardPages(int tableid, int pageNo) {
+        Iterator<PageWithPriority> it = pages.iterator();
+        while (it.hasNext()) {
+            PageId pid = it.next().pid;
+            if (pid.getTableId() == tableid && pid.pageNumber() >= pageNo) {
+                it.remove();
+                lockManager.forgetWriteVersion(pid);
+            }
+        }
     }
 
     /**
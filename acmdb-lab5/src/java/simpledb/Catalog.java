@@ -6,6 +6,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -21,6 +22,7 @@ public class Catalog {
         private DbFile file;
         private String name;
         private String key;
+        private final CopyOnWriteArrayList<SecondaryIndex> indexes = new CopyOnWriteArrayList<SecondaryIndex>();
 
         Table(DbFile file, String name, String key) {
             this.file = file;
@@ -55,6 +57,11 @@ public class Catalog {
         // some code goes here
         Table table = new Table(file, name, pkeyField);
         Integer tableid = file.getId();
+        Table old = tables.get(tableid);
+        if (old != null) {
+            // the same data file added again keeps its indexes
+            table.indexes.addAll(old.indexes);
+        }
         tables.put(tableid, table);
         tableids.put(name, tableid);
     }
@@ -131,9 +138,50 @@ public class Catalog {
         return tables.keySet().iterator();
     }
 
-    public String getTableName(int id) {
+    public String getTableName(int id) throws NoSuchElementException {
         // some code goes here
-        return tables.get(id).name;
+        Table table = tables.get(id);
+        if (table == null) {
+            throw new NoSuchElementException();
+        }
+        return table.name;
+    }
+
+    /**
+     * Registers a secondary index with the table it belongs to, so that
+     * changes to the table update it and the planner may use it.
+     */
+    public void addIndex(SecondaryIndex index) throws NoSuchElementException {
+        Table table = tables.get(index.getTableId());
+        if (table == null) {
+            throw new NoSuchElementException();
+        }
+        table.indexes.add(index);
+    }
+
+    /**
+     * Returns the secondary indexes of a table; the list is empty if there
+     * are none, or if the table does not exist.
+     */
+    public List<SecondaryIndex> getIndexes(int tableid) {
+        Table table = tables.get(tableid);
+        if (table == null) {
+            return Collections.emptyList();
+        }
+        return table.indexes;
+    }
+
+    /**
+     * Returns the secondary index of a field of a table, or null if the
+     * field is not indexed.
+     */
+    public SecondaryIndex getIndex(int tableid, int field) {
+        for (SecondaryIndex index : getIndexes(tableid)) {
+            if (index.getField() == field) {
+                return index;
+            }
+        }
+        return null;
     }
 
     /** Delete all tables from the catalog */
@@ -154,22 +202,37 @@ public class Catalog {
             BufferedReader br = new BufferedReader(new FileReader(new File(catalogFile)));
 
             while ((line = br.readLine()) != null) {
-                //assume line is of the format name (field type, field type, ...)
+                //assume line is of the format name (field type, field type, ...) [columnar|compressed]
+                //where type is int, string or varchar(n)
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
-                String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
+                String fields = line.substring(line.indexOf("(") + 1, line.lastIndexOf(")")).trim();
+                String storage = line.substring(line.lastIndexOf(")") + 1).trim().toLowerCase();
+                if (!storage.equals("") && !storage.equals("columnar") && !storage.equals("compressed")) {
+                    System.out.println("Unknown storage option " + storage);
+                    System.exit(0);
+                }
                 String[] els = fields.split(",");
                 ArrayList<String> names = new ArrayList<String>();
                 ArrayList<Type> types = new ArrayList<Type>();
+                int[] maxLengths = new int[els.length];
+                boolean slotted = false;
                 String primaryKey = "";
                 for (String e : els) {
                     String[] els2 = e.trim().split(" ");
                     names.add(els2[0].trim());
-                    if (els2[1].trim().toLowerCase().equals("int"))
+                    String type = els2[1].trim().toLowerCase();
+                    maxLengths[types.size()] = Type.STRING_LEN;
+                    if (type.equals("int"))
                         types.add(Type.INT_TYPE);
-                    else if (els2[1].trim().toLowerCase().equals("string"))
+                    else if (type.equals("string"))
                         types.add(Type.STRING_TYPE);
-                    else {
+                    else if (type.startsWith("varchar(") && type.endsWith(")")) {
+                        // variable length strings are stored in a slotted heap file
+                        maxLengths[types.size()] = Integer.parseInt(type.substring(8, type.length() - 1).trim());
+                        types.add(Type.STRING_TYPE);
+                        slotted = true;
+                    } else {
                         System.out.println("Unknown type " + els2[1]);
                         System.exit(0);
                     }
@@ -185,15 +248,31 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder + "/" + name + ".dat"), t);
+                File tabFile = new File(baseFolder + "/" + name + ".dat");
+                if (storage.equals("compressed") && slotted) {
+                    System.out.println("Compressed tables do not support varchar columns");
+                    System.exit(0);
+                }
+                DbFile tabHf;
+                if (storage.equals("columnar"))
+                    tabHf = new ColumnarFile(tabFile, t, maxLengths);
+                else if (storage.equals("compressed"))
+                    tabHf = new CompressedHeapFile(tabFile, t);
+                else if (slotted)
+                    tabHf = new SlottedHeapFile(tabFile, t, maxLengths);
+                else
+                    tabHf = new HeapFile(tabFile, t);
                 addTable(tabHf, name, primaryKey);
+                if (tabHf instanceof HeapFile) {
+                    SecondaryIndex.openAll(name, (HeapFile) tabHf);
+                }
                 System.out.println("Added table : " + name + " with schema " + t);
             }
             br.close();
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(0);
-        } catch (IndexOutOfBoundsException e) {
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
             System.out.println("Invalid catalog entry : " + line);
             System.exit(0);
         }
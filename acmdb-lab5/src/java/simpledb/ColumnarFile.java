@@ -0,0 +1,243 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * ColumnarFile is a DbFile that stores an unordered collection of tuples on
+ * ColumnarPages, which keep the values of each column together inside the
+ * page. Scans can ask for a subset of the columns, in which case only those
+ * columns are decoded.
+ *
+ * @see simpledb.ColumnarPage#ColumnarPage
+ */
+public class ColumnarFile implements DbFile {
+    private final File file;
+    private final TupleDesc td;
+    private final int[] maxLengths;
+
+    /**
+     * Constructs a columnar file backed by the specified file, where every
+     * string field may hold up to Type.STRING_LEN characters.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this file.
+     * @param td
+     *            the schema of the tuples stored in this file.
+     */
+    public ColumnarFile(File f, TupleDesc td) {
+        this(f, td, null);
+    }
+
+    /**
+     * Constructs a columnar file backed by the specified file.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this file.
+     * @param td
+     *            the schema of the tuples stored in this file.
+     * @param maxLengths
+     *            the maximum length of each string field; entries for int
+     *            fields are ignored. If null, Type.STRING_LEN is used for every
+     *            string field.
+     */
+    public ColumnarFile(File f, TupleDesc td, int[] maxLengths) {
+        this.file = f;
+        this.td = td;
+        this.maxLengths = new int[td.numFields()];
+        for (int i = 0; i < td.numFields(); i++) {
+            int len = maxLengths == null ? Type.STRING_LEN : maxLengths[i];
+            if (td.getFieldType(i) == Type.STRING_TYPE && len <= 0) {
+                throw new IllegalArgumentException("invalid maximum length " + len + " for field " + i);
+            }
+            this.maxLengths[i] = len;
+        }
+    }
+
+    /**
+     * Returns the File backing this ColumnarFile on disk.
+     */
+    public File getFile() {
+        return this.file;
+    }
+
+    /**
+     * Returns an ID uniquely identifying this ColumnarFile, computed the same
+     * way as for HeapFile.
+     */
+    public int getId() {
+        return this.file.getAbsoluteFile().hashCode();
+    }
+
+    /**
+     * Returns the TupleDesc of the table stored in this DbFile.
+     */
+    public TupleDesc getTupleDesc() {
+        return this.td;
+    }
+
+    /**
+     * Returns the number of characters reserved for the given string field.
+     * Longer values are truncated on insert.
+     */
+    public int getMaxLength(int field) {
+        return this.maxLengths[field];
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        try {
+            RandomAccessFile f = new RandomAccessFile(this.file, "r");
+            int offset = BufferPool.getPageSize() * pid.pageNumber();
+            byte[] data = new byte[BufferPool.getPageSize()];
+            f.seek(offset);
+            f.readFully(data);
+            f.close();
+            return new ColumnarPage((HeapPageId) pid, data);
+        } catch (IOException e) {
+            throw new IllegalArgumentException();
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        PageId pid = page.getId();
+        try {
+            RandomAccessFile f = new RandomAccessFile(this.file, "rw");
+            int offset = BufferPool.getPageSize() * pid.pageNumber();
+            f.seek(offset);
+            f.write(page.getPageData());
+            f.close();
+        } catch (IOException e) {
+            throw new IllegalArgumentException();
+        }
+    }
+
+    /**
+     * Returns the number of pages in this ColumnarFile.
+     */
+    public int numPages() {
+        long length = file.length();
+        int pagesize = BufferPool.getPageSize();
+        return (int) (length + pagesize - 1) / pagesize;
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        ColumnarPage page = getPage(tid, Permissions.READ_WRITE);
+
+        if (page == null) {
+            page = getEmptyPage(tid);
+        }
+        page.insertTuple(t);
+
+        return new ArrayList<Page>(Arrays.asList(page));
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException, TransactionAbortedException {
+        PageId pid = t.getRecordId().getPageId();
+        ColumnarPage page = (ColumnarPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        page.deleteTuple(t);
+        return new ArrayList<Page>(Arrays.asList(page));
+    }
+
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid) {
+        return new ColumnarFileIterator(this, tid, null);
+    }
+
+    /**
+     * Returns an iterator over the tuples of this file that only decodes the
+     * given columns. The fields of the other columns of the returned tuples
+     * are null.
+     *
+     * @param tid the transaction id
+     * @param columns the columns to decode, or null to decode all of them
+     */
+    public DbFileIterator iterator(TransactionId tid, boolean[] columns) {
+        return new ColumnarFileIterator(this, tid, columns);
+    }
+
+    class ColumnarFileIterator extends AbstractDbFileIterator {
+        private final ColumnarFile file;
+        private final TransactionId tid;
+        private final boolean[] columns;
+
+        private Iterator<Tuple> tupleIt;
+        private int currentPageNumber;
+
+        public ColumnarFileIterator(ColumnarFile file, TransactionId tid, boolean[] columns) {
+            this.file = file;
+            this.tid = tid;
+            this.columns = columns;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            currentPageNumber = -1;
+        }
+
+        @Override
+        protected Tuple readNext() throws TransactionAbortedException, DbException {
+            if (tupleIt != null && !tupleIt.hasNext()) {
+                tupleIt = null;
+            }
+
+            while (tupleIt == null && currentPageNumber < file.numPages() - 1) {
+                currentPageNumber++;
+
+                HeapPageId currentPageId = new HeapPageId(file.getId(), currentPageNumber);
+                ColumnarPage currentPage = (ColumnarPage) Database.getBufferPool().getPage(tid, currentPageId,
+                        Permissions.READ_ONLY);
+                tupleIt = currentPage.iterator(columns);
+
+                if (!tupleIt.hasNext()) {
+                    tupleIt = null;
+                }
+            }
+
+            if (tupleIt == null) {
+                return null;
+            }
+
+            return tupleIt.next();
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            tupleIt = null;
+            currentPageNumber = Integer.MAX_VALUE;
+        }
+    }
+
+    private ColumnarPage getPage(TransactionId tid, Permissions perm) throws TransactionAbortedException, DbException {
+        for (int i = 0; i < this.numPages(); i++) {
+            PageId pid = new HeapPageId(this.getId(), i);
+            ColumnarPage page = (ColumnarPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+            if (page.getNumEmptySlots() > 0) {
+                return (ColumnarPage) Database.getBufferPool().getPage(tid, pid, perm);
+            }
+        }
+        return null;
+    }
+
+    private ColumnarPage getEmptyPage(TransactionId tid) throws DbException, IOException, TransactionAbortedException {
+        HeapPageId pid = new HeapPageId(this.getId(), this.numPages());
+        byte[] data = ColumnarPage.createEmptyPageData();
+
+        RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+        raf.seek(BufferPool.getPageSize() * this.numPages());
+        raf.write(data);
+        raf.close();
+
+        Database.getBufferPool().discardPage(pid);
+
+        return (ColumnarPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+    }
+}
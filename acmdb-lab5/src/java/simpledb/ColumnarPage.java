@@ -0,0 +1,389 @@
+package simpledb;
+
+import java.util.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Each instance of ColumnarPage stores data for one page of a ColumnarFile.
+ * The page uses a PAX layout: it holds the same set of tuple slots as a
+ * HeapPage would, but the values of each column are grouped together in a
+ * minipage of their own, so that reading a single column touches a single
+ * contiguous range of the page.
+ *
+ * @see ColumnarFile
+ * @see HeapPage
+ */
+public class ColumnarPage implements Page {
+    protected volatile boolean dirty = false;
+    protected volatile TransactionId dirtier = null;
+
+    final HeapPageId pid;
+    final TupleDesc td;
+    final int numSlots;
+
+    private final int headerSize;
+    private final int[] widths;
+    private final int[] maxLengths;
+    private final int[] minipageOffsets;
+
+    private byte[] data;
+    private boolean dataShared;
+
+    byte[] oldData;
+    private final Byte oldDataLock = Byte.valueOf((byte) 0);
+
+    /**
+     * Create a ColumnarPage from a set of bytes of data read from disk. The
+     * page starts with a header bitmap of used slots, exactly as in HeapPage,
+     * followed by one minipage per column. The minipage of column i holds the
+     * values of that column for every slot, each taking a fixed width: 4
+     * bytes for ints, and 4 length bytes plus the declared maximum length for
+     * strings. The number of slots is
+     * <p>
+     *          floor((BufferPool.getPageSize()*8) / (row width * 8 + 1))
+     * <p>
+     * where row width is the sum of the column widths.
+     *
+     * @see ColumnarFile#getMaxLength
+     */
+    public ColumnarPage(HeapPageId id, byte[] data) throws IOException {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        if (data.length < BufferPool.getPageSize()) {
+            throw new IOException("page data is shorter than the page size");
+        }
+
+        DbFile file = Database.getCatalog().getDatabaseFile(id.getTableId());
+        this.widths = new int[td.numFields()];
+        this.maxLengths = new int[td.numFields()];
+        int rowWidth = 0;
+        for (int i = 0; i < widths.length; i++) {
+            if (td.getFieldType(i) == Type.STRING_TYPE) {
+                maxLengths[i] = file instanceof ColumnarFile ? ((ColumnarFile) file).getMaxLength(i)
+                        : Type.STRING_LEN;
+                widths[i] = 4 + maxLengths[i];
+            } else {
+                widths[i] = td.getFieldType(i).getLen();
+            }
+            rowWidth += widths[i];
+        }
+        this.numSlots = (BufferPool.getPageSize() * 8) / (rowWidth * 8 + 1);
+        this.headerSize = (numSlots + 7) / 8;
+
+        this.minipageOffsets = new int[widths.length];
+        int offset = headerSize;
+        for (int i = 0; i < widths.length; i++) {
+            minipageOffsets[i] = offset;
+            offset += numSlots * widths[i];
+        }
+
+        this.data = data;
+        this.dataShared = true;
+        setBeforeImage();
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public ColumnarPage getBeforeImage() {
+        try {
+            byte[] oldDataRef = null;
+            synchronized (oldDataLock) {
+                oldDataRef = oldData;
+            }
+            return new ColumnarPage(pid, oldDataRef);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            oldData = data;
+            dataShared = true;
+        }
+    }
+
+    /**
+     * Makes sure this page owns its buffer before it is modified.
+     */
+    private void prepareWrite() {
+        synchronized (oldDataLock) {
+            if (dataShared) {
+                data = data.clone();
+                dataShared = false;
+            }
+        }
+    }
+
+    /**
+     * @return the PageId associated with this page.
+     */
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    /**
+     * @return the offset in the page data of the given field of the given slot
+     */
+    private int fieldOffset(int slotId, int field) {
+        return minipageOffsets[field] + slotId * widths[field];
+    }
+
+    /**
+     * Reads an integer field of a used slot from its column minipage.
+     *
+     * @param slotId the slot to read
+     * @param field the index of an INT_TYPE field
+     */
+    public int getInt(int slotId, int field) {
+        return readInt(fieldOffset(slotId, field));
+    }
+
+    /**
+     * Reads a string field of a used slot from its column minipage.
+     *
+     * @param slotId the slot to read
+     * @param field the index of a STRING_TYPE field
+     */
+    public String getString(int slotId, int field) {
+        int offset = fieldOffset(slotId, field);
+        return new String(data, offset + 4, readInt(offset), StandardCharsets.ISO_8859_1);
+    }
+
+    private int readInt(int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) | ((data[offset + 2] & 0xFF) << 8)
+                | (data[offset + 3] & 0xFF);
+    }
+
+    private void writeInt(int offset, int v) {
+        data[offset] = (byte) (v >>> 24);
+        data[offset + 1] = (byte) (v >>> 16);
+        data[offset + 2] = (byte) (v >>> 8);
+        data[offset + 3] = (byte) v;
+    }
+
+    /**
+     * Decodes the given columns of a used slot. Fields of the other columns
+     * are left null.
+     *
+     * @param columns the columns to decode, or null to decode all of them
+     */
+    Tuple readTuple(int slotId, boolean[] columns) {
+        Tuple t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, slotId));
+        for (int j = 0; j < td.numFields(); j++) {
+            if (columns != null && !columns[j]) {
+                continue;
+            }
+            switch (td.getFieldType(j)) {
+                case INT_TYPE:
+                    t.setInt(j, getInt(slotId, j));
+                    break;
+                case STRING_TYPE:
+                    t.setField(j, new StringField(getString(slotId, j), maxLengths[j]));
+                    break;
+                default:
+                    throw new NoSuchElementException("parsing error!");
+            }
+        }
+        return t;
+    }
+
+    private void writeTuple(int slotId, Tuple t) {
+        for (int j = 0; j < td.numFields(); j++) {
+            int offset = fieldOffset(slotId, j);
+            switch (td.getFieldType(j)) {
+                case INT_TYPE:
+                    writeInt(offset, t.getInt(j));
+                    break;
+                case STRING_TYPE:
+                    String s = t.getString(j);
+                    int strLen = Math.min(s.length(), maxLengths[j]);
+                    writeInt(offset, strLen);
+                    for (int k = 0; k < maxLengths[j]; k++) {
+                        data[offset + 4 + k] = k < strLen ? (byte) s.charAt(k) : 0;
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("unsupported type " + td.getFieldType(j));
+            }
+        }
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page.
+     * Used to serialize this page to disk.
+     *
+     * @see #ColumnarPage
+     * @return A byte array correspond to the bytes of this page.
+     */
+    public byte[] getPageData() {
+        byte[] pageData = new byte[BufferPool.getPageSize()];
+        System.arraycopy(data, 0, pageData, 0, pageData.length);
+        return pageData;
+    }
+
+    /**
+     * Static method to generate a byte array corresponding to an empty
+     * ColumnarPage.
+     *
+     * @return The returned ByteArray.
+     */
+    public static byte[] createEmptyPageData() {
+        return new byte[BufferPool.getPageSize()]; // all 0
+    }
+
+    /**
+     * Delete the specified tuple from the page.
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *         already empty.
+     * @param t The tuple to delete
+     */
+    public void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !this.pid.equals(rid.getPageId())) {
+            throw new DbException("this tuple is not on this page");
+        }
+
+        int tupleno = rid.tupleno();
+        if (!isSlotUsed(tupleno)) {
+            throw new DbException("tuple slot is already empty");
+        }
+
+        prepareWrite();
+        markSlotUsed(tupleno, false);
+        for (int j = 0; j < td.numFields(); j++) {
+            int offset = fieldOffset(tupleno, j);
+            Arrays.fill(data, offset, offset + widths[j], (byte) 0);
+        }
+    }
+
+    /**
+     * Adds the specified tuple to the page;  the tuple should be updated to reflect
+     *  that it is now stored on this page.
+     * @throws DbException if the page is full (no empty slots) or tupledesc
+     *         is mismatch.
+     * @param t The tuple to add.
+     */
+    public void insertTuple(Tuple t) throws DbException {
+        if (!this.td.equals(t.getTupleDesc())) {
+            throw new DbException("tupledesc is mismatch");
+        }
+        int slot = 0;
+        while (slot < numSlots && isSlotUsed(slot)) {
+            slot++;
+        }
+        if (slot == numSlots) {
+            throw new DbException("the page is full");
+        }
+
+        prepareWrite();
+        writeTuple(slot, t);
+        markSlotUsed(slot, true);
+        t.setRecordId(new RecordId(this.pid, slot));
+    }
+
+    /**
+     * Marks this page as dirty/not dirty and record that transaction
+     * that did the dirtying
+     */
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.dirty = dirty;
+        if (dirty) {
+            this.dirtier = tid;
+        }
+    }
+
+    /**
+     * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+     */
+    public TransactionId isDirty() {
+        if (this.dirty) {
+            return this.dirtier;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the number of empty slots on this page.
+     */
+    public int getNumEmptySlots() {
+        int count = 0;
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns true if associated slot on this page is filled.
+     */
+    public boolean isSlotUsed(int i) {
+        if (i < 0 || i >= numSlots) {
+            return false;
+        }
+        return (data[i / 8] >> (i % 8) & 1) != 0;
+    }
+
+    private void markSlotUsed(int i, boolean value) {
+        if (value) {
+            data[i / 8] |= 1 << (i % 8);
+        } else {
+            data[i / 8] &= (0xFF ^ (1 << (i % 8)));
+        }
+    }
+
+    /**
+     * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
+     */
+    public Iterator<Tuple> iterator() {
+        return new ColumnarPageIterator(this, null);
+    }
+
+    /**
+     * Returns an iterator over all tuples on this page that only decodes the
+     * given columns; the fields of the other columns are null.
+     *
+     * @param columns the columns to decode, or null to decode all of them
+     */
+    public Iterator<Tuple> iterator(boolean[] columns) {
+        return new ColumnarPageIterator(this, columns);
+    }
+
+    class ColumnarPageIterator implements Iterator<Tuple> {
+        private final ColumnarPage page;
+        private final boolean[] columns;
+        private int curTuple;
+
+        public ColumnarPageIterator(ColumnarPage page, boolean[] columns) {
+            this.page = page;
+            this.columns = columns;
+            this.curTuple = 0;
+        }
+
+        public boolean hasNext() {
+            while (curTuple < page.numSlots && !page.isSlotUsed(curTuple)) {
+                curTuple++;
+            }
+            return curTuple < page.numSlots;
+        }
+
+        public Tuple next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return page.readTuple(curTuple++, columns);
+        }
+
+        public void remove() throws UnsupportedOperationException {
+            throw new UnsupportedOperationException("Cannot remove");
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Instance of Field made of several fields, compared in order. It is the key
+ * of a tuple in a unique BTreeFile: the key field of the tuple followed by
+ * its other fields, see {@link BTreeFile#isUnique()}.
+ * <p>
+ * Compared to a single field, only the first field is compared, so a single
+ * field stands for all the keys starting with it, as the key of a BTreeFile
+ * that is not unique stands for all the tuples having it.
+ */
+public class CompositeField implements Field {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Field[] fields;
+
+    /**
+     * Constructor.
+     *
+     * @param fields The fields of this key, in the order they are compared.
+     */
+    public CompositeField(Field[] fields) {
+        this.fields = fields;
+    }
+
+    /**
+     * Returns the key of a tuple in a unique BTreeFile: its key field
+     * followed by its other fields in order.
+     */
+    public static CompositeField of(Tuple t, int keyField) {
+        int n = t.getTupleDesc().numFields();
+        Field[] fields = new Field[n];
+        fields[0] = t.getField(keyField);
+        for (int i = 0, j = 1; i < n; i++) {
+            if (i != keyField) {
+                fields[j++] = t.getField(i);
+            }
+        }
+        return new CompositeField(fields);
+    }
+
+    /**
+     * Reads a key written by {@link #serialize(ByteBuffer, int)}, for tuples
+     * of the given schema keyed on the given field.
+     */
+    public static CompositeField parse(TupleDesc td, int keyField, ByteBuffer buf, int offset) {
+        int n = td.numFields();
+        Field[] fields = new Field[n];
+        fields[0] = td.getFieldType(keyField).parse(buf, offset);
+        offset += td.getFieldType(keyField).getLen();
+        for (int i = 0, j = 1; i < n; i++) {
+            if (i != keyField) {
+                fields[j++] = td.getFieldType(i).parse(buf, offset);
+                offset += td.getFieldType(i).getLen();
+            }
+        }
+        return new CompositeField(fields);
+    }
+
+    /**
+     * Returns the i-th field of this key.
+     */
+    public Field getField(int i) {
+        return fields[i];
+    }
+
+    /**
+     * Returns the number of fields of this key.
+     */
+    public int numFields() {
+        return fields.length;
+    }
+
+    /**
+     * Writes the fields one after the other.
+     */
+    public void serialize(DataOutputStream dos) throws IOException {
+        for (Field f : fields) {
+            f.serialize(dos);
+        }
+    }
+
+    /**
+     * Writes the fields one after the other, taking the sum of the lengths
+     * of their types.
+     */
+    public void serialize(ByteBuffer buf, int offset) {
+        for (Field f : fields) {
+            f.serialize(buf, offset);
+            offset += f.getType().getLen();
+        }
+    }
+
+    /**
+     * Compares this key to another key field by field, or its first field to
+     * a single field.
+     *
+     * @return a negative number, zero or a positive number as this key is
+     *         less than, equal to or greater than value
+     */
+    public int compareTo(Field value) {
+        if (!(value instanceof CompositeField)) {
+            return BTreePage.compareKeys(fields[0], value);
+        }
+        CompositeField other = (CompositeField) value;
+        for (int i = 0; i < fields.length && i < other.fields.length; i++) {
+            int cmp = BTreePage.compareKeys(fields[i], other.fields[i]);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(fields.length, other.fields.length);
+    }
+
+    public boolean compare(Predicate.Op op, Field value) {
+        int cmp = compareTo(value);
+        switch (op) {
+            case EQUALS:
+            case LIKE:
+                return cmp == 0;
+            case NOT_EQUALS:
+                return cmp != 0;
+            case GREATER_THAN:
+                return cmp > 0;
+            case GREATER_THAN_OR_EQ:
+                return cmp >= 0;
+            case LESS_THAN:
+                return cmp < 0;
+            case LESS_THAN_OR_EQ:
+                return cmp <= 0;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the type of the first field.
+     */
+    public Type getType() {
+        return fields[0].getType();
+    }
+
+    public int hashCode() {
+        return Arrays.hashCode(fields);
+    }
+
+    public boolean equals(Object field) {
+        return field instanceof CompositeField && Arrays.equals(fields, ((CompositeField) field).fields);
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(fields[i]);
+        }
+        return sb.append(")").toString();
+    }
+}
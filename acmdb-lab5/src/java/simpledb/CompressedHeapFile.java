@@ -0,0 +1,382 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * CompressedHeapFile is a HeapFile whose pages are compressed on disk with a
+ * {@link HeapPageCodec}. Pages are decompressed in readPage, so the buffer
+ * pool and everything above it only ever see ordinary HeapPages.
+ * <p>
+ * Since compressed pages vary in size, the file keeps a page map from
+ * logical page numbers to the physical offset, length and allocated
+ * capacity of each compressed page. The page map is stored next to the data
+ * file, in a file with the same name and the suffix ".map": the number of
+ * pages followed by a fixed size record for each page, so that the record of
+ * a page can be rewritten in place when the page is written.
+ * <p>
+ * A page that still fits in its allocated space is rewritten in place;
+ * otherwise it is moved to the first free extent of the data file that is
+ * large enough, or to its end, and given {@link #HEADROOM} to grow into.
+ * The space it leaves is reused by later moves. The free extents are not
+ * stored, but found from the page map when the file is opened.
+ */
+public class CompressedHeapFile extends HeapFile {
+    /** The size of the record of a page in the page map */
+    private static final int MAP_RECORD_SIZE = 16;
+    /**
+     * The space a moved page is given, as a fraction of its compressed size,
+     * so that it can grow a little without moving again
+     */
+    private static final double HEADROOM = 0.5;
+    /** Extents are allocated in multiples of this many bytes */
+    private static final int EXTENT_ALIGNMENT = 64;
+
+    private final File mapFile;
+    private final ArrayList<Long> offsets = new ArrayList<Long>();
+    private final ArrayList<Integer> lengths = new ArrayList<Integer>();
+    private final ArrayList<Integer> capacities = new ArrayList<Integer>();
+    /** The offsets and lengths of the unused extents before the end of the data file */
+    private final TreeMap<Long, Long> freeExtents = new TreeMap<Long, Long>();
+
+    /**
+     * Constructs a compressed heap file backed by the specified file. If the
+     * page map of the file does not exist, the file is considered empty.
+     *
+     * @param f
+     *            the file that stores the compressed pages of this file.
+     * @param td
+     *            the schema of the tuples stored in this file.
+     */
+    public CompressedHeapFile(File f, TupleDesc td) {
+        super(f, td);
+        this.mapFile = getMapFile(f);
+        if (mapFile.exists()) {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mapFile)));
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    offsets.add(in.readLong());
+                    lengths.add(in.readInt());
+                    capacities.add(in.readInt());
+                }
+                in.close();
+            } catch (IOException e) {
+                throw new IllegalArgumentException("cannot read page map " + mapFile, e);
+            }
+        }
+        findFreeExtents();
+    }
+
+    /**
+     * Rebuilds the free extents from the gaps between the pages in the page
+     * map.
+     */
+    private void findFreeExtents() {
+        freeExtents.clear();
+        TreeMap<Long, Integer> used = new TreeMap<Long, Integer>();
+        for (int i = 0; i < offsets.size(); i++) {
+            used.put(offsets.get(i), capacities.get(i));
+        }
+        long end = 0;
+        for (Map.Entry<Long, Integer> e : used.entrySet()) {
+            if (e.getKey() > end) {
+                freeExtents.put(end, e.getKey() - end);
+            }
+            end = Math.max(end, e.getKey() + e.getValue());
+        }
+        long length = getFile().length();
+        if (length > end) {
+            freeExtents.put(end, length - end);
+        }
+    }
+
+    /**
+     * Finds space for a page of the given capacity: the first free extent
+     * large enough, or the end of the data file.
+     *
+     * @return the offset of the space
+     */
+    private long allocateExtent(int capacity) {
+        for (Map.Entry<Long, Long> e : freeExtents.entrySet()) {
+            if (e.getValue() >= capacity) {
+                long offset = e.getKey();
+                freeExtents.remove(offset);
+                if (e.getValue() > capacity) {
+                    freeExtents.put(offset + capacity, e.getValue() - capacity);
+                }
+                return offset;
+            }
+        }
+        return getFile().length();
+    }
+
+    /**
+     * Returns the space of a page that moved to the free extents, merging it
+     * with the free extents next to it.
+     */
+    private void freeExtent(long offset, long length) {
+        Map.Entry<Long, Long> next = freeExtents.ceilingEntry(offset);
+        if (next != null && next.getKey() == offset + length) {
+            freeExtents.remove(next.getKey());
+            length += next.getValue();
+        }
+        Map.Entry<Long, Long> prev = freeExtents.floorEntry(offset);
+        if (prev != null && prev.getKey() + prev.getValue() == offset) {
+            offset = prev.getKey();
+            length += prev.getValue();
+        }
+        freeExtents.put(offset, length);
+    }
+
+    /**
+     * Returns the capacity a page of the given compressed length is given
+     * when it moves.
+     */
+    private static int withHeadroom(int length) {
+        int capacity = (int) (length * (1 + HEADROOM));
+        return (capacity + EXTENT_ALIGNMENT - 1) / EXTENT_ALIGNMENT * EXTENT_ALIGNMENT;
+    }
+
+    /**
+     * Returns the file holding the page map of the compressed heap file f.
+     */
+    public static File getMapFile(File f) {
+        return new File(f.getPath() + ".map");
+    }
+
+    /**
+     * Returns the number of bytes this file takes up on disk, including its
+     * page map.
+     */
+    public long getPhysicalSize() {
+        return getFile().length() + mapFile.length();
+    }
+
+    // see DbFile.java for javadocs
+    @Override
+    public synchronized Page readPage(PageId pid) {
+        int pageNo = pid.pageNumber();
+        if (pageNo < 0 || pageNo >= offsets.size()) {
+            throw new IllegalArgumentException("page " + pageNo + " does not exist");
+        }
+        try {
+            RandomAccessFile f = new RandomAccessFile(getFile(), "r");
+            byte[] compressed = new byte[lengths.get(pageNo)];
+            f.seek(offsets.get(pageNo));
+            f.readFully(compressed);
+            f.close();
+            HeapPageCodec codec = new HeapPageCodec(getTupleDesc(), BufferPool.getPageSize());
+            return new HeapPage((HeapPageId) pid, codec.decompress(compressed));
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    // see DbFile.java for javadocs
+    @Override
+    public void writePage(Page page) throws IOException {
+        HeapPageCodec codec = new HeapPageCodec(getTupleDesc(), BufferPool.getPageSize());
+        pageWriting(page.getId().pageNumber());
+        writeCompressedPage(page.getId().pageNumber(), codec.compress(page.getPageData()), true);
+        pageWritten((HeapPage) page);
+    }
+
+    /**
+     * Writes the compressed bytes of a page and updates the page map,
+     * persisting the record of the page if writeMap is set. New pages are
+     * given exactly the space they need, and pages that outgrow their space
+     * are moved, see {@link #allocateExtent}.
+     */
+    private synchronized void writeCompressedPage(int pageNo, byte[] compressed, boolean writeMap)
+            throws IOException {
+        if (pageNo > offsets.size()) {
+            throw new IllegalArgumentException("page " + pageNo + " is past the end of the file");
+        }
+        RandomAccessFile f = new RandomAccessFile(getFile(), "rw");
+        try {
+            if (pageNo < offsets.size() && compressed.length <= capacities.get(pageNo)) {
+                f.seek(offsets.get(pageNo));
+                f.write(compressed);
+                lengths.set(pageNo, compressed.length);
+            } else {
+                int capacity = pageNo == offsets.size() ? compressed.length : withHeadroom(compressed.length);
+                long offset = allocateExtent(capacity);
+                f.seek(offset);
+                f.write(compressed);
+                if (offset + capacity > f.length()) {
+                    f.setLength(offset + capacity);
+                }
+                if (pageNo == offsets.size()) {
+                    offsets.add(offset);
+                    lengths.add(compressed.length);
+                    capacities.add(capacity);
+                } else {
+                    freeExtent(offsets.get(pageNo), capacities.get(pageNo));
+                    offsets.set(pageNo, offset);
+                    lengths.set(pageNo, compressed.length);
+                    capacities.set(pageNo, capacity);
+                }
+            }
+        } finally {
+            f.close();
+        }
+        if (writeMap) {
+            writeMapRecord(pageNo);
+        }
+    }
+
+    /**
+     * Rewrites the record of a page in the page map in place. The record of
+     * a new page is written before the number of pages is raised to cover
+     * it, so the map stays readable if a write is cut short.
+     */
+    private void writeMapRecord(int pageNo) throws IOException {
+        RandomAccessFile f = new RandomAccessFile(mapFile, "rw");
+        try {
+            f.seek(4 + (long) pageNo * MAP_RECORD_SIZE);
+            f.writeLong(offsets.get(pageNo));
+            f.writeInt(lengths.get(pageNo));
+            f.writeInt(capacities.get(pageNo));
+            if (pageNo == offsets.size() - 1) {
+                f.seek(0);
+                f.writeInt(offsets.size());
+            }
+        } finally {
+            f.close();
+        }
+    }
+
+    /**
+     * Writes the whole page map to a temporary file, and then replaces the
+     * page map with it.
+     */
+    private void writePageMap() throws IOException {
+        File tmp = new File(mapFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(offsets.size());
+            for (int i = 0; i < offsets.size(); i++) {
+                out.writeLong(offsets.get(i));
+                out.writeInt(lengths.get(i));
+                out.writeInt(capacities.get(i));
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), mapFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Appends a compressed empty page to the end of this file.
+     */
+    @Override
+    protected int allocatePage() throws IOException {
+        synchronized (this) {
+            int pageNo = numPages();
+            writePage(new HeapPage(new HeapPageId(getId(), pageNo), HeapPage.createEmptyPageData()));
+            return pageNo;
+        }
+    }
+
+    /**
+     * Compresses the pages and appends them to the end of this file.
+     */
+    @Override
+    public int appendPages(ByteBuffer pages) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        if (pages.remaining() % pageSize != 0) {
+            throw new IllegalArgumentException("not a whole number of pages");
+        }
+        // the buffer pool may still hold empty pages past the end of the
+        // file that a Vacuum truncated away; a commit flushes pages into this
+        // file while it holds the buffer pool, so the pool is not called
+        // while the file is locked
+        Database.getBufferPool().discardPages(getId(), numPages());
+        HeapPageCodec codec = new HeapPageCodec(getTupleDesc(), pageSize);
+        ByteBuffer appended = pages.duplicate();
+        byte[] data = new byte[pageSize];
+        int first;
+        // no page may be allocated in between
+        synchronized (this) {
+            first = numPages();
+            pagesAppending(first, appended);
+            while (pages.hasRemaining()) {
+                pages.get(data);
+                writeCompressedPage(numPages(), codec.compress(data), false);
+            }
+            writePageMap();
+        }
+        pagesAppended(first, appended);
+        return first;
+    }
+
+    /**
+     * Removes the pages from numPages on from the page map, and cuts the data
+     * file off after the last byte still in use.
+     */
+    @Override
+    public synchronized void truncate(int numPages) throws IOException {
+        if (numPages >= offsets.size()) {
+            return;
+        }
+        pagesTruncating(numPages);
+        offsets.subList(numPages, offsets.size()).clear();
+        lengths.subList(numPages, lengths.size()).clear();
+        capacities.subList(numPages, capacities.size()).clear();
+        long end = 0;
+        for (int i = 0; i < numPages; i++) {
+            end = Math.max(end, offsets.get(i) + capacities.get(i));
+        }
+        writePageMap();
+        RandomAccessFile f = new RandomAccessFile(getFile(), "rw");
+        try {
+            f.setLength(end);
+        } finally {
+            f.close();
+        }
+        findFreeExtents();
+    }
+
+    /**
+     * Returns the number of pages in this file.
+     */
+    @Override
+    public synchronized int numPages() {
+        return offsets.size();
+    }
+
+    /**
+     * Compresses an ordinary heap file, such as one written by
+     * {@link HeapFileEncoder}, into a new compressed heap file. Any existing
+     * content of the destination is replaced.
+     *
+     * @param src the uncompressed heap file
+     * @param dest the file to write the compressed pages to
+     * @param td the schema of the tuples stored in src
+     */
+    public static void compress(File src, File dest, TupleDesc td) throws IOException {
+        HeapFile.deleteSideFiles(dest);
+        CompressedHeapFile out = new CompressedHeapFile(dest, td);
+        new FileOutputStream(dest).close();
+        out.offsets.clear();
+        out.lengths.clear();
+        out.capacities.clear();
+        out.freeExtents.clear();
+
+        HeapPageCodec codec = new HeapPageCodec(td, BufferPool.getPageSize());
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(src)));
+        byte[] data = new byte[BufferPool.getPageSize()];
+        // the preallocated pages past the high-water mark are not copied
+        int numPages = new ExtentAllocator(src, 0).numPages();
+        for (int i = 0; i < numPages; i++) {
+            in.readFully(data);
+            out.writeCompressedPage(i, codec.compress(data), false);
+        }
+        in.close();
+        out.writePageMap();
+    }
+}
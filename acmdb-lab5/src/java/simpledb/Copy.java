@@ -0,0 +1,102 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Bulk loads the tuples of a delimited text file into the tableId specified in
+ * the constructor, using a {@link HeapFileLoader}. This implements the COPY
+ * statement.
+ * <p>
+ * The pages are appended to the table file directly, bypassing the buffer
+ * pool, so the load is not undone if the transaction aborts.
+ */
+public class Copy extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final File file;
+    private final int tableId;
+    private final char fieldSeparator;
+
+    private boolean copied;
+    private final TupleDesc td;
+
+    /**
+     * Constructor.
+     *
+     * @param file
+     *            The text file to read tuples from, one per line.
+     * @param tableId
+     *            The table in which to load the tuples.
+     * @param fieldSeparator
+     *            The character between the fields of a line.
+     * @throws DbException
+     *             if the table is not stored in a HeapFile.
+     */
+    public Copy(File file, int tableId, char fieldSeparator) throws DbException {
+        this.file = file;
+        this.tableId = tableId;
+        this.fieldSeparator = fieldSeparator;
+        if (!(Database.getCatalog().getDatabaseFile(tableId) instanceof HeapFile)) {
+            throw new DbException("COPY is only supported for heap tables");
+        }
+
+        String[] names = new String[] { "copied" };
+        Type[] types = new Type[] { Type.INT_TYPE };
+        this.td = new TupleDesc(types, names);
+    }
+
+    public TupleDesc getTupleDesc() {
+        return this.td;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        super.open();
+        this.copied = false;
+    }
+
+    public void close() {
+        super.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+    }
+
+    /**
+     * Loads the file into the table. It returns a one field tuple containing
+     * the number of loaded records.
+     *
+     * @return A 1-field tuple containing the number of loaded records, or
+     *         null if called more than once.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (this.copied) {
+            return null;
+        }
+        this.copied = true;
+
+        HeapFile table = (HeapFile) Database.getCatalog().getDatabaseFile(this.tableId);
+        int count;
+        try {
+            count = new HeapFileLoader(table.getTupleDesc(), this.fieldSeparator).load(this.file, table);
+        } catch (IOException e) {
+            throw new DbException("Exception on copy: " + e.getMessage());
+        }
+        TableStats.tuplesLoaded(this.tableId, count);
+
+        Tuple resultTuple = new Tuple(this.td);
+        resultTuple.setInt(0, count);
+
+        return resultTuple;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[0];
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+    }
+}
@@ -0,0 +1,262 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * ExtentAllocator hands out new pages at the end of a paged file. Instead of
+ * growing the file by one page at a time, it preallocates space in extents
+ * of {@link #getExtentSize()} bytes by writing zeros through a FileChannel,
+ * and keeps the high-water mark (the end of the last page in use) in memory.
+ * Pages between the high-water mark and the end of the preallocated space
+ * are all zeros, except for a trailer at the end of the last one that
+ * records the high-water mark, so that it is found again when the file is
+ * reopened. The trailer is cleared when that page is allocated.
+ * <p>
+ * The file may start with a header of fixed size that is not part of any
+ * page, such as the root pointer page of a BTreeFile. Pages are numbered
+ * from 0, starting right after the header.
+ * <p>
+ * If the length of the file changes behind the allocator's back, or when
+ * the file is opened and does not end with a trailer, the whole file is
+ * considered in use.
+ */
+public class ExtentAllocator {
+    /** Default extent size in bytes */
+    public static final int DEFAULT_EXTENT_SIZE = 1 << 20;
+
+    private static int extentSize = DEFAULT_EXTENT_SIZE;
+
+    private static final ByteBuffer ZEROS = ByteBuffer.allocateDirect(64 * 1024);
+
+    /** Marks the trailer holding the high-water mark */
+    private static final long TRAILER_MAGIC = 0x4558544e4857534dL;
+    /** Size of the trailer: the magic number and the high-water mark */
+    private static final int TRAILER_SIZE = 16;
+
+    private final File file;
+    private final int headerSize;
+
+    /** End of the last page in use, in bytes */
+    private long highWaterMark = -1;
+    /** Length of the file as of the last time it was changed or checked */
+    private long capacity = -1;
+
+    /**
+     * Creates an allocator for the given file.
+     *
+     * @param file the paged file
+     * @param headerSize the number of bytes before the first page
+     */
+    public ExtentAllocator(File file, int headerSize) {
+        this.file = file;
+        this.headerSize = headerSize;
+    }
+
+    /**
+     * @return the number of bytes the file grows by when it runs out of
+     *         preallocated space
+     */
+    public static int getExtentSize() {
+        return extentSize;
+    }
+
+    /**
+     * Sets the extent size. Extents are rounded up to a whole number of
+     * pages. FOR TESTING ONLY.
+     */
+    public static void setExtentSize(int extentSize) {
+        ExtentAllocator.extentSize = extentSize;
+    }
+
+    /**
+     * Restores the default extent size. FOR TESTING ONLY.
+     */
+    public static void resetExtentSize() {
+        ExtentAllocator.extentSize = DEFAULT_EXTENT_SIZE;
+    }
+
+    /**
+     * Picks up changes to the length of the file that were not made through
+     * this allocator, and the high-water mark recorded in the trailer of a
+     * file opened again.
+     */
+    private void sync() {
+        long length = file.length();
+        if (length != capacity) {
+            capacity = length;
+            highWaterMark = readTrailer(length);
+        }
+    }
+
+    /**
+     * Returns the high-water mark recorded at the end of a file of the given
+     * length, or the length if there is no valid trailer.
+     */
+    private long readTrailer(long length) {
+        int pageSize = BufferPool.getPageSize();
+        if (length - headerSize < pageSize || (length - headerSize) % pageSize != 0) {
+            return length;
+        }
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                raf.seek(length - TRAILER_SIZE);
+                if (raf.readLong() != TRAILER_MAGIC) {
+                    return length;
+                }
+                long mark = raf.readLong();
+                if (mark < headerSize || mark >= length || (mark - headerSize) % pageSize != 0) {
+                    return length;
+                }
+                return mark;
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            return length;
+        }
+    }
+
+    /**
+     * Records the high-water mark at the end of the last preallocated page,
+     * or clears the record once that page is in use, so that the page is
+     * all zeros.
+     */
+    private void writeTrailer() throws IOException {
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+        if (highWaterMark < capacity) {
+            trailer.putLong(TRAILER_MAGIC).putLong(highWaterMark).flip();
+        }
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        try {
+            long position = capacity - TRAILER_SIZE;
+            while (trailer.hasRemaining()) {
+                position += channel.write(trailer, position);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * @return the number of pages in use
+     */
+    public synchronized int numPages() {
+        sync();
+        int pageSize = BufferPool.getPageSize();
+        return (int) Math.max(0, (highWaterMark - headerSize + pageSize - 1) / pageSize);
+    }
+
+    /**
+     * Allocates a new page at the end of the file, preallocating another
+     * extent if needed. The content of the new page is all zeros.
+     *
+     * @return the number of the new page
+     */
+    public synchronized int allocatePage() throws IOException {
+        int pageNo = numPages();
+        int pageSize = BufferPool.getPageSize();
+        long end = headerSize + (long) (pageNo + 1) * pageSize;
+        if (end > capacity) {
+            int pagesPerExtent = Math.max(1, (extentSize + pageSize - 1) / pageSize);
+            long allocatedPages = Math.max(0, (capacity - headerSize) / pageSize);
+            preallocate(headerSize + Math.max(pageNo + 1, allocatedPages + pagesPerExtent) * (long) pageSize);
+        }
+        highWaterMark = end;
+        writeTrailer();
+        return pageNo;
+    }
+
+    /**
+     * Writes whole pages to the end of the file, right after the last page in
+     * use, with one sequential write. The preallocated space is overwritten,
+     * and the file is extended if needed.
+     *
+     * @param pages the content of the pages; its remaining bytes must be a
+     *            multiple of the page size
+     * @return the number of the first page written
+     */
+    public synchronized int appendPages(ByteBuffer pages) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        if (pages.remaining() % pageSize != 0) {
+            throw new IllegalArgumentException("not a whole number of pages");
+        }
+        int pageNo = numPages();
+        long position = headerSize + (long) pageNo * pageSize;
+        long end = position + pages.remaining();
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        try {
+            while (pages.hasRemaining()) {
+                position += channel.write(pages, position);
+            }
+        } finally {
+            channel.close();
+        }
+        highWaterMark = end;
+        if (end < capacity) {
+            writeTrailer();
+        }
+        capacity = Math.max(capacity, end);
+        return pageNo;
+    }
+
+    /**
+     * Records that the given page was written, moving the high-water mark
+     * past it if needed.
+     */
+    public synchronized void pageWritten(int pageNo) throws IOException {
+        sync();
+        long end = headerSize + (long) (pageNo + 1) * BufferPool.getPageSize();
+        if (end <= highWaterMark) {
+            return;
+        }
+        highWaterMark = end;
+        if (end < capacity) {
+            writeTrailer();
+        }
+        capacity = Math.max(capacity, end);
+    }
+
+    /**
+     * Cuts the file off after the given number of pages, releasing the
+     * pages after them and any preallocated space. Does nothing if the file
+     * has no more pages than that.
+     *
+     * @param numPages the number of pages to keep
+     */
+    public synchronized void truncate(int numPages) throws IOException {
+        if (numPages >= numPages()) {
+            return;
+        }
+        long length = headerSize + (long) numPages * BufferPool.getPageSize();
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        try {
+            channel.truncate(length);
+        } finally {
+            channel.close();
+        }
+        highWaterMark = length;
+        capacity = length;
+    }
+
+    /**
+     * Extends the file with zeros up to newCapacity bytes.
+     */
+    private void preallocate(long newCapacity) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        try {
+            long position = Math.max(capacity, 0);
+            while (position < newCapacity) {
+                ByteBuffer zeros = ZEROS.duplicate();
+                zeros.limit((int) Math.min(zeros.capacity(), newCapacity - position));
+                position += channel.write(zeros, position);
+            }
+        } finally {
+            channel.close();
+        }
+        capacity = newCapacity;
+    }
+}
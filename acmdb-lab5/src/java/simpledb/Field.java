@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Interface for values of fields in tuples in SimpleDB.
@@ -14,6 +15,16 @@ public interface Field extends Serializable {
      */
     void serialize(DataOutputStream dos) throws IOException;
 
+    /**
+     * Write the bytes representing this field to the specified position of
+     * the buffer, in the same format as {@link #serialize(DataOutputStream)}.
+     * Exactly {@link Type#getLen()} bytes are written, and the position of
+     * the buffer is not changed.
+     * @param buf The buffer to write to.
+     * @param offset The absolute position to write the field at.
+     */
+    void serialize(ByteBuffer buf, int offset);
+
     /**
      * Compare the value of this field object to the passed in value.
      * @param op The operator
@@ -10,7 +10,7 @@ public class Filter extends Operator {
     private static final long serialVersionUID = 1L;
 
     private final Predicate p;
-    private final DbIterator child;
+    private DbIterator child;
 
     /**
      * Constructor accepts a predicate to apply and a child operator to read
@@ -88,6 +88,6 @@ public class Filter extends Operator {
     @Override
     public void setChildren(DbIterator[] children) {
         // some code goes here
-        children[0] = child;
+        this.child = children[0];
     }
 }
@@ -0,0 +1,116 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * FreePageCache keeps the numbers of the free pages of a paged file in
+ * memory, so that a page can be allocated without scanning the header pages
+ * that record them. It is only a hint: the file must still check and mark
+ * the page used in its header page before handing it out, and drop pages
+ * that turn out to be in use.
+ * <p>
+ * The set is rebuilt lazily by the file from its header pages. Pages freed
+ * by a transaction can only be reused by the same transaction until it
+ * completes. Since a transaction that took or freed pages may abort and
+ * roll back its header pages, the set is rebuilt once any such transaction
+ * has completed.
+ */
+public class FreePageCache {
+    private final BitSet free = new BitSet();
+    private boolean valid = false;
+    /** Incremented whenever the set becomes invalid, to detect rebuilds that raced with it */
+    private int generation = 0;
+    /** The pages freed by each active transaction that took or freed pages */
+    private final HashMap<TransactionId, BitSet> pending = new HashMap<TransactionId, BitSet>();
+
+    /**
+     * @return whether the set must be rebuilt from the header pages before
+     *         it is used
+     */
+    public synchronized boolean needsRebuild() {
+        return !valid;
+    }
+
+    /**
+     * @return the current generation, to be passed to {@link #rebuilt} by
+     *         a rebuild started now
+     */
+    public synchronized int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Replaces the set with the free pages read from the header pages. The
+     * set only becomes valid if nothing invalidated it during the rebuild.
+     *
+     * @param pages the free pages
+     * @param generation the generation when the rebuild started
+     */
+    public synchronized void rebuilt(BitSet pages, int generation) {
+        free.clear();
+        free.or(pages);
+        valid = generation == this.generation;
+    }
+
+    /**
+     * Forgets the transactions that took or freed pages and no longer hold
+     * a lock on the given page, which every such transaction locks until it
+     * completes. If there are any, the set must be rebuilt.
+     *
+     * @param lockedPage a page locked by every transaction that allocates or
+     *            frees pages of the file
+     */
+    public synchronized void forgetCompleted(PageId lockedPage) {
+        Iterator<TransactionId> it = pending.keySet().iterator();
+        while (it.hasNext()) {
+            if (!Database.getBufferPool().holdsLock(it.next(), lockedPage)) {
+                it.remove();
+                invalidate();
+            }
+        }
+    }
+
+    /**
+     * Makes the set be rebuilt before it is used again.
+     */
+    public synchronized void invalidate() {
+        valid = false;
+        generation++;
+    }
+
+    /**
+     * Removes a free page from the set for the given transaction, preferring
+     * pages it freed itself.
+     *
+     * @return the page number, or -1 if no page is known to be free
+     */
+    public synchronized int take(TransactionId tid) {
+        BitSet freed = pending.get(tid);
+        int pageNo = freed == null ? -1 : freed.nextSetBit(0);
+        if (pageNo >= 0) {
+            freed.clear(pageNo);
+        } else {
+            pageNo = free.nextSetBit(0);
+            if (pageNo < 0) {
+                return -1;
+            }
+            if (freed == null) {
+                pending.put(tid, new BitSet());
+            }
+        }
+        free.clear(pageNo);
+        return pageNo;
+    }
+
+    /**
+     * Records that the given transaction freed a page.
+     */
+    public synchronized void freed(TransactionId tid, int pageNo) {
+        BitSet freed = pending.get(tid);
+        if (freed == null) {
+            freed = new BitSet();
+            pending.put(tid, freed);
+        }
+        freed.set(pageNo);
+    }
+}
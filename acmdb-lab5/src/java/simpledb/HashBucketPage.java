@@ -0,0 +1,201 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+
+/**
+ * HashBucketPage is a page of a bucket of a HashFile. A bucket is a chain of
+ * bucket pages: the first one is found through the directory, and each page
+ * points to the next overflow page of the bucket, if there is one.
+ *
+ * @see HashFile
+ */
+public class HashBucketPage extends HashPage {
+    private final TupleDesc td;
+    private final byte header[];
+    private final Tuple tuples[];
+    private final int numSlots;
+
+    private int nextPage; // next overflow page or 0
+
+    /**
+     * Create a HashBucketPage from a set of bytes of data read from disk.
+     * The format is the page number of the next overflow page, a set of
+     * header bytes indicating the slots of the page that are in use, and the
+     * tuple slots. The number of slots is
+     * floor((BufferPool.getPageSize()*8 - 32) / (tuple size * 8 + 1)).
+     */
+    public HashBucketPage(HashPageId id, byte[] data) {
+        super(id);
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.numSlots = getMaxTuples();
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        this.nextPage = buf.getInt(0);
+
+        header = new byte[(numSlots + 7) / 8];
+        System.arraycopy(data, INDEX_SIZE, header, 0, header.length);
+
+        tuples = new Tuple[numSlots];
+        int offset = INDEX_SIZE + header.length;
+        for (int i = 0; i < numSlots; i++, offset += td.getSize()) {
+            if (isSlotUsed(i)) {
+                tuples[i] = readTuple(buf, offset, i);
+            }
+        }
+        synchronized (oldDataLock) {
+            oldData = data.clone();
+        }
+    }
+
+    /**
+     * Retrieve the maximum number of tuples this page can hold.
+     */
+    public int getMaxTuples() {
+        return (BufferPool.getPageSize() * 8 - INDEX_SIZE * 8) / (td.getSize() * 8 + 1);
+    }
+
+    private Tuple readTuple(ByteBuffer buf, int offset, int slotId) {
+        Tuple t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, slotId));
+        for (int j = 0; j < td.numFields(); j++) {
+            Type type = td.getFieldType(j);
+            if (type == Type.INT_TYPE) {
+                t.setInt(j, buf.getInt(offset));
+            } else {
+                t.setField(j, type.parse(buf, offset));
+            }
+            offset += type.getLen();
+        }
+        return t;
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public HashBucketPage getBeforeImage() {
+        return new HashBucketPage(pid, getOldData());
+    }
+
+    public byte[] getPageData() {
+        byte[] data = new byte[BufferPool.getPageSize()];
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        buf.putInt(0, nextPage);
+        System.arraycopy(header, 0, data, INDEX_SIZE, header.length);
+        int offset = INDEX_SIZE + header.length;
+        for (int i = 0; i < numSlots; i++, offset += td.getSize()) {
+            if (!isSlotUsed(i)) {
+                continue;
+            }
+            int fieldOffset = offset;
+            for (int j = 0; j < td.numFields(); j++) {
+                if (td.getFieldType(j) == Type.INT_TYPE) {
+                    buf.putInt(fieldOffset, tuples[i].getInt(j));
+                } else {
+                    tuples[i].getField(j).serialize(buf, fieldOffset);
+                }
+                fieldOffset += td.getFieldType(j).getLen();
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Returns the next overflow page of the bucket, or null if this is the
+     * last page.
+     */
+    public HashPageId getNextPageId() {
+        if (nextPage == 0) {
+            return null;
+        }
+        return new HashPageId(pid.getTableId(), nextPage, HashPageId.BUCKET);
+    }
+
+    /**
+     * Sets the next overflow page of the bucket.
+     */
+    public void setNextPageId(HashPageId id) {
+        nextPage = id == null ? 0 : id.pageNumber();
+    }
+
+    /**
+     * Adds a tuple to a free slot of the page, and sets its RecordId.
+     *
+     * @throws DbException if the page is full or the tuple does not match
+     *             the schema of the file
+     */
+    public void insertTuple(Tuple t) throws DbException {
+        if (!td.equals(t.getTupleDesc())) {
+            throw new DbException("type mismatch, in addTuple");
+        }
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i)) {
+                markSlotUsed(i, true);
+                tuples[i] = t;
+                t.setRecordId(new RecordId(pid, i));
+                return;
+            }
+        }
+        throw new DbException("called addTuple on page with no empty slots.");
+    }
+
+    /**
+     * Deletes a tuple from the page, and clears its RecordId.
+     *
+     * @throws DbException if the tuple is not on this page
+     */
+    public void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !pid.equals(rid.getPageId())) {
+            throw new DbException("tried to delete tuple on invalid page or table");
+        }
+        if (!isSlotUsed(rid.tupleno())) {
+            throw new DbException("tried to delete null tuple.");
+        }
+        markSlotUsed(rid.tupleno(), false);
+        tuples[rid.tupleno()] = null;
+        t.setRecordId(null);
+    }
+
+    /**
+     * Returns the number of empty slots on this page.
+     */
+    public int getNumEmptySlots() {
+        int cnt = 0;
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i)) {
+                cnt++;
+            }
+        }
+        return cnt;
+    }
+
+    /**
+     * Returns true if associated slot on this page is filled.
+     */
+    public boolean isSlotUsed(int i) {
+        return (header[i / 8] & (1 << (i % 8))) != 0;
+    }
+
+    private void markSlotUsed(int i, boolean value) {
+        if (value) {
+            header[i / 8] |= 1 << (i % 8);
+        } else {
+            header[i / 8] &= ~(1 << (i % 8));
+        }
+    }
+
+    /**
+     * @return an iterator over the tuples on this page; the tuples are
+     *         copied first, so the page may change while it is in use
+     */
+    public Iterator<Tuple> iterator() {
+        ArrayList<Tuple> list = new ArrayList<Tuple>();
+        for (int i = 0; i < numSlots; i++) {
+            if (isSlotUsed(i)) {
+                list.add(tuples[i]);
+            }
+        }
+        return Collections.unmodifiableList(list).iterator();
+    }
+}
@@ -0,0 +1,67 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+
+/**
+ * HashDirectoryPage maps the bucket numbers of a HashFile to the page
+ * numbers of the first page of each bucket. The meta page points to the
+ * directory pages, each of which holds {@link #getNumEntries()} buckets.
+ *
+ * @see HashFile
+ * @see HashMetaPage
+ */
+public class HashDirectoryPage extends HashPage {
+    private final int[] entries;
+
+    /**
+     * Create a HashDirectoryPage from a set of bytes of data read from disk.
+     * The page is an array of page numbers, one per bucket.
+     */
+    public HashDirectoryPage(HashPageId id, byte[] data) {
+        super(id);
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        this.entries = new int[getNumEntries()];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = buf.getInt(i * INDEX_SIZE);
+        }
+        synchronized (oldDataLock) {
+            oldData = data.clone();
+        }
+    }
+
+    /**
+     * Returns the number of buckets per directory page.
+     */
+    public static int getNumEntries() {
+        return BufferPool.getPageSize() / INDEX_SIZE;
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public HashDirectoryPage getBeforeImage() {
+        return new HashDirectoryPage(pid, getOldData());
+    }
+
+    public byte[] getPageData() {
+        byte[] data = new byte[BufferPool.getPageSize()];
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        for (int i = 0; i < entries.length; i++) {
+            buf.putInt(i * INDEX_SIZE, entries[i]);
+        }
+        return data;
+    }
+
+    /**
+     * Returns the first page of a bucket.
+     */
+    public HashPageId getBucketId(int bucket) {
+        return new HashPageId(pid.getTableId(), entries[bucket % entries.length], HashPageId.BUCKET);
+    }
+
+    /**
+     * Sets the first page of a bucket.
+     */
+    public void setBucketPage(int bucket, int pageNo) {
+        entries[bucket % entries.length] = pageNo;
+    }
+}
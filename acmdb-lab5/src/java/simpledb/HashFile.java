@@ -0,0 +1,437 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * HashFile is a DbFile that stores its tuples in buckets by the hash of a
+ * key field, using linear hashing. It answers equality lookups on the key
+ * by reading a single bucket: the meta page and the directory pages are few
+ * and stay in the buffer pool, so a lookup usually reads one or two pages
+ * from disk, however large the file is. It cannot answer range lookups; use
+ * a BTreeFile for those.
+ * <p>
+ * Page 0 of the file is a {@link HashMetaPage}, which holds the state of the
+ * hashing and points to the {@link HashDirectoryPage}s, which map buckets to
+ * their first {@link HashBucketPage}. A bucket whose pages are full gets an
+ * overflow page chained to its last page.
+ * <p>
+ * The file grows one bucket at a time: whenever an insert finds its bucket
+ * full, the bucket the meta page points to next is split in two, and the
+ * tuples whose hash now maps to the new bucket are moved there. So no insert
+ * rehashes more than one bucket, and the buckets split in turn keep the
+ * overflow chains short. The insert that splits a bucket locks the meta
+ * page for writing until it commits. Buckets are not merged when tuples are
+ * deleted; their free slots are reused by later inserts.
+ * <p>
+ * All pages are read and written through the BufferPool, and locked like
+ * the pages of any other file.
+ *
+ * @see HashMetaPage
+ * @see HashDirectoryPage
+ * @see HashBucketPage
+ */
+public class HashFile implements DbFile {
+
+    private final File f;
+    private final TupleDesc td;
+    private final int tableid;
+    private final int keyField;
+    private final ExtentAllocator extents;
+
+    /**
+     * Constructs a hash file backed by the specified file.
+     *
+     * @param f - the file that stores the on-disk backing store for this
+     *            hash file.
+     * @param key - the field which the file is hashed on
+     * @param td - the tuple descriptor of tuples in the file
+     */
+    public HashFile(File f, int key, TupleDesc td) {
+        this.f = f;
+        this.tableid = f.getAbsoluteFile().hashCode();
+        this.keyField = key;
+        this.td = td;
+        this.extents = new ExtentAllocator(f, 0);
+    }
+
+    /**
+     * Returns the File backing this HashFile on disk.
+     */
+    public File getFile() {
+        return f;
+    }
+
+    public int getId() {
+        return tableid;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * Returns the index of the field that this file is hashed on
+     */
+    public int keyField() {
+        return keyField;
+    }
+
+    /**
+     * Returns the number of pages in this HashFile.
+     */
+    public int numPages() {
+        return extents.numPages();
+    }
+
+    /**
+     * Read a page from the file on disk. This should not be called directly
+     * but should be called from the BufferPool via getPage()
+     *
+     * @param pid - the id of the page to read from disk
+     * @return the page constructed from the contents on disk
+     */
+    public Page readPage(PageId pid) {
+        HashPageId id = (HashPageId) pid;
+        byte[] data = new byte[BufferPool.getPageSize()];
+        try {
+            RandomAccessFile raf = new RandomAccessFile(f, "r");
+            try {
+                if ((long) (id.pageNumber() + 1) * data.length > raf.length()) {
+                    throw new IllegalArgumentException("Read past end of table");
+                }
+                raf.seek((long) id.pageNumber() * data.length);
+                raf.readFully(data);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        Debug.log(1, "HashFile.readPage: read page %d", id.pageNumber());
+        switch (id.pgcateg()) {
+            case HashPageId.META:
+                return new HashMetaPage(id, data);
+            case HashPageId.DIRECTORY:
+                return new HashDirectoryPage(id, data);
+            default:
+                return new HashBucketPage(id, data);
+        }
+    }
+
+    /**
+     * Write a page to disk.  This should not be called directly but should
+     * be called from the BufferPool when pages are flushed to disk
+     *
+     * @param page - the page to write to disk
+     */
+    public void writePage(Page page) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.seek((long) page.getId().pageNumber() * BufferPool.getPageSize());
+            raf.write(page.getPageData());
+        } finally {
+            raf.close();
+        }
+        extents.pageWritten(page.getId().pageNumber());
+    }
+
+    /**
+     * Returns the hash of a key. The bits of the hash code of the field are
+     * mixed (the finalizer of MurmurHash3), since linear hashing uses the
+     * low bits, and the hash code of an IntField is its value.
+     */
+    static int hash(Field key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * Method to encapsulate the process of locking/fetching a page. First
+     * the method checks the local cache ("dirtypages"), and if it can't find
+     * the requested page there, it fetches it from the buffer pool. It also
+     * adds pages to the dirtypages cache if they are fetched with read-write
+     * permission, since presumably they will soon be dirtied by this
+     * transaction.
+     */
+    private Page getPage(TransactionId tid, HashMap<PageId, Page> dirtypages, HashPageId pid, Permissions perm)
+            throws DbException, TransactionAbortedException {
+        if (dirtypages.containsKey(pid)) {
+            return dirtypages.get(pid);
+        }
+        Page p = Database.getBufferPool().getPage(tid, pid, perm);
+        if (perm == Permissions.READ_WRITE) {
+            dirtypages.put(pid, p);
+        }
+        return p;
+    }
+
+    /**
+     * Locks the meta page. The first time the file is used, its meta page,
+     * first directory page and first bucket page are written to disk.
+     */
+    HashMetaPage getMetaPage(TransactionId tid, HashMap<PageId, Page> dirtypages, Permissions perm)
+            throws DbException, IOException, TransactionAbortedException {
+        synchronized (this) {
+            if (numPages() == 0) {
+                int metaNo = extents.allocatePage();
+                int dirNo = extents.allocatePage();
+                int bucketNo = extents.allocatePage();
+                HashMetaPage meta = new HashMetaPage(new HashPageId(tableid, metaNo, HashPageId.META),
+                        HashPage.createEmptyPageData());
+                meta.addDirectoryPage(dirNo);
+                HashDirectoryPage dir = new HashDirectoryPage(new HashPageId(tableid, dirNo, HashPageId.DIRECTORY),
+                        HashPage.createEmptyPageData());
+                dir.setBucketPage(0, bucketNo);
+                writePage(dir);
+                writePage(meta);
+            }
+        }
+        return (HashMetaPage) getPage(tid, dirtypages, new HashPageId(tableid, 0, HashPageId.META), perm);
+    }
+
+    /**
+     * Returns the first page of the bucket holding a key.
+     */
+    private HashPageId findBucket(TransactionId tid, HashMap<PageId, Page> dirtypages, HashMetaPage meta, Field key)
+            throws DbException, TransactionAbortedException {
+        return getBucket(tid, dirtypages, meta, meta.bucketOf(hash(key)));
+    }
+
+    private HashPageId getBucket(TransactionId tid, HashMap<PageId, Page> dirtypages, HashMetaPage meta, int bucket)
+            throws DbException, TransactionAbortedException {
+        HashDirectoryPage dir = (HashDirectoryPage) getPage(tid, dirtypages, meta.getDirectoryId(bucket),
+                Permissions.READ_ONLY);
+        return dir.getBucketId(bucket);
+    }
+
+    /**
+     * Returns the first page of a bucket chain with an empty slot, or null if
+     * all of them are full.
+     */
+    private HashPageId findFreePage(TransactionId tid, HashMap<PageId, Page> dirtypages, HashPageId first)
+            throws DbException, TransactionAbortedException {
+        for (HashPageId id = first; id != null;) {
+            HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages, id, Permissions.READ_ONLY);
+            if (page.getNumEmptySlots() > 0) {
+                return id;
+            }
+            id = page.getNextPageId();
+        }
+        return null;
+    }
+
+    /**
+     * Allocates a new page at the end of the file and locks it. Its content
+     * is all zeros, which is an empty page of any kind.
+     */
+    private HashPage getEmptyPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int pgcateg)
+            throws DbException, IOException, TransactionAbortedException {
+        HashPageId id = new HashPageId(tableid, extents.allocatePage(), pgcateg);
+        // make sure no stale copy of the page is in the buffer pool
+        Database.getBufferPool().discardPage(id);
+        return (HashPage) getPage(tid, dirtypages, id, Permissions.READ_WRITE);
+    }
+
+    /**
+     * Adds a tuple to a bucket chain, chaining a new overflow page to its
+     * last page if all of them are full.
+     */
+    private void addToBucket(TransactionId tid, HashMap<PageId, Page> dirtypages, HashPageId first, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        HashPageId id = findFreePage(tid, dirtypages, first);
+        if (id == null) {
+            HashBucketPage last = (HashBucketPage) getPage(tid, dirtypages, first, Permissions.READ_ONLY);
+            while (last.getNextPageId() != null) {
+                last = (HashBucketPage) getPage(tid, dirtypages, last.getNextPageId(), Permissions.READ_ONLY);
+            }
+            last = (HashBucketPage) getPage(tid, dirtypages, last.getId(), Permissions.READ_WRITE);
+            HashBucketPage overflow = (HashBucketPage) getEmptyPage(tid, dirtypages, HashPageId.BUCKET);
+            last.setNextPageId(overflow.getId());
+            id = overflow.getId();
+        }
+        HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages, id, Permissions.READ_WRITE);
+        page.insertTuple(t);
+    }
+
+    /**
+     * Splits the bucket the meta page points to next: a new bucket is added
+     * after the last one, and the tuples of the old bucket whose hash maps to
+     * the new bucket at the next level are moved there. The meta page must be
+     * locked for writing.
+     */
+    private void splitBucket(TransactionId tid, HashMap<PageId, Page> dirtypages, HashMetaPage meta)
+            throws DbException, IOException, TransactionAbortedException {
+        int oldBucket = meta.getNext();
+        int newBucket = meta.getNumBuckets();
+        int mask = (1 << (meta.getLevel() + 1)) - 1;
+
+        if (meta.needsDirectoryPage()) {
+            meta.addDirectoryPage(getEmptyPage(tid, dirtypages, HashPageId.DIRECTORY).getId().pageNumber());
+        }
+        HashDirectoryPage dir = (HashDirectoryPage) getPage(tid, dirtypages, meta.getDirectoryId(newBucket),
+                Permissions.READ_WRITE);
+        HashPageId newFirst = getEmptyPage(tid, dirtypages, HashPageId.BUCKET).getId();
+        dir.setBucketPage(newBucket, newFirst.pageNumber());
+        HashPageId oldFirst = getBucket(tid, dirtypages, meta, oldBucket);
+        meta.bucketSplit();
+
+        for (HashPageId id = oldFirst; id != null;) {
+            HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages, id, Permissions.READ_WRITE);
+            Iterator<Tuple> it = page.iterator();
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                if ((hash(t.getField(keyField)) & mask) == newBucket) {
+                    page.deleteTuple(t);
+                    addToBucket(tid, dirtypages, newFirst, t);
+                }
+            }
+            id = page.getNextPageId();
+        }
+    }
+
+    /**
+     * Inserts a tuple into its bucket. If all pages of the bucket are full,
+     * the next bucket in turn is split first, and the tuple goes to an
+     * overflow page if its bucket is still full.
+     *
+     * @return a list of all pages that were dirtied by this operation
+     */
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+        Field key = t.getField(keyField);
+        HashMetaPage meta = getMetaPage(tid, dirtypages, Permissions.READ_ONLY);
+        HashPageId first = findBucket(tid, dirtypages, meta, key);
+        if (findFreePage(tid, dirtypages, first) == null && meta.getNumBuckets() < HashMetaPage.getMaxBuckets()) {
+            meta = getMetaPage(tid, dirtypages, Permissions.READ_WRITE);
+            splitBucket(tid, dirtypages, meta);
+            first = findBucket(tid, dirtypages, meta, key);
+        }
+        addToBucket(tid, dirtypages, first, t);
+        return new ArrayList<Page>(dirtypages.values());
+    }
+
+    /**
+     * Deletes a tuple from the page it is on.
+     *
+     * @return a list of all pages that were dirtied by this operation
+     * @throws DbException if the tuple is not in this file
+     */
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !(rid.getPageId() instanceof HashPageId) || rid.getPageId().getTableId() != tableid) {
+            throw new DbException("tuple is not in this hash file");
+        }
+        HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+        HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages, (HashPageId) rid.getPageId(),
+                Permissions.READ_WRITE);
+        page.deleteTuple(t);
+        return new ArrayList<Page>(dirtypages.values());
+    }
+
+    /**
+     * Get a read lock on the bucket of the key of an EQUALS predicate, and
+     * return an iterator over the tuples in it with that key. Other
+     * predicates cannot use the hashing, so they are answered by reading
+     * every bucket and filtering the tuples.
+     *
+     * @param ipred - the index predicate value to search for
+     * @param tid - the transaction id
+     * @return an iterator for the matching tuples
+     */
+    public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+        return new HashFileIterator(this, tid, ipred);
+    }
+
+    /**
+     * Get an iterator for all tuples in this hash file, bucket by bucket.
+     *
+     * @return an iterator for all the tuples in this file
+     */
+    public DbFileIterator iterator(TransactionId tid) {
+        return new HashFileIterator(this, tid, null);
+    }
+
+    /**
+     * Reads the tuples of the buckets of a hash file, following the overflow
+     * chains.
+     */
+    private static class HashFileIterator extends AbstractDbFileIterator {
+        private final HashFile f;
+        private final TransactionId tid;
+        private final IndexPredicate ipred;
+
+        private HashMetaPage meta;
+        /** The next bucket to read, or -1 if only one bucket is read */
+        private int nextBucket;
+        private HashPageId nextPage;
+        private Iterator<Tuple> it;
+
+        HashFileIterator(HashFile f, TransactionId tid, IndexPredicate ipred) {
+            this.f = f;
+            this.tid = tid;
+            this.ipred = ipred;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            HashMap<PageId, Page> pages = new HashMap<PageId, Page>();
+            try {
+                meta = f.getMetaPage(tid, pages, Permissions.READ_ONLY);
+            } catch (IOException e) {
+                throw new DbException("cannot initialize hash file: " + e.getMessage());
+            }
+            if (ipred != null && ipred.getOp() == Predicate.Op.EQUALS) {
+                nextPage = f.findBucket(tid, pages, meta, ipred.getField());
+                nextBucket = -1;
+            } else {
+                nextPage = f.getBucket(tid, pages, meta, 0);
+                nextBucket = 1;
+            }
+            it = null;
+        }
+
+        @Override
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            if (meta == null) {
+                return null;
+            }
+            while (true) {
+                while (it == null || !it.hasNext()) {
+                    if (nextPage == null) {
+                        if (nextBucket < 0 || nextBucket >= meta.getNumBuckets()) {
+                            return null;
+                        }
+                        nextPage = f.getBucket(tid, new HashMap<PageId, Page>(), meta, nextBucket++);
+                    }
+                    HashBucketPage page = (HashBucketPage) Database.getBufferPool().getPage(tid, nextPage,
+                            Permissions.READ_ONLY);
+                    it = page.iterator();
+                    nextPage = page.getNextPageId();
+                }
+                Tuple t = it.next();
+                if (ipred == null || t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
+                    return t;
+                }
+            }
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            meta = null;
+            nextPage = null;
+            it = null;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+
+/**
+ * HashMetaPage is the first page of a HashFile. It holds the state of the
+ * linear hashing: the level, the next bucket to split, and the page numbers
+ * of the directory pages that map bucket numbers to bucket pages.
+ * <p>
+ * The file has 2^level + next buckets. A key whose hash is h belongs in
+ * bucket h mod 2^level, unless that bucket was already split in this round
+ * (it is below next), in which case it belongs in bucket h mod 2^(level+1).
+ *
+ * @see HashFile
+ * @see HashDirectoryPage
+ */
+public class HashMetaPage extends HashPage {
+    private int level;
+    private int next;
+    private int numDirPages;
+    private final int[] dirPages;
+
+    /**
+     * Create a HashMetaPage from a set of bytes of data read from disk. The
+     * format is the level, the next bucket to split, and the number of
+     * directory pages, followed by their page numbers. A page of all zeros
+     * is a file that was not initialized yet, see {@link #isInitialized}.
+     */
+    public HashMetaPage(HashPageId id, byte[] data) {
+        super(id);
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        this.level = buf.getInt(0);
+        this.next = buf.getInt(INDEX_SIZE);
+        this.numDirPages = buf.getInt(2 * INDEX_SIZE);
+        this.dirPages = new int[getMaxDirectoryPages()];
+        for (int i = 0; i < numDirPages; i++) {
+            dirPages[i] = buf.getInt((3 + i) * INDEX_SIZE);
+        }
+        synchronized (oldDataLock) {
+            oldData = data.clone();
+        }
+    }
+
+    /**
+     * Returns the number of directory pages the meta page can point to.
+     */
+    public static int getMaxDirectoryPages() {
+        return BufferPool.getPageSize() / INDEX_SIZE - 3;
+    }
+
+    /**
+     * Returns the number of buckets a file can have.
+     */
+    public static int getMaxBuckets() {
+        return getMaxDirectoryPages() * HashDirectoryPage.getNumEntries();
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public HashMetaPage getBeforeImage() {
+        return new HashMetaPage(pid, getOldData());
+    }
+
+    public byte[] getPageData() {
+        byte[] data = new byte[BufferPool.getPageSize()];
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        buf.putInt(0, level);
+        buf.putInt(INDEX_SIZE, next);
+        buf.putInt(2 * INDEX_SIZE, numDirPages);
+        for (int i = 0; i < numDirPages; i++) {
+            buf.putInt((3 + i) * INDEX_SIZE, dirPages[i]);
+        }
+        return data;
+    }
+
+    /**
+     * Returns whether the file has its first directory and bucket pages.
+     */
+    public boolean isInitialized() {
+        return numDirPages > 0;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public int getNext() {
+        return next;
+    }
+
+    /**
+     * Returns the number of buckets, 2^level + next.
+     */
+    public int getNumBuckets() {
+        return (1 << level) + next;
+    }
+
+    /**
+     * Returns the bucket that holds the keys with the given hash.
+     */
+    public int bucketOf(int hash) {
+        int b = hash & ((1 << level) - 1);
+        if (b < next) {
+            b = hash & ((1 << (level + 1)) - 1);
+        }
+        return b;
+    }
+
+    /**
+     * Returns the directory page that holds the page number of a bucket.
+     */
+    public HashPageId getDirectoryId(int bucket) {
+        return new HashPageId(pid.getTableId(), dirPages[bucket / HashDirectoryPage.getNumEntries()],
+                HashPageId.DIRECTORY);
+    }
+
+    /**
+     * Returns whether a new bucket needs a new directory page, see
+     * {@link #addDirectoryPage}.
+     */
+    public boolean needsDirectoryPage() {
+        return getNumBuckets() == numDirPages * HashDirectoryPage.getNumEntries();
+    }
+
+    /**
+     * Adds a directory page for the next buckets.
+     */
+    public void addDirectoryPage(int pageNo) throws DbException {
+        if (numDirPages == dirPages.length) {
+            throw new DbException("hash file has no room for another directory page");
+        }
+        dirPages[numDirPages++] = pageNo;
+    }
+
+    /**
+     * Records that bucket next was split into itself and bucket
+     * 2^level + next, and moves on to the next bucket.
+     */
+    public void bucketSplit() {
+        next++;
+        if (next == 1 << level) {
+            level++;
+            next = 0;
+        }
+    }
+}
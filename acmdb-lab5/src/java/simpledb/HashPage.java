@@ -0,0 +1,79 @@
+package simpledb;
+
+/**
+ * HashPage holds what the pages of a HashFile have in common: the dirty
+ * flag and the before image.
+ *
+ * @see HashFile
+ * @see BufferPool
+ */
+public abstract class HashPage implements Page {
+    protected volatile boolean dirty = false;
+    protected volatile TransactionId dirtier = null;
+
+    protected final static int INDEX_SIZE = Type.INT_TYPE.getLen();
+
+    protected final HashPageId pid;
+    protected byte[] oldData;
+    protected final Byte oldDataLock = Byte.valueOf((byte) 0);
+
+    protected HashPage(HashPageId id) {
+        this.pid = id;
+    }
+
+    /**
+     * @return the PageId associated with this page.
+     */
+    public HashPageId getId() {
+        return pid;
+    }
+
+    /**
+     * Static method to generate a byte array corresponding to an empty
+     * HashPage. All zeros is a valid empty page of each kind: a bucket page
+     * without tuples or overflow page, a directory page without buckets, and
+     * a meta page of a file that was not initialized yet.
+     *
+     * @return The returned ByteArray.
+     */
+    public static byte[] createEmptyPageData() {
+        return new byte[BufferPool.getPageSize()];
+    }
+
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            oldData = getPageData();
+        }
+    }
+
+    /**
+     * Returns the data of the page as of the last setBeforeImage.
+     */
+    protected byte[] getOldData() {
+        synchronized (oldDataLock) {
+            return oldData;
+        }
+    }
+
+    /**
+     * Marks this page as dirty/not dirty and record that transaction
+     * that did the dirtying
+     */
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.dirty = dirty;
+        if (dirty) {
+            this.dirtier = tid;
+        }
+    }
+
+    /**
+     * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+     */
+    public TransactionId isDirty() {
+        if (this.dirty) {
+            return this.dirtier;
+        } else {
+            return null;
+        }
+    }
+}
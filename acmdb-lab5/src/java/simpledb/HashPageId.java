@@ -0,0 +1,97 @@
+package simpledb;
+
+/** Unique identifier for HashMetaPage, HashDirectoryPage and HashBucketPage
+ *  objects.
+ */
+public class HashPageId implements PageId {
+
+    public final static int META = 0;
+    public final static int DIRECTORY = 1;
+    public final static int BUCKET = 2;
+
+    private final int tableId;
+    private final int pgNo;
+    private final int pgcateg;
+
+    static public String categToString(int categ) {
+        switch (categ) {
+            case META:
+                return "META";
+            case DIRECTORY:
+                return "DIRECTORY";
+            case BUCKET:
+                return "BUCKET";
+            default:
+                throw new IllegalArgumentException("categ");
+        }
+    }
+
+    /**
+     * Constructor. Create a page id structure for a specific page of a
+     * specific table.
+     *
+     * @param tableId The table that is being referenced
+     * @param pgNo The page number in that table.
+     * @param pgcateg which kind of page it is
+     */
+    public HashPageId(int tableId, int pgNo, int pgcateg) {
+        this.tableId = tableId;
+        this.pgNo = pgNo;
+        this.pgcateg = pgcateg;
+    }
+
+    /** @return the table associated with this PageId */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /**
+     * @return the page number in the table getTableId() associated with
+     *   this PageId
+     */
+    public int pageNumber() {
+        return pgNo;
+    }
+
+    /**
+     * @return the category of this page
+     */
+    public int pgcateg() {
+        return pgcateg;
+    }
+
+    /**
+     * @return a hash code for this page, represented by the concatenation of
+     *   the table number, page number, and pgcateg
+     * @see BufferPool
+     */
+    public int hashCode() {
+        return (tableId << 16) + (pgNo << 2) + pgcateg;
+    }
+
+    /**
+     * Compares one PageId to another.
+     *
+     * @param o The object to compare against (must be a PageId)
+     * @return true if the objects are equal (e.g., page numbers, table
+     *   ids and pgcateg are the same)
+     */
+    public boolean equals(Object o) {
+        if (!(o instanceof HashPageId))
+            return false;
+        HashPageId p = (HashPageId) o;
+        return tableId == p.tableId && pgNo == p.pgNo && pgcateg == p.pgcateg;
+    }
+
+    public String toString() {
+        return "(tableId: " + tableId + ", pgNo: " + pgNo + ", pgcateg: " + categToString(pgcateg) + ")";
+    }
+
+    /**
+     *  Return a representation of this object as an array of
+     *  integers, for writing to disk.
+     */
+    public int[] serialize() {
+        return new int[] { tableId, pgNo, pgcateg };
+    }
+}
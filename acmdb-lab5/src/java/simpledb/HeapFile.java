@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -16,6 +17,9 @@ import java.util.*;
 public class HeapFile implements DbFile {
     private final File file;
     private final TupleDesc td;
+    private final ExtentAllocator extents;
+    private final ZoneMap zones;
+    private final SegmentBloomFilters blooms;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -28,6 +32,9 @@ public class HeapFile implements DbFile {
         // some code goes here
         this.file = f;
         this.td = td;
+        this.extents = new ExtentAllocator(f, 0);
+        this.zones = new ZoneMap(f, td);
+        this.blooms = new SegmentBloomFilters(f, td);
     }
 
     /**
@@ -64,6 +71,136 @@ public class HeapFile implements DbFile {
         return this.td;
     }
 
+    /**
+     * Returns the zone map of this file, which holds the range of the int
+     * fields on each page.
+     */
+    public ZoneMap getZoneMap() {
+        return zones;
+    }
+
+    /**
+     * Returns the Bloom filters of the segments of this file.
+     */
+    public SegmentBloomFilters getBloomFilters() {
+        return blooms;
+    }
+
+    /**
+     * Builds a Bloom filter of a field for each segment of this file, see
+     * {@link SegmentBloomFilters}, and stores them beside the file; old
+     * filters of the field are replaced. The pages are read in a transaction
+     * of their own, which is retried if it is aborted.
+     *
+     * @param field the index of the field
+     */
+    public void createBloomFilter(int field) throws DbException, IOException {
+        td.getFieldType(field);
+        blooms.start(field);
+        boolean done = false;
+        while (!done) {
+            TransactionId tid = new TransactionId();
+            try {
+                for (int i = 0; i < numPages(); i++) {
+                    HeapPageId pid = new HeapPageId(getId(), i);
+                    HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+                    blooms.pageScanned(field, page);
+                }
+                Database.getBufferPool().transactionComplete(tid, true);
+                done = true;
+            } catch (TransactionAbortedException e) {
+                // values added so far stay in; the pages are read again
+                Database.getBufferPool().transactionComplete(tid, false);
+            }
+        }
+        blooms.complete(field);
+    }
+
+    /**
+     * Deletes the zone map, the Bloom filters and the secondary indexes
+     * stored beside the data file f. They no longer apply once the file is
+     * rewritten without going through HeapFile, e.g. by
+     * {@link HeapFileEncoder}.
+     */
+    public static void deleteSideFiles(File f) {
+        ZoneMap.getZoneFile(f).delete();
+        SegmentBloomFilters.getBloomFile(f).delete();
+        File[] indexes = f.getAbsoluteFile().getParentFile().listFiles();
+        if (indexes != null) {
+            for (File index : indexes) {
+                if (index.getName().startsWith(f.getName() + ".") && index.getName().endsWith(".idx")) {
+                    index.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the zone map and the Bloom filters of the heap file f when the
+     * virtual machine exits, as {@link File#deleteOnExit} does for f itself.
+     * Used for temporary tables; the files of secondary indexes, which are
+     * named after the indexed field, are left to the code creating them.
+     */
+    public static void deleteSideFilesOnExit(File f) {
+        ZoneMap.getZoneFile(f).deleteOnExit();
+        SegmentBloomFilters.getBloomFile(f).deleteOnExit();
+    }
+
+    /**
+     * Updates the zone map and the Bloom filters before a page is written.
+     */
+    void pageWriting(int pageNo) throws IOException {
+        zones.pageWriting(pageNo);
+        blooms.pageWriting(pageNo);
+    }
+
+    /**
+     * Updates the zone map after a page was written.
+     */
+    void pageWritten(HeapPage page) throws IOException {
+        zones.pageWritten(page);
+    }
+
+    /**
+     * Updates the zone map and the Bloom filters for a tuple inserted into a
+     * page; used by insertTuple and {@link Vacuum}.
+     */
+    void tupleInserted(int pageNo, Tuple t) {
+        zones.tupleInserted(pageNo, t);
+        blooms.tupleInserted(pageNo, t);
+    }
+
+    /**
+     * Updates the zone map and the Bloom filters for pages appended from
+     * first on; the filters must be updated before the pages are written,
+     * and the zone map and the secondary indexes after.
+     */
+    void pagesAppending(int first, ByteBuffer pages) throws IOException {
+        blooms.pagesAppending(getId(), first, pages);
+    }
+
+    /**
+     * Updates the zone map and the secondary indexes for pages appended from
+     * first on. The indexes are updated in transactions that may wait for
+     * page locks, so the caller must not hold the monitor of this file or of
+     * its extents.
+     */
+    void pagesAppended(int first, ByteBuffer pages) throws IOException {
+        zones.pagesAppended(getId(), first, pages);
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(getId())) {
+            index.pagesAppended(first, pages);
+        }
+    }
+
+    /**
+     * Updates the zone map and the Bloom filters before the file is
+     * truncated to numPages.
+     */
+    void pagesTruncating(int numPages) throws IOException {
+        zones.truncate(numPages);
+        blooms.truncate(numPages);
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         // some code goes here
@@ -86,24 +223,72 @@ public class HeapFile implements DbFile {
         // not necessary for lab1
         PageId pid = page.getId();
         try {
+            pageWriting(pid.pageNumber());
             RandomAccessFile f = new RandomAccessFile(this.file, "rw");
             int offset = BufferPool.getPageSize() * pid.pageNumber();
             f.seek(offset);
             f.write(page.getPageData());
             f.close();
+            extents.pageWritten(pid.pageNumber());
+            pageWritten((HeapPage) page);
         } catch (IOException e) {
             throw new IllegalArgumentException();
         }
     }
 
+    /**
+     * Appends already encoded pages to the end of this file with one
+     * sequential write, bypassing the buffer pool. Used for bulk loading, see
+     * {@link HeapFileLoader}.
+     *
+     * @param pages
+     *            the raw data of one or more HeapPages, as returned by
+     *            {@link HeapPage#getPageData}
+     * @return the number of the first page appended
+     */
+    public int appendPages(ByteBuffer pages) throws IOException {
+        // the buffer pool may still hold empty pages past the end of the
+        // file that a Vacuum truncated away
+        Database.getBufferPool().discardPages(getId(), numPages());
+        ByteBuffer data = pages.duplicate();
+        int first;
+        // no page may be allocated in between
+        synchronized (extents) {
+            pagesAppending(extents.numPages(), data);
+            first = extents.appendPages(pages);
+        }
+        pagesAppended(first, data);
+        return first;
+    }
+
     /**
      * Returns the number of pages in this HeapFile.
      */
     public int numPages() {
         // some code goes here
-        long length = file.length();
-        int pagesize = BufferPool.getPageSize();
-        return (int) (length + pagesize - 1) / pagesize;
+        return extents.numPages();
+    }
+
+    /**
+     * Removes the pages from numPages on from the end of this file. The
+     * pages must be empty. Used by {@link Vacuum}.
+     *
+     * @param numPages the number of pages to keep
+     */
+    public void truncate(int numPages) throws IOException {
+        pagesTruncating(numPages);
+        extents.truncate(numPages);
+    }
+
+    /**
+     * Appends an empty page to the end of this file. Space is preallocated
+     * in extents, so this usually does not touch the file at all.
+     *
+     * @return the page number of the new page
+     * @see ExtentAllocator
+     */
+    protected int allocatePage() throws IOException {
+        return extents.allocatePage();
     }
 
     // see DbFile.java for javadocs
@@ -113,13 +298,11 @@ public class HeapFile implements DbFile {
         // not necessary for lab1
         HeapPage page = getPage(tid, Permissions.READ_WRITE);
 
-        if (page != null) {
-            page.insertTuple(t);
-            return new ArrayList<Page>(Arrays.asList(page));
+        if (page == null) {
+            page = getEmptyPage(tid);
         }
-
-        page = getEmptyPage(tid);
         page.insertTuple(t);
+        tupleInserted(page.getId().pageNumber(), t);
 
         return new ArrayList<Page>(Arrays.asList(page));
     }
@@ -137,19 +320,36 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
-        return new HeapFileIterator(this, tid);
+        return new HeapFileIterator(this, tid, null);
+    }
+
+    /**
+     * Returns an iterator over the tuples of this file that satisfy all of the
+     * given predicates. Predicates are evaluated on the raw page data, so
+     * tuples that do not match are never materialized, and pages whose range
+     * in the zone map cannot match, or whose segment's Bloom filter rules out
+     * the value of an EQUALS predicate, are not read at all. They are still
+     * locked as if they were read.
+     *
+     * @param tid the transaction id
+     * @param predicates the predicates to apply, may be null or empty
+     */
+    public DbFileIterator iterator(TransactionId tid, List<Predicate> predicates) {
+        return new HeapFileIterator(this, tid, predicates);
     }
 
     class HeapFileIterator extends AbstractDbFileIterator {
         private final HeapFile heapFile;
         private final TransactionId tid;
+        private final List<Predicate> predicates;
 
         private Iterator<Tuple> tupleIt;
         private int currentPageNumber;
 
-        public HeapFileIterator(HeapFile hf, TransactionId tid) {
+        public HeapFileIterator(HeapFile hf, TransactionId tid, List<Predicate> predicates) {
             this.heapFile = hf;
             this.tid = tid;
+            this.predicates = predicates;
         }
 
         public void open() throws DbException, TransactionAbortedException {
@@ -164,12 +364,26 @@ public class HeapFile implements DbFile {
 
             while (tupleIt == null && currentPageNumber < heapFile.numPages() - 1) {
                 currentPageNumber++;
-
                 HeapPageId currentPageId = new HeapPageId(heapFile.getId(), currentPageNumber);
+                if (predicates != null) {
+                    // a page is skipped under the same lock as it is read, so
+                    // that no transaction can add a matching tuple to it
+                    // before this one completes
+                    Database.getBufferPool().lockPage(tid, currentPageId, Permissions.READ_ONLY);
+                    if (!zones.mayMatch(currentPageNumber, predicates)
+                            || !blooms.mayMatch(currentPageNumber, predicates)) {
+                        continue;
+                    }
+                }
 
                 HeapPage currentPage = (HeapPage) Database.getBufferPool().getPage(tid, currentPageId,
                         Permissions.READ_ONLY);
-                tupleIt = currentPage.iterator();
+                if (currentPage.isDirty() == null) {
+                    // no transaction has changed the page, and none can
+                    // while it is locked
+                    zones.pageRead(currentPage);
+                }
+                tupleIt = currentPage.iterator(predicates);
 
                 if (!tupleIt.hasNext()) {
                     tupleIt = null;
@@ -208,16 +422,10 @@ public class HeapFile implements DbFile {
     }
 
     private HeapPage getEmptyPage(TransactionId tid) throws DbException, IOException, TransactionAbortedException {
-        HeapPageId pid = new HeapPageId(this.getId(), this.numPages());
-        byte[] data = HeapPage.createEmptyPageData();
-
-        RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
-        raf.seek(BufferPool.getPageSize() * this.numPages());
-        raf.write(data);
-        raf.close();
+        HeapPageId pid = new HeapPageId(this.getId(), allocatePage());
 
         Database.getBufferPool().discardPage(pid);
 
-        return getPage(tid, Permissions.READ_WRITE);
+        return (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
     }
 }
@@ -104,6 +104,7 @@ public class HeapFileEncoder {
         int nheaderbits = nheaderbytes * 8;
 
         BufferedReader br = new BufferedReader(new FileReader(inFile));
+        HeapFile.deleteSideFiles(outFile);
         FileOutputStream os = new FileOutputStream(outFile);
 
         // our numbers probably won't be much larger than 1024 digits
@@ -0,0 +1,328 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.*;
+
+/**
+ * HeapFileLoader bulk loads a delimited text file, one tuple per line, into a
+ * HeapFile. It is used by the COPY statement and by "SimpleDb convert".
+ * <p>
+ * The input is read in chunks of about {@link #DEFAULT_CHUNK_SIZE} bytes that
+ * end at a line boundary. Each chunk is parsed and encoded into HeapPages by
+ * one of several worker threads, and the pages of each chunk are appended to
+ * the file with a single sequential write, in input order. At most two chunks
+ * per worker are in memory at any time, so memory use does not depend on the
+ * size of the input.
+ * <p>
+ * Every chunk starts a new page, so the last page of each chunk may not be
+ * full. Empty lines are skipped, and lines that cannot be parsed are reported
+ * and skipped.
+ */
+public class HeapFileLoader {
+    /** Default number of input bytes parsed by a worker at a time */
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+    private final TupleDesc td;
+    private final char fieldSeparator;
+    private final int numThreads;
+    private final int chunkSize;
+
+    private final int pageSize;
+    private final int numSlots;
+    private final int headerSize;
+    private final int tupleSize;
+    private final int[] fieldOffsets;
+
+    /**
+     * Creates a loader that uses one worker thread per processor.
+     *
+     * @param td the schema of the tuples, which may only hold int and string
+     *            fields
+     * @param fieldSeparator the character between fields on a line
+     */
+    public HeapFileLoader(TupleDesc td, char fieldSeparator) {
+        this(td, fieldSeparator, Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param td the schema of the tuples, which may only hold int and string
+     *            fields
+     * @param fieldSeparator the character between fields on a line
+     * @param numThreads the number of worker threads
+     * @param chunkSize the number of input bytes parsed by a worker at a time
+     */
+    public HeapFileLoader(TupleDesc td, char fieldSeparator, int numThreads, int chunkSize) {
+        this.td = td;
+        this.fieldSeparator = fieldSeparator;
+        this.numThreads = numThreads;
+        this.chunkSize = chunkSize;
+        // same layout as HeapPage
+        this.pageSize = BufferPool.getPageSize();
+        this.tupleSize = td.getSize();
+        this.numSlots = (pageSize * 8) / (tupleSize * 8 + 1);
+        this.headerSize = (numSlots + 7) / 8;
+        this.fieldOffsets = new int[td.numFields()];
+        for (int i = 1; i < fieldOffsets.length; i++) {
+            fieldOffsets[i] = fieldOffsets[i - 1] + td.getFieldType(i - 1).getLen();
+        }
+    }
+
+    /**
+     * Appends the tuples of a text file to the end of a heap file.
+     *
+     * @param inFile the text file to read
+     * @param out the heap file to append to
+     * @return the number of tuples loaded
+     */
+    public int load(File inFile, HeapFile out) throws IOException {
+        InputStream in = new FileInputStream(inFile);
+        try {
+            return load(in, out);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Appends the tuples read from a stream to the end of a heap file.
+     *
+     * @param in the text to read
+     * @param out the heap file to append to
+     * @return the number of tuples loaded
+     */
+    public int load(InputStream in, HeapFile out) throws IOException {
+        ExecutorService workers = Executors.newFixedThreadPool(numThreads);
+        ArrayDeque<Future<EncodedChunk>> pending = new ArrayDeque<Future<EncodedChunk>>();
+        int count = 0;
+        try {
+            byte[] carry = new byte[0];
+            boolean eof = false;
+            while (!eof) {
+                // fill a chunk, starting with the incomplete line of the last one
+                byte[] chunk = new byte[Math.max(chunkSize, 2 * carry.length)];
+                System.arraycopy(carry, 0, chunk, 0, carry.length);
+                int length = carry.length;
+                while (length < chunk.length) {
+                    int n = in.read(chunk, length, chunk.length - length);
+                    if (n < 0) {
+                        eof = true;
+                        break;
+                    }
+                    length += n;
+                }
+
+                // cut the chunk after its last complete line
+                int end = length;
+                if (!eof) {
+                    while (end > 0 && chunk[end - 1] != '\n') {
+                        end--;
+                    }
+                    if (end == 0) {
+                        // a line longer than the chunk; read more of it
+                        carry = chunk;
+                        continue;
+                    }
+                }
+                carry = new byte[length - end];
+                System.arraycopy(chunk, end, carry, 0, carry.length);
+
+                if (pending.size() >= 2 * numThreads) {
+                    count += write(pending.remove(), out);
+                }
+                pending.add(workers.submit(new Encoder(chunk, end)));
+            }
+            while (!pending.isEmpty()) {
+                count += write(pending.remove(), out);
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+        return count;
+    }
+
+    private int write(Future<EncodedChunk> future, HeapFile out) throws IOException {
+        EncodedChunk chunk;
+        try {
+            chunk = future.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        if (chunk.pages.hasRemaining()) {
+            out.appendPages(chunk.pages);
+        }
+        return chunk.numTuples;
+    }
+
+    /**
+     * The pages encoded from one chunk of input.
+     */
+    private static class EncodedChunk {
+        final ByteBuffer pages;
+        final int numTuples;
+
+        EncodedChunk(ByteBuffer pages, int numTuples) {
+            this.pages = pages;
+            this.numTuples = numTuples;
+        }
+    }
+
+    /**
+     * Parses the lines of a chunk and encodes them into pages.
+     */
+    private class Encoder implements Callable<EncodedChunk> {
+        private final byte[] chunk;
+        private final int length;
+
+        Encoder(byte[] chunk, int length) {
+            this.chunk = chunk;
+            this.length = length;
+        }
+
+        @Override
+        public EncodedChunk call() {
+            int maxLines = 1;
+            for (int i = 0; i < length; i++) {
+                if (chunk[i] == '\n') {
+                    maxLines++;
+                }
+            }
+            ByteBuffer pages = ByteBuffer.allocate((maxLines + numSlots - 1) / numSlots * pageSize);
+
+            int numTuples = 0;
+            int lineStart = 0;
+            while (lineStart < length) {
+                int lineEnd = lineStart;
+                while (lineEnd < length && chunk[lineEnd] != '\n') {
+                    lineEnd++;
+                }
+                int page = numTuples / numSlots * pageSize;
+                int slot = numTuples % numSlots;
+                int result = encodeLine(lineStart, lineEnd, pages, page + headerSize + slot * tupleSize);
+                if (result > 0) {
+                    pages.put(page + slot / 8, (byte) (pages.get(page + slot / 8) | (1 << (slot % 8))));
+                    numTuples++;
+                } else if (result < 0) {
+                    System.out.println("BAD LINE : " + new String(chunk, lineStart, lineEnd - lineStart,
+                            StandardCharsets.ISO_8859_1));
+                }
+                lineStart = lineEnd + 1;
+            }
+
+            pages.limit((numTuples + numSlots - 1) / numSlots * pageSize);
+            return new EncodedChunk(pages, numTuples);
+        }
+
+        /**
+         * Encodes one line as a tuple at the given offset of the pages.
+         *
+         * @return 1 if the line was encoded, 0 if it is empty, and -1 if it
+         *         cannot be parsed
+         */
+        private int encodeLine(int start, int end, ByteBuffer pages, int offset) {
+            if (end > start && chunk[end - 1] == '\r') {
+                end--;
+            }
+            if (trimStart(start, end) == end) {
+                return 0;
+            }
+
+            int fieldStart = start;
+            for (int i = 0; i < td.numFields(); i++) {
+                int fieldEnd = fieldStart;
+                while (fieldEnd < end && chunk[fieldEnd] != fieldSeparator) {
+                    fieldEnd++;
+                }
+                if (fieldEnd == end && i < td.numFields() - 1) {
+                    clear(pages, offset);
+                    return -1;
+                }
+                int valueStart = trimStart(fieldStart, fieldEnd);
+                int valueEnd = trimEnd(valueStart, fieldEnd);
+                int fieldOffset = offset + fieldOffsets[i];
+
+                switch (td.getFieldType(i)) {
+                    case INT_TYPE:
+                        long value = parseInt(valueStart, valueEnd);
+                        if (value == Long.MIN_VALUE) {
+                            clear(pages, offset);
+                            return -1;
+                        }
+                        pages.putInt(fieldOffset, (int) value);
+                        break;
+                    case STRING_TYPE:
+                        int len = Math.min(valueEnd - valueStart, Type.STRING_LEN);
+                        pages.putInt(fieldOffset, len);
+                        for (int j = 0; j < len; j++) {
+                            pages.put(fieldOffset + 4 + j, chunk[valueStart + j]);
+                        }
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unsupported type " + td.getFieldType(i));
+                }
+                if (i == td.numFields() - 1 && fieldEnd < end) {
+                    // too many fields
+                    clear(pages, offset);
+                    return -1;
+                }
+                fieldStart = fieldEnd + 1;
+            }
+            return 1;
+        }
+
+        /**
+         * @return the value of the decimal integer between start and end, or
+         *         Long.MIN_VALUE if it is not an int
+         */
+        private long parseInt(int start, int end) {
+            boolean negative = false;
+            if (start < end && (chunk[start] == '-' || chunk[start] == '+')) {
+                negative = chunk[start] == '-';
+                start++;
+            }
+            if (start == end) {
+                return Long.MIN_VALUE;
+            }
+            long value = 0;
+            for (int i = start; i < end; i++) {
+                int digit = chunk[i] - '0';
+                if (digit < 0 || digit > 9) {
+                    return Long.MIN_VALUE;
+                }
+                value = value * 10 + digit;
+                if (value > (long) Integer.MAX_VALUE + 1) {
+                    return Long.MIN_VALUE;
+                }
+            }
+            value = negative ? -value : value;
+            return value > Integer.MAX_VALUE ? Long.MIN_VALUE : value;
+        }
+
+        private int trimStart(int start, int end) {
+            while (start < end && (chunk[start] == ' ' || chunk[start] == '\t')) {
+                start++;
+            }
+            return start;
+        }
+
+        private int trimEnd(int start, int end) {
+            while (end > start && (chunk[end - 1] == ' ' || chunk[end - 1] == '\t')) {
+                end--;
+            }
+            return end;
+        }
+
+        /**
+         * Zeroes a partially encoded tuple.
+         */
+        private void clear(ByteBuffer pages, int offset) {
+            for (int i = 0; i < tupleSize; i++) {
+                pages.put(offset + i, (byte) 0);
+            }
+        }
+    }
+}
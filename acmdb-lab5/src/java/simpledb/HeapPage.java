@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
@@ -17,10 +18,23 @@ public class HeapPage implements Page {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte header[];
     final Tuple tuples[];
     final int numSlots;
 
+    /**
+     * The raw bytes of this page. Header and slot contents are read directly
+     * from this buffer; tuples are only materialized on demand and cached in
+     * {@link #tuples}. The buffer is shared with the before image (and with
+     * the caller of the constructor) until the page is first modified.
+     */
+    private byte[] data;
+    /** Wraps data; replaced together with it */
+    private ByteBuffer buf;
+    private boolean dataShared;
+    private final int headerSize;
+    private final int tupleSize;
+    private final int[] fieldOffsets;
+
     byte[] oldData;
     private final Byte oldDataLock = Byte.valueOf((byte) 0);
 
@@ -44,24 +58,24 @@ public class HeapPage implements Page {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i = 0; i < header.length; i++) {
-            header[i] = dis.readByte();
+        this.headerSize = getHeaderSize();
+        this.tupleSize = td.getSize();
+        if (data.length < BufferPool.getPageSize()) {
+            throw new IOException("page data is shorter than the page size");
         }
 
-        tuples = new Tuple[numSlots];
-        try {
-            // allocate and read the actual records of this page
-            for (int i = 0; i < tuples.length; i++) {
-                tuples[i] = readNextTuple(dis, i);
-            }
-        } catch (NoSuchElementException e) {
-            e.printStackTrace();
+        // tuples are decoded lazily from the raw page bytes, see getTuple
+        this.data = data;
+        this.buf = ByteBuffer.wrap(data);
+        this.dataShared = true;
+        this.tuples = new Tuple[numSlots];
+
+        this.fieldOffsets = new int[td.numFields()];
+        int offset = 0;
+        for (int i = 0; i < fieldOffsets.length; i++) {
+            fieldOffsets[i] = offset;
+            offset += td.getFieldType(i).getLen();
         }
-        dis.close();
 
         setBeforeImage();
     }
@@ -102,7 +116,23 @@ public class HeapPage implements Page {
 
     public void setBeforeImage() {
         synchronized (oldDataLock) {
-            oldData = getPageData().clone();
+            // share the buffer with the before image; it is copied on the
+            // next modification of this page
+            oldData = data;
+            dataShared = true;
+        }
+    }
+
+    /**
+     * Makes sure this page owns its buffer before it is modified.
+     */
+    private void prepareWrite() {
+        synchronized (oldDataLock) {
+            if (dataShared) {
+                data = data.clone();
+                buf = ByteBuffer.wrap(data);
+                dataShared = false;
+            }
         }
     }
 
@@ -115,39 +145,89 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * @return the offset in the page data of the given field of the given slot
+     */
+    private int fieldOffset(int slotId, int field) {
+        return headerSize + slotId * tupleSize + fieldOffsets[field];
+    }
+
+    /**
+     * Reads an integer field of a used slot directly from the page data,
+     * without materializing the tuple.
+     *
+     * @param slotId the slot to read
+     * @param field the index of an INT_TYPE field
+     */
+    public int getInt(int slotId, int field) {
+        return buf.getInt(fieldOffset(slotId, field));
+    }
+
+    /**
+     * Reads a string field of a used slot directly from the page data,
+     * without materializing the tuple.
+     *
+     * @param slotId the slot to read
+     * @param field the index of a STRING_TYPE field
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
+    public String getString(int slotId, int field) {
+        int offset = fieldOffset(slotId, field);
+        int strLen = Math.max(0, Math.min(buf.getInt(offset), Type.STRING_LEN));
+        return Type.decodeString(buf, offset + 4, strLen);
+    }
+
+    /**
+     * Returns the tuple stored in the given slot, decoding it from the page
+     * data the first time it is requested.
+     *
+     * @return the tuple, or null if the slot is empty
+     */
+    Tuple getTuple(int slotId) {
         if (!isSlotUsed(slotId)) {
-            for (int i = 0; i < td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
             return null;
         }
+        Tuple t = tuples[slotId];
+        if (t == null) {
+            t = readTuple(slotId);
+            tuples[slotId] = t;
+        }
+        return t;
+    }
 
-        // read fields in the tuple
+    /**
+     * Decodes the tuple of a used slot.
+     */
+    private Tuple readTuple(int slotId) throws NoSuchElementException {
         Tuple t = new Tuple(td);
         RecordId rid = new RecordId(pid, slotId);
         t.setRecordId(rid);
-        try {
-            for (int j = 0; j < td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
+        for (int j = 0; j < td.numFields(); j++) {
+            switch (td.getFieldType(j)) {
+                case INT_TYPE:
+                    t.setInt(j, getInt(slotId, j));
+                    break;
+                case STRING_TYPE:
+                    t.setField(j, new StringField(getString(slotId, j), Type.STRING_LEN));
+                    break;
+                default:
+                    throw new NoSuchElementException("parsing error!");
             }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
         }
-
         return t;
     }
 
+    /**
+     * Writes the fields of t into the given slot of the page data.
+     */
+    private void writeTuple(int slotId, Tuple t) {
+        for (int j = 0; j < td.numFields(); j++) {
+            if (td.getFieldType(j) == Type.INT_TYPE) {
+                buf.putInt(fieldOffset(slotId, j), t.getInt(j));
+            } else {
+                t.getField(j).serialize(buf, fieldOffset(slotId, j));
+            }
+        }
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -160,64 +240,9 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i = 0; i < header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i = 0; i < tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j = 0; j < td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j = 0; j < td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        byte[] pageData = new byte[BufferPool.getPageSize()];
+        System.arraycopy(data, 0, pageData, 0, pageData.length);
+        return pageData;
     }
 
     /**
@@ -255,8 +280,10 @@ public class HeapPage implements Page {
             throw new DbException("tuple slot is already empty");
         }
 
+        prepareWrite();
         this.tuples[tupleno] = null;
         markSlotUsed(tupleno, false);
+        Arrays.fill(data, headerSize + tupleno * tupleSize, headerSize + (tupleno + 1) * tupleSize, (byte) 0);
     }
 
     /**
@@ -281,7 +308,10 @@ public class HeapPage implements Page {
             throw new DbException("the page is full");
         }
 
-        this.tuples[slot] = t;
+        prepareWrite();
+        writeTuple(slot, t);
+        // the caller keeps t, so the cached tuple is decoded from the page
+        this.tuples[slot] = null;
         markSlotUsed(slot, true);
         t.setRecordId(new RecordId(this.pid, slot));
     }
@@ -333,10 +363,10 @@ public class HeapPage implements Page {
         // some code goes here
         int byteNum = i / 8;
         int bitNum = i % 8;
-        if (byteNum < 0 || byteNum >= header.length) {
+        if (i < 0 || i >= numSlots) {
             return false;
         }
-        byte byteWithSlot = header[byteNum];
+        byte byteWithSlot = data[byteNum];
         return (byteWithSlot >> bitNum & 1) != 0;
     }
 
@@ -351,9 +381,9 @@ public class HeapPage implements Page {
 
         Debug.log(1, "HeapPagePage.setSlot: setting slot %d to %b", i, value);
         if (value) {
-            header[headerbyte] |= 1 << headerbit;
+            data[headerbyte] |= 1 << headerbit;
         } else {
-            header[headerbyte] &= (0xFF ^ (1 << headerbit));
+            data[headerbyte] &= (0xFF ^ (1 << headerbit));
         }
     }
 
@@ -363,30 +393,60 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
-        return new HeapPageIterator(this);
+        return new HeapPageIterator(this, null);
+    }
+
+    /**
+     * Returns an iterator over the tuples on this page that satisfy all of
+     * the given predicates. The predicates are evaluated against the raw page
+     * data, so tuples are only materialized for slots that match.
+     *
+     * @param predicates the predicates to apply, may be null or empty
+     */
+    public Iterator<Tuple> iterator(List<Predicate> predicates) {
+        if (predicates == null || predicates.isEmpty()) {
+            return iterator();
+        }
+        return new HeapPageIterator(this, predicates);
     }
 
     class HeapPageIterator implements Iterator<Tuple> {
         private final HeapPage heapPage;
+        private final List<Predicate> predicates;
         private int curTuple;
 
-        public HeapPageIterator(HeapPage heapPage) {
+        public HeapPageIterator(HeapPage heapPage, List<Predicate> predicates) {
             this.heapPage = heapPage;
+            this.predicates = predicates;
             this.curTuple = 0;
         }
 
         public boolean hasNext() {
-            while (this.curTuple < heapPage.getNumTuples() && !isSlotUsed(this.curTuple)) {
+            while (this.curTuple < heapPage.numSlots && !matches(this.curTuple)) {
                 this.curTuple++;
             }
-            return this.curTuple < heapPage.getNumTuples();
+            return this.curTuple < heapPage.numSlots;
+        }
+
+        private boolean matches(int slot) {
+            if (!heapPage.isSlotUsed(slot)) {
+                return false;
+            }
+            if (predicates != null) {
+                for (Predicate p : predicates) {
+                    if (!p.filter(heapPage, slot)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
         }
 
         public Tuple next() {
             if (!hasNext()) {
                 throw new NoSuchElementException();
             }
-            return heapPage.tuples[this.curTuple++];
+            return heapPage.getTuple(this.curTuple++);
         }
 
         public void remove() throws UnsupportedOperationException {
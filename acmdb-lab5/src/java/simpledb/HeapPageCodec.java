@@ -0,0 +1,334 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * HeapPageCodec compresses the raw bytes of a HeapPage, as returned by
+ * {@link HeapPage#getPageData}, and restores them again. The page is
+ * re-encoded column by column, using only the slots that are in use:
+ * <ul>
+ * <li>int columns use frame-of-reference coding (the column minimum
+ * followed by bit-packed offsets from it), or the same coding applied to
+ * the differences between consecutive values when that is smaller, which is
+ * the case for sorted or clustered columns;</li>
+ * <li>string columns use a per-page dictionary of distinct values followed
+ * by bit-packed dictionary codes, so the padding up to Type.STRING_LEN is
+ * never stored.</li>
+ * </ul>
+ * The contents of unused slots are not preserved; they decompress to zeros.
+ */
+public class HeapPageCodec {
+    private static final int FRAME_OF_REFERENCE = 0;
+    private static final int DELTA = 1;
+
+    private final TupleDesc td;
+    private final int pageSize;
+    private final int numSlots;
+    private final int headerSize;
+    private final int tupleSize;
+    private final int[] fieldOffsets;
+
+    /**
+     * Creates a codec for pages of the given schema and size.
+     *
+     * @param td the schema of the tuples on the page
+     * @param pageSize the size of an uncompressed page
+     */
+    public HeapPageCodec(TupleDesc td, int pageSize) {
+        this.td = td;
+        this.pageSize = pageSize;
+        this.tupleSize = td.getSize();
+        // same layout as HeapPage
+        this.numSlots = (pageSize * 8) / (tupleSize * 8 + 1);
+        this.headerSize = (numSlots + 7) / 8;
+        this.fieldOffsets = new int[td.numFields()];
+        int offset = 0;
+        for (int i = 0; i < fieldOffsets.length; i++) {
+            fieldOffsets[i] = offset;
+            offset += td.getFieldType(i).getLen();
+        }
+    }
+
+    private boolean isSlotUsed(byte[] page, int slot) {
+        return (page[slot / 8] >> (slot % 8) & 1) != 0;
+    }
+
+    private int fieldOffset(int slot, int field) {
+        return headerSize + slot * tupleSize + fieldOffsets[field];
+    }
+
+    private static int readInt(byte[] b, int offset) {
+        return ((b[offset] & 0xFF) << 24) | ((b[offset + 1] & 0xFF) << 16) | ((b[offset + 2] & 0xFF) << 8)
+                | (b[offset + 3] & 0xFF);
+    }
+
+    private static void writeInt(byte[] b, int offset, int v) {
+        b[offset] = (byte) (v >>> 24);
+        b[offset + 1] = (byte) (v >>> 16);
+        b[offset + 2] = (byte) (v >>> 8);
+        b[offset + 3] = (byte) v;
+    }
+
+    /**
+     * @return the number of bits needed to represent the unsigned value v
+     */
+    private static int bitWidth(long v) {
+        return 64 - Long.numberOfLeadingZeros(v);
+    }
+
+    /**
+     * Compresses a page.
+     *
+     * @param page the raw bytes of a HeapPage
+     * @return the compressed bytes
+     */
+    public byte[] compress(byte[] page) {
+        int[] used = new int[numSlots];
+        int numUsed = 0;
+        for (int i = 0; i < numSlots; i++) {
+            if (isSlotUsed(page, i)) {
+                used[numUsed++] = i;
+            }
+        }
+
+        BitWriter out = new BitWriter();
+        for (int i = 0; i < headerSize; i++) {
+            out.write(page[i] & 0xFF, 8);
+        }
+        for (int field = 0; field < td.numFields(); field++) {
+            switch (td.getFieldType(field)) {
+                case INT_TYPE:
+                    long[] values = new long[numUsed];
+                    for (int i = 0; i < numUsed; i++) {
+                        values[i] = readInt(page, fieldOffset(used[i], field));
+                    }
+                    compressInts(out, values);
+                    break;
+                case STRING_TYPE:
+                    String[] strings = new String[numUsed];
+                    for (int i = 0; i < numUsed; i++) {
+                        int offset = fieldOffset(used[i], field);
+                        int len = Math.max(0, Math.min(readInt(page, offset), Type.STRING_LEN));
+                        // ISO-8859-1 maps every byte to a char of the same value
+                        strings[i] = new String(page, offset + 4, len, StandardCharsets.ISO_8859_1);
+                    }
+                    compressStrings(out, strings);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unsupported type " + td.getFieldType(field));
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private void compressInts(BitWriter out, long[] values) {
+        if (values.length == 0) {
+            return;
+        }
+        long[] deltas = new long[values.length - 1];
+        for (int i = 1; i < values.length; i++) {
+            deltas[i - 1] = values[i] - values[i - 1];
+        }
+        long forBits = frameBits(values) * (long) values.length;
+        long deltaBits = frameBits(deltas) * (long) deltas.length;
+
+        if (deltaBits < forBits) {
+            out.write(DELTA, 1);
+            out.write(values[0], 32);
+            writeFrame(out, deltas);
+        } else {
+            out.write(FRAME_OF_REFERENCE, 1);
+            writeFrame(out, values);
+        }
+    }
+
+    private static int frameBits(long[] values) {
+        if (values.length == 0) {
+            return 0;
+        }
+        long min = values[0], max = values[0];
+        for (long v : values) {
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+        }
+        return bitWidth(max - min);
+    }
+
+    /**
+     * Writes values as their minimum followed by the bit-packed offsets from
+     * the minimum.
+     */
+    private static void writeFrame(BitWriter out, long[] values) {
+        if (values.length == 0) {
+            return;
+        }
+        long min = values[0];
+        for (long v : values) {
+            min = Math.min(min, v);
+        }
+        int bits = frameBits(values);
+        out.write(min, 64);
+        out.write(bits, 7);
+        for (long v : values) {
+            out.write(v - min, bits);
+        }
+    }
+
+    private static long[] readFrame(BitReader in, int count) {
+        long[] values = new long[count];
+        if (count == 0) {
+            return values;
+        }
+        long min = in.read(64);
+        int bits = (int) in.read(7);
+        for (int i = 0; i < count; i++) {
+            values[i] = min + in.read(bits);
+        }
+        return values;
+    }
+
+    private void compressStrings(BitWriter out, String[] strings) {
+        if (strings.length == 0) {
+            return;
+        }
+        LinkedHashMap<String, Integer> dictionary = new LinkedHashMap<String, Integer>();
+        for (String s : strings) {
+            if (!dictionary.containsKey(s)) {
+                dictionary.put(s, dictionary.size());
+            }
+        }
+        int lenBits = bitWidth(Type.STRING_LEN);
+        out.write(dictionary.size() - 1, bitWidth(numSlots));
+        for (String s : dictionary.keySet()) {
+            out.write(s.length(), lenBits);
+            for (int i = 0; i < s.length(); i++) {
+                out.write(s.charAt(i) & 0xFF, 8);
+            }
+        }
+        int codeBits = bitWidth(dictionary.size() - 1);
+        for (String s : strings) {
+            out.write(dictionary.get(s), codeBits);
+        }
+    }
+
+    /**
+     * Restores the raw bytes of a page compressed with {@link #compress}.
+     *
+     * @param compressed the compressed bytes
+     * @return the raw bytes of the HeapPage
+     */
+    public byte[] decompress(byte[] compressed) {
+        byte[] page = new byte[pageSize];
+        BitReader in = new BitReader(compressed);
+        for (int i = 0; i < headerSize; i++) {
+            page[i] = (byte) in.read(8);
+        }
+        int[] used = new int[numSlots];
+        int numUsed = 0;
+        for (int i = 0; i < numSlots; i++) {
+            if (isSlotUsed(page, i)) {
+                used[numUsed++] = i;
+            }
+        }
+
+        for (int field = 0; field < td.numFields(); field++) {
+            if (numUsed == 0) {
+                break;
+            }
+            switch (td.getFieldType(field)) {
+                case INT_TYPE:
+                    long[] values;
+                    if (in.read(1) == DELTA) {
+                        long first = (int) in.read(32);
+                        long[] deltas = readFrame(in, numUsed - 1);
+                        values = new long[numUsed];
+                        values[0] = first;
+                        for (int i = 1; i < numUsed; i++) {
+                            values[i] = values[i - 1] + deltas[i - 1];
+                        }
+                    } else {
+                        values = readFrame(in, numUsed);
+                    }
+                    for (int i = 0; i < numUsed; i++) {
+                        writeInt(page, fieldOffset(used[i], field), (int) values[i]);
+                    }
+                    break;
+                case STRING_TYPE:
+                    int lenBits = bitWidth(Type.STRING_LEN);
+                    int dictSize = (int) in.read(bitWidth(numSlots)) + 1;
+                    byte[][] dictionary = new byte[dictSize][];
+                    for (int d = 0; d < dictSize; d++) {
+                        dictionary[d] = new byte[(int) in.read(lenBits)];
+                        for (int j = 0; j < dictionary[d].length; j++) {
+                            dictionary[d][j] = (byte) in.read(8);
+                        }
+                    }
+                    int codeBits = bitWidth(dictSize - 1);
+                    for (int i = 0; i < numUsed; i++) {
+                        byte[] s = dictionary[(int) in.read(codeBits)];
+                        int offset = fieldOffset(used[i], field);
+                        writeInt(page, offset, s.length);
+                        System.arraycopy(s, 0, page, offset + 4, s.length);
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("unsupported type " + td.getFieldType(field));
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Writes values of up to 64 bits into a growing byte array, most
+     * significant bit first.
+     */
+    static class BitWriter {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private int current;
+        private int numBits;
+
+        void write(long value, int bits) {
+            for (int i = bits - 1; i >= 0; i--) {
+                current = (current << 1) | (int) ((value >>> i) & 1);
+                if (++numBits == 8) {
+                    bytes.write(current);
+                    current = 0;
+                    numBits = 0;
+                }
+            }
+        }
+
+        byte[] toByteArray() {
+            if (numBits > 0) {
+                bytes.write(current << (8 - numBits));
+                current = 0;
+                numBits = 0;
+            }
+            return bytes.toByteArray();
+        }
+    }
+
+    /**
+     * Reads values written by a BitWriter.
+     */
+    static class BitReader {
+        private final byte[] bytes;
+        private long position;
+
+        BitReader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        long read(int bits) {
+            long value = 0;
+            for (int i = 0; i < bits; i++) {
+                int b = bytes[(int) (position >>> 3)] & 0xFF;
+                value = (value << 1) | ((b >>> (7 - (position & 7))) & 1);
+                position++;
+            }
+            return value;
+        }
+    }
+}
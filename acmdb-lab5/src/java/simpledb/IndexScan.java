@@ -0,0 +1,117 @@
+package simpledb;
+
+/**
+ * IndexScan is an access method that reads the tuples of a heap table whose
+ * indexed field satisfies a predicate through a {@link SecondaryIndex} of
+ * the table, instead of reading every page. The RecordIds of the matching
+ * entries are read when the scan is opened, and the tuples are fetched in
+ * page order, see {@link SecondaryIndex#iterator}. Predicates pushed down
+ * into the scan are applied to the fetched tuples.
+ * <p>
+ * An index-only scan reads the indexed field from the entries alone, in key
+ * order, without fetching the tuples, see {@link SecondaryIndex#keyIterator}.
+ * All other fields of the returned tuples are null, so the query must not
+ * read any of them, and predicates are not pushed down.
+ * <p>
+ * The index, the predicate and whether the scan is index-only are fixed
+ * when the scan is created.
+ */
+public class IndexScan extends SeqScan {
+    private static final long serialVersionUID = 1L;
+
+    private final SecondaryIndex index;
+    private final IndexPredicate ipred;
+    private final boolean indexOnly;
+
+    /**
+     * Creates a scan of the table of a secondary index as a part of the
+     * specified transaction.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param index
+     *            the secondary index to read the table through
+     * @param ipred
+     *            the predicate on the indexed field the tuples must satisfy,
+     *            or null for all tuples
+     * @param tableAlias
+     *            the alias of the table, see
+     *            {@link SeqScan#SeqScan(TransactionId, int, String)}
+     */
+    public IndexScan(TransactionId tid, SecondaryIndex index, IndexPredicate ipred, String tableAlias) {
+        this(tid, index, ipred, tableAlias, false);
+    }
+
+    /**
+     * Creates a scan of the table of a secondary index as a part of the
+     * specified transaction.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param index
+     *            the secondary index to read the table through
+     * @param ipred
+     *            the predicate on the indexed field the tuples must satisfy,
+     *            or null for all tuples
+     * @param tableAlias
+     *            the alias of the table, see
+     *            {@link SeqScan#SeqScan(TransactionId, int, String)}
+     * @param indexOnly
+     *            whether to return the indexed field alone, without fetching
+     *            the tuples
+     */
+    public IndexScan(TransactionId tid, SecondaryIndex index, IndexPredicate ipred, String tableAlias,
+            boolean indexOnly) {
+        super(tid, index.getTableId(), tableAlias);
+        this.index = index;
+        this.ipred = ipred;
+        this.indexOnly = indexOnly;
+    }
+
+    /**
+     * @return the secondary index this scan reads through
+     */
+    @Override
+    public SecondaryIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the predicate on the indexed field, or null for all tuples
+     */
+    public IndexPredicate getIndexPredicate() {
+        return ipred;
+    }
+
+    @Override
+    public boolean isIndexOnly() {
+        return indexOnly;
+    }
+
+    /**
+     * An index scan always reads the table it was created for.
+     *
+     * @throws IllegalArgumentException if tableid is not the table of the
+     *             index
+     */
+    @Override
+    public void reset(int tableid, String tableAlias) {
+        if (tableid != index.getTableId()) {
+            throw new IllegalArgumentException("the index is not on the table " + tableid);
+        }
+        super.reset(tableid, tableAlias);
+    }
+
+    @Override
+    protected boolean acceptsPredicates() {
+        return !indexOnly;
+    }
+
+    @Override
+    protected DbFileIterator createIterator() {
+        if (indexOnly) {
+            return index.keyIterator(getTransactionId(), ipred);
+        }
+        return index.iterator(getTransactionId(), ipred, getPredicates());
+    }
+}
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Instance of Field that stores a single integer.
@@ -40,6 +41,10 @@ public class IntField implements Field {
         dos.writeInt(value);
     }
 
+    public void serialize(ByteBuffer buf, int offset) {
+        buf.putInt(offset, value);
+    }
+
     /**
      * Compare the specified field to the value of this Field.
      * Return semantics are as specified by Field.compare
@@ -51,26 +56,34 @@ public class IntField implements Field {
 
         IntField iVal = (IntField) val;
 
+        return compare(op, value, iVal.value);
+    }
+
+    /**
+     * Compare two unboxed integer values with the given operator, with the
+     * same semantics as {@link #compare(Predicate.Op, Field)}.
+     */
+    public static boolean compare(Predicate.Op op, int value, int operand) {
         switch (op) {
             case EQUALS:
-                return value == iVal.value;
+                return value == operand;
             case NOT_EQUALS:
-                return value != iVal.value;
+                return value != operand;
 
             case GREATER_THAN:
-                return value > iVal.value;
+                return value > operand;
 
             case GREATER_THAN_OR_EQ:
-                return value >= iVal.value;
+                return value >= operand;
 
             case LESS_THAN:
-                return value < iVal.value;
+                return value < operand;
 
             case LESS_THAN_OR_EQ:
-                return value <= iVal.value;
+                return value <= operand;
 
             case LIKE:
-                return value == iVal.value;
+                return value == operand;
         }
 
         return false;
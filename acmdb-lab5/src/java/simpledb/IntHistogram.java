@@ -1,11 +1,15 @@
 package simpledb;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 /** A class to represent a fixed-width histogram over a single integer-based field.
  */
 public class IntHistogram {
     private int min;
     private int max;
-    private int width;
+    private long width;
     private int[] histogram;
     private int total;
 
@@ -29,7 +33,7 @@ public class IntHistogram {
         // some code goes here
         this.min = min;
         this.max = max;
-        this.width = (max - min + buckets) / buckets;
+        this.width = ((long) max - min + buckets) / buckets;
         this.histogram = new int[buckets];
         this.total = 0;
     }
@@ -40,9 +44,60 @@ public class IntHistogram {
      */
     public void addValue(int v) {
         // some code goes here
-        int index = (v - min) / this.width;
-        this.histogram[index]++;
-        this.total++;
+        addValue(v, 1);
+    }
+
+    /**
+     * Add n copies of a value to the histogram, or remove them if n is
+     * negative. A value outside the range of the histogram widens the
+     * range, see {@link #extend}; removing a value outside the range does
+     * nothing.
+     * @param v Value to add to the histogram
+     * @param n Number of copies of the value
+     */
+    public void addValue(int v, int n) {
+        if (v < min || v > max) {
+            if (n < 0) {
+                return;
+            }
+            extend(v);
+        }
+        int index = bucket(v);
+        if (this.histogram[index] + n < 0) {
+            n = -this.histogram[index];
+        }
+        this.histogram[index] += n;
+        this.total += n;
+    }
+
+    /**
+     * Widens the range of the histogram to include v, keeping the number of
+     * buckets. The values counted so far are moved to the bucket holding
+     * the middle of their old bucket, so estimates become less precise
+     * until the histogram is rebuilt.
+     */
+    private void extend(int v) {
+        int[] old = this.histogram;
+        int oldMin = this.min;
+        long oldWidth = this.width;
+        this.min = Math.min(this.min, v);
+        this.max = Math.max(this.max, v);
+        this.width = ((long) this.max - this.min + old.length) / old.length;
+        this.histogram = new int[old.length];
+        for (int i = 0; i < old.length; i++) {
+            long mid = Math.min(this.max, oldMin + i * oldWidth + oldWidth / 2);
+            this.histogram[bucket((int) mid)] += old[i];
+        }
+    }
+
+    /**
+     * Returns the bucket holding v. The range is computed in long, as it
+     * does not fit in an int for extreme values, and the last bucket also
+     * holds the values the rounding of the width leaves past its end.
+     */
+    private int bucket(int v) {
+        long index = ((long) v - this.min) / this.width;
+        return (int) Math.max(0, Math.min(this.histogram.length - 1, index));
     }
 
     /**
@@ -56,9 +111,9 @@ public class IntHistogram {
      * @return Predicted selectivity of this particular operator and value
      */
     public double estimateSelectivity(Predicate.Op op, int v) {
-        int index = (v - min) / this.width;
-        int left = this.min + index * this.width;
-        int right = this.min + index * this.width + this.width - 1;
+        int index = bucket(v);
+        long left = this.min + index * this.width;
+        long right = left + this.width - 1;
         // some code goes here
         switch (op) {
             case EQUALS:
@@ -157,6 +212,32 @@ public class IntHistogram {
         return 1.0;
     }
 
+    /**
+     * Writes this histogram, in the format read by {@link #read}.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(this.histogram.length);
+        out.writeInt(this.min);
+        out.writeInt(this.max);
+        out.writeInt(this.total);
+        for (int count : this.histogram) {
+            out.writeInt(count);
+        }
+    }
+
+    /**
+     * Reads a histogram written by {@link #write}.
+     */
+    public static IntHistogram read(DataInput in) throws IOException {
+        int buckets = in.readInt();
+        IntHistogram hist = new IntHistogram(buckets, in.readInt(), in.readInt());
+        hist.total = in.readInt();
+        for (int i = 0; i < buckets; i++) {
+            hist.histogram[i] = in.readInt();
+        }
+        return hist;
+    }
+
     /**
      * @return A string describing this histogram, for debugging purposes
      */
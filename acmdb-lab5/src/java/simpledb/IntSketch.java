@@ -0,0 +1,155 @@
+package simpledb;
+
+/**
+ * IntSketch summarizes the distribution of a stream of int values in a fixed
+ * amount of memory, without knowing their range in advance. It is used to
+ * build histograms in a single pass, see {@link StatsCollector}.
+ * <p>
+ * The sketch is an equi-width histogram whose buckets each cover 2^shift
+ * consecutive values, aligned to multiples of 2^shift. When a value falls
+ * outside the buckets, the bucket width is doubled (merging pairs of
+ * buckets) until all values fit. Because the buckets are aligned, two
+ * sketches can be merged by bringing them to the same width, so sketches of
+ * parts of a table can be built independently and merged afterwards.
+ */
+public class IntSketch {
+    /** Default number of buckets */
+    public static final int DEFAULT_BUCKETS = 1024;
+
+    private final int numBuckets;
+    private int[] counts;
+    /** Each bucket covers 2^shift values */
+    private int shift;
+    /** Bucket i holds the values v with (v >> shift) == lo + i */
+    private long lo;
+
+    private int count;
+    private int min = Integer.MAX_VALUE;
+    private int max = Integer.MIN_VALUE;
+
+    public IntSketch() {
+        this(DEFAULT_BUCKETS);
+    }
+
+    /**
+     * @param numBuckets the number of buckets; the width of each bucket is
+     *            at most twice the range of the values divided by numBuckets
+     */
+    public IntSketch(int numBuckets) {
+        this.numBuckets = numBuckets;
+        this.counts = new int[numBuckets];
+    }
+
+    /**
+     * @return the number of values added
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * @return the smallest value added
+     */
+    public int min() {
+        return min;
+    }
+
+    /**
+     * @return the largest value added
+     */
+    public int max() {
+        return max;
+    }
+
+    /**
+     * Adds a value to the sketch.
+     */
+    public void add(int v) {
+        add(v, 1);
+    }
+
+    /**
+     * Adds n copies of a value to the sketch.
+     */
+    public void add(int v, int n) {
+        if (n <= 0) {
+            return;
+        }
+        if (count == 0) {
+            lo = (long) v >> shift;
+        } else if (((long) v >> shift) < lo || ((long) v >> shift) >= lo + numBuckets) {
+            rescale(Math.min(min, v), Math.max(max, v), shift);
+        }
+        counts[(int) (((long) v >> shift) - lo)] += n;
+        count += n;
+        min = Math.min(min, v);
+        max = Math.max(max, v);
+    }
+
+    /**
+     * Adds all the values of another sketch to this one.
+     */
+    public void merge(IntSketch other) {
+        if (other.count == 0) {
+            return;
+        }
+        rescale(Math.min(min, other.min), Math.max(max, other.max), Math.max(shift, other.shift));
+        for (int j = 0; j < other.numBuckets; j++) {
+            if (other.counts[j] > 0) {
+                counts[(int) (((other.lo + j) >> (shift - other.shift)) - lo)] += other.counts[j];
+            }
+        }
+        count += other.count;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Widens the buckets, starting from the given shift, until the values
+     * from a to b fit, and moves the counts to the new buckets.
+     */
+    private void rescale(int a, int b, int newShift) {
+        while (((long) b >> newShift) - ((long) a >> newShift) >= numBuckets) {
+            newShift++;
+        }
+        long newLo = (long) a >> newShift;
+        int[] newCounts = new int[numBuckets];
+        if (count > 0) {
+            for (int i = 0; i < numBuckets; i++) {
+                if (counts[i] > 0) {
+                    newCounts[(int) (((lo + i) >> (newShift - shift)) - newLo)] += counts[i];
+                }
+            }
+        }
+        counts = newCounts;
+        shift = newShift;
+        lo = newLo;
+    }
+
+    /**
+     * Adds the values of this sketch to a histogram. The values of each
+     * bucket are added at the middle of the range of the bucket.
+     */
+    public void addTo(IntHistogram hist) {
+        for (int i = 0; i < numBuckets; i++) {
+            if (counts[i] > 0) {
+                long first = Math.max(min, (lo + i) << shift);
+                long last = Math.min(max, ((lo + i + 1) << shift) - 1);
+                hist.addValue((int) ((first + last) / 2), counts[i]);
+            }
+        }
+    }
+
+    /**
+     * @return a histogram of the values of this sketch over the range from
+     *         the smallest to the largest value
+     */
+    public IntHistogram toHistogram(int buckets) {
+        if (count == 0) {
+            return new IntHistogram(1, 0, 0);
+        }
+        IntHistogram hist = new IntHistogram((int) Math.min(buckets, (long) max - min + 1), min, max);
+        addTo(hist);
+        return hist;
+    }
+}
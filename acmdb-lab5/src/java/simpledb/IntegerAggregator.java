@@ -58,7 +58,7 @@ public class IntegerAggregator implements Aggregator {
         // some code goes here
         Field key = this.noGrouping ? null : tup.getField(this.gbfield);
         IntegerAggregateValue aggValue = this.groups.get(key);
-        int value = ((IntField) tup.getField(this.afield)).getValue();
+        int value = tup.getInt(this.afield);
         if (aggValue == null) {
             switch (this.what) {
                 case COUNT:
@@ -136,7 +136,7 @@ public class IntegerAggregator implements Aggregator {
     }
 
     private abstract class IntegerAggregateValue {
-        abstract void put(Integer value);
+        abstract void put(int value);
 
         abstract Field getValue();
     }
@@ -144,12 +144,12 @@ public class IntegerAggregator implements Aggregator {
     private class CountValue extends IntegerAggregateValue {
         private int count;
 
-        CountValue(Integer value) {
+        CountValue(int value) {
             this.count = 1;
         }
 
         @Override
-        void put(Integer value) {
+        void put(int value) {
             this.count++;
         }
 
@@ -163,12 +163,12 @@ public class IntegerAggregator implements Aggregator {
     private class SumValue extends IntegerAggregateValue {
         private int sum;
 
-        SumValue(Integer value) {
+        SumValue(int value) {
             this.sum = value;
         }
 
         @Override
-        void put(Integer value) {
+        void put(int value) {
             this.sum += value;
         }
 
@@ -182,12 +182,12 @@ public class IntegerAggregator implements Aggregator {
     private class MinValue extends IntegerAggregateValue {
         private int min;
 
-        MinValue(Integer value) {
+        MinValue(int value) {
             this.min = value;
         }
 
         @Override
-        void put(Integer value) {
+        void put(int value) {
             if (value < this.min) {
                 this.min = value;
             }
@@ -203,12 +203,12 @@ public class IntegerAggregator implements Aggregator {
     private class MaxValue extends IntegerAggregateValue {
         private int max;
 
-        MaxValue(Integer value) {
+        MaxValue(int value) {
             this.max = value;
         }
 
         @Override
-        void put(Integer value) {
+        void put(int value) {
             if (value > this.max) {
                 this.max = value;
             }
@@ -224,13 +224,13 @@ public class IntegerAggregator implements Aggregator {
     private class AvgValue extends IntegerAggregateValue {
         private int count, sum;
 
-        AvgValue(Integer value) {
+        AvgValue(int value) {
             this.count = 1;
             this.sum = value;
         }
 
         @Override
-        void put(Integer value) {
+        void put(int value) {
             this.count++;
             this.sum += value;
         }
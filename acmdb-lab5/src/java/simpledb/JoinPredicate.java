@@ -41,7 +41,14 @@ public class JoinPredicate implements Serializable {
      */
     public boolean filter(Tuple t1, Tuple t2) {
         // some code goes here
-        return t1.getField(field1).compare(op, t2.getField(field2));
+        switch (t1.getTupleDesc().getFieldType(field1)) {
+            case INT_TYPE:
+                return IntField.compare(op, t1.getInt(field1), t2.getInt(field2));
+            case STRING_TYPE:
+                return StringField.compare(op, t1.getString(field1), t2.getString(field2));
+            default:
+                return t1.getField(field1).compare(op, t2.getField(field2));
+        }
     }
 
     public int getField1() {
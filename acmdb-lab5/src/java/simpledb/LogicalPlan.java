@@ -3,6 +3,7 @@ package simpledb;
 import java.util.Map;
 import java.util.Vector;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.io.File;
 import java.util.ArrayList;
@@ -215,6 +216,72 @@ public class LogicalPlan {
         hasOrderBy = true;
     }
 
+    /** Collect the fully qualified names of all fields read by the query, so that
+     *  scans over column stores only need to decode those columns.
+     *  @return the referenced fields, or null if the query reads every field of
+     *   some table (e.g., SELECT *)
+     */
+    private HashSet<String> getReferencedFields() {
+        HashSet<String> fields = new HashSet<String>();
+        for (LogicalSelectListNode si : selectList) {
+            fields.add(si.fname);
+        }
+        for (LogicalFilterNode lf : filters) {
+            fields.add(lf.fieldQuantifiedName);
+        }
+        for (LogicalJoinNode lj : joins) {
+            fields.add(lj.f1QuantifiedName);
+            fields.add(lj.f2QuantifiedName);
+        }
+        if (hasAgg) {
+            fields.add(aggField);
+            fields.add(groupByField);
+        }
+        if (hasOrderBy) {
+            fields.add(oByField);
+        }
+        fields.remove(null);
+        for (String f : fields) {
+            if (f.endsWith("*")) {
+                return null;
+            }
+        }
+        return fields;
+    }
+
+    /** Returns whether the values of a field of a table can be read in order from
+     *  an index: a secondary index on the field, or the B+ tree of a table keyed
+     *  on it.
+     */
+    private static boolean isIndexed(int tableid, int field) {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        return Database.getCatalog().getIndex(tableid, field) != null
+                || (file instanceof BTreeFile && ((BTreeFile) file).keyField() == field);
+    }
+
+    /** Returns the only field of the table of a scan that the query reads, so that
+     *  an index on it covers the query.
+     *  @param referencedFields the fields the query reads, see {@link #getReferencedFields}
+     *  @return the index of the field in the table, or -1 if the query reads all or
+     *   more than one of its fields
+     */
+    private static int getCoveredField(SeqScan ss, HashSet<String> referencedFields) {
+        if (referencedFields == null) {
+            return -1;
+        }
+        TupleDesc td = ss.getTupleDesc();
+        int covered = -1;
+        for (int i = 0; i < td.numFields(); i++) {
+            if (referencedFields.contains(td.getFieldName(i))) {
+                if (covered >= 0) {
+                    return -1;
+                }
+                covered = i;
+            }
+        }
+        return covered;
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -296,6 +363,13 @@ public class LogicalPlan {
         HashMap<String, String> equivMap = new HashMap<String, String>();
         HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
         HashMap<String, TableStats> statsMap = new HashMap<String, TableStats>();
+        HashSet<String> referencedFields = getReferencedFields();
+        HashMap<String, SeqScan> scans = new HashMap<String, SeqScan>();
+        // the predicates of the filters on each alias, in the order of the query
+        HashMap<String, ArrayList<Predicate>> tableFilters = new HashMap<String, ArrayList<Predicate>>();
+        // for each alias, the most selective filter that an index can answer
+        HashMap<String, Predicate> indexFilters = new HashMap<String, Predicate>();
+        HashMap<String, Double> indexSelectivities = new HashMap<String, Double>();
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
@@ -305,8 +379,18 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
+            if (referencedFields != null) {
+                TupleDesc td = ss.getTupleDesc();
+                boolean[] columns = new boolean[td.numFields()];
+                for (int i = 0; i < columns.length; i++) {
+                    columns[i] = referencedFields.contains(td.getFieldName(i));
+                }
+                ss.projectColumns(columns);
+            }
 
             subplanMap.put(table.alias, ss);
+            scans.put(table.alias, ss);
+            tableFilters.put(table.alias, new ArrayList<Predicate>());
             String baseTableName = Database.getCatalog().getTableName(table.t);
             statsMap.put(baseTableName, baseTableStats.get(baseTableName));
             filterSelectivities.put(table.alias, 1.0);
@@ -341,18 +425,92 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            tableFilters.get(lf.tableAlias).add(p);
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
 
             double sel = s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p,
                     f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
+            if (lf.p != Predicate.Op.NOT_EQUALS && lf.p != Predicate.Op.LIKE
+                    && isIndexed(this.getTableId(lf.tableAlias), p.getField())
+                    && (!indexSelectivities.containsKey(lf.tableAlias) || sel < indexSelectivities.get(lf.tableAlias))) {
+                indexFilters.put(lf.tableAlias, p);
+                indexSelectivities.put(lf.tableAlias, sel);
+            }
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
 
+        // read the tables through an index where that is cheaper than a scan;
+        // the filters stay on top and apply the other predicates. The key
+        // range of a B+ tree table is read from its leaf pages, which hold
+        // every field; a secondary index alone answers the query when no
+        // other field of the table is read.
+        // A query over a single B+ tree table that sorts on the key in
+        // descending order, or takes the MAX of the key, walks the leaves
+        // from the right instead of sorting or aggregating every tuple
         JoinOptimizer jo = new JoinOptimizer(this, joins);
+        boolean sortedByKey = false;
+        for (Map.Entry<String, SeqScan> e : scans.entrySet()) {
+            String alias = e.getKey();
+            SeqScan ss = e.getValue();
+            int tableid = this.getTableId(alias);
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(tableid));
+            if (s == null) {
+                continue;
+            }
+            Predicate p = indexFilters.get(alias);
+            double sel = p == null ? 1.0 : indexSelectivities.get(alias);
+            IndexPredicate ipred = p == null ? null : new IndexPredicate(p.getOp(), p.getOperand());
+            int covered = getCoveredField(ss, referencedFields);
+            double cost;
+            DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+            if (file instanceof BTreeFile && scans.size() == 1 && joins.isEmpty()) {
+                int key = ((BTreeFile) file).keyField();
+                String keyName = ss.getTupleDesc().getFieldName(key);
+                IndexPredicate keyPred = p != null && p.getField() == key ? ipred : null;
+                if (hasOrderBy && !hasAgg && !oByAsc && oByField.equals(keyName)
+                        && (p == null || keyPred != null)) {
+                    e.setValue(new BTreeScan(t, tableid, alias, keyPred, BTreeScan.Mode.DESCENDING));
+                    sortedByKey = true;
+                    continue;
+                }
+                // the first tuple of the reverse scan is only the answer when no
+                // filter other than the key range can reject it
+                if (hasAgg && groupByField == null && aggOp.equalsIgnoreCase("MAX") && aggField.equals(keyName)
+                        && (filters.isEmpty() || (filters.size() == 1 && keyPred != null))) {
+                    e.setValue(new BTreeScan(t, tableid, alias, keyPred, BTreeScan.Mode.MAX));
+                    continue;
+                }
+            }
+            if (p != null && file instanceof BTreeFile) {
+                cost = s.estimateIndexOnlyScanCost(p.getField(), sel);
+                if (cost < s.estimateScanCost()) {
+                    e.setValue(new BTreeScan(t, tableid, alias, ipred));
+                    jo.setScanCost(alias, cost);
+                }
+            } else if (covered >= 0 && Database.getCatalog().getIndex(tableid, covered) != null
+                    && (cost = s.estimateIndexOnlyScanCost(covered, sel)) < s.estimateScanCost()) {
+                e.setValue(new IndexScan(t, Database.getCatalog().getIndex(tableid, covered), ipred, alias, true));
+                jo.setScanCost(alias, cost);
+            } else if (p != null && (cost = s.estimateIndexScanCost(p.getField(), sel)) < s.estimateScanCost()) {
+                e.setValue(new IndexScan(t, Database.getCatalog().getIndex(tableid, p.getField()), ipred, alias));
+                jo.setScanCost(alias, cost);
+            }
+        }
+
+        // the filters go on top of the access path chosen for each table; the
+        // scan also evaluates those it can on the raw page data, so that
+        // tuples they reject are never materialized
+        for (Map.Entry<String, SeqScan> e : scans.entrySet()) {
+            DbIterator subplan = e.getValue();
+            for (Predicate p : tableFilters.get(e.getKey())) {
+                e.getValue().pushDownPredicate(p);
+                subplan = new Filter(p, subplan);
+            }
+            subplanMap.put(e.getKey(), subplan);
+        }
 
         joins = jo.orderJoins(statsMap, filterSelectivities, explain);
 
@@ -481,7 +639,7 @@ public class LogicalPlan {
             node = aggNode;
         }
 
-        if (hasOrderBy) {
+        if (hasOrderBy && !sortedByKey) {
             node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
         }
 
@@ -105,14 +105,25 @@ class TupleComparator implements Comparator<Tuple> {
     }
 
     public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
+        int cmp;
+        switch (o1.getTupleDesc().getFieldType(field)) {
+            case INT_TYPE:
+                cmp = Integer.compare(o1.getInt(field), o2.getInt(field));
+                break;
+            case STRING_TYPE:
+                cmp = Integer.signum(o1.getString(field).compareTo(o2.getString(field)));
+                break;
+            default:
+                Field t1 = o1.getField(field);
+                Field t2 = o2.getField(field);
+                if (t1.compare(Predicate.Op.EQUALS, t2))
+                    cmp = 0;
+                else if (t1.compare(Predicate.Op.GREATER_THAN, t2))
+                    cmp = 1;
+                else
+                    cmp = -1;
+        }
+        return asc ? cmp : -cmp;
     }
 
 }
@@ -4,6 +4,8 @@ import Zql.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -387,6 +389,100 @@ public class Parser {
 
     }
 
+    /**
+     * COPY table FROM 'file' [DELIMITER 'c'], which Zql cannot parse, so it is
+     * recognized before the statement is handed to Zql.
+     */
+    private static final Pattern COPY_STATEMENT = Pattern.compile(
+            "\\s*COPY\\s+(\\w+)\\s+FROM\\s+'([^']*)'(?:\\s+DELIMITER\\s+'(.)')?\\s*;?\\s*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    public Query handleCopyStatement(Matcher s, TransactionId tId) throws DbException, simpledb.ParsingException {
+        int tableId;
+        try {
+            tableId = Database.getCatalog().getTableId(s.group(1));
+        } catch (NoSuchElementException e) {
+            throw new simpledb.ParsingException("Unknown table : " + s.group(1));
+        }
+        char fieldSeparator = s.group(3) == null ? ',' : s.group(3).charAt(0);
+
+        Query copyQ = new Query(tId);
+        copyQ.setPhysicalPlan(new Copy(new File(s.group(2)), tableId, fieldSeparator));
+        return copyQ;
+    }
+
+    /**
+     * ANALYZE [table], which recomputes the statistics of one or all tables.
+     */
+    private static final Pattern ANALYZE_STATEMENT = Pattern.compile("\\s*ANALYZE(?:\\s+(\\w+))?\\s*;?\\s*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    public void handleAnalyzeStatement(Matcher s) throws IOException, simpledb.ParsingException {
+        if (s.group(1) == null) {
+            TableStats.analyzeAll();
+            return;
+        }
+        int tableId;
+        try {
+            tableId = Database.getCatalog().getTableId(s.group(1));
+        } catch (NoSuchElementException e) {
+            throw new simpledb.ParsingException("Unknown table : " + s.group(1));
+        }
+        TableStats.analyze(tableId);
+        System.out.println("Analyzed " + s.group(1) + ": " + TableStats.getTableStats(s.group(1)).totalTuples()
+                + " tuples.");
+    }
+
+    /**
+     * VACUUM table, which compacts a heap file, see {@link Vacuum}.
+     */
+    private static final Pattern VACUUM_STATEMENT = Pattern.compile("\\s*VACUUM\\s+(\\w+)\\s*;?\\s*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    public void handleVacuumStatement(Matcher s)
+            throws DbException, IOException, TransactionAbortedException, simpledb.ParsingException {
+        DbFile file;
+        try {
+            file = Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId(s.group(1)));
+        } catch (NoSuchElementException e) {
+            throw new simpledb.ParsingException("Unknown table : " + s.group(1));
+        }
+        if (!(file instanceof HeapFile)) {
+            throw new simpledb.ParsingException("Only heap files can be vacuumed : " + s.group(1));
+        }
+        int freed = new Vacuum((HeapFile) file).run();
+        System.out.println("Vacuumed " + s.group(1) + ": " + freed + " pages freed.");
+    }
+
+    /**
+     * CREATE INDEX ON table(field), which builds a secondary B+ tree index on
+     * a field of a heap file, see {@link SecondaryIndex}.
+     */
+    private static final Pattern CREATE_INDEX_STATEMENT = Pattern.compile(
+            "\\s*CREATE\\s+INDEX\\s+ON\\s+(\\w+)\\s*\\(\\s*(\\w+)\\s*\\)\\s*;?\\s*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    public void handleCreateIndexStatement(Matcher s)
+            throws DbException, IOException, simpledb.ParsingException {
+        int tableId;
+        try {
+            tableId = Database.getCatalog().getTableId(s.group(1));
+        } catch (NoSuchElementException e) {
+            throw new simpledb.ParsingException("Unknown table : " + s.group(1));
+        }
+        if (!(Database.getCatalog().getDatabaseFile(tableId) instanceof HeapFile)) {
+            throw new simpledb.ParsingException("Only heap files can be indexed : " + s.group(1));
+        }
+        int field;
+        try {
+            field = Database.getCatalog().getTupleDesc(tableId).fieldNameToIndex(s.group(2));
+        } catch (NoSuchElementException e) {
+            throw new simpledb.ParsingException("Unknown field : " + s.group(2));
+        }
+        SecondaryIndex.create(tableId, field);
+        System.out.println("Created index on " + s.group(1) + "(" + s.group(2) + ").");
+    }
+
     public void handleTransactStatement(ZTransactStmt s) throws TransactionAbortedException, DbException, IOException,
             simpledb.ParsingException, Zql.ParseException {
         if (s.getStmtType().equals("COMMIT")) {
@@ -454,11 +550,33 @@ public class Parser {
 
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
-            ZStatement s = p.readStatement();
+            ByteArrayOutputStream statement = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            for (int n; (n = is.read(buf)) > 0;) {
+                statement.write(buf, 0, n);
+            }
+            Matcher copy = COPY_STATEMENT.matcher(statement.toString("UTF-8"));
+            Matcher analyze = ANALYZE_STATEMENT.matcher(statement.toString("UTF-8"));
+            Matcher vacuum = VACUUM_STATEMENT.matcher(statement.toString("UTF-8"));
+            boolean isCopy = copy.matches();
+            boolean isAnalyze = analyze.matches();
+            Matcher createIndex = CREATE_INDEX_STATEMENT.matcher(statement.toString("UTF-8"));
+            boolean isVacuum = vacuum.matches();
+            boolean isCreateIndex = createIndex.matches();
+            ZStatement s = null;
+            if (!isCopy && !isAnalyze && !isVacuum && !isCreateIndex) {
+                ZqlParser p = new ZqlParser(new ByteArrayInputStream(statement.toByteArray()));
+                s = p.readStatement();
+            }
 
             Query query = null;
-            if (s instanceof ZTransactStmt)
+            if (isAnalyze)
+                handleAnalyzeStatement(analyze);
+            else if (isVacuum)
+                handleVacuumStatement(vacuum);
+            else if (isCreateIndex)
+                handleCreateIndexStatement(createIndex);
+            else if (s instanceof ZTransactStmt)
                 handleTransactStatement((ZTransactStmt) s);
             else {
                 if (!this.inUserTrans) {
@@ -467,7 +585,9 @@ public class Parser {
                     System.out.println("Started a new transaction tid = " + curtrans.getId().getId());
                 }
                 try {
-                    if (s instanceof ZInsert)
+                    if (isCopy)
+                        query = handleCopyStatement(copy, curtrans.getId());
+                    else if (s instanceof ZInsert)
                         query = handleInsertStatement((ZInsert) s, curtrans.getId());
                     else if (s instanceof ZDelete)
                         query = handleDeleteStatement((ZDelete) s, curtrans.getId());
@@ -521,7 +641,8 @@ public class Parser {
 
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where", "group by", "max(", "min(", "avg(",
-            "count", "rollback", "commit", "insert", "delete", "values", "into" };
+            "count", "rollback", "commit", "insert", "delete", "values", "into", "copy", "analyze", "vacuum",
+            "create index" };
 
     public static void main(String argv[]) throws IOException {
 
@@ -547,7 +668,7 @@ public class Parser {
     protected void start(String[] argv) throws IOException {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
-        TableStats.computeStatistics();
+        TableStats.loadStatistics(TableStats.getStatsFile(argv[0]));
 
         String queryFile = null;
 
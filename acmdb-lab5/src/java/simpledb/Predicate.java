@@ -103,7 +103,35 @@ public class Predicate implements Serializable {
         if (t == null) {
             return false;
         }
-        return t.getField(field).compare(op, operand);
+        switch (operand.getType()) {
+            case INT_TYPE:
+                return IntField.compare(op, t.getInt(field), ((IntField) operand).getValue());
+            case STRING_TYPE:
+                return StringField.compare(op, t.getString(field), ((StringField) operand).getValue());
+            default:
+                return t.getField(field).compare(op, operand);
+        }
+    }
+
+    /**
+     * Applies this predicate to a slot of a heap page without materializing
+     * the tuple stored there; the field is read directly from the page data.
+     *
+     * @param page
+     *            the page holding the tuple
+     * @param slot
+     *            a used slot of the page
+     * @return true if the comparison is true, false otherwise.
+     */
+    public boolean filter(HeapPage page, int slot) {
+        switch (operand.getType()) {
+            case INT_TYPE:
+                return IntField.compare(op, page.getInt(slot, field), ((IntField) operand).getValue());
+            case STRING_TYPE:
+                return StringField.compare(op, page.getString(slot, field), ((StringField) operand).getValue());
+            default:
+                return filter(page.getTuple(slot));
+        }
     }
 
     /**
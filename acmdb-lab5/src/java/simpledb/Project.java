@@ -69,7 +69,7 @@ public class Project extends Operator {
             Tuple newTuple = new Tuple(td);
             newTuple.setRecordId(t.getRecordId());
             for (int i = 0; i < td.numFields(); i++) {
-                newTuple.setField(i, t.getField(outFieldIds.get(i)));
+                newTuple.copyField(i, t, outFieldIds.get(i));
             }
             return newTuple;
         }
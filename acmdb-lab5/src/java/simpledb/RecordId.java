@@ -52,7 +52,7 @@ public class RecordId implements Serializable {
         // some code goes here
         if (o instanceof RecordId) {
             RecordId arg = (RecordId) o;
-            return this.pid.equals(arg.pid) && this.tupleno == arg.tupleno;
+            return this.pid.equals(arg.pid) && this.tupleno.equals(arg.tupleno);
         }
         return false;
     }
@@ -0,0 +1,498 @@
+package simpledb;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A SecondaryIndex maps the values of one field of a HeapFile to the
+ * RecordIds of the tuples holding them. It is a unique BTreeFile of entries
+ * (key, page, slot), keyed on the first field, which is stored next to the
+ * data file, in a file with the same name and the suffix ".N.idx", where N
+ * is the number of the indexed field, and added
+ * to the catalog like any other table. This implements the CREATE INDEX
+ * statement. Since the tree is unique, entries with the same key are sorted
+ * by RecordId, and the entry of a tuple is found by searching for its key
+ * and RecordId together, however many tuples share the key.
+ * <p>
+ * The index is kept up to date as part of the transactions that change the
+ * table: BufferPool inserts and deletes the entries of the tuples it
+ * inserts and deletes, {@link Vacuum} moves the entries of the tuples it
+ * moves, and pages appended by a bulk load are indexed as they are
+ * appended, in transactions of their own.
+ * <p>
+ * {@link #iterator} reads all the RecordIds of a range of keys when it is
+ * opened, and then fetches the tuples sorted by page, so each page is read
+ * once, in the order of the file, and the index is no longer read while the
+ * tuples are returned. Queries that read no other field of the table are
+ * answered from the entries alone by {@link #keyIterator}.
+ */
+public class SecondaryIndex {
+    /** Number of entries inserted per transaction when indexing appended pages */
+    public static final int INSERT_BATCH_SIZE = 256;
+
+    private final int tableid;
+    private final int field;
+    private final BTreeFile tree;
+
+    private SecondaryIndex(int tableid, int field, BTreeFile tree) {
+        this.tableid = tableid;
+        this.field = field;
+        this.tree = tree;
+    }
+
+    /**
+     * Returns the file holding the index of a field of the heap file f.
+     */
+    public static File getIndexFile(File f, int field) {
+        return new File(f.getPath() + "." + field + ".idx");
+    }
+
+    /**
+     * Returns the schema of the entries of an index on a field of the given
+     * type.
+     */
+    static TupleDesc getEntryDesc(Type keyType) {
+        return new TupleDesc(new Type[] { keyType, Type.INT_TYPE, Type.INT_TYPE },
+                new String[] { "key", "page", "slot" });
+    }
+
+    /**
+     * Opens the index of a field of a table, adds its BTreeFile to the
+     * catalog and registers it with the table.
+     */
+    private static SecondaryIndex open(String tableName, HeapFile table, int field) {
+        TupleDesc td = table.getTupleDesc();
+        File f = getIndexFile(table.getFile(), field);
+        BTreeFile tree = new BTreeFile(f, 0, getEntryDesc(td.getFieldType(field)), false, true);
+        Database.getCatalog().addTable(tree, tableName + "." + field + ".idx");
+        SecondaryIndex index = new SecondaryIndex(table.getId(), field, tree);
+        Database.getCatalog().addIndex(index);
+        return index;
+    }
+
+    /**
+     * Opens the indexes stored next to the data file of a table, and
+     * registers them with it. Called when the table is added to the catalog.
+     */
+    public static void openAll(String tableName, HeapFile table) {
+        TupleDesc td = table.getTupleDesc();
+        for (int i = 0; i < td.numFields(); i++) {
+            if (getIndexFile(table.getFile(), i).exists()
+                    && Database.getCatalog().getIndex(table.getId(), i) == null) {
+                open(tableName, table, i);
+            }
+        }
+    }
+
+    /**
+     * Creates an index on a field of a table, from the tuples already in it.
+     * <p>
+     * The table is scanned in a transaction that holds a read lock on every
+     * page it has read, and the entries are bulk loaded into the B+ tree,
+     * see {@link BTreeBulkLoader}. The index is registered with the table
+     * before the locks are released, so every later change of these pages
+     * updates it. Pages added to the table after the scan passed its end are
+     * indexed in a second transaction, skipping the tuples that already have
+     * an entry. Transactions aborted to break a deadlock are retried.
+     *
+     * @param tableid the table, which must be stored in a HeapFile
+     * @param field the field to index
+     * @return the new index
+     * @throws DbException if the table is not a heap file or the field is
+     *             already indexed
+     */
+    public static SecondaryIndex create(int tableid, int field) throws DbException, IOException {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(file instanceof HeapFile)) {
+            throw new DbException("only heap tables can have secondary indexes");
+        }
+        if (Database.getCatalog().getIndex(tableid, field) != null) {
+            throw new DbException("field " + field + " is already indexed");
+        }
+        HeapFile table = (HeapFile) file;
+        TupleDesc td = table.getTupleDesc();
+        File f = getIndexFile(table.getFile(), field);
+        new FileOutputStream(f).close();
+        BTreeFile tree = new BTreeFile(f, 0, getEntryDesc(td.getFieldType(field)), false, true);
+        Database.getCatalog().addTable(tree, Database.getCatalog().getTableName(tableid) + "." + field + ".idx");
+        SecondaryIndex index = new SecondaryIndex(tableid, field, tree);
+
+        int scanned = -1;
+        while (scanned < 0) {
+            TransactionId tid = new TransactionId();
+            try {
+                EntryScan entries = index.new EntryScan(table, tid);
+                entries.open();
+                new BTreeBulkLoader().load(entries, tree);
+                Database.getCatalog().addIndex(index);
+                scanned = entries.pageNo;
+            } catch (TransactionAbortedException e) {
+                // the tree is only written once the scan is done
+            } finally {
+                Database.getBufferPool().transactionComplete(tid, scanned >= 0);
+            }
+        }
+
+        boolean done = false;
+        while (!done) {
+            TransactionId tid = new TransactionId();
+            try {
+                for (int i = scanned; i < table.numPages(); i++) {
+                    HeapPageId pid = new HeapPageId(tableid, i);
+                    HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+                    Iterator<Tuple> it = page.iterator();
+                    while (it.hasNext()) {
+                        Tuple t = it.next();
+                        if (index.findEntry(tid, t.getField(field), t.getRecordId()) == null) {
+                            index.tupleInserted(tid, t);
+                        }
+                    }
+                }
+                done = true;
+            } catch (TransactionAbortedException e) {
+                // try the new pages again
+            } finally {
+                Database.getBufferPool().transactionComplete(tid, done);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Returns the table this index belongs to.
+     */
+    public int getTableId() {
+        return tableid;
+    }
+
+    /**
+     * Returns the indexed field of the table.
+     */
+    public int getField() {
+        return field;
+    }
+
+    /**
+     * Returns the B+ tree holding the entries.
+     */
+    public BTreeFile getBTreeFile() {
+        return tree;
+    }
+
+    private Tuple entry(Field key, RecordId rid) {
+        Tuple e = new Tuple(tree.getTupleDesc());
+        e.setField(0, key);
+        e.setInt(1, rid.getPageId().pageNumber());
+        e.setInt(2, rid.tupleno());
+        return e;
+    }
+
+    /**
+     * Returns the entry of the given key and RecordId, or null if there is
+     * none. The tree is searched for the whole entry, see
+     * {@link BTreeFile#findTuple}.
+     */
+    private Tuple findEntry(TransactionId tid, Field key, RecordId rid)
+            throws DbException, TransactionAbortedException {
+        return tree.findTuple(tid, entry(key, rid));
+    }
+
+    /**
+     * Adds the entry of a tuple inserted into the table.
+     */
+    public void tupleInserted(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        Database.getBufferPool().insertTuple(tid, tree.getId(), entry(t.getField(field), t.getRecordId()));
+    }
+
+    /**
+     * Removes the entry of a tuple deleted from the table.
+     *
+     * @throws DbException if the tuple has no entry
+     */
+    public void tupleDeleted(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        Tuple e = findEntry(tid, t.getField(field), t.getRecordId());
+        if (e == null) {
+            throw new DbException("tuple " + t.getRecordId() + " is missing from the index");
+        }
+        Database.getBufferPool().deleteTuple(tid, e);
+    }
+
+    /**
+     * Points the entry of a tuple moved to another slot of the table, e.g.
+     * by a {@link Vacuum}, at its new RecordId.
+     *
+     * @param t the tuple, with its new RecordId
+     * @param from the RecordId the tuple had before
+     */
+    public void tupleMoved(TransactionId tid, Tuple t, RecordId from)
+            throws DbException, IOException, TransactionAbortedException {
+        Tuple e = findEntry(tid, t.getField(field), from);
+        if (e == null) {
+            throw new DbException("tuple " + from + " is missing from the index");
+        }
+        Database.getBufferPool().deleteTuple(tid, e);
+        tupleInserted(tid, t);
+    }
+
+    /**
+     * Adds the entries of the tuples on pages appended to the table by a bulk
+     * load. The entries are sorted and inserted in transactions of
+     * {@link #INSERT_BATCH_SIZE}, so that each transaction dirties only a
+     * few pages of the tree.
+     *
+     * @param first the number of the first page
+     * @param pages the raw data of the pages
+     */
+    void pagesAppended(int first, ByteBuffer pages) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        int n = pages.remaining() / pageSize;
+        byte[] data = new byte[pageSize];
+        ByteBuffer buf = pages.duplicate();
+        ArrayList<Tuple> entries = new ArrayList<Tuple>();
+        for (int i = 0; i < n; i++) {
+            buf.get(data);
+            Iterator<Tuple> it = new HeapPage(new HeapPageId(tableid, first + i), data).iterator();
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                entries.add(entry(t.getField(field), t.getRecordId()));
+            }
+        }
+        Collections.sort(entries, new Comparator<Tuple>() {
+            @Override
+            public int compare(Tuple e1, Tuple e2) {
+                return BTreePage.compareKeys(tree.getKey(e1), tree.getKey(e2));
+            }
+        });
+        for (int from = 0; from < entries.size(); from += INSERT_BATCH_SIZE) {
+            List<Tuple> batch = entries.subList(from, Math.min(entries.size(), from + INSERT_BATCH_SIZE));
+            boolean done = false;
+            while (!done) {
+                TransactionId tid = new TransactionId();
+                try {
+                    for (Tuple e : batch) {
+                        Database.getBufferPool().insertTuple(tid, tree.getId(), e);
+                    }
+                    done = true;
+                } catch (TransactionAbortedException e) {
+                    // the batch was rolled back; insert it again
+                } catch (DbException e) {
+                    throw new IOException(e);
+                } finally {
+                    Database.getBufferPool().transactionComplete(tid, done);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns an iterator over the tuples of the table whose indexed field
+     * satisfies ipred, and that satisfy all of the given predicates. The
+     * RecordIds of the matching entries are all read when the iterator is
+     * opened, so the index may be modified while the tuples are returned,
+     * e.g. by a DELETE reading them. The tuples come sorted by RecordId, not
+     * by key.
+     *
+     * @param tid the transaction id
+     * @param ipred the predicate on the indexed field, or null for all tuples
+     * @param predicates other predicates to apply, may be null or empty
+     */
+    public DbFileIterator iterator(TransactionId tid, IndexPredicate ipred, List<Predicate> predicates) {
+        return new IndexScanIterator(tid, ipred, predicates);
+    }
+
+    /**
+     * Returns an iterator over the indexed field of the tuples of the table
+     * whose indexed field satisfies ipred, read from the entries of the index
+     * alone, without fetching the tuples. The returned tuples have the schema
+     * and the RecordIds of the tuples of the table, but all of their fields
+     * except the indexed one are null. They come in key order.
+     *
+     * @param tid the transaction id
+     * @param ipred the predicate on the indexed field, or null for all tuples
+     */
+    public DbFileIterator keyIterator(TransactionId tid, IndexPredicate ipred) {
+        return new KeyScanIterator(tid, ipred);
+    }
+
+    /**
+     * Turns the index entries into tuples holding only the indexed field.
+     */
+    private class KeyScanIterator extends AbstractDbFileIterator {
+        private final TransactionId tid;
+        private final IndexPredicate ipred;
+        private final TupleDesc td = Database.getCatalog().getTupleDesc(tableid);
+
+        private DbFileIterator entries;
+
+        KeyScanIterator(TransactionId tid, IndexPredicate ipred) {
+            this.tid = tid;
+            this.ipred = ipred;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            entries = ipred == null ? tree.iterator(tid) : tree.indexIterator(tid, ipred);
+            entries.open();
+        }
+
+        @Override
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            if (entries == null || !entries.hasNext()) {
+                return null;
+            }
+            Tuple e = entries.next();
+            Tuple t = new Tuple(td);
+            t.setField(field, e.getField(0));
+            t.setRecordId(new RecordId(new HeapPageId(tableid, e.getInt(1)), e.getInt(2)));
+            return t;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            if (entries != null) {
+                entries.close();
+                entries = null;
+            }
+        }
+    }
+
+    /**
+     * Reads the tuples of the index entries. The RecordIds are read and
+     * sorted when the iterator is opened.
+     */
+    private class IndexScanIterator extends AbstractDbFileIterator {
+        private final TransactionId tid;
+        private final IndexPredicate ipred;
+        private final List<Predicate> predicates;
+
+        private ArrayList<RecordId> rids;
+        private int next;
+        private HeapPage page;
+
+        IndexScanIterator(TransactionId tid, IndexPredicate ipred, List<Predicate> predicates) {
+            this.tid = tid;
+            this.ipred = ipred;
+            this.predicates = predicates;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            rids = new ArrayList<RecordId>();
+            DbFileIterator entries = ipred == null ? tree.iterator(tid) : tree.indexIterator(tid, ipred);
+            entries.open();
+            try {
+                while (entries.hasNext()) {
+                    Tuple e = entries.next();
+                    rids.add(new RecordId(new HeapPageId(tableid, e.getInt(1)), e.getInt(2)));
+                }
+            } finally {
+                entries.close();
+            }
+            Collections.sort(rids, new Comparator<RecordId>() {
+                @Override
+                public int compare(RecordId r1, RecordId r2) {
+                    int p1 = r1.getPageId().pageNumber();
+                    int p2 = r2.getPageId().pageNumber();
+                    return p1 != p2 ? Integer.compare(p1, p2) : Integer.compare(r1.tupleno(), r2.tupleno());
+                }
+            });
+            next = 0;
+            page = null;
+        }
+
+        @Override
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            if (rids == null) {
+                return null;
+            }
+            while (next < rids.size()) {
+                RecordId rid = rids.get(next++);
+                if (page == null || !page.getId().equals(rid.getPageId())) {
+                    page = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(), Permissions.READ_ONLY);
+                }
+                Tuple t = page.getTuple(rid.tupleno());
+                if (t != null && matches(t)) {
+                    return t;
+                }
+            }
+            return null;
+        }
+
+        private boolean matches(Tuple t) {
+            if (ipred != null && !t.getField(field).compare(ipred.getOp(), ipred.getField())) {
+                return false;
+            }
+            if (predicates != null) {
+                for (Predicate p : predicates) {
+                    if (!p.filter(t)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            rids = null;
+            page = null;
+        }
+    }
+
+    /**
+     * Reads the pages of a table in order, and returns the entry of each
+     * tuple on them. Used to build a new index.
+     */
+    private class EntryScan extends AbstractDbFileIterator {
+        private final HeapFile table;
+        private final TransactionId tid;
+        /** The number of the next page to read */
+        int pageNo;
+        private Iterator<Tuple> it;
+
+        EntryScan(HeapFile table, TransactionId tid) {
+            this.table = table;
+            this.tid = tid;
+        }
+
+        public void open() {
+            pageNo = 0;
+            it = null;
+        }
+
+        @Override
+        protected Tuple readNext() throws DbException, TransactionAbortedException, NoSuchElementException {
+            while (it == null || !it.hasNext()) {
+                if (pageNo >= table.numPages()) {
+                    return null;
+                }
+                HeapPageId pid = new HeapPageId(tableid, pageNo++);
+                it = ((HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY)).iterator();
+            }
+            Tuple t = it.next();
+            return entry(t.getField(field), t.getRecordId());
+        }
+
+        public void rewind() {
+            open();
+        }
+    }
+}
@@ -0,0 +1,345 @@
+package simpledb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * SegmentBloomFilters keeps a {@link BloomFilter} of the values of chosen
+ * fields of a HeapFile for each segment of {@link #SEGMENT_PAGES} pages, so
+ * that a scan with an EQUALS predicate on such a field can skip the
+ * segments that do not hold the value. This is a cheap access path for
+ * point lookups on fields that are not worth a B+ tree.
+ * <p>
+ * A Bloom filter cannot forget a value, so the filters only grow: inserted
+ * tuples are added right away, and deleted ones stay in. A filter is sized
+ * for {@link #BITS_PER_VALUE} bits per tuple that fits in its segment; once
+ * many tuples were deleted and others inserted in their place, it admits
+ * more false positives, and building it again with
+ * {@link HeapFile#createBloomFilter} starts it over.
+ * <p>
+ * The filters are stored next to the data file, in a file with the same
+ * name and the suffix ".bloom": a header with the segment size and the
+ * fields, then one record per segment holding the bits of each filter. The
+ * record of a segment is written before a page of it is written, so the
+ * stored filters always hold every value on disk.
+ */
+public class SegmentBloomFilters {
+    /** Number of pages per segment */
+    public static final int SEGMENT_PAGES = 16;
+    /** Number of bits of a filter per tuple its segment can hold */
+    public static final int BITS_PER_VALUE = 10;
+    /** Number of bits set per value, which is best for BITS_PER_VALUE */
+    private static final int NUM_HASHES = 7;
+
+    private final File bloomFile;
+    private final TupleDesc td;
+    /** The filters by field; a field is only used once it is complete */
+    private final LinkedHashMap<Integer, Column> columns = new LinkedHashMap<Integer, Column>();
+    /** The fields in the stored file, in order */
+    private final ArrayList<Column> stored = new ArrayList<Column>();
+
+    /** The filters of one field, one per segment */
+    private static class Column {
+        final int field;
+        final int numBits;
+        final int numHashes;
+        final ArrayList<BloomFilter> segments = new ArrayList<BloomFilter>();
+        boolean complete;
+
+        Column(int field, int numBits, int numHashes) {
+            this.field = field;
+            this.numBits = numBits;
+            this.numHashes = numHashes;
+        }
+
+        BloomFilter segment(int s) {
+            while (segments.size() <= s) {
+                segments.add(new BloomFilter(numBits, numHashes));
+            }
+            return segments.get(s);
+        }
+    }
+
+    /**
+     * Creates the filters of a heap file, and reads the filters stored for
+     * it if there are any.
+     *
+     * @param f the data file of the heap file
+     * @param td the schema of the heap file
+     */
+    public SegmentBloomFilters(File f, TupleDesc td) {
+        this.bloomFile = getBloomFile(f);
+        this.td = td;
+        if (bloomFile.exists()) {
+            read();
+        }
+    }
+
+    /**
+     * Returns the file holding the Bloom filters of the heap file f.
+     */
+    public static File getBloomFile(File f) {
+        return new File(f.getPath() + ".bloom");
+    }
+
+    private void read() {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(bloomFile)));
+            try {
+                if (in.readInt() != SEGMENT_PAGES) {
+                    // written with another segment size; the filters are
+                    // dropped and have to be built again
+                    return;
+                }
+                int numColumns = in.readInt();
+                for (int i = 0; i < numColumns; i++) {
+                    Column c = new Column(in.readInt(), in.readInt(), in.readInt());
+                    c.complete = true;
+                    columns.put(c.field, c);
+                    stored.add(c);
+                }
+                if (stored.isEmpty()) {
+                    return;
+                }
+                long numSegments = (bloomFile.length() - headerSize()) / recordSize();
+                for (int s = 0; s < numSegments; s++) {
+                    for (Column c : stored) {
+                        long[] words = new long[c.numBits / 64];
+                        for (int i = 0; i < words.length; i++) {
+                            words[i] = in.readLong();
+                        }
+                        c.segments.add(new BloomFilter(words, c.numHashes));
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("cannot read Bloom filters " + bloomFile, e);
+        }
+    }
+
+    private int headerSize() {
+        return 8 + 12 * stored.size();
+    }
+
+    private int recordSize() {
+        int size = 0;
+        for (Column c : stored) {
+            size += c.numBits / 8;
+        }
+        return size;
+    }
+
+    /**
+     * Returns whether a field has a complete filter that scans use.
+     */
+    public synchronized boolean hasFilter(int field) {
+        Column c = columns.get(field);
+        return c != null && c.complete;
+    }
+
+    /**
+     * Returns whether some tuple in the segment of a page may satisfy all of
+     * the given predicates. Only EQUALS predicates on fields with a filter
+     * are looked at.
+     *
+     * @param pageNo a page of the segment
+     * @param predicates the predicates, may be null or empty
+     */
+    public synchronized boolean mayMatch(int pageNo, List<Predicate> predicates) {
+        if (predicates == null || columns.isEmpty()) {
+            return true;
+        }
+        int s = pageNo / SEGMENT_PAGES;
+        for (Predicate p : predicates) {
+            Column c = columns.get(p.getField());
+            if (p.getOp() == Predicate.Op.EQUALS && c != null && c.complete && s < c.segments.size()
+                    && !c.segments.get(s).mightContain(p.getOperand())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds the values of a tuple inserted into a page.
+     */
+    public synchronized void tupleInserted(int pageNo, Tuple t) {
+        for (Column c : columns.values()) {
+            c.segment(pageNo / SEGMENT_PAGES).add(t.getField(c.field));
+        }
+    }
+
+    private void addPage(Column c, HeapPage page) {
+        BloomFilter filter = c.segment(page.getId().pageNumber() / SEGMENT_PAGES);
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext()) {
+            filter.add(it.next().getField(c.field));
+        }
+    }
+
+    /**
+     * Stores the filters of the segment of a page before the page is
+     * written.
+     */
+    public synchronized void pageWriting(int pageNo) throws IOException {
+        if (!stored.isEmpty()) {
+            int s = pageNo / SEGMENT_PAGES;
+            writeSegments(s, s + 1);
+        }
+    }
+
+    /**
+     * Adds the values on pages appended to the file, and stores the filters
+     * of their segments.
+     *
+     * @param first the number of the first page
+     * @param pages the raw data of the pages
+     */
+    public synchronized void pagesAppending(int tableid, int first, ByteBuffer pages) throws IOException {
+        if (columns.isEmpty()) {
+            return;
+        }
+        int pageSize = BufferPool.getPageSize();
+        int n = pages.remaining() / pageSize;
+        byte[] data = new byte[pageSize];
+        ByteBuffer buf = pages.duplicate();
+        for (int i = 0; i < n; i++) {
+            buf.get(data);
+            HeapPage page = new HeapPage(new HeapPageId(tableid, first + i), data);
+            for (Column c : columns.values()) {
+                addPage(c, page);
+            }
+        }
+        if (!stored.isEmpty() && n > 0) {
+            writeSegments(first / SEGMENT_PAGES, (first + n - 1) / SEGMENT_PAGES + 1);
+        }
+    }
+
+    /**
+     * Drops the filters of the segments that lie past numPages, after the
+     * file was truncated.
+     */
+    public synchronized void truncate(int numPages) throws IOException {
+        int numSegments = (numPages + SEGMENT_PAGES - 1) / SEGMENT_PAGES;
+        for (Column c : columns.values()) {
+            if (c.segments.size() > numSegments) {
+                c.segments.subList(numSegments, c.segments.size()).clear();
+            }
+        }
+        long length = headerSize() + (long) numSegments * recordSize();
+        if (!stored.isEmpty() && bloomFile.length() > length) {
+            RandomAccessFile f = new RandomAccessFile(bloomFile, "rw");
+            try {
+                f.setLength(length);
+            } finally {
+                f.close();
+            }
+        }
+    }
+
+    /**
+     * Starts a new, empty filter of a field, replacing any old one. Values
+     * are added to it as tuples are inserted, but scans do not use it until
+     * {@link #complete} is called, after every page was added with
+     * {@link #pageScanned}.
+     */
+    synchronized void start(int field) throws IOException {
+        if (removeStored(field)) {
+            // the old filter no longer gets the values inserted
+            writeAll();
+        }
+        int tuplesPerPage = BufferPool.getPageSize() * 8 / (td.getSize() * 8 + 1);
+        int numBits = (SEGMENT_PAGES * tuplesPerPage * BITS_PER_VALUE + 63) / 64 * 64;
+        columns.put(field, new Column(field, numBits, NUM_HASHES));
+    }
+
+    private boolean removeStored(int field) {
+        for (int i = 0; i < stored.size(); i++) {
+            if (stored.get(i).field == field) {
+                stored.remove(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds the values on a page of the file to the new filter of a field.
+     */
+    synchronized void pageScanned(int field, HeapPage page) {
+        addPage(columns.get(field), page);
+    }
+
+    /**
+     * Makes the new filter of a field used by scans, and stores it.
+     */
+    synchronized void complete(int field) throws IOException {
+        Column c = columns.get(field);
+        c.complete = true;
+        removeStored(field);
+        stored.add(c);
+        writeAll();
+    }
+
+    private void writeAll() throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(bloomFile)));
+        try {
+            out.writeInt(SEGMENT_PAGES);
+            out.writeInt(stored.size());
+            for (Column c : stored) {
+                out.writeInt(c.field);
+                out.writeInt(c.numBits);
+                out.writeInt(c.numHashes);
+            }
+        } finally {
+            out.close();
+        }
+        writeSegments(0, numSegments());
+    }
+
+    private int numSegments() {
+        int n = 0;
+        for (Column c : stored) {
+            n = Math.max(n, c.segments.size());
+        }
+        return n;
+    }
+
+    /**
+     * Writes the records of the segments from first up to end; segments
+     * past the end of the stored file before them are written too.
+     */
+    private void writeSegments(int first, int end) throws IOException {
+        int recordSize = recordSize();
+        first = (int) Math.min(first, Math.max(0, (bloomFile.length() - headerSize()) / recordSize));
+        ByteBuffer buf = ByteBuffer.allocate((end - first) * recordSize);
+        for (int s = first; s < end; s++) {
+            for (Column c : stored) {
+                for (long word : c.segment(s).words()) {
+                    buf.putLong(word);
+                }
+            }
+        }
+        RandomAccessFile f = new RandomAccessFile(bloomFile, "rw");
+        try {
+            f.seek(headerSize() + (long) first * recordSize);
+            f.write(buf.array());
+        } finally {
+            f.close();
+        }
+    }
+}
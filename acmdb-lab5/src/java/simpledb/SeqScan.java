@@ -13,8 +13,10 @@ public class SeqScan implements DbIterator {
     private final TransactionId transId;
     private int tableId;
     private String tableAlias;
-    private final DbFile file;
-    private final DbFileIterator iterator;
+    private DbFile file;
+    private DbFileIterator iterator; // created when the scan is first opened
+    private final ArrayList<Predicate> predicates = new ArrayList<Predicate>();
+    private boolean[] columns;
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -38,7 +40,6 @@ public class SeqScan implements DbIterator {
         this.tableId = tableid;
         this.tableAlias = tableAlias;
         this.file = Database.getCatalog().getDatabaseFile(tableid);
-        this.iterator = this.file.iterator(transId);
     }
 
     /**
@@ -74,6 +75,109 @@ public class SeqScan implements DbIterator {
         // some code goes here
         this.tableId = tableid;
         this.tableAlias = tableAlias;
+        this.file = Database.getCatalog().getDatabaseFile(tableid);
+        // the pushed down predicates and columns refer to the old table
+        this.iterator = null;
+        this.predicates.clear();
+        this.columns = null;
+    }
+
+    /**
+     * Pushes a predicate down into this scan so that it can be evaluated on
+     * the raw page data before tuples are materialized. Only scans over a
+     * {@link HeapFile} accept predicates; callers must still apply the
+     * predicate themselves when this returns false. Must be called before the
+     * scan is opened.
+     *
+     * @param p
+     *            a predicate over the fields of the underlying table
+     * @return true if the scan will only return tuples satisfying p
+     */
+    public boolean pushDownPredicate(Predicate p) {
+        if (this.iterator != null || !acceptsPredicates()) {
+            return false;
+        }
+        this.predicates.add(p);
+        return true;
+    }
+
+    /**
+     * @return whether this scan can evaluate pushed down predicates, see
+     *         {@link #pushDownPredicate}
+     */
+    protected boolean acceptsPredicates() {
+        return this.file instanceof HeapFile;
+    }
+
+    /**
+     * @return the predicates pushed down into this scan
+     */
+    protected List<Predicate> getPredicates() {
+        return predicates;
+    }
+
+    /**
+     * @return the file of the scanned table
+     */
+    protected DbFile getFile() {
+        return file;
+    }
+
+    /**
+     * @return the transaction this scan is running as a part of
+     */
+    protected TransactionId getTransactionId() {
+        return transId;
+    }
+
+    /**
+     * Creates the iterator over the tuples of this scan, when it is first
+     * opened. Subclasses reading the table another way override this.
+     */
+    protected DbFileIterator createIterator() {
+        if (columns != null) {
+            return ((ColumnarFile) this.file).iterator(transId, columns);
+        }
+        if (!predicates.isEmpty()) {
+            return ((HeapFile) this.file).iterator(transId, predicates);
+        }
+        return this.file.iterator(transId);
+    }
+
+    /**
+     * @return the secondary index this scan reads through, or null if it
+     *         reads the table itself
+     * @see IndexScan
+     */
+    public SecondaryIndex getIndex() {
+        return null;
+    }
+
+    /**
+     * @return whether this scan reads an index alone, without fetching
+     *         tuples from the pages of the table
+     * @see IndexScan
+     */
+    public boolean isIndexOnly() {
+        return false;
+    }
+
+    /**
+     * Restricts this scan to the given columns of the underlying table. Only
+     * scans over a {@link ColumnarFile} honor this; they leave the fields of
+     * the other columns of the returned tuples null. Must be called before
+     * the scan is opened.
+     *
+     * @param columns
+     *            for each field of the table, whether it is read by the query
+     * @return true if fields of unused columns will be null
+     */
+    public boolean projectColumns(boolean[] columns) {
+        if (this.iterator != null || !(this.file instanceof ColumnarFile)) {
+            return false;
+        }
+        this.columns = columns;
+        return true;
     }
 
     public SeqScan(TransactionId tid, int tableid) {
@@ -82,6 +186,9 @@ public class SeqScan implements DbIterator {
 
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
+        if (this.iterator == null) {
+            this.iterator = createIterator();
+        }
         this.iterator.open();
     }
 
@@ -110,21 +217,29 @@ public class SeqScan implements DbIterator {
 
     public boolean hasNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        return this.iterator.hasNext();
+        return this.iterator != null && this.iterator.hasNext();
     }
 
     public Tuple next() throws NoSuchElementException, TransactionAbortedException, DbException {
         // some code goes here
+        if (this.iterator == null) {
+            throw new NoSuchElementException("scan is not open");
+        }
         return this.iterator.next();
     }
 
     public void close() {
         // some code goes here
-        this.iterator.close();
+        if (this.iterator != null) {
+            this.iterator.close();
+        }
     }
 
     public void rewind() throws DbException, NoSuchElementException, TransactionAbortedException {
         // some code goes here
+        if (this.iterator == null) {
+            throw new DbException("scan is not open");
+        }
         this.iterator.rewind();
     }
 }
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 public class SimpleDb {
     public static void main(String args[]) throws DbException, TransactionAbortedException, IOException {
@@ -21,33 +22,52 @@ public class SimpleDb {
                     for (int i = 0; i < numOfAttributes; i++)
                         ts[i] = Type.INT_TYPE;
                 else {
-                    String typeString = args[3];
-                    String[] typeStringAr = typeString.split(",");
-                    if (typeStringAr.length != numOfAttributes) {
-                        System.err.println("The number of types does not agree with the number of columns");
+                    ts = parseTypes(args[3], numOfAttributes);
+                    if (ts == null)
                         return;
-                    }
-                    int index = 0;
-                    for (String s : typeStringAr) {
-                        if (s.toLowerCase().equals("int"))
-                            ts[index++] = Type.INT_TYPE;
-                        else if (s.toLowerCase().equals("string"))
-                            ts[index++] = Type.STRING_TYPE;
-                        else {
-                            System.err.println("Unknown type " + s);
-                            return;
-                        }
-                    }
                     if (args.length == 5)
                         fieldSeparator = args[4].charAt(0);
                 }
 
-                HeapFileEncoder.convert(sourceTxtFile, targetDatFile, BufferPool.getPageSize(), numOfAttributes, ts,
-                        fieldSeparator);
+                // parse and encode the input in parallel, see HeapFileLoader
+                TupleDesc td = new TupleDesc(ts);
+                new FileOutputStream(targetDatFile).close();
+                HeapFile.deleteSideFiles(targetDatFile);
+                HeapFile hf = new HeapFile(targetDatFile, td);
+                new HeapFileLoader(td, fieldSeparator).load(sourceTxtFile, hf);
+                if (hf.numPages() == 0) {
+                    // like HeapFileEncoder, write an empty page for an empty table
+                    hf.appendPages(ByteBuffer.wrap(HeapPage.createEmptyPageData()));
+                }
 
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
+        } else if (args[0].equals("compress")) {
+            // compress a heap file in place, see CompressedHeapFile
+            if (args.length < 3 || args.length > 4) {
+                System.err.println("Unexpected number of arguments to compress ");
+                return;
+            }
+            File tableFile = new File(args[1]);
+            int numOfAttributes = Integer.parseInt(args[2]);
+            Type[] ts = new Type[numOfAttributes];
+            if (args.length == 3)
+                for (int i = 0; i < numOfAttributes; i++)
+                    ts[i] = Type.INT_TYPE;
+            else {
+                ts = parseTypes(args[3], numOfAttributes);
+                if (ts == null)
+                    return;
+            }
+
+            File tmp = new File(args[1] + ".tmp");
+            CompressedHeapFile.compress(tableFile, tmp, new TupleDesc(ts));
+            File tmpMap = CompressedHeapFile.getMapFile(tmp);
+            if (!tableFile.delete() || !tmp.renameTo(tableFile)
+                    || !tmpMap.renameTo(CompressedHeapFile.getMapFile(tableFile))) {
+                System.err.println("Failed to replace " + tableFile + " with its compressed version");
+            }
         } else if (args[0].equals("print")) {
             File tableFile = new File(args[1]);
             int columns = Integer.parseInt(args[2]);
@@ -93,4 +113,29 @@ public class SimpleDb {
         }
     }
 
+    /**
+     * Parses a comma separated list of column types, such as "int,string".
+     *
+     * @return the types, or null if the list is invalid
+     */
+    private static Type[] parseTypes(String typeString, int numOfAttributes) {
+        String[] typeStringAr = typeString.split(",");
+        if (typeStringAr.length != numOfAttributes) {
+            System.err.println("The number of types does not agree with the number of columns");
+            return null;
+        }
+        Type[] ts = new Type[numOfAttributes];
+        int index = 0;
+        for (String s : typeStringAr) {
+            if (s.toLowerCase().equals("int"))
+                ts[index++] = Type.INT_TYPE;
+            else if (s.toLowerCase().equals("string"))
+                ts[index++] = Type.STRING_TYPE;
+            else {
+                System.err.println("Unknown type " + s);
+                return null;
+            }
+        }
+        return ts;
+    }
 }
@@ -0,0 +1,241 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * SlottedHeapFile is a DbFile that, like HeapFile, stores an unordered
+ * collection of tuples, but lays out its pages as SlottedHeapPages so that
+ * string fields are stored with their actual length rather than padded to
+ * Type.STRING_LEN. Each string field has its own maximum length, declared as
+ * VARCHAR(n) in the catalog.
+ *
+ * @see simpledb.SlottedHeapPage#SlottedHeapPage
+ */
+public class SlottedHeapFile implements DbFile {
+    private final File file;
+    private final TupleDesc td;
+    private final int[] maxLengths;
+
+    /**
+     * Constructs a slotted heap file backed by the specified file, where every
+     * string field may hold up to Type.STRING_LEN characters.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this file.
+     * @param td
+     *            the schema of the tuples stored in this file.
+     */
+    public SlottedHeapFile(File f, TupleDesc td) {
+        this(f, td, null);
+    }
+
+    /**
+     * Constructs a slotted heap file backed by the specified file.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this file.
+     * @param td
+     *            the schema of the tuples stored in this file.
+     * @param maxLengths
+     *            the maximum length of each string field; entries for int
+     *            fields are ignored. If null, Type.STRING_LEN is used for every
+     *            string field.
+     */
+    public SlottedHeapFile(File f, TupleDesc td, int[] maxLengths) {
+        this.file = f;
+        this.td = td;
+        this.maxLengths = new int[td.numFields()];
+        for (int i = 0; i < td.numFields(); i++) {
+            int len = maxLengths == null ? Type.STRING_LEN : maxLengths[i];
+            if (td.getFieldType(i) == Type.STRING_TYPE && (len <= 0 || len > 0xFFFF)) {
+                throw new IllegalArgumentException("invalid maximum length " + len + " for field " + i);
+            }
+            this.maxLengths[i] = len;
+        }
+    }
+
+    /**
+     * Returns the File backing this SlottedHeapFile on disk.
+     */
+    public File getFile() {
+        return this.file;
+    }
+
+    /**
+     * Returns an ID uniquely identifying this SlottedHeapFile, computed the
+     * same way as for HeapFile.
+     */
+    public int getId() {
+        return this.file.getAbsoluteFile().hashCode();
+    }
+
+    /**
+     * Returns the TupleDesc of the table stored in this DbFile.
+     */
+    public TupleDesc getTupleDesc() {
+        return this.td;
+    }
+
+    /**
+     * Returns the maximum number of characters stored for the given string
+     * field. Longer values are truncated on insert.
+     */
+    public int getMaxLength(int field) {
+        return this.maxLengths[field];
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        try {
+            RandomAccessFile f = new RandomAccessFile(this.file, "r");
+            int offset = BufferPool.getPageSize() * pid.pageNumber();
+            byte[] data = new byte[BufferPool.getPageSize()];
+            f.seek(offset);
+            f.readFully(data);
+            f.close();
+            return new SlottedHeapPage((HeapPageId) pid, data);
+        } catch (IOException e) {
+            throw new IllegalArgumentException();
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        PageId pid = page.getId();
+        try {
+            RandomAccessFile f = new RandomAccessFile(this.file, "rw");
+            int offset = BufferPool.getPageSize() * pid.pageNumber();
+            f.seek(offset);
+            f.write(page.getPageData());
+            f.close();
+        } catch (IOException e) {
+            throw new IllegalArgumentException();
+        }
+    }
+
+    /**
+     * Returns the number of pages in this SlottedHeapFile.
+     */
+    public int numPages() {
+        long length = file.length();
+        int pagesize = BufferPool.getPageSize();
+        return (int) (length + pagesize - 1) / pagesize;
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        SlottedHeapPage page = getPage(tid, t, Permissions.READ_WRITE);
+
+        if (page == null) {
+            page = getEmptyPage(tid, t);
+        }
+        if (page == null) {
+            throw new DbException("tuple does not fit on an empty page");
+        }
+        page.insertTuple(t);
+
+        return new ArrayList<Page>(Arrays.asList(page));
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException, TransactionAbortedException {
+        PageId pid = t.getRecordId().getPageId();
+        SlottedHeapPage page = (SlottedHeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        page.deleteTuple(t);
+        return new ArrayList<Page>(Arrays.asList(page));
+    }
+
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid) {
+        return new SlottedHeapFileIterator(this, tid);
+    }
+
+    class SlottedHeapFileIterator extends AbstractDbFileIterator {
+        private final SlottedHeapFile file;
+        private final TransactionId tid;
+
+        private Iterator<Tuple> tupleIt;
+        private int currentPageNumber;
+
+        public SlottedHeapFileIterator(SlottedHeapFile file, TransactionId tid) {
+            this.file = file;
+            this.tid = tid;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            currentPageNumber = -1;
+        }
+
+        @Override
+        protected Tuple readNext() throws TransactionAbortedException, DbException {
+            if (tupleIt != null && !tupleIt.hasNext()) {
+                tupleIt = null;
+            }
+
+            while (tupleIt == null && currentPageNumber < file.numPages() - 1) {
+                currentPageNumber++;
+
+                HeapPageId currentPageId = new HeapPageId(file.getId(), currentPageNumber);
+                SlottedHeapPage currentPage = (SlottedHeapPage) Database.getBufferPool().getPage(tid,
+                        currentPageId, Permissions.READ_ONLY);
+                tupleIt = currentPage.iterator();
+
+                if (!tupleIt.hasNext()) {
+                    tupleIt = null;
+                }
+            }
+
+            if (tupleIt == null) {
+                return null;
+            }
+
+            return tupleIt.next();
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            tupleIt = null;
+            currentPageNumber = Integer.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Returns the first page with enough free space for t, or null if there
+     * is none.
+     */
+    private SlottedHeapPage getPage(TransactionId tid, Tuple t, Permissions perm)
+            throws TransactionAbortedException, DbException {
+        for (int i = 0; i < this.numPages(); i++) {
+            PageId pid = new HeapPageId(this.getId(), i);
+            SlottedHeapPage page = (SlottedHeapPage) Database.getBufferPool().getPage(tid, pid,
+                    Permissions.READ_ONLY);
+            if (page.hasRoomFor(t)) {
+                return (SlottedHeapPage) Database.getBufferPool().getPage(tid, pid, perm);
+            }
+        }
+        return null;
+    }
+
+    private SlottedHeapPage getEmptyPage(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        HeapPageId pid = new HeapPageId(this.getId(), this.numPages());
+        byte[] data = SlottedHeapPage.createEmptyPageData();
+
+        RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+        raf.seek(BufferPool.getPageSize() * this.numPages());
+        raf.write(data);
+        raf.close();
+
+        Database.getBufferPool().discardPage(pid);
+
+        SlottedHeapPage page = (SlottedHeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        return page.hasRoomFor(t) ? page : null;
+    }
+}
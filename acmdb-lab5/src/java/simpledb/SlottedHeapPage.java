@@ -0,0 +1,485 @@
+package simpledb;
+
+import java.util.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Each instance of SlottedHeapPage stores data for one page of a
+ * SlottedHeapFile. Unlike HeapPage, records are variable length: string
+ * fields only take up as many bytes as their actual value, so a table with
+ * mostly short strings fits many more tuples per page.
+ *
+ * @see SlottedHeapFile
+ * @see HeapPage
+ */
+public class SlottedHeapPage implements Page {
+    /** Size of the page header: the number of slots and the free space pointer. */
+    static final int HEADER_SIZE = 8;
+    /** Size of a slot directory entry: record offset and record length. */
+    static final int SLOT_SIZE = 4;
+
+    protected volatile boolean dirty = false;
+    protected volatile TransactionId dirtier = null;
+
+    final HeapPageId pid;
+    final TupleDesc td;
+    private final int[] maxLengths;
+    private Tuple tuples[];
+
+    private byte[] data;
+    private boolean dataShared;
+
+    byte[] oldData;
+    private final Byte oldDataLock = Byte.valueOf((byte) 0);
+
+    /**
+     * Create a SlottedHeapPage from a set of bytes of data read from disk.
+     * The page starts with two 4-byte integers: the number of entries in the
+     * slot directory and the offset of the start of the record area. The slot
+     * directory follows the header and grows towards the end of the page;
+     * each entry is a 2-byte record offset followed by a 2-byte record length,
+     * with an offset of 0 marking an empty slot. Records are packed at the end
+     * of the page and grow towards the slot directory. Within a record, int
+     * fields take 4 bytes and string fields a 2-byte length followed by the
+     * characters of the string, one ISO-8859-1 byte each, as in HeapPage.
+     * <p>
+     * An all-zero page is a valid empty page.
+     *
+     * @see SlottedHeapFile#getMaxLength
+     */
+    public SlottedHeapPage(HeapPageId id, byte[] data) throws IOException {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        if (data.length < BufferPool.getPageSize()) {
+            throw new IOException("page data is shorter than the page size");
+        }
+        if (BufferPool.getPageSize() > 0xFFFF) {
+            throw new IOException("slotted pages are limited to 64KB");
+        }
+
+        DbFile file = Database.getCatalog().getDatabaseFile(id.getTableId());
+        this.maxLengths = new int[td.numFields()];
+        for (int i = 0; i < maxLengths.length; i++) {
+            maxLengths[i] = file instanceof SlottedHeapFile ? ((SlottedHeapFile) file).getMaxLength(i)
+                    : Type.STRING_LEN;
+        }
+
+        this.data = data;
+        this.dataShared = true;
+        this.tuples = new Tuple[getNumSlots()];
+        setBeforeImage();
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public SlottedHeapPage getBeforeImage() {
+        try {
+            byte[] oldDataRef = null;
+            synchronized (oldDataLock) {
+                oldDataRef = oldData;
+            }
+            return new SlottedHeapPage(pid, oldDataRef);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            oldData = data;
+            dataShared = true;
+        }
+    }
+
+    /**
+     * Makes sure this page owns its buffer before it is modified.
+     */
+    private void prepareWrite() {
+        synchronized (oldDataLock) {
+            if (dataShared) {
+                data = data.clone();
+                dataShared = false;
+            }
+        }
+    }
+
+    /**
+     * @return the PageId associated with this page.
+     */
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    /**
+     * @return the number of entries in the slot directory, including empty ones
+     */
+    public int getNumSlots() {
+        return readInt(0);
+    }
+
+    /**
+     * @return the offset of the first byte of the record area
+     */
+    private int getRecordStart() {
+        int start = readInt(4);
+        return start == 0 ? BufferPool.getPageSize() : start;
+    }
+
+    private int getSlotOffset(int slot) {
+        return readShort(HEADER_SIZE + slot * SLOT_SIZE);
+    }
+
+    private int getSlotLength(int slot) {
+        return readShort(HEADER_SIZE + slot * SLOT_SIZE + 2);
+    }
+
+    private void setSlot(int slot, int offset, int length) {
+        writeShort(HEADER_SIZE + slot * SLOT_SIZE, offset);
+        writeShort(HEADER_SIZE + slot * SLOT_SIZE + 2, length);
+    }
+
+    private int readInt(int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) | ((data[offset + 2] & 0xFF) << 8)
+                | (data[offset + 3] & 0xFF);
+    }
+
+    private void writeInt(int offset, int v) {
+        data[offset] = (byte) (v >>> 24);
+        data[offset + 1] = (byte) (v >>> 16);
+        data[offset + 2] = (byte) (v >>> 8);
+        data[offset + 3] = (byte) v;
+    }
+
+    private int readShort(int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    private void writeShort(int offset, int v) {
+        data[offset] = (byte) (v >>> 8);
+        data[offset + 1] = (byte) v;
+    }
+
+    /**
+     * Returns the number of bytes the given tuple takes up on this page,
+     * excluding its slot directory entry.
+     */
+    public int getRecordSize(Tuple t) {
+        int size = 0;
+        for (int i = 0; i < td.numFields(); i++) {
+            switch (td.getFieldType(i)) {
+                case INT_TYPE:
+                    size += 4;
+                    break;
+                case STRING_TYPE:
+                    String s = t.getString(i);
+                    size += 2 + Math.min(s.length(), maxLengths[i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unsupported type " + td.getFieldType(i));
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns the number of bytes available for new records and slot
+     * directory entries, counting the space held by deleted records.
+     */
+    public int getFreeSpace() {
+        int used = HEADER_SIZE + getNumSlots() * SLOT_SIZE;
+        for (int i = 0; i < getNumSlots(); i++) {
+            used += getSlotLength(i);
+        }
+        return BufferPool.getPageSize() - used;
+    }
+
+    /**
+     * Returns true if the given tuple can be inserted into this page.
+     */
+    public boolean hasRoomFor(Tuple t) {
+        int needed = getRecordSize(t);
+        if (findEmptySlot() < 0) {
+            needed += SLOT_SIZE;
+        }
+        return needed <= getFreeSpace();
+    }
+
+    private int findEmptySlot() {
+        for (int i = 0; i < getNumSlots(); i++) {
+            if (!isSlotUsed(i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Moves all records to the end of the page so that the free space between
+     * the slot directory and the record area is contiguous. Slot numbers, and
+     * hence RecordIds, are left unchanged.
+     */
+    private void compact() {
+        byte[] compacted = new byte[BufferPool.getPageSize()];
+        int end = compacted.length;
+        for (int i = 0; i < getNumSlots(); i++) {
+            if (isSlotUsed(i)) {
+                int len = getSlotLength(i);
+                end -= len;
+                System.arraycopy(data, getSlotOffset(i), compacted, end, len);
+                setSlot(i, end, len);
+            }
+        }
+        int directoryEnd = HEADER_SIZE + getNumSlots() * SLOT_SIZE;
+        System.arraycopy(data, 0, compacted, 0, directoryEnd);
+        data = compacted;
+        writeInt(4, end);
+    }
+
+    /**
+     * Returns the tuple stored in the given slot, decoding it from the page
+     * data the first time it is requested.
+     *
+     * @return the tuple, or null if the slot is empty
+     */
+    Tuple getTuple(int slotId) {
+        if (!isSlotUsed(slotId)) {
+            return null;
+        }
+        Tuple t = tuples[slotId];
+        if (t == null) {
+            t = readTuple(slotId);
+            tuples[slotId] = t;
+        }
+        return t;
+    }
+
+    private Tuple readTuple(int slotId) {
+        Tuple t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, slotId));
+        int offset = getSlotOffset(slotId);
+        for (int j = 0; j < td.numFields(); j++) {
+            switch (td.getFieldType(j)) {
+                case INT_TYPE:
+                    t.setInt(j, readInt(offset));
+                    offset += 4;
+                    break;
+                case STRING_TYPE:
+                    int strLen = readShort(offset);
+                    String value = new String(data, offset + 2, strLen, StandardCharsets.ISO_8859_1);
+                    t.setField(j, new StringField(value, maxLengths[j]));
+                    offset += 2 + strLen;
+                    break;
+                default:
+                    throw new NoSuchElementException("parsing error!");
+            }
+        }
+        return t;
+    }
+
+    /**
+     * Checks that the stored part of every string field of t is made of
+     * characters up to U+00FF, which take one byte each.
+     */
+    private void checkEncodable(Tuple t) throws DbException {
+        for (int j = 0; j < td.numFields(); j++) {
+            if (td.getFieldType(j) == Type.STRING_TYPE) {
+                String s = t.getString(j);
+                int strLen = Math.min(s.length(), maxLengths[j]);
+                for (int k = 0; k < strLen; k++) {
+                    if (s.charAt(k) > 0xFF) {
+                        throw new DbException("field " + j + " has a character outside ISO-8859-1");
+                    }
+                }
+            }
+        }
+    }
+
+    private void writeTuple(int offset, Tuple t) {
+        for (int j = 0; j < td.numFields(); j++) {
+            switch (td.getFieldType(j)) {
+                case INT_TYPE:
+                    writeInt(offset, t.getInt(j));
+                    offset += 4;
+                    break;
+                case STRING_TYPE:
+                    String s = t.getString(j);
+                    int strLen = Math.min(s.length(), maxLengths[j]);
+                    writeShort(offset, strLen);
+                    byte[] bytes = s.substring(0, strLen).getBytes(StandardCharsets.ISO_8859_1);
+                    System.arraycopy(bytes, 0, data, offset + 2, strLen);
+                    offset += 2 + strLen;
+                    break;
+                default:
+                    throw new IllegalArgumentException("unsupported type " + td.getFieldType(j));
+            }
+        }
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page.
+     * Used to serialize this page to disk.
+     *
+     * @see #SlottedHeapPage
+     * @return A byte array correspond to the bytes of this page.
+     */
+    public byte[] getPageData() {
+        byte[] pageData = new byte[BufferPool.getPageSize()];
+        System.arraycopy(data, 0, pageData, 0, pageData.length);
+        return pageData;
+    }
+
+    /**
+     * Static method to generate a byte array corresponding to an empty
+     * SlottedHeapPage.
+     *
+     * @return The returned ByteArray.
+     */
+    public static byte[] createEmptyPageData() {
+        return new byte[BufferPool.getPageSize()]; // all 0
+    }
+
+    /**
+     * Delete the specified tuple from the page. The space of the record is
+     * reclaimed by the next insert that needs it.
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *         already empty.
+     * @param t The tuple to delete
+     */
+    public void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !this.pid.equals(rid.getPageId())) {
+            throw new DbException("this tuple is not on this page");
+        }
+
+        int tupleno = rid.tupleno();
+        if (!isSlotUsed(tupleno)) {
+            throw new DbException("tuple slot is already empty");
+        }
+
+        prepareWrite();
+        tuples[tupleno] = null;
+        setSlot(tupleno, 0, 0);
+
+        // trailing empty slots can be dropped from the directory
+        int numSlots = getNumSlots();
+        while (numSlots > 0 && !isSlotUsed(numSlots - 1)) {
+            numSlots--;
+        }
+        writeInt(0, numSlots);
+        if (numSlots == 0) {
+            writeInt(4, 0);
+        }
+    }
+
+    /**
+     * Adds the specified tuple to the page;  the tuple should be updated to reflect
+     *  that it is now stored on this page.
+     * @throws DbException if the page does not have enough free space,
+     *         tupledesc is mismatch, or a string has a character that
+     *         ISO-8859-1 cannot encode.
+     * @param t The tuple to add.
+     */
+    public void insertTuple(Tuple t) throws DbException {
+        if (!this.td.equals(t.getTupleDesc())) {
+            throw new DbException("tupledesc is mismatch");
+        }
+        checkEncodable(t);
+        if (!hasRoomFor(t)) {
+            throw new DbException("the page is full");
+        }
+
+        prepareWrite();
+        int slot = findEmptySlot();
+        int numSlots = getNumSlots();
+        if (slot < 0) {
+            slot = numSlots++;
+        }
+        int len = getRecordSize(t);
+        if (getRecordStart() - len < HEADER_SIZE + numSlots * SLOT_SIZE) {
+            compact();
+        }
+
+        int offset = getRecordStart() - len;
+        writeInt(0, numSlots);
+        writeInt(4, offset);
+        writeTuple(offset, t);
+        setSlot(slot, offset, len);
+
+        if (tuples.length < numSlots) {
+            tuples = Arrays.copyOf(tuples, numSlots);
+        }
+        tuples[slot] = null;
+        t.setRecordId(new RecordId(this.pid, slot));
+    }
+
+    /**
+     * Marks this page as dirty/not dirty and record that transaction
+     * that did the dirtying
+     */
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.dirty = dirty;
+        if (dirty) {
+            this.dirtier = tid;
+        }
+    }
+
+    /**
+     * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+     */
+    public TransactionId isDirty() {
+        if (this.dirty) {
+            return this.dirtier;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if associated slot on this page is filled.
+     */
+    public boolean isSlotUsed(int i) {
+        if (i < 0 || i >= getNumSlots()) {
+            return false;
+        }
+        return getSlotOffset(i) != 0;
+    }
+
+    /**
+     * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
+     */
+    public Iterator<Tuple> iterator() {
+        return new SlottedHeapPageIterator(this);
+    }
+
+    class SlottedHeapPageIterator implements Iterator<Tuple> {
+        private final SlottedHeapPage page;
+        private int curTuple;
+
+        public SlottedHeapPageIterator(SlottedHeapPage page) {
+            this.page = page;
+            this.curTuple = 0;
+        }
+
+        public boolean hasNext() {
+            while (curTuple < page.getNumSlots() && !page.isSlotUsed(curTuple)) {
+                curTuple++;
+            }
+            return curTuple < page.getNumSlots();
+        }
+
+        public Tuple next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return page.getTuple(curTuple++);
+        }
+
+        public void remove() throws UnsupportedOperationException {
+            throw new UnsupportedOperationException("Cannot remove");
+        }
+    }
+}
@@ -0,0 +1,371 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * StatsCollector computes the TableStats of a table in a single pass, and
+ * for heap files and B+ trees, from a sample of the pages.
+ * <p>
+ * For a HeapFile, up to {@link #DEFAULT_SAMPLE_PAGES} pages are picked at
+ * random (block sampling: every tuple of a sampled page is used), and read
+ * by the tasks of a fork-join pool. Each task summarizes its pages with one
+ * {@link IntSketch} per field, and the sketches are merged as the tasks
+ * join, so no pass is needed to find the range of the values first. The
+ * number of tuples is scaled up from the sample. If the table has no more
+ * pages than the sample size, every page is read and the statistics are
+ * exact.
+ * <p>
+ * For a BTreeFile, the internal pages are read to find the leaves and the
+ * separator keys around each of them, and the leaves are sampled the same
+ * way. The leftmost and rightmost leaves are always sampled, so the
+ * smallest and largest keys are exact. Each leaf that is not sampled adds
+ * the average number of tuples per sampled leaf to the key histogram, in
+ * the middle of the range between its separators, so the distribution of
+ * the keys is known without reading every leaf.
+ * <p>
+ * Sampled pages are read from the file directly, bypassing the buffer pool
+ * and its locks, so changes that are not flushed yet are not seen. Other
+ * kinds of files are scanned through their iterator on the calling thread.
+ */
+public class StatsCollector {
+    /** Default number of pages sampled from a file */
+    public static final int DEFAULT_SAMPLE_PAGES = 1024;
+
+    /** Number of pages below which a task does not split its work */
+    private static final int PAGES_PER_TASK = 16;
+
+    private final int samplePages;
+    private final int parallelism;
+    private final Random rand = new Random();
+
+    /**
+     * Creates a collector with the default sample size that uses one thread
+     * per processor.
+     */
+    public StatsCollector() {
+        this(DEFAULT_SAMPLE_PAGES, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param samplePages the maximum number of pages, or leaves of a B+ tree,
+     *            that are sampled
+     * @param parallelism the number of threads reading pages
+     */
+    public StatsCollector(int samplePages, int parallelism) {
+        if (samplePages < 1 || parallelism < 1) {
+            throw new IllegalArgumentException("sample size and parallelism must be positive");
+        }
+        this.samplePages = samplePages;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Computes the statistics of a table.
+     *
+     * @param tableid the table
+     * @param ioCostPerPage the cost per page of IO, see
+     *            {@link TableStats#TableStats(int, int)}
+     */
+    public TableStats collect(int tableid, int ioCostPerPage) {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        Summary summary;
+        if (file instanceof HeapFile) {
+            summary = sampleHeapFile((HeapFile) file);
+        } else if (file instanceof BTreeFile) {
+            summary = sampleBTreeFile((BTreeFile) file);
+        } else {
+            summary = scan(file);
+        }
+
+        TupleDesc td = file.getTupleDesc();
+        ConcurrentHashMap<Integer, IntHistogram> intHists = new ConcurrentHashMap<Integer, IntHistogram>();
+        ConcurrentHashMap<Integer, StringHistogram> stringHists = new ConcurrentHashMap<Integer, StringHistogram>();
+        for (int i = 0; i < td.numFields(); i++) {
+            switch (td.getFieldType(i)) {
+                case INT_TYPE:
+                    intHists.put(i, summary.fields[i].toHistogram(TableStats.NUM_HIST_BINS));
+                    break;
+                case STRING_TYPE:
+                    StringHistogram hist = new StringHistogram(TableStats.NUM_HIST_BINS);
+                    summary.fields[i].addTo(hist.hist);
+                    stringHists.put(i, hist);
+                    break;
+                default:
+                    assert false;
+            }
+        }
+        int numTuples = (int) Math.round(summary.numTuples * summary.scale);
+        return new TableStats(tableid, ioCostPerPage, numTuples, intHists, stringHists);
+    }
+
+    /**
+     * Samples the pages of a heap file.
+     */
+    private Summary sampleHeapFile(HeapFile file) {
+        int numPages = file.numPages();
+        int[] sample = sample(numPages, false);
+        PageId[] pages = new PageId[sample.length];
+        for (int i = 0; i < sample.length; i++) {
+            pages[i] = new HeapPageId(file.getId(), sample[i]);
+        }
+        Summary summary = summarize(file, pages);
+        if (pages.length > 0) {
+            summary.scale = (double) numPages / pages.length;
+        }
+        return summary;
+    }
+
+    /**
+     * Samples the leaves of a B+ tree, and adds the leaves that are not
+     * sampled to the key histogram using the separators around them.
+     */
+    private Summary sampleBTreeFile(BTreeFile file) {
+        if (file.numPages() == 0) {
+            return new Summary(file.getTupleDesc());
+        }
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) file.readPage(BTreeRootPtrPage.getId(file.getId()));
+        BTreePageId rootId = rootPtr.getRootId();
+        if (rootId == null) {
+            return new Summary(file.getTupleDesc());
+        }
+
+        // walk down the internal levels, keeping the keys between the pages
+        // of each level; leaf i lies between bounds[i] and bounds[i + 1], and
+        // null stands for the smallest or largest key
+        ArrayList<BTreePageId> level = new ArrayList<BTreePageId>();
+        ArrayList<Field> bounds = new ArrayList<Field>();
+        level.add(rootId);
+        bounds.add(null);
+        bounds.add(null);
+        while (level.get(0).pgcateg() == BTreePageId.INTERNAL) {
+            ArrayList<BTreePageId> children = new ArrayList<BTreePageId>();
+            ArrayList<Field> childBounds = new ArrayList<Field>();
+            childBounds.add(bounds.get(0));
+            for (int i = 0; i < level.size(); i++) {
+                Iterator<BTreeEntry> it = ((BTreeInternalPage) file.readPage(level.get(i))).iterator();
+                boolean first = true;
+                while (it.hasNext()) {
+                    BTreeEntry e = it.next();
+                    if (first) {
+                        children.add(e.getLeftChild());
+                        first = false;
+                    }
+                    childBounds.add(e.getKey());
+                    children.add(e.getRightChild());
+                }
+                childBounds.add(bounds.get(i + 1));
+            }
+            level = children;
+            bounds = childBounds;
+        }
+
+        int numLeaves = level.size();
+        int[] sample = sample(numLeaves, true);
+        PageId[] pages = new PageId[sample.length];
+        for (int i = 0; i < sample.length; i++) {
+            pages[i] = level.get(sample[i]);
+        }
+        Summary summary = summarize(file, pages);
+        if (summary.numTuples == 0 || sample.length == numLeaves) {
+            return summary;
+        }
+
+        IntSketch keys = summary.fields[file.keyField()];
+        int min = keys.min();
+        int max = keys.max();
+        int perLeaf = (int) Math.round((double) summary.numTuples / sample.length);
+        for (int i = 0, j = 0; i < numLeaves; i++) {
+            if (j < sample.length && sample[j] == i) {
+                j++;
+                continue;
+            }
+            long lo = bounds.get(i) == null ? min : Math.max(min, Math.min(max, valueOf(bounds.get(i))));
+            long hi = bounds.get(i + 1) == null ? max : Math.max(min, Math.min(max, valueOf(bounds.get(i + 1))));
+            keys.add((int) ((lo + hi) / 2), perLeaf);
+        }
+        summary.scale = (double) numLeaves / sample.length;
+        return summary;
+    }
+
+    /**
+     * @return the integer a field is sketched by
+     */
+    private static int valueOf(Field f) {
+        if (f instanceof CompositeField) {
+            // the key of a unique file starts with its key field
+            f = ((CompositeField) f).getField(0);
+        }
+        if (f.getType() == Type.INT_TYPE) {
+            return ((IntField) f).getValue();
+        }
+        return StringHistogram.stringToInt(((StringField) f).getValue());
+    }
+
+    /**
+     * Summarizes the given pages of a file on the fork-join pool.
+     */
+    private Summary summarize(DbFile file, PageId[] pages) {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            return pool.invoke(new SampleTask(file, pages, 0, pages.length));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Picks the indexes of the pages to sample out of n, in increasing
+     * order.
+     *
+     * @param keepEnds whether the first and the last page are always picked
+     */
+    private int[] sample(int n, boolean keepEnds) {
+        int[] picked;
+        if (n <= samplePages) {
+            picked = new int[n];
+            for (int i = 0; i < n; i++) {
+                picked[i] = i;
+            }
+            return picked;
+        }
+        // Floyd's algorithm picks k distinct pages uniformly out of the
+        // pages from first to n - 1
+        int first = 0;
+        int k = samplePages;
+        TreeSet<Integer> chosen = new TreeSet<Integer>();
+        if (keepEnds && samplePages >= 2) {
+            chosen.add(0);
+            chosen.add(n - 1);
+            first = 1;
+            n--;
+            k -= 2;
+        }
+        for (int j = n - first - k; j < n - first; j++) {
+            int t = rand.nextInt(j + 1);
+            if (!chosen.add(first + t)) {
+                chosen.add(first + j);
+            }
+        }
+        picked = new int[chosen.size()];
+        int i = 0;
+        for (int p : chosen) {
+            picked[i++] = p;
+        }
+        return picked;
+    }
+
+    /**
+     * Scans a whole file through its iterator.
+     */
+    private Summary scan(DbFile file) {
+        Summary summary = new Summary(file.getTupleDesc());
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = file.iterator(tid);
+        try {
+            it.open();
+            while (it.hasNext()) {
+                summary.add(it.next());
+            }
+            it.close();
+        } catch (DbException e) {
+            e.printStackTrace();
+        } catch (TransactionAbortedException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                Database.getBufferPool().transactionComplete(tid);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return summary;
+    }
+
+    /**
+     * The number of tuples seen and a sketch of the values of each field.
+     * String fields are sketched by the integers StringHistogram maps them
+     * to.
+     */
+    private static class Summary {
+        final TupleDesc td;
+        final IntSketch[] fields;
+        int numTuples;
+        /** The number of tuples in the file for each tuple seen */
+        double scale = 1.0;
+
+        Summary(TupleDesc td) {
+            this.td = td;
+            this.fields = new IntSketch[td.numFields()];
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = new IntSketch();
+            }
+        }
+
+        void add(Tuple t) {
+            for (int i = 0; i < fields.length; i++) {
+                if (td.getFieldType(i) == Type.INT_TYPE) {
+                    fields[i].add(t.getInt(i));
+                } else {
+                    fields[i].add(StringHistogram.stringToInt(t.getString(i)));
+                }
+            }
+            numTuples++;
+        }
+
+        Summary merge(Summary other) {
+            for (int i = 0; i < fields.length; i++) {
+                fields[i].merge(other.fields[i]);
+            }
+            numTuples += other.numTuples;
+            return this;
+        }
+    }
+
+    /**
+     * Summarizes a range of the sampled pages, splitting it in two if it is
+     * large.
+     */
+    private static class SampleTask extends RecursiveTask<Summary> {
+        private static final long serialVersionUID = 1L;
+
+        private final DbFile file;
+        private final PageId[] pages;
+        private final int from;
+        private final int to;
+
+        SampleTask(DbFile file, PageId[] pages, int from, int to) {
+            this.file = file;
+            this.pages = pages;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Summary compute() {
+            if (to - from > PAGES_PER_TASK) {
+                int mid = (from + to) >>> 1;
+                SampleTask left = new SampleTask(file, pages, from, mid);
+                left.fork();
+                Summary right = new SampleTask(file, pages, mid, to).compute();
+                return left.join().merge(right);
+            }
+            Summary summary = new Summary(file.getTupleDesc());
+            for (int i = from; i < to; i++) {
+                Page page = file.readPage(pages[i]);
+                Iterator<Tuple> it = page instanceof BTreeLeafPage ? ((BTreeLeafPage) page).iterator()
+                        : ((HeapPage) page).iterator();
+                while (it.hasNext()) {
+                    summary.add(it.next());
+                }
+            }
+            return summary;
+        }
+    }
+}
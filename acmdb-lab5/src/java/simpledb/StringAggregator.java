@@ -49,7 +49,7 @@ public class StringAggregator implements Aggregator {
         // some code goes here
         Field key = this.noGrouping ? null : tup.getField(this.gbfield);
         StringAggregateValue aggValue = this.groups.get(key);
-        String value = ((StringField) tup.getField(this.afield)).getValue();
+        String value = tup.getString(this.afield);
         if (aggValue == null) {
             switch (this.what) {
                 case COUNT:
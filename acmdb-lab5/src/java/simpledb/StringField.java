@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Instance of Field that stores a single String of a fixed length.
@@ -66,6 +67,28 @@ public class StringField implements Field {
             dos.write((byte) 0);
     }
 
+    /**
+     * Write this string to buf at the given offset, in the same format as
+     * {@link #serialize(DataOutputStream)}. The padding is written as well,
+     * so buf may be reused.
+     *
+     * @param buf
+     *            Where the string is written
+     * @param offset
+     *            The absolute position of the field in buf
+     */
+    public void serialize(ByteBuffer buf, int offset) {
+        int len = Math.min(value.length(), maxSize);
+        buf.putInt(offset, len);
+        offset += 4;
+        for (int i = 0; i < len; i++) {
+            buf.put(offset + i, (byte) value.charAt(i));
+        }
+        for (int i = len; i < maxSize; i++) {
+            buf.put(offset + i, (byte) 0);
+        }
+    }
+
     /**
      * Compare the specified field to the value of this Field. Return semantics
      * are as specified by Field.compare
@@ -77,7 +100,16 @@ public class StringField implements Field {
     public boolean compare(Predicate.Op op, Field val) {
 
         StringField iVal = (StringField) val;
-        int cmpVal = value.compareTo(iVal.value);
+
+        return compare(op, value, iVal.value);
+    }
+
+    /**
+     * Compare two string values with the given operator, with the same
+     * semantics as {@link #compare(Predicate.Op, Field)}.
+     */
+    public static boolean compare(Predicate.Op op, String value, String operand) {
+        int cmpVal = value.compareTo(operand);
 
         switch (op) {
             case EQUALS:
@@ -99,7 +131,7 @@ public class StringField implements Field {
                 return cmpVal <= 0;
 
             case LIKE:
-                return value.indexOf(iVal.value) >= 0;
+                return value.indexOf(operand) >= 0;
         }
 
         return false;
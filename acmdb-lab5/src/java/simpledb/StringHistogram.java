@@ -1,5 +1,9 @@
 package simpledb;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 /**
  * A class to represent a fixed-width histogram over a single String-based
  * field.
@@ -20,11 +24,15 @@ public class StringHistogram {
         hist = new IntHistogram(buckets, minVal(), maxVal());
     }
 
+    private StringHistogram(IntHistogram hist) {
+        this.hist = hist;
+    }
+
     /**
      * Convert a string to an integer, with the property that if the return
      * value(s1) < return value(s2), then s1 < s2
      */
-    private int stringToInt(String s) {
+    static int stringToInt(String s) {
         int i;
         int v = 0;
         for (i = 3; i >= 0; i--) {
@@ -50,12 +58,12 @@ public class StringHistogram {
     }
 
     /** @return the maximum value indexed by the histogram */
-    int maxVal() {
+    static int maxVal() {
         return stringToInt("zzzz");
     }
 
     /** @return the minimum value indexed by the histogram */
-    int minVal() {
+    static int minVal() {
         return stringToInt("");
     }
 
@@ -65,6 +73,14 @@ public class StringHistogram {
         hist.addValue(val);
     }
 
+    /**
+     * Add n copies of a value to the histogram, or remove them if n is
+     * negative.
+     */
+    public void addValue(String s, int n) {
+        hist.addValue(stringToInt(s), n);
+    }
+
     /**
      * Estimate the selectivity (as a double between 0 and 1) of the specified
      * predicate over the specified string
@@ -79,6 +95,20 @@ public class StringHistogram {
         return hist.estimateSelectivity(op, val);
     }
 
+    /**
+     * Writes this histogram, in the format read by {@link #read}.
+     */
+    public void write(DataOutput out) throws IOException {
+        hist.write(out);
+    }
+
+    /**
+     * Reads a histogram written by {@link #write}.
+     */
+    public static StringHistogram read(DataInput in) throws IOException {
+        return new StringHistogram(IntHistogram.read(in));
+    }
+
     /**
      * @return the average selectivity of this histogram.
      * 
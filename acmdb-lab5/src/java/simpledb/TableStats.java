@@ -1,15 +1,34 @@
 package simpledb;
 
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import simpledb.TupleDesc.TDItem;
 
 /**
  * TableStats represents statistics (e.g., histograms) about base tables in a
  * query. 
+ * <p>
+ * Statistics can be saved to a statistics file next to the catalog, see
+ * {@link #saveStatistics} and {@link #loadStatistics}. Loading only reads the
+ * table of contents of the file; the statistics of a table are read the first
+ * time they are used. Tables without saved statistics are sampled by the
+ * {@link StatsCollector} the first time their statistics are used instead.
+ * The constructor always scans the whole table.
  * 
  * This class is not needed in implementing lab1, lab2 and lab3.
  */
@@ -18,6 +37,8 @@ public class TableStats {
     private static final ConcurrentHashMap<String, TableStats> statsMap = new ConcurrentHashMap<String, TableStats>();
 
     static final int IOCOSTPERPAGE = 1000;
+    /** Cost of reading a page at random relative to reading it in a scan */
+    static final int RANDOM_IO_FACTOR = 2;
 
     public static TableStats getTableStats(String tablename) {
         return statsMap.get(tablename);
@@ -54,12 +75,286 @@ public class TableStats {
         System.out.println("Computing table stats.");
         while (tableIt.hasNext()) {
             int tableid = tableIt.next();
-            TableStats s = new TableStats(tableid, IOCOSTPERPAGE);
+            TableStats s = statsCollector.collect(tableid, IOCOSTPERPAGE);
             setTableStats(Database.getCatalog().getTableName(tableid), s);
         }
         System.out.println("Done.");
     }
 
+    /** Computes the statistics of computeStatistics, ANALYZE and lazily loaded tables */
+    private static volatile StatsCollector statsCollector = new StatsCollector();
+
+    /**
+     * Sets the collector used to compute statistics, e.g. to change the
+     * sample size or the parallelism.
+     */
+    public static void setStatsCollector(StatsCollector collector) {
+        statsCollector = collector;
+    }
+
+    public static StatsCollector getStatsCollector() {
+        return statsCollector;
+    }
+
+    /** Identifies a statistics file, and the version of its format */
+    private static final int STATS_FILE_MAGIC = 0x53544154;
+
+    /** The file the statistics were loaded from, if any */
+    private static File statsFile;
+
+    /**
+     * @return the statistics file that belongs to the given catalog file: the
+     *         file in the same directory with the same name, and the
+     *         extension .stats
+     */
+    public static File getStatsFile(String catalogFile) {
+        File f = new File(catalogFile).getAbsoluteFile();
+        String name = f.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            name = name.substring(0, dot);
+        }
+        return new File(f.getParentFile(), name + ".stats");
+    }
+
+    /**
+     * Sets up statistics for every table in the catalog, without reading any
+     * of them yet. Statistics saved in the given file are read from it the
+     * first time they are used, and the other tables are sampled the first
+     * time their statistics are used. Statistics whose schema does not match
+     * the table any more are ignored.
+     * <p>
+     * Later calls to {@link #saveStatistics()} write to the same file.
+     *
+     * @param f the statistics file; it does not have to exist
+     */
+    public static synchronized void loadStatistics(File f) throws IOException {
+        statsFile = f;
+        Map<String, Long> offsets = new HashMap<String, Long>();
+        if (f.exists()) {
+            RandomAccessFile raf = new RandomAccessFile(f, "r");
+            try {
+                if (raf.readInt() != STATS_FILE_MAGIC) {
+                    throw new IOException("not a statistics file: " + f);
+                }
+                int numTables = raf.readInt();
+                for (int i = 0; i < numTables; i++) {
+                    offsets.put(raf.readUTF(), raf.readLong());
+                }
+            } finally {
+                raf.close();
+            }
+        }
+
+        Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
+        while (tableIt.hasNext()) {
+            int tableid = tableIt.next();
+            String name = Database.getCatalog().getTableName(tableid);
+            if (Database.getCatalog().getTableId(name) != tableid) {
+                // the name was taken over by another table
+                continue;
+            }
+            Long offset = offsets.get(name);
+            setTableStats(name, new TableStats(tableid, IOCOSTPERPAGE, offset == null ? -1 : offset));
+        }
+    }
+
+    /**
+     * Writes the statistics of every table to the file they were loaded from.
+     * Does nothing if {@link #loadStatistics} was never called.
+     */
+    public static synchronized void saveStatistics() throws IOException {
+        if (statsFile != null) {
+            saveStatistics(statsFile);
+        }
+    }
+
+    /**
+     * Writes the statistics of every table to a file. The file is replaced
+     * atomically, so that a crash never leaves half of it behind.
+     *
+     * @param f the statistics file
+     */
+    public static synchronized void saveStatistics(File f) throws IOException {
+        // encode each table first, which reads any statistics that are still
+        // in the old file
+        Map<String, byte[]> sections = new LinkedHashMap<String, byte[]>();
+        for (Map.Entry<String, TableStats> e : statsMap.entrySet()) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            e.getValue().write(out);
+            out.flush();
+            sections.put(e.getKey(), bytes.toByteArray());
+        }
+
+        // the table of contents has the same size whatever the offsets, so
+        // it is written once to find the offset of the first section
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        writeContents(header, sections, 0);
+        long start = header.size();
+        header.reset();
+        writeContents(header, sections, start);
+
+        File tmp = new File(f.getPath() + ".tmp");
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(tmp));
+        try {
+            header.writeTo(os);
+            for (byte[] section : sections.values()) {
+                os.write(section);
+            }
+        } finally {
+            os.close();
+        }
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Writes the table of contents of a statistics file: the name of each
+     * table and the offset of its section.
+     */
+    private static void writeContents(OutputStream os, Map<String, byte[]> sections, long start)
+            throws IOException {
+        DataOutputStream out = new DataOutputStream(os);
+        out.writeInt(STATS_FILE_MAGIC);
+        out.writeInt(sections.size());
+        long offset = start;
+        for (Map.Entry<String, byte[]> e : sections.entrySet()) {
+            out.writeUTF(e.getKey());
+            out.writeLong(offset);
+            offset += e.getValue().length;
+        }
+        out.flush();
+    }
+
+    /**
+     * Recomputes the statistics of a table and saves them, if the statistics
+     * were loaded from a file. This implements the ANALYZE statement.
+     *
+     * @param tableid the table to analyze
+     */
+    public static void analyze(int tableid) throws IOException {
+        String name = Database.getCatalog().getTableName(tableid);
+        setTableStats(name, statsCollector.collect(tableid, IOCOSTPERPAGE));
+        saveStatistics();
+    }
+
+    /**
+     * Recomputes the statistics of every table, and saves them if the
+     * statistics were loaded from a file.
+     */
+    public static void analyzeAll() throws IOException {
+        computeStatistics();
+        saveStatistics();
+    }
+
+    /**
+     * Fraction of the tuples of a table that must be inserted or deleted
+     * before the table is analyzed again in the background
+     */
+    public static final double DEFAULT_AUTO_ANALYZE_FRACTION = 0.2;
+
+    /** Tables smaller than this count as this large for auto-analyze */
+    static final int AUTO_ANALYZE_MIN_TUPLES = 1000;
+
+    private static volatile double autoAnalyzeFraction = DEFAULT_AUTO_ANALYZE_FRACTION;
+
+    private static ExecutorService analyzeExecutor;
+
+    /** Tables that are waiting to be analyzed in the background */
+    private static final Set<Integer> analyzing = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+    /**
+     * Sets the fraction of the tuples of a table that must change before it
+     * is analyzed again automatically, see {@link #tupleInserted}.
+     *
+     * @param fraction the fraction, or 0 to turn auto-analyze off
+     */
+    public static void setAutoAnalyzeFraction(double fraction) {
+        if (fraction < 0) {
+            throw new IllegalArgumentException("negative auto-analyze fraction");
+        }
+        autoAnalyzeFraction = fraction;
+    }
+
+    public static double getAutoAnalyzeFraction() {
+        return autoAnalyzeFraction;
+    }
+
+    private static synchronized ExecutorService getAnalyzeExecutor() {
+        if (analyzeExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "TableStats-analyze");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            analyzeExecutor = executor;
+        }
+        return analyzeExecutor;
+    }
+
+    /**
+     * Returns the statistics of a table, or null if there are none.
+     */
+    private static TableStats getTableStats(int tableid) {
+        String name;
+        try {
+            name = Database.getCatalog().getTableName(tableid);
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+        TableStats stats = statsMap.get(name);
+        if (stats == null || stats.file.getId() != tableid) {
+            return null;
+        }
+        return stats;
+    }
+
+    /**
+     * Updates the statistics of a table after a tuple was inserted into it.
+     * This is called by {@link BufferPool#insertTuple}. Once the number of
+     * tuples inserted and deleted since the statistics were computed
+     * reaches the auto-analyze fraction of the table, the table is analyzed
+     * again in the background.
+     * <p>
+     * Updates are counted when they are made, whether or not their
+     * transaction commits, so the statistics of a table with aborted
+     * transactions drift until it is analyzed again.
+     */
+    static void tupleInserted(int tableid, Tuple t) {
+        TableStats stats = getTableStats(tableid);
+        if (stats != null) {
+            stats.update(t, 1);
+        }
+    }
+
+    /**
+     * Updates the statistics of a table after a tuple was deleted from it,
+     * see {@link #tupleInserted}.
+     */
+    static void tupleDeleted(int tableid, Tuple t) {
+        TableStats stats = getTableStats(tableid);
+        if (stats != null) {
+            stats.update(t, -1);
+        }
+    }
+
+    /**
+     * Updates the statistics of a table after tuples were loaded into it
+     * without going through the buffer pool. Only the number of tuples is
+     * updated, so a large load usually triggers auto-analyze.
+     */
+    static void tuplesLoaded(int tableid, int count) {
+        TableStats stats = getTableStats(tableid);
+        if (stats != null) {
+            stats.update(null, count);
+        }
+    }
+
     /**
      * Number of bins for the histogram. Feel free to increase this value over
      * 100, though our tests assume that you have at least 100 bins in your
@@ -68,10 +363,20 @@ public class TableStats {
     static final int NUM_HIST_BINS = 100;
     // private final int tableid;
     private final int ioCostPerPage;
-    private final HeapFile file;
+    private final DbFile file;
     private final ConcurrentHashMap<Integer, IntHistogram> intHists;
     private final ConcurrentHashMap<Integer, StringHistogram> stringHists;
     private int nTuples;
+    /**
+     * Whether the statistics are computed or read yet. Until they are, they
+     * are read from pendingFile at pendingOffset, or computed by scanning
+     * the table if pendingFile is null.
+     */
+    private boolean loaded;
+    private File pendingFile;
+    private long pendingOffset;
+    /** Number of tuples inserted or deleted since the statistics were computed */
+    private int modifications;
     // private TupleDesc tupleDesc;
     // private int ntups = 0;
     //String is the field name (from TupleDesc's fieldAr)
@@ -101,13 +406,194 @@ public class TableStats {
         // this.tableid = tableid;
         this.ioCostPerPage = ioCostPerPage;
         this.nTuples = 0;
-        this.file = (HeapFile) Database.getCatalog().getDatabaseFile(tableid);
+        this.file = Database.getCatalog().getDatabaseFile(tableid);
         this.intHists = new ConcurrentHashMap<Integer, IntHistogram>();
         this.stringHists = new ConcurrentHashMap<Integer, StringHistogram>();
+        this.loaded = true;
+        scan();
+    }
+
+    /**
+     * Creates a TableStats object from statistics computed elsewhere, see
+     * {@link StatsCollector}.
+     */
+    TableStats(int tableid, int ioCostPerPage, int nTuples, ConcurrentHashMap<Integer, IntHistogram> intHists,
+            ConcurrentHashMap<Integer, StringHistogram> stringHists) {
+        this.ioCostPerPage = ioCostPerPage;
+        this.nTuples = nTuples;
+        this.file = Database.getCatalog().getDatabaseFile(tableid);
+        this.intHists = intHists;
+        this.stringHists = stringHists;
+        this.loaded = true;
+    }
+
+    /**
+     * Creates a TableStats object whose statistics are read from the
+     * statistics file, or computed, the first time they are used.
+     *
+     * @param offset
+     *            the offset of the statistics of the table in the statistics
+     *            file, or -1 to compute them instead
+     */
+    private TableStats(int tableid, int ioCostPerPage, long offset) {
+        this.ioCostPerPage = ioCostPerPage;
+        this.nTuples = 0;
+        this.file = Database.getCatalog().getDatabaseFile(tableid);
+        this.intHists = new ConcurrentHashMap<Integer, IntHistogram>();
+        this.stringHists = new ConcurrentHashMap<Integer, StringHistogram>();
+        this.loaded = false;
+        this.pendingFile = offset < 0 ? null : statsFile;
+        this.pendingOffset = offset;
+    }
+
+    /**
+     * Reads or computes the statistics, if that was not done yet.
+     */
+    private synchronized void ensureLoaded() {
+        if (this.loaded) {
+            return;
+        }
+        this.loaded = true;
+        if (this.pendingFile != null) {
+            try {
+                FileInputStream fis = new FileInputStream(this.pendingFile);
+                try {
+                    fis.getChannel().position(this.pendingOffset);
+                    if (read(new DataInputStream(new BufferedInputStream(fis)))) {
+                        return;
+                    }
+                } finally {
+                    fis.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            // the saved statistics are unusable; compute them instead
+            this.intHists.clear();
+            this.stringHists.clear();
+        }
+        TableStats computed = statsCollector.collect(this.file.getId(), this.ioCostPerPage);
+        this.nTuples = computed.nTuples;
+        this.intHists.putAll(computed.intHists);
+        this.stringHists.putAll(computed.stringHists);
+    }
+
+    /**
+     * Adds a tuple to the statistics, or removes it if delta is -1. If t is
+     * null, only the number of tuples is changed, by delta. The statistics
+     * are only estimates, so a failure to update them is printed rather
+     * than failing the change of the table, which is already made.
+     */
+    private synchronized void update(Tuple t, int delta) {
+        try {
+            ensureLoaded();
+            this.nTuples = Math.max(0, this.nTuples + delta);
+            this.modifications += Math.abs(delta);
+            if (t != null) {
+                TupleDesc td = this.file.getTupleDesc();
+                for (int i = 0; i < td.numFields(); i++) {
+                    switch (td.getFieldType(i)) {
+                        case INT_TYPE:
+                            this.intHists.get(i).addValue(t.getInt(i), delta);
+                            break;
+                        case STRING_TYPE:
+                            this.stringHists.get(i).addValue(t.getString(i), delta);
+                            break;
+                        default:
+                            assert false;
+                    }
+                }
+            }
+
+            double fraction = autoAnalyzeFraction;
+            if (fraction > 0 && this.modifications >= fraction * Math.max(this.nTuples, AUTO_ANALYZE_MIN_TUPLES)) {
+                final int tableid = this.file.getId();
+                if (analyzing.add(tableid)) {
+                    getAnalyzeExecutor().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                if (getTableStats(tableid) != null) {
+                                    analyze(tableid);
+                                }
+                            } catch (IOException e) {
+                                e.printStackTrace();
+                            } catch (NoSuchElementException e) {
+                                // the table was dropped in the meantime
+                            } finally {
+                                analyzing.remove(tableid);
+                            }
+                        }
+                    });
+                }
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes the statistics, in the format read by {@link #read}.
+     */
+    private synchronized void write(DataOutputStream out) throws IOException {
+        ensureLoaded();
+        TupleDesc td = this.file.getTupleDesc();
+        out.writeInt(td.numFields());
+        for (int i = 0; i < td.numFields(); i++) {
+            out.writeInt(td.getFieldType(i).ordinal());
+        }
+        out.writeInt(this.nTuples);
+        for (int i = 0; i < td.numFields(); i++) {
+            switch (td.getFieldType(i)) {
+                case INT_TYPE:
+                    this.intHists.get(i).write(out);
+                    break;
+                case STRING_TYPE:
+                    this.stringHists.get(i).write(out);
+                    break;
+                default:
+                    assert false;
+            }
+        }
+    }
 
+    /**
+     * Reads statistics written by {@link #write}.
+     *
+     * @return false if the statistics are for a different schema
+     */
+    private boolean read(DataInputStream in) throws IOException {
+        TupleDesc td = this.file.getTupleDesc();
+        if (in.readInt() != td.numFields()) {
+            return false;
+        }
+        for (int i = 0; i < td.numFields(); i++) {
+            if (in.readInt() != td.getFieldType(i).ordinal()) {
+                return false;
+            }
+        }
+        this.nTuples = in.readInt();
+        for (int i = 0; i < td.numFields(); i++) {
+            switch (td.getFieldType(i)) {
+                case INT_TYPE:
+                    this.intHists.put(i, IntHistogram.read(in));
+                    break;
+                case STRING_TYPE:
+                    this.stringHists.put(i, StringHistogram.read(in));
+                    break;
+                default:
+                    assert false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Computes the statistics by scanning the table.
+     */
+    private void scan() {
         TupleDesc td = this.file.getTupleDesc();
-        Transaction transaction = new Transaction();
-        TransactionId tid = transaction.getId();
+        TransactionId tid = new TransactionId();
         DbFileIterator dbIt = file.iterator(tid);
 
         int[] mins = new int[td.numFields()];
@@ -174,6 +660,13 @@ public class TableStats {
             e.printStackTrace();
         } catch (DbException e) {
             e.printStackTrace();
+        } finally {
+            // release the read locks, so that the table can be updated
+            try {
+                Database.getBufferPool().transactionComplete(tid);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
     }
 
@@ -191,7 +684,80 @@ public class TableStats {
      */
     public double estimateScanCost() {
         // some code goes here
-        return this.file.numPages() * this.ioCostPerPage;
+        return numPages(this.file) * this.ioCostPerPage;
+    }
+
+    /**
+     * Estimates the cost of reading the tuples of a range of keys through a
+     * {@link SecondaryIndex} of the table, given the selectivity of the
+     * range. The tuples are fetched in page order, so each page is read at
+     * most once; the number of distinct pages holding k of the n tuples
+     * spread over p pages is estimated as p * (1 - (1 - 1/p)^k) (Cardenas'
+     * formula). These reads are not sequential, so each one costs
+     * RANDOM_IO_FACTOR times a page of a scan. The leaf pages of the index
+     * holding the entries are read too.
+     *
+     * @param field the indexed field
+     * @param selectivity the fraction of the tuples the index returns
+     * @return The estimated cost of the index scan.
+     */
+    public double estimateIndexScanCost(int field, double selectivity) {
+        int pages = numPages(this.file);
+        if (pages == 0) {
+            return 0;
+        }
+        double k = selectivity * totalTuples();
+        double pagesTouched = pages * (1 - Math.pow(1 - 1.0 / pages, k));
+        return (pagesTouched * RANDOM_IO_FACTOR + indexLeafPages(field, k) + 1) * this.ioCostPerPage;
+    }
+
+    /**
+     * Estimates the cost of answering a query from an index alone, without
+     * fetching any tuple, given the selectivity of the range of keys read.
+     * For a {@link BTreeFile} table keyed on the field, the pages holding
+     * the range are read; for a {@link SecondaryIndex}, the leaf pages
+     * holding its entries. Either way the pages are read in key order, after
+     * one page for the descent of the tree.
+     *
+     * @param field the indexed field, or the key field of a BTreeFile
+     * @param selectivity the fraction of the tuples in the range
+     * @return The estimated cost of the index-only scan.
+     */
+    public double estimateIndexOnlyScanCost(int field, double selectivity) {
+        double pages;
+        if (this.file instanceof BTreeFile && ((BTreeFile) this.file).keyField() == field) {
+            pages = Math.ceil(selectivity * numPages(this.file));
+        } else {
+            pages = indexLeafPages(field, selectivity * totalTuples());
+        }
+        return (pages + 1) * this.ioCostPerPage;
+    }
+
+    /**
+     * Returns the number of leaf pages holding k entries of a secondary
+     * index on the given field.
+     */
+    private double indexLeafPages(int field, double k) {
+        int entrySize = this.file.getTupleDesc().getFieldType(field).getLen() + 2 * Type.INT_TYPE.getLen();
+        return Math.ceil(k * entrySize / BufferPool.getPageSize());
+    }
+
+    /**
+     * Returns the number of pages of the given file.
+     */
+    static int numPages(DbFile file) {
+        if (file instanceof HeapFile) {
+            return ((HeapFile) file).numPages();
+        } else if (file instanceof SlottedHeapFile) {
+            return ((SlottedHeapFile) file).numPages();
+        } else if (file instanceof ColumnarFile) {
+            return ((ColumnarFile) file).numPages();
+        } else if (file instanceof BTreeFile) {
+            return ((BTreeFile) file).numPages();
+        } else if (file instanceof HashFile) {
+            return ((HashFile) file).numPages();
+        }
+        throw new IllegalArgumentException("unsupported file type " + file.getClass().getName());
     }
 
     /**
@@ -239,9 +805,22 @@ public class TableStats {
      */
     public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
         // some code goes here
+        // the zone map of a heap file bounds the selectivity by the fraction
+        // of the pages that may hold a match, and a predicate no page can
+        // match needs no histogram at all
+        double pages = 1.0;
+        if (this.file instanceof HeapFile && constant.getType() == Type.INT_TYPE) {
+            HeapFile hf = (HeapFile) this.file;
+            pages = hf.getZoneMap().matchingFraction(hf.numPages(), field, op, constant);
+            if (pages == 0.0) {
+                return 0.0;
+            }
+        }
+        ensureLoaded();
         switch (constant.getType()) {
             case INT_TYPE:
-                return this.intHists.get(field).estimateSelectivity(op, ((IntField) constant).getValue());
+                return Math.min(pages,
+                        this.intHists.get(field).estimateSelectivity(op, ((IntField) constant).getValue()));
             case STRING_TYPE:
                 return this.stringHists.get(field).estimateSelectivity(op, ((StringField) constant).getValue());
             default:
@@ -255,6 +834,7 @@ public class TableStats {
      * */
     public int totalTuples() {
         // some code goes here
+        ensureLoaded();
         return this.nTuples;
     }
 
@@ -7,6 +7,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 class TransactionLockManager {
     private final ConcurrentMap<PageId, Object> locks;
@@ -14,6 +15,12 @@ class TransactionLockManager {
     private final ConcurrentMap<PageId, TransactionId> exclusiveLocks;
     private final ConcurrentMap<TransactionId, Set<PageId>> pageIdsLockedByTransaction;
     private final ConcurrentMap<TransactionId, Set<TransactionId>> dependencyGraph;
+    /** For each page, the write version it got when an exclusive lock on it was last granted */
+    private final ConcurrentMap<PageId, Long> writeVersions;
+    /** The last write version handed out, the write versions of all pages are drawn from it */
+    private final AtomicLong lastWriteVersion;
+    /** The largest write version of the pages that were dropped from writeVersions */
+    private final AtomicLong forgottenWriteVersion;
 
     public TransactionLockManager() {
         locks = new ConcurrentHashMap<PageId, Object>();
@@ -21,6 +28,9 @@ class TransactionLockManager {
         exclusiveLocks = new ConcurrentHashMap<PageId, TransactionId>();
         pageIdsLockedByTransaction = new ConcurrentHashMap<TransactionId, Set<PageId>>();
         dependencyGraph = new ConcurrentHashMap<TransactionId, Set<TransactionId>>();
+        writeVersions = new ConcurrentHashMap<PageId, Long>();
+        lastWriteVersion = new AtomicLong();
+        forgottenWriteVersion = new AtomicLong();
     }
 
     public Set<PageId> getPagesInTransaction(TransactionId tid) {
@@ -90,7 +100,7 @@ class TransactionLockManager {
     private void addSharedUser(TransactionId tid, PageId pid) {
         Set<TransactionId> tids = sharedLocks.get(pid);
         if (tids == null) {
-            tids = new HashSet<TransactionId>();
+            tids = ConcurrentHashMap.newKeySet();
             sharedLocks.put(pid, tids);
         }
         tids.add(tid);
@@ -104,6 +114,28 @@ class TransactionLockManager {
         return tids != null && tids.contains(tid);
     }
 
+    /**
+     * Returns the write version of a page, which changes whenever a
+     * transaction is granted an exclusive lock on it, or -1 if a transaction
+     * other than tid holds one now. A page read without a lock was not
+     * modified by another transaction if its write version was the same,
+     * and not -1, before and after it was read.
+     * <p>
+     * Pages whose version was forgotten, see {@link #forgetWriteVersion},
+     * share the largest version forgotten so far. It only grows, and all
+     * versions are drawn from the same sequence, so a page never gets back
+     * a version it had before it was last written.
+     */
+    public long getWriteVersion(TransactionId tid, PageId pid) {
+        Long version = writeVersions.get(pid);
+        long v = version == null ? forgottenWriteVersion.get() : version;
+        TransactionId holder = exclusiveLocks.get(pid);
+        if (holder != null && !holder.equals(tid)) {
+            return -1;
+        }
+        return v;
+    }
+
     public boolean hasWritePermissions(TransactionId tid, PageId pid) {
         TransactionId tid2 = exclusiveLocks.get(pid);
         return tid2 != null && tid2.equals(tid);
@@ -142,7 +174,7 @@ class TransactionLockManager {
     private void addPageToTransactionLocks(TransactionId tid, PageId pid) {
         Set<PageId> pids = pageIdsLockedByTransaction.get(tid);
         if (pids == null) {
-            pids = new HashSet<PageId>();
+            pids = ConcurrentHashMap.newKeySet();
             pageIdsLockedByTransaction.put(tid, pids);
         }
         pids.add(pid);
@@ -171,6 +203,24 @@ class TransactionLockManager {
     private void addExclusiveUser(TransactionId tid, PageId pid) {
         exclusiveLocks.put(pid, tid);
         sharedLocks.remove(pid);
+        writeVersions.put(pid, lastWriteVersion.incrementAndGet());
+    }
+
+    /**
+     * Drops the write version of a page that left the buffer pool, so that
+     * only the versions of cached pages are kept.
+     */
+    public void forgetWriteVersion(PageId pid) {
+        Long version = writeVersions.get(pid);
+        if (version == null) {
+            return;
+        }
+        // raise the shared version first, so that it is seen once the page's own is gone
+        long forgotten = forgottenWriteVersion.get();
+        while (forgotten < version && !forgottenWriteVersion.compareAndSet(forgotten, version)) {
+            forgotten = forgottenWriteVersion.get();
+        }
+        writeVersions.remove(pid, version);
     }
 
     enum VisitState {
@@ -184,10 +234,12 @@ class TransactionLockManager {
     private void testForDeadlock(TransactionId tid, Map<TransactionId, VisitState> visitedTransactionIds)
             throws TransactionAbortedException {
         visitedTransactionIds.put(tid, VisitState.Visiting);
-        if (!dependencyGraph.containsKey(tid)) {
+        Set<TransactionId> dependees = dependencyGraph.get(tid);
+        if (dependees == null) {
             return;
         }
-        for (TransactionId dependee : dependencyGraph.get(tid)) {
+        // other threads add to and remove the sets while they are walked
+        for (TransactionId dependee : dependees) {
             VisitState state = visitedTransactionIds.get(dependee);
             if (state == VisitState.Visiting) {
                 throw new TransactionAbortedException();
@@ -209,8 +261,11 @@ class TransactionLockManager {
 
     private void addDependencies(TransactionId dependent, Set<TransactionId> dependees)
             throws TransactionAbortedException {
-        dependencyGraph.putIfAbsent(dependent, new HashSet<TransactionId>());
         Set<TransactionId> dependeesCollection = dependencyGraph.get(dependent);
+        if (dependeesCollection == null) {
+            dependeesCollection = ConcurrentHashMap.newKeySet();
+            dependencyGraph.put(dependent, dependeesCollection);
+        }
         boolean addedDependee = false;
         for (TransactionId dependee : dependees) {
             if (!dependeesCollection.contains(dependee) && !dependee.equals(dependent)) {
@@ -8,12 +8,28 @@ import java.util.Iterator;
  * Tuple maintains information about the contents of a tuple. Tuples have a
  * specified schema specified by a TupleDesc object and contain Field objects
  * with the data for each field.
+ * <p>
+ * To keep rows small, the values of int fields are not stored as IntField
+ * objects but unboxed in an int[], and can be accessed without allocation
+ * through {@link #getInt} and {@link #setInt}. {@link #getField} creates an
+ * IntField for them the first time it is called, and keeps it for later
+ * calls. Other fields are stored as Field objects.
  */
 public class Tuple implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
     private TupleDesc td;
+    private int numFields;
+    /**
+     * The values of the int fields, indexed by field number, followed by a
+     * bitmap of the int fields that are set
+     */
+    private int[] ints;
+    /**
+     * The values of all other fields, and the IntFields created for int
+     * fields, or null if there are none
+     */
     private Field[] fields;
     private RecordId rid;
 
@@ -26,8 +42,7 @@ public class Tuple implements Serializable {
      */
     public Tuple(TupleDesc td) {
         // some code goes here
-        this.td = td;
-        fields = new Field[td.numFields()];
+        resetTupleDesc(td);
     }
 
     /**
@@ -68,7 +83,21 @@ public class Tuple implements Serializable {
      */
     public void setField(int i, Field f) {
         // some code goes here
-        this.fields[i] = f;
+        if (f instanceof IntField && td.getFieldType(i) == Type.INT_TYPE) {
+            setInt(i, ((IntField) f).getValue());
+            if (fields != null) {
+                fields[i] = f;
+            }
+            return;
+        }
+        markInt(i, false);
+        if (fields == null) {
+            if (f == null) {
+                return;
+            }
+            fields = new Field[numFields];
+        }
+        fields[i] = f;
     }
 
     /**
@@ -79,7 +108,87 @@ public class Tuple implements Serializable {
      */
     public Field getField(int i) {
         // some code goes here
-        return this.fields[i];
+        if (isIntSet(i)) {
+            if (fields == null) {
+                fields = new Field[numFields];
+            }
+            Field f = fields[i];
+            if (f == null) {
+                f = new IntField(ints[i]);
+                fields[i] = f;
+            }
+            return f;
+        }
+        return fields == null ? null : fields[i];
+    }
+
+    /**
+     * Change the value of the ith field of this tuple, which must be of type
+     * INT_TYPE, without allocating an IntField.
+     *
+     * @param i
+     *            index of the field to change. It must be a valid index.
+     * @param value
+     *            new value for the field.
+     */
+    public void setInt(int i, int value) {
+        ints[i] = value;
+        markInt(i, true);
+        if (fields != null) {
+            fields[i] = null;
+        }
+    }
+
+    /**
+     * @return the value of the ith field, which must be an int field that
+     *         has been set, without allocating an IntField.
+     *
+     * @param i
+     *            field index to return. Must be a valid index.
+     */
+    public int getInt(int i) {
+        if (isIntSet(i)) {
+            return ints[i];
+        }
+        return ((IntField) getField(i)).getValue();
+    }
+
+    /**
+     * @return the value of the ith field, which must be a string field that
+     *         has been set.
+     *
+     * @param i
+     *            field index to return. Must be a valid index.
+     */
+    public String getString(int i) {
+        return ((StringField) getField(i)).getValue();
+    }
+
+    /**
+     * Sets the ith field of this tuple to the value of the jth field of src,
+     * without allocating an IntField for int fields.
+     */
+    public void copyField(int i, Tuple src, int j) {
+        if (src.isIntSet(j)) {
+            setInt(i, src.ints[j]);
+            if (fields != null && src.fields != null) {
+                fields[i] = src.fields[j];
+            }
+        } else {
+            setField(i, src.fields == null ? null : src.fields[j]);
+        }
+    }
+
+    private boolean isIntSet(int i) {
+        return (ints[numFields + (i >>> 5)] & (1 << (i & 31))) != 0;
+    }
+
+    private void markInt(int i, boolean set) {
+        if (set) {
+            ints[numFields + (i >>> 5)] |= 1 << (i & 31);
+        } else {
+            ints[numFields + (i >>> 5)] &= ~(1 << (i & 31));
+        }
     }
 
     /**
@@ -94,20 +203,33 @@ public class Tuple implements Serializable {
         // some code goes here
         StringBuilder buf = new StringBuilder();
 
-        buf.append(this.fields[0].toString());
-        for (Field field : this.fields) {
-            buf.append("\t" + field.toString());
+        appendField(buf, 0);
+        for (int i = 0; i < numFields; i++) {
+            buf.append('\t');
+            appendField(buf, i);
         }
         return buf.toString();
     }
 
+    private void appendField(StringBuilder buf, int i) {
+        if (isIntSet(i)) {
+            buf.append(ints[i]);
+        } else {
+            buf.append(fields == null ? null : fields[i]);
+        }
+    }
+
     /**
      * @return
      *        An iterator which iterates over all the fields of this tuple
      * */
     public Iterator<Field> fields() {
         // some code goes here
-        return Arrays.asList(this.fields).iterator();
+        Field[] values = new Field[numFields];
+        for (int i = 0; i < numFields; i++) {
+            values[i] = getField(i);
+        }
+        return Arrays.asList(values).iterator();
     }
 
     /**
@@ -116,7 +238,9 @@ public class Tuple implements Serializable {
     public void resetTupleDesc(TupleDesc td) {
         // some code goes here
         this.td = td;
-        fields = new Field[td.numFields()];
+        this.numFields = td.numFields();
+        this.ints = new int[numFields + (numFields + 31) / 32];
+        this.fields = null;
     }
 
     public static Tuple merge(Tuple t1, Tuple t2) {
@@ -125,10 +249,10 @@ public class Tuple implements Serializable {
 
         int pos = 0;
         for (int i = 0; i < td1.numFields(); i++) {
-            t.setField(pos++, t1.getField(i));
+            t.copyField(pos++, t1, i);
         }
         for (int j = 0; j < td2.numFields(); j++) {
-            t.setField(pos++, t2.getField(j));
+            t.copyField(pos++, t2, j);
         }
 
         return t;
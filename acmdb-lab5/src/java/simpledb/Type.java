@@ -2,6 +2,8 @@ package simpledb;
 
 import java.text.ParseException;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Class representing a type in SimpleDB.
@@ -24,6 +26,11 @@ public enum Type {
             }
         }
 
+        @Override
+        public Field parse(ByteBuffer buf, int offset) {
+            return new IntField(buf.getInt(offset));
+        }
+
     },
     STRING_TYPE() {
         @Override
@@ -43,6 +50,12 @@ public enum Type {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(ByteBuffer buf, int offset) {
+            int strLen = Math.max(0, Math.min(buf.getInt(offset), STRING_LEN));
+            return new StringField(decodeString(buf, offset + 4, strLen), STRING_LEN);
+        }
     };
 
     public static final int STRING_LEN = 128;
@@ -61,4 +74,32 @@ public enum Type {
      */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+    /**
+     * @return a Field object of the same type as this object that has contents
+     *   read from the specified position of the buffer. The position of the
+     *   buffer is not changed.
+     * @param buf The buffer to read from
+     * @param offset The absolute position of the field in the buffer
+     */
+    public abstract Field parse(ByteBuffer buf, int offset);
+
+    /**
+     * Decodes len bytes of a buffer into a String, one char per byte. This is
+     * the inverse of how {@link Field#serialize} writes strings.
+     *
+     * @param buf The buffer to read from
+     * @param offset The absolute position of the first byte
+     * @param len The number of bytes to decode
+     */
+    public static String decodeString(ByteBuffer buf, int offset, int len) {
+        if (buf.hasArray()) {
+            return new String(buf.array(), buf.arrayOffset() + offset, len, StandardCharsets.ISO_8859_1);
+        }
+        char[] chars = new char[len];
+        for (int i = 0; i < len; i++) {
+            chars[i] = (char) (buf.get(offset + i) & 0xFF);
+        }
+        return new String(chars);
+    }
+
 }
@@ -0,0 +1,195 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Vacuum compacts a HeapFile after deletes, and gives the pages it frees back
+ * to the file system. This implements the VACUUM statement.
+ * <p>
+ * Tuples are moved from the last pages of the file into the empty slots of
+ * the first pages, until every page before the last one in use is full.
+ * The work is done in batches of at most {@link #DEFAULT_BATCH_SIZE} moved
+ * tuples, each in a transaction of its own that locks the pages it touches
+ * like any other transaction, so a vacuum can run alongside other
+ * transactions and only holds up the pages of one batch at a time. After
+ * each batch, the empty pages at the end of the file are locked and
+ * truncated away.
+ * <p>
+ * A moved tuple gets a new RecordId, and its entries in the secondary
+ * indexes of the table are moved with it. Since every move dirties leaf
+ * pages of each index, a batch then moves at most
+ * {@link #INDEXED_BATCH_SIZE} tuples per index, so that a transaction fits
+ * in the buffer pool. The statistics of the table are not changed, since
+ * its tuples are not.
+ */
+public class Vacuum {
+    /** Default number of tuples moved per transaction */
+    public static final int DEFAULT_BATCH_SIZE = 256;
+    /** Number of tuples moved per transaction and secondary index */
+    public static final int INDEXED_BATCH_SIZE = 8;
+
+    private final HeapFile file;
+    private final int batchSize;
+    /** The pages before this one had no empty slot in the last batch */
+    private int dest = 0;
+
+    /**
+     * @param file the file to compact
+     */
+    public Vacuum(HeapFile file) {
+        this(file, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param file the file to compact
+     * @param batchSize the maximum number of tuples moved per transaction
+     */
+    public Vacuum(HeapFile file, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batch size must be positive");
+        }
+        this.file = file;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Compacts the whole file, one batch after the other. Batches that are
+     * aborted to break a deadlock with another transaction are retried.
+     *
+     * @return the number of pages the file shrank by
+     */
+    public int run() throws DbException, IOException {
+        int before = file.numPages();
+        boolean more = true;
+        while (more) {
+            try {
+                more = step();
+            } catch (TransactionAbortedException e) {
+                // the batch was rolled back; try it again
+                Thread.yield();
+            }
+        }
+        return before - file.numPages();
+    }
+
+    /**
+     * Runs one batch: moves up to batchSize tuples in one transaction, then
+     * truncates the empty pages at the end of the file in another. If a
+     * transaction is aborted, e.g. to break a deadlock, its changes are
+     * rolled back and the exception is passed on; calling step again
+     * retries.
+     *
+     * @return false if the file is compact
+     */
+    public boolean step() throws DbException, IOException, TransactionAbortedException {
+        boolean more = moveTuples();
+        truncate();
+        return more;
+    }
+
+    /**
+     * Moves up to batchSize tuples from the last pages to the first pages
+     * with empty slots.
+     *
+     * @return false if there was nothing left to move
+     */
+    private boolean moveTuples() throws DbException, IOException, TransactionAbortedException {
+        TransactionId tid = new TransactionId();
+        boolean committed = false;
+        try {
+            boolean more = true;
+            int srcNo = file.numPages();
+            HeapPage srcPage = null;
+            HeapPage destPage = null;
+            int limit = batchSize;
+            int numIndexes = Database.getCatalog().getIndexes(file.getId()).size();
+            if (numIndexes > 0) {
+                limit = Math.max(1, Math.min(batchSize, INDEXED_BATCH_SIZE / numIndexes));
+            }
+            batch: for (int moved = 0; moved < limit; moved++) {
+                // the last page that still has tuples
+                while (srcPage == null || isEmpty(srcPage)) {
+                    if (--srcNo <= dest) {
+                        more = false;
+                        break batch;
+                    }
+                    srcPage = getPage(tid, srcNo, Permissions.READ_WRITE);
+                }
+                // the first page before it with an empty slot
+                while (destPage == null || destPage.getNumEmptySlots() == 0) {
+                    if (destPage != null) {
+                        dest++;
+                    }
+                    if (dest >= srcNo) {
+                        more = false;
+                        break batch;
+                    }
+                    destPage = getPage(tid, dest, Permissions.READ_ONLY);
+                }
+                destPage = getPage(tid, dest, Permissions.READ_WRITE);
+                moveTuple(tid, srcPage, destPage);
+            }
+            Database.getBufferPool().transactionComplete(tid, true);
+            committed = true;
+            return more;
+        } finally {
+            if (!committed) {
+                Database.getBufferPool().transactionComplete(tid, false);
+            }
+        }
+    }
+
+    /**
+     * Moves one tuple from srcPage to destPage.
+     */
+    private void moveTuple(TransactionId tid, HeapPage srcPage, HeapPage destPage)
+            throws DbException, IOException, TransactionAbortedException {
+        Iterator<Tuple> it = srcPage.iterator();
+        Tuple t = it.next();
+        RecordId from = t.getRecordId();
+        srcPage.deleteTuple(t);
+        destPage.insertTuple(t);
+        file.tupleInserted(destPage.getId().pageNumber(), t);
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(file.getId())) {
+            index.tupleMoved(tid, t, from);
+        }
+        srcPage.markDirty(true, tid);
+        destPage.markDirty(true, tid);
+    }
+
+    /**
+     * Truncates the empty pages at the end of the file. The pages are
+     * locked first, so that no other transaction is using them.
+     */
+    private void truncate() throws DbException, IOException, TransactionAbortedException {
+        TransactionId tid = new TransactionId();
+        boolean committed = false;
+        try {
+            int end = file.numPages();
+            while (end > 0 && isEmpty(getPage(tid, end - 1, Permissions.READ_WRITE))) {
+                end--;
+            }
+            // the empty pages stay in the buffer pool, so that transactions
+            // waiting for their locks find them there instead of reading
+            // past the end of the file
+            file.truncate(end);
+            dest = Math.min(dest, end);
+            Database.getBufferPool().transactionComplete(tid, true);
+            committed = true;
+        } finally {
+            if (!committed) {
+                Database.getBufferPool().transactionComplete(tid, false);
+            }
+        }
+    }
+
+    private static boolean isEmpty(HeapPage page) {
+        return page.getNumEmptySlots() == page.numSlots;
+    }
+
+    private HeapPage getPage(TransactionId tid, int pageNo, Permissions perm)
+            throws DbException, TransactionAbortedException {
+        return (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(file.getId(), pageNo), perm);
+    }
+}
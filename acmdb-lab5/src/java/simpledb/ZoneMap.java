@@ -0,0 +1,384 @@
+package simpledb;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * A ZoneMap keeps the smallest and largest value of each int field on each
+ * page of a HeapFile, so that a scan with a predicate can skip the pages
+ * whose range cannot match it. This pays off when the values of a field are
+ * clustered by page, e.g. ids that grow with time.
+ * <p>
+ * The range of a page is never narrower than the values on it, but it may be
+ * wider: inserting a tuple widens the range right away, while deleting one
+ * leaves it as it is. The range is recomputed exactly whenever the page is
+ * written, i.e. when a transaction commits, and learned from a page that is
+ * read while no transaction has changed it. The range of a page that is
+ * neither known nor written yet is unknown, and the page is always read.
+ * <p>
+ * The zone map is stored next to the data file, in a file with the same name
+ * and the suffix ".zone". Each page has a record at a fixed offset: a flag,
+ * then the smallest and largest value of each int field. The record of a page
+ * is marked unknown before the page is written, unless it is already, and
+ * filled in after, so that a write cut off half way leaves no range that is
+ * too narrow. The records of written pages are filled in
+ * {@link #WRITE_BATCH_PAGES} at a time, or by {@link #flush}; a range lost
+ * before it is stored only makes scans read the page. Tools that
+ * rewrite a data file without going through HeapFile must delete the zone
+ * file, as {@link HeapFileEncoder} does.
+ */
+public class ZoneMap {
+    /** Number of written pages whose ranges are stored together */
+    public static final int WRITE_BATCH_PAGES = 64;
+
+    private static final int UNKNOWN = 0;
+    private static final int KNOWN = 1;
+
+    private final File zoneFile;
+    /** The int fields of the tuples, in order */
+    private final int[] fields;
+    /** The index into a range of each field, or -1 if it is not an int */
+    private final int[] slots;
+    private final int recordSize;
+
+    /** mins[p] and maxs[p] are the ranges of page p, or null if unknown */
+    private int[][] mins = new int[0][];
+    private int[][] maxs = new int[0][];
+    /** The pages whose record in the zone file holds a known range */
+    private final BitSet stored = new BitSet();
+    /** The written pages whose range is not stored yet */
+    private final TreeSet<Integer> pending = new TreeSet<Integer>();
+
+    /**
+     * Creates the zone map of a heap file, and reads the ranges stored for
+     * it if there are any.
+     *
+     * @param f the data file of the heap file
+     * @param td the schema of the heap file
+     */
+    public ZoneMap(File f, TupleDesc td) {
+        this.zoneFile = getZoneFile(f);
+        this.slots = new int[td.numFields()];
+        int n = 0;
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = td.getFieldType(i) == Type.INT_TYPE ? n++ : -1;
+        }
+        this.fields = new int[n];
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[i] >= 0) {
+                fields[slots[i]] = i;
+            }
+        }
+        this.recordSize = 4 + 8 * n;
+        if (n > 0 && zoneFile.exists()) {
+            read();
+        }
+    }
+
+    /**
+     * Returns the file holding the zone map of the heap file f.
+     */
+    public static File getZoneFile(File f) {
+        return new File(f.getPath() + ".zone");
+    }
+
+    private void read() {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(zoneFile)));
+            try {
+                int numPages = (int) (zoneFile.length() / recordSize);
+                grow(numPages);
+                for (int p = 0; p < numPages; p++) {
+                    boolean known = in.readInt() == KNOWN;
+                    int[] min = new int[fields.length];
+                    int[] max = new int[fields.length];
+                    for (int j = 0; j < fields.length; j++) {
+                        min[j] = in.readInt();
+                        max[j] = in.readInt();
+                    }
+                    if (known) {
+                        mins[p] = min;
+                        maxs[p] = max;
+                        stored.set(p);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("cannot read zone map " + zoneFile, e);
+        }
+    }
+
+    private void grow(int numPages) {
+        if (numPages > mins.length) {
+            int n = Math.max(numPages, mins.length * 2);
+            mins = Arrays.copyOf(mins, n);
+            maxs = Arrays.copyOf(maxs, n);
+        }
+    }
+
+    /**
+     * Returns whether the range of a page is known.
+     */
+    public synchronized boolean isKnown(int pageNo) {
+        return pageNo < mins.length && mins[pageNo] != null;
+    }
+
+    /**
+     * Returns whether some tuple on a page may satisfy all of the given
+     * predicates. Only predicates on int fields are looked at.
+     *
+     * @param pageNo the page
+     * @param predicates the predicates, may be null or empty
+     */
+    public synchronized boolean mayMatch(int pageNo, List<Predicate> predicates) {
+        if (predicates == null || !isKnown(pageNo)) {
+            return true;
+        }
+        for (Predicate p : predicates) {
+            if (!mayMatch(pageNo, p.getField(), p.getOp(), p.getOperand())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean mayMatch(int pageNo, int field, Predicate.Op op, Field operand) {
+        if (slots[field] < 0 || operand.getType() != Type.INT_TYPE) {
+            return true;
+        }
+        int min = mins[pageNo][slots[field]];
+        int max = maxs[pageNo][slots[field]];
+        if (min > max) {
+            // no tuples on the page
+            return false;
+        }
+        int v = ((IntField) operand).getValue();
+        switch (op) {
+            case EQUALS:
+            case LIKE:
+                return min <= v && v <= max;
+            case NOT_EQUALS:
+                return min != v || max != v;
+            case LESS_THAN:
+                return min < v;
+            case LESS_THAN_OR_EQ:
+                return min <= v;
+            case GREATER_THAN:
+                return max > v;
+            case GREATER_THAN_OR_EQ:
+                return max >= v;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Returns the fraction of the pages that may hold a tuple satisfying
+     * <tt>field op constant</tt>; pages with an unknown range count as
+     * matching.
+     *
+     * @param numPages the number of pages of the file
+     */
+    public synchronized double matchingFraction(int numPages, int field, Predicate.Op op, Field constant) {
+        if (numPages == 0) {
+            return 0.0;
+        }
+        int matching = 0;
+        for (int p = 0; p < numPages; p++) {
+            if (!isKnown(p) || mayMatch(p, field, op, constant)) {
+                matching++;
+            }
+        }
+        return (double) matching / numPages;
+    }
+
+    /**
+     * Widens the range of a page to take in a tuple inserted into it. The
+     * range of a page that is not known stays unknown.
+     */
+    public synchronized void tupleInserted(int pageNo, Tuple t) {
+        if (!isKnown(pageNo)) {
+            return;
+        }
+        int[] min = mins[pageNo];
+        int[] max = maxs[pageNo];
+        for (int j = 0; j < fields.length; j++) {
+            int v = t.getInt(fields[j]);
+            min[j] = Math.min(min[j], v);
+            max[j] = Math.max(max[j], v);
+        }
+    }
+
+    /**
+     * Learns the range of a page that was read while no transaction had
+     * changed it, if it is not known yet.
+     */
+    public synchronized void pageRead(HeapPage page) {
+        int pageNo = page.getId().pageNumber();
+        if (fields.length > 0 && !isKnown(pageNo)) {
+            set(pageNo, page);
+        }
+    }
+
+    private void set(int pageNo, HeapPage page) {
+        int[] min = new int[fields.length];
+        int[] max = new int[fields.length];
+        Arrays.fill(min, Integer.MAX_VALUE);
+        Arrays.fill(max, Integer.MIN_VALUE);
+        for (int slot = 0; slot < page.numSlots; slot++) {
+            if (page.isSlotUsed(slot)) {
+                for (int j = 0; j < fields.length; j++) {
+                    int v = page.getInt(slot, fields[j]);
+                    min[j] = Math.min(min[j], v);
+                    max[j] = Math.max(max[j], v);
+                }
+            }
+        }
+        grow(pageNo + 1);
+        mins[pageNo] = min;
+        maxs[pageNo] = max;
+    }
+
+    /**
+     * Marks the stored range of a page unknown before the page is written,
+     * if it is known.
+     */
+    public synchronized void pageWriting(int pageNo) throws IOException {
+        if (fields.length > 0) {
+            pending.remove(pageNo);
+            if (stored.get(pageNo)) {
+                store(pageNo);
+            }
+        }
+    }
+
+    /**
+     * Sets the range of a page to the values on it after the page was
+     * written. The range is stored with those of the next pages written.
+     */
+    public synchronized void pageWritten(HeapPage page) throws IOException {
+        if (fields.length > 0) {
+            set(page.getId().pageNumber(), page);
+            pending.add(page.getId().pageNumber());
+            if (pending.size() >= WRITE_BATCH_PAGES) {
+                store(-1);
+            }
+        }
+    }
+
+    /**
+     * Stores the ranges of the written pages that are not stored yet.
+     */
+    public synchronized void flush() throws IOException {
+        if (!pending.isEmpty()) {
+            store(-1);
+        }
+    }
+
+    /**
+     * Sets and stores the ranges of pages appended to the file.
+     *
+     * @param first the number of the first page
+     * @param pages the raw data of the pages
+     */
+    public synchronized void pagesAppended(int tableid, int first, ByteBuffer pages) throws IOException {
+        if (fields.length == 0) {
+            return;
+        }
+        int pageSize = BufferPool.getPageSize();
+        int n = pages.remaining() / pageSize;
+        byte[] data = new byte[pageSize];
+        ByteBuffer buf = pages.duplicate();
+        for (int i = 0; i < n; i++) {
+            buf.get(data);
+            set(first + i, new HeapPage(new HeapPageId(tableid, first + i), data));
+            pending.add(first + i);
+        }
+        store(-1);
+    }
+
+    /**
+     * Forgets the ranges of the pages from numPages on, after the file was
+     * truncated.
+     */
+    public synchronized void truncate(int numPages) throws IOException {
+        for (int p = numPages; p < mins.length; p++) {
+            mins[p] = null;
+            maxs[p] = null;
+        }
+        pending.tailSet(numPages).clear();
+        stored.clear(numPages, Math.max(numPages, stored.length()));
+        if (zoneFile.exists() && zoneFile.length() > (long) numPages * recordSize) {
+            RandomAccessFile f = new RandomAccessFile(zoneFile, "rw");
+            try {
+                f.setLength((long) numPages * recordSize);
+            } finally {
+                f.close();
+            }
+        }
+    }
+
+    /**
+     * Opens the zone file once to mark the record of a page unknown, unless
+     * unknownPage is -1, and to store the ranges of all pending pages, with
+     * one write for each run of consecutive pages.
+     */
+    private void store(int unknownPage) throws IOException {
+        RandomAccessFile f = new RandomAccessFile(zoneFile, "rw");
+        try {
+            if (unknownPage >= 0) {
+                writeRecords(f, unknownPage, 1, true);
+            }
+            int first = -1;
+            int count = 0;
+            for (int p : pending) {
+                if (count > 0 && p == first + count) {
+                    count++;
+                    continue;
+                }
+                if (count > 0) {
+                    writeRecords(f, first, count, false);
+                }
+                first = p;
+                count = 1;
+            }
+            if (count > 0) {
+                writeRecords(f, first, count, false);
+            }
+            pending.clear();
+        } finally {
+            f.close();
+        }
+    }
+
+    /**
+     * Writes the records of count pages from first on; pages past the end of
+     * the zone file before them are written as unknown.
+     */
+    private void writeRecords(RandomAccessFile f, int first, int count, boolean unknown) throws IOException {
+        int from = Math.min(first, (int) (f.length() / recordSize));
+        ByteBuffer buf = ByteBuffer.allocate((first + count - from) * recordSize);
+        for (int p = from; p < first + count; p++) {
+            boolean known = !unknown && p >= first && isKnown(p);
+            buf.putInt(known ? KNOWN : UNKNOWN);
+            for (int j = 0; j < fields.length; j++) {
+                buf.putInt(known ? mins[p][j] : 0);
+                buf.putInt(known ? maxs[p][j] : 0);
+            }
+            stored.set(p, known);
+        }
+        f.seek((long) from * recordSize);
+        f.write(buf.array());
+    }
+}
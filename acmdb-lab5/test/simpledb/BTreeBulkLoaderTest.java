@@ -0,0 +1,168 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BTreeBulkLoaderTest extends SimpleDbTestBase {
+
+    @After
+    public void tearDown() throws Exception {
+        BufferPool.resetPageSize();
+    }
+
+    private static BTreeFile emptyBTreeFile(int cols, int keyField) throws Exception {
+        File f = File.createTempFile("bulk", ".dat");
+        f.deleteOnExit();
+        return BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), cols, keyField);
+    }
+
+    private static int load(BTreeBulkLoader loader, DbFile in, BTreeFile out) throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = in.iterator(tid);
+        it.open();
+        int count = loader.load(it, out);
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return count;
+    }
+
+    private static void checkSorted(BTreeFile bf, int expected) throws Exception {
+        checkSorted(bf, expected, true);
+    }
+
+    private static void checkSorted(BTreeFile bf, int expected, boolean checkOccupancy) throws Exception {
+        TransactionId tid = new TransactionId();
+        BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), checkOccupancy);
+        DbFileIterator it = bf.iterator(tid);
+        it.open();
+        int count = 0;
+        int prev = Integer.MIN_VALUE;
+        while (it.hasNext()) {
+            int key = it.next().getInt(bf.keyField());
+            assertTrue(prev <= key);
+            prev = key;
+            count++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(expected, count);
+    }
+
+    /**
+     * Random tuples spread over many sorted runs are loaded into a valid
+     * tree, for several fill factors.
+     */
+    @Test
+    public void loadRandom() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 20000, 5000, null, tuples);
+        for (double fillFactor : new double[] { 0.5, 0.75, 1.0 }) {
+            BTreeFile bf = emptyBTreeFile(2, 1);
+            // 100 runs need two merge passes
+            assertEquals(20000, load(new BTreeBulkLoader(fillFactor, 200), hf, bf));
+            checkSorted(bf, 20000);
+            SystemTestUtil.matchTuples(bf, tuples);
+
+            int perPage = BTreeUtility.getNumTuplesPerPage(2);
+            int leaves = bf.numPages() - 1;
+            assertTrue(leaves >= 20000 / perPage);
+            assertTrue(leaves <= 20000 / (int) (fillFactor * perPage) + 1);
+        }
+    }
+
+    /**
+     * A small page size gives a tree with several levels of internal pages,
+     * which can be searched and inserted into.
+     */
+    @Test
+    public void loadDeepTree() throws Exception {
+        BufferPool.setPageSize(256);
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 3000, 1000, null, tuples);
+        BTreeFile bf = emptyBTreeFile(2, 0);
+        assertEquals(3000, load(new BTreeBulkLoader(), hf, bf));
+        checkSorted(bf, 3000);
+
+        TransactionId tid = new TransactionId();
+        BTreePageId rootId = bf.getRootPtrPage(tid, new HashMap<PageId, Page>()).getRootId();
+        BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(tid, rootId,
+                Permissions.READ_ONLY);
+        BTreePageId child = root.iterator().next().getLeftChild();
+        assertEquals(BTreePageId.INTERNAL, child.pgcateg());
+
+        int key = tuples.get(0).get(0);
+        int matches = 0;
+        for (ArrayList<Integer> tuple : tuples) {
+            if (tuple.get(0) == key) {
+                matches++;
+            }
+        }
+        DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)));
+        it.open();
+        while (it.hasNext()) {
+            assertEquals(key, it.next().getInt(0));
+            matches--;
+        }
+        it.close();
+        assertEquals(0, matches);
+
+        for (int i = 0; i < 100; i++) {
+            Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(i, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        // splits may leave internal pages less than half full
+        checkSorted(bf, 3100, false);
+    }
+
+    /**
+     * Empty and single tuple inputs give an empty tree and a single leaf,
+     * and a tree that already has pages is not loaded.
+     */
+    @Test
+    public void loadSmall() throws Exception {
+        BTreeFile bf = emptyBTreeFile(2, 0);
+        assertEquals(0, load(new BTreeBulkLoader(), SystemTestUtil.createRandomHeapFile(2, 0, null, null), bf));
+        assertEquals(0, bf.numPages());
+
+        assertEquals(1, load(new BTreeBulkLoader(), SystemTestUtil.createRandomHeapFile(2, 1, null, null), bf));
+        assertEquals(1, bf.numPages());
+        checkSorted(bf, 1);
+
+        try {
+            load(new BTreeBulkLoader(), SystemTestUtil.createRandomHeapFile(2, 1, null, null), bf);
+            fail("loading into a tree with pages should fail");
+        } catch (DbException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Pages are filled to the target size, and the last page is never below
+     * the minimum unless it is the only one.
+     */
+    @Test
+    public void pageSizes() {
+        assertArrayEquals(new int[] { 7 }, BTreeBulkLoader.pageSizes(7, 9, 5, 10));
+        assertArrayEquals(new int[] { 9, 9, 6 }, BTreeBulkLoader.pageSizes(24, 9, 5, 10));
+        assertArrayEquals(new int[] { 9, 10 }, BTreeBulkLoader.pageSizes(19, 9, 5, 10));
+        assertArrayEquals(new int[] { 9, 6, 6 }, BTreeBulkLoader.pageSizes(21, 9, 6, 10));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BTreeBulkLoaderTest.class);
+    }
+}
@@ -0,0 +1,265 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class BTreeCompactTest extends SimpleDbTestBase {
+    private static final TupleDesc TD = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE });
+
+    @After
+    public void tearDown() throws Exception {
+        BufferPool.resetPageSize();
+    }
+
+    private static BTreeFile emptyBTreeFile(boolean compact) throws Exception {
+        File f = File.createTempFile("compact", ".dat");
+        f.deleteOnExit();
+        BTreeFile bf = new BTreeFile(f, 0, TD, compact);
+        Database.getCatalog().addTable(bf, f.getName());
+        return bf;
+    }
+
+    /** Keys of the shape of customer ids, which share long prefixes. */
+    private static String key(int i) {
+        return String.format("customer-account-%08d", i);
+    }
+
+    private static Tuple tuple(String key, int value) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new StringField(key, Type.STRING_LEN));
+        t.setField(1, new IntField(value));
+        return t;
+    }
+
+    private static void insert(BTreeFile bf, List<Integer> values) throws Exception {
+        for (int i = 0; i < values.size(); i += 10) {
+            TransactionId tid = new TransactionId();
+            for (int j = i; j < Math.min(i + 10, values.size()); j++) {
+                Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(key(values.get(j)), values.get(j)));
+            }
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
+    /** Checks the tree and returns its tuples in key order. */
+    private static List<Tuple> check(BTreeFile bf) throws Exception {
+        TransactionId tid = new TransactionId();
+        BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+        List<Tuple> tuples = new ArrayList<Tuple>();
+        DbFileIterator it = bf.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (!tuples.isEmpty()) {
+                assertTrue(tuples.get(tuples.size() - 1).getField(0).compare(Predicate.Op.LESS_THAN_OR_EQ,
+                        t.getField(0)));
+            }
+            assertEquals(key(((IntField) t.getField(1)).getValue()), ((StringField) t.getField(0)).getValue());
+            tuples.add(t);
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return tuples;
+    }
+
+    private static int lookup(BTreeFile bf, String key) throws Exception {
+        TransactionId tid = new TransactionId();
+        IndexPredicate ipred = new IndexPredicate(Predicate.Op.EQUALS, new StringField(key, Type.STRING_LEN));
+        DbFileIterator it = bf.indexIterator(tid, ipred);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            assertEquals(key, ((StringField) it.next().getField(0)).getValue());
+            count++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return count;
+    }
+
+    private static int depth(BTreeFile bf) throws Exception {
+        TransactionId tid = new TransactionId();
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+                BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+        BTreePageId pid = rootPtr.getRootId();
+        int depth = 0;
+        while (pid.pgcateg() == BTreePageId.INTERNAL) {
+            BTreeInternalPage p = (BTreeInternalPage) Database.getBufferPool().getPage(tid, pid,
+                    Permissions.READ_ONLY);
+            pid = p.iterator().next().getLeftChild();
+            depth++;
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        return depth;
+    }
+
+    /**
+     * Compact leaf and internal pages read back the tuples and entries they
+     * were written with.
+     */
+    @Test
+    public void pageRoundTrip() throws Exception {
+        BTreeFile bf = emptyBTreeFile(true);
+        int tableid = bf.getId();
+
+        BTreePageId leafId = new BTreePageId(tableid, 1, BTreePageId.LEAF);
+        BTreeLeafPage leaf = new BTreeLeafPage(leafId, BTreePage.createEmptyPageData(), 0, true);
+        int n = 0;
+        while (!leaf.isFull()) {
+            Tuple t = tuple(key(n * 7), n);
+            leaf.insertTuple(t);
+            n++;
+        }
+        // far more than the 30 or so tuples of a fixed format page
+        assertTrue(n > 100);
+        BTreeLeafPage leaf2 = new BTreeLeafPage(leafId, leaf.getPageData(), 0, true);
+        assertEquals(n, leaf2.getNumTuples());
+        assertEquals(leaf.getUsedSpace(), leaf2.getUsedSpace());
+        Iterator<Tuple> it = leaf.iterator();
+        Iterator<Tuple> it2 = leaf2.iterator();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            Tuple t2 = it2.next();
+            assertEquals(t.getField(0), t2.getField(0));
+            assertEquals(t.getField(1), t2.getField(1));
+            assertEquals(t.getRecordId(), t2.getRecordId());
+        }
+        assertFalse(it2.hasNext());
+
+        BTreePageId internalId = new BTreePageId(tableid, 2, BTreePageId.INTERNAL);
+        BTreeInternalPage internal = new BTreeInternalPage(internalId, BTreePage.createEmptyPageData(), 0, true);
+        n = 0;
+        while (!internal.isFull()) {
+            internal.insertEntry(new BTreeEntry(new StringField(key(n * 7), Type.STRING_LEN),
+                    new BTreePageId(tableid, n + 10, BTreePageId.LEAF),
+                    new BTreePageId(tableid, n + 11, BTreePageId.LEAF)));
+            n++;
+        }
+        assertTrue(n > 100);
+        BTreeInternalPage internal2 = new BTreeInternalPage(internalId, internal.getPageData(), 0, true);
+        assertEquals(n, internal2.getNumEntries());
+        Iterator<BTreeEntry> eit = internal.iterator();
+        Iterator<BTreeEntry> eit2 = internal2.iterator();
+        while (eit.hasNext()) {
+            BTreeEntry e = eit.next();
+            BTreeEntry e2 = eit2.next();
+            assertEquals(e.getKey(), e2.getKey());
+            assertEquals(e.getLeftChild(), e2.getLeftChild());
+            assertEquals(e.getRightChild(), e2.getRightChild());
+        }
+        assertFalse(eit2.hasNext());
+    }
+
+    /**
+     * A compact tree of string keys takes fewer pages and levels than a fixed
+     * format one, and finds the same tuples.
+     */
+    @Test
+    public void insertAndLookup() throws Exception {
+        List<Integer> values = new ArrayList<Integer>();
+        for (int i = 0; i < 4000; i++) {
+            values.add(i);
+        }
+        Collections.shuffle(values, new Random(46));
+
+        BTreeFile fixed = emptyBTreeFile(false);
+        BTreeFile compact = emptyBTreeFile(true);
+        insert(fixed, values);
+        insert(compact, values);
+
+        assertEquals(4000, check(fixed).size());
+        assertEquals(4000, check(compact).size());
+        assertTrue(compact.numPages() * 3 < fixed.numPages());
+        assertTrue(depth(compact) < depth(fixed));
+
+        for (int i = 0; i < 4000; i += 97) {
+            assertEquals(1, lookup(compact, key(i)));
+        }
+        assertEquals(0, lookup(compact, key(4000)));
+        assertEquals(0, lookup(compact, "customer-account-"));
+    }
+
+    /**
+     * Deletes that merge and rebalance compact pages keep the tree valid.
+     * Small pages give the tree several levels of internal pages.
+     */
+    @Test
+    public void deleteAll() throws Exception {
+        BufferPool.setPageSize(1024);
+        Database.resetBufferPool(500);
+        List<Integer> values = new ArrayList<Integer>();
+        for (int i = 0; i < 20000; i++) {
+            values.add(i);
+        }
+        Collections.shuffle(values, new Random(64));
+        BTreeFile bf = emptyBTreeFile(true);
+        insert(bf, values);
+        int pages = bf.numPages();
+        assertTrue(depth(bf) >= 2);
+
+        Random rand = new Random(7);
+        List<Tuple> tuples = check(bf);
+        int remaining = tuples.size();
+        while (remaining > 0) {
+            Collections.shuffle(tuples, rand);
+            int batch = Math.min(remaining, 2500);
+            for (int i = 0; i < batch; i += 10) {
+                TransactionId tid = new TransactionId();
+                for (int j = i; j < Math.min(i + 10, batch); j++) {
+                    Database.getBufferPool().deleteTuple(tid, tuples.get(j));
+                }
+                Database.getBufferPool().transactionComplete(tid);
+            }
+            remaining -= batch;
+            tuples = check(bf);
+            assertEquals(remaining, tuples.size());
+        }
+        // freed pages are reused rather than appended, next to the header
+        // page that records them
+        insert(bf, values.subList(0, 1000));
+        assertEquals(1000, check(bf).size());
+        assertTrue(bf.numPages() <= pages + 1);
+    }
+
+    /**
+     * Compact files cannot be bulk loaded.
+     */
+    @Test(expected = DbException.class)
+    public void bulkLoadRejected() throws Exception {
+        BTreeFile bf = emptyBTreeFile(true);
+        File f = File.createTempFile("heap", ".dat");
+        f.deleteOnExit();
+        HeapFile.deleteSideFilesOnExit(f);
+        HeapFile hf = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        try {
+            new BTreeBulkLoader().load(it, bf);
+        } finally {
+            it.close();
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BTreeCompactTest.class);
+    }
+}
@@ -1,6 +1,7 @@
 package simpledb;
 
 import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
 import simpledb.Predicate.Op;
 
 import java.util.*;
@@ -200,6 +201,179 @@ public class BTreeFileReadTest extends SimpleDbTestBase {
 
     }
 
+    /**
+     * Unit test for BTreeFile.reverseIndexIterator(), over keys with runs of
+     * duplicates that span leaf pages.
+     */
+    @Test
+    public void reverseIndexIterator() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile dupFile = BTreeUtility.createRandomBTreeFile(2, 5000, 200, null, tuples, 0);
+        ArrayList<Integer> keys = new ArrayList<Integer>();
+        for (ArrayList<Integer> tuple : tuples) {
+            keys.add(tuple.get(0));
+        }
+        Collections.sort(keys, Collections.reverseOrder());
+
+        Op[] ops = { Op.EQUALS, Op.LESS_THAN, Op.LESS_THAN_OR_EQ, Op.GREATER_THAN, Op.GREATER_THAN_OR_EQ,
+                Op.NOT_EQUALS };
+        int[] values = { -1, 0, 57, 100, 199, 200 };
+        for (Op op : ops) {
+            for (int v : values) {
+                IntField f = new IntField(v);
+                ArrayList<Integer> expected = new ArrayList<Integer>();
+                for (int key : keys) {
+                    if (new IntField(key).compare(op, f)) {
+                        expected.add(key);
+                    }
+                }
+                assertEquals(op + " " + v, expected,
+                        readKeys(dupFile.reverseIndexIterator(tid, new IndexPredicate(op, f))));
+            }
+        }
+        assertEquals(keys, readKeys(dupFile.reverseIterator(tid)));
+    }
+
+    private static ArrayList<Integer> readKeys(DbFileIterator it) throws Exception {
+        ArrayList<Integer> keys = new ArrayList<Integer>();
+        it.open();
+        while (it.hasNext()) {
+            keys.add(((IntField) it.next().getField(0)).getValue());
+        }
+        it.close();
+        return keys;
+    }
+
+    /**
+     * The planner reads a range of keys of a B+ tree table straight from the
+     * leaf pages holding it.
+     */
+    @Test
+    public void keyRangePlan() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile bigFile = BTreeUtility.createBTreeFile(2, 5000, null, tuples, 0);
+        BTreeFile named = new BTreeFile(bigFile.getFile(), 0, Utility.getTupleDesc(2, "f"));
+        String name = "btree_" + SystemTestUtil.getUUID().replace("-", "");
+        Database.getCatalog().addTable(named, name);
+        TableStats.setTableStats(name, new TableStats(named.getId(), TableStats.IOCOSTPERPAGE));
+
+        int bound = BTreeUtility.MAX_RAND_VALUE / 100;
+        int expected = 0;
+        for (ArrayList<Integer> tuple : tuples) {
+            if (tuple.get(0) < bound) {
+                expected++;
+            }
+        }
+        Parser p = new Parser();
+        DbIterator plan = p.generateLogicalPlan(tid, "SELECT * FROM " + name + " t WHERE t.f0 < " + bound + ";")
+                .physicalPlan(tid, TableStats.getStatsMap(), false);
+        SeqScan scan = findScan(plan);
+        assertTrue(scan instanceof BTreeScan);
+        assertFalse(scan.isIndexOnly());
+        assertNull(scan.getIndex());
+        plan.open();
+        int count = 0;
+        while (plan.hasNext()) {
+            assertTrue(((IntField) plan.next().getField(0)).getValue() < bound);
+            count++;
+        }
+        plan.close();
+        assertEquals(expected, count);
+
+        plan = p.generateLogicalPlan(tid, "SELECT * FROM " + name + " t WHERE t.f1 < " + bound + ";")
+                .physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertFalse(findScan(plan) instanceof BTreeScan);
+    }
+
+    /**
+     * The planner answers ORDER BY key DESC and MAX(key) over a B+ tree table
+     * by reading its leaf pages from the right, without sorting.
+     */
+    @Test
+    public void descendingKeyPlan() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 5000, null, tuples, 0);
+        BTreeFile named = new BTreeFile(bigFile.getFile(), 0, Utility.getTupleDesc(2, "f"));
+        String name = "btree_" + SystemTestUtil.getUUID().replace("-", "");
+        Database.getCatalog().addTable(named, name);
+        TableStats.setTableStats(name, new TableStats(named.getId(), TableStats.IOCOSTPERPAGE));
+
+        int bound = BTreeUtility.MAX_RAND_VALUE / 2;
+        ArrayList<Integer> keys = new ArrayList<Integer>();
+        int max = Integer.MIN_VALUE;
+        for (ArrayList<Integer> tuple : tuples) {
+            if (tuple.get(0) < bound) {
+                keys.add(tuple.get(0));
+                max = Math.max(max, tuple.get(0));
+            }
+        }
+        Collections.sort(keys, Collections.reverseOrder());
+
+        Parser p = new Parser();
+        DbIterator plan = p.generateLogicalPlan(tid,
+                "SELECT * FROM " + name + " t WHERE t.f0 < " + bound + " ORDER BY t.f0 DESC;")
+                .physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertFalse(hasOrderBy(plan));
+        assertEquals(BTreeScan.Mode.DESCENDING, ((BTreeScan) findScan(plan)).getMode());
+        ArrayList<Integer> result = new ArrayList<Integer>();
+        plan.open();
+        while (plan.hasNext()) {
+            result.add(((IntField) plan.next().getField(0)).getValue());
+        }
+        plan.close();
+        assertEquals(keys, result);
+
+        plan = p.generateLogicalPlan(tid, "SELECT * FROM " + name + " t ORDER BY t.f1 DESC;")
+                .physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertTrue(hasOrderBy(plan));
+
+        TransactionId maxTid = new TransactionId();
+        plan = p.generateLogicalPlan(maxTid, "SELECT MAX(t.f0) FROM " + name + " t WHERE t.f0 < " + bound + ";")
+                .physicalPlan(maxTid, TableStats.getStatsMap(), false);
+        plan.open();
+        assertEquals(max, ((IntField) plan.next().getField(0)).getValue());
+        assertFalse(plan.hasNext());
+        plan.close();
+        assertTrue(countLeafLocks(maxTid, named) <= 2);
+        Database.getBufferPool().transactionComplete(maxTid);
+
+        // another filter may reject the largest key, so every tuple is read
+        maxTid = new TransactionId();
+        plan = p.generateLogicalPlan(maxTid, "SELECT MAX(t.f0) FROM " + name + " t WHERE t.f1 < " + bound + ";")
+                .physicalPlan(maxTid, TableStats.getStatsMap(), false);
+        plan.open();
+        plan.close();
+        assertTrue(countLeafLocks(maxTid, named) > 2);
+        Database.getBufferPool().transactionComplete(maxTid);
+    }
+
+    private static int countLeafLocks(TransactionId tid, BTreeFile bf) {
+        int count = 0;
+        for (int i = 1; i <= bf.numPages(); i++) {
+            if (Database.getBufferPool().holdsLock(tid, new BTreePageId(bf.getId(), i, BTreePageId.LEAF))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static boolean hasOrderBy(DbIterator it) {
+        while (!(it instanceof SeqScan)) {
+            if (it instanceof OrderBy) {
+                return true;
+            }
+            it = ((Operator) it).getChildren()[0];
+        }
+        return false;
+    }
+
+    private static SeqScan findScan(DbIterator it) {
+        while (!(it instanceof SeqScan)) {
+            it = ((Operator) it).getChildren()[0];
+        }
+        return (SeqScan) it;
+    }
+
     /**
      * JUnit suite target
      */
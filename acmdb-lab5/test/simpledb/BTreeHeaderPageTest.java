@@ -116,6 +116,28 @@ public class BTreeHeaderPageTest extends SimpleDbTestBase {
         assertEquals(50, page.getEmptySlot());
     }
 
+    /**
+     * Unit test for BTreeHeaderPage.getEmptySlot(int), across and within the
+     * 64 slot words the header is scanned by
+     */
+    @Test
+    public void getEmptySlotFrom() throws Exception {
+        BTreeHeaderPage page = new BTreeHeaderPage(pid, EXAMPLE_DATA);
+        page.init();
+        int[] empty = { 3, 63, 64, 130, 5000, BTreeHeaderPage.getNumSlots() - 1 };
+        for (int slot : empty) {
+            page.markSlotUsed(slot, false);
+        }
+        int slot = page.getEmptySlot(0);
+        for (int expected : empty) {
+            assertEquals(expected, slot);
+            slot = page.getEmptySlot(slot + 1);
+        }
+        assertEquals(-1, slot);
+        assertEquals(130, page.getEmptySlot(65));
+        assertEquals(-1, page.getEmptySlot(BTreeHeaderPage.getNumSlots()));
+    }
+
     /**
      * Unit test for BTreeHeaderPage.isSlotUsed() and BTreeHeaderPage.markSlotUsed()
      */
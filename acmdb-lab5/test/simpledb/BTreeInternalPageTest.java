@@ -308,6 +308,40 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for BTreeInternalPage.findChildId() on a page with gaps
+     * between its used slots
+     */
+    @Test
+    public void findChildId() throws Exception {
+        BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+        Iterator<BTreeEntry> it = page.iterator();
+        int n = 0;
+        while (it.hasNext()) {
+            BTreeEntry e = it.next();
+            if (n++ % 3 == 1)
+                page.deleteKeyAndRightChild(e);
+        }
+
+        assertEquals(page.iterator().next().getLeftChild(), page.findChildId(null));
+        for (int key = 0; key < 65000; key += 250) {
+            IntField f = new IntField(key);
+            BTreeEntry entry = null;
+            BTreePageId expected = null;
+            it = page.iterator();
+            while (it.hasNext()) {
+                entry = it.next();
+                if (f.compare(Predicate.Op.LESS_THAN_OR_EQ, entry.getKey())) {
+                    expected = entry.getLeftChild();
+                    break;
+                }
+            }
+            if (expected == null)
+                expected = entry.getRightChild();
+            assertEquals(expected, page.findChildId(f));
+        }
+    }
+
     /**
      * JUnit suite target
      */
@@ -333,6 +333,64 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for BTreeLeafPage.findSlot() and BTreeLeafPage.iterator(Field)
+     * on a page with gaps between its used slots
+     */
+    @Test
+    public void findSlot() throws Exception {
+        BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+        Iterator<Tuple> it = page.iterator();
+        int n = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (n++ % 3 == 1)
+                page.deleteTuple(t);
+        }
+
+        for (int key = 0; key < 65000; key += 250) {
+            IntField f = new IntField(key);
+            Tuple expected = null;
+            it = page.iterator();
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                if (f.compare(Predicate.Op.LESS_THAN_OR_EQ, t.getField(0))) {
+                    expected = t;
+                    break;
+                }
+            }
+            if (expected == null) {
+                assertEquals(page.getMaxTuples(), page.findSlot(f));
+                assertFalse(page.iterator(f).hasNext());
+            } else {
+                assertEquals(expected.getRecordId().tupleno(), page.findSlot(f));
+                assertEquals(expected, page.iterator(f).next());
+            }
+        }
+    }
+
+    /**
+     * Unit test for BTreeLeafPage.getBeforeImage(): the before image does not
+     * change with the array the page was created from, and only changes
+     * with the page when setBeforeImage is called.
+     */
+    @Test
+    public void beforeImage() throws Exception {
+        byte[] data = EXAMPLE_DATA.clone();
+        BTreeLeafPage page = new BTreeLeafPage(pid, data, 0);
+        Arrays.fill(data, (byte) 0);
+        assertTrue(Arrays.equals(EXAMPLE_DATA, page.getBeforeImage().getPageData()));
+
+        BTreePageId id = new BTreePageId(pid.getTableId(), 1, BTreePageId.INTERNAL);
+        page.setParentId(id);
+        BTreeLeafPage before = page.getBeforeImage();
+        assertFalse(id.equals(before.getParentId()));
+        page.setBeforeImage();
+        assertEquals(id, page.getBeforeImage().getParentId());
+        assertFalse(id.equals(before.getParentId()));
+        assertTrue(Arrays.equals(page.getPageData(), page.getBeforeImage().getPageData()));
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,214 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.Predicate.Op;
+
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeOptimisticDescentTest extends SimpleDbTestBase {
+    private static final int POLL_INTERVAL = 100;
+
+    private BTreeFile bf;
+    private ArrayList<ArrayList<Integer>> tuples;
+    private volatile boolean done;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before
+    public void setUp() throws Exception {
+        tuples = new ArrayList<ArrayList<Integer>>();
+        bf = BTreeUtility.createRandomBTreeFile(2, 20000, null, tuples, 0);
+    }
+
+    /**
+     * Looks up a key on behalf of a transaction of its own, and commits it.
+     * @return the number of tuples with the key
+     */
+    private static int lookup(BTreeFile bf, int key) throws Exception {
+        while (true) {
+            TransactionId tid = new TransactionId();
+            try {
+                int count = lookup(bf, tid, key);
+                Database.getBufferPool().transactionComplete(tid);
+                return count;
+            } catch (TransactionAbortedException e) {
+                Database.getBufferPool().transactionComplete(tid, false);
+            }
+        }
+    }
+
+    private static int lookup(BTreeFile bf, TransactionId tid, int key) throws Exception {
+        DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            assertEquals(key, ((IntField) it.next().getField(0)).getValue());
+            count++;
+        }
+        it.close();
+        return count;
+    }
+
+    private BTreePageId getRootId() throws Exception {
+        TransactionId tid = new TransactionId();
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+                BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+        BTreePageId rootId = rootPtr.getRootId();
+        Database.getBufferPool().transactionComplete(tid);
+        return rootId;
+    }
+
+    /**
+     * A lookup only locks the leaf pages it reads, once the pages above them
+     * are in the buffer pool.
+     */
+    @Test
+    public void lookupLocksLeafOnly() throws Exception {
+        assertEquals(BTreePageId.INTERNAL, getRootId().pgcateg());
+        int key = tuples.get(tuples.size() / 2).get(0);
+        // reads the path into the buffer pool
+        lookup(bf, key);
+        TransactionId tid = new TransactionId();
+        assertTrue(lookup(bf, tid, key) > 0);
+
+        BufferPool bp = Database.getBufferPool();
+        assertFalse(bp.holdsLock(tid, BTreeRootPtrPage.getId(bf.getId())));
+        int leaves = 0;
+        for (int i = 1; i <= bf.numPages(); i++) {
+            assertFalse(bp.holdsLock(tid, new BTreePageId(bf.getId(), i, BTreePageId.INTERNAL)));
+            if (bp.holdsLock(tid, new BTreePageId(bf.getId(), i, BTreePageId.LEAF))) {
+                leaves++;
+            }
+        }
+        assertTrue(leaves > 0);
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * A lookup falls back to locking the path when another transaction holds
+     * write permission on a page of it, and so waits for that transaction.
+     */
+    @Test
+    public void writerForcesLocking() throws Exception {
+        final int key = tuples.get(0).get(0);
+        TransactionId writer = new TransactionId();
+        Database.getBufferPool().getPage(writer, getRootId(), Permissions.READ_WRITE);
+
+        final TransactionId tid = new TransactionId();
+        final int[] count = { -1 };
+        Thread reader = new Thread() {
+            public void run() {
+                try {
+                    count[0] = lookup(bf, tid, key);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        reader.start();
+        Thread.sleep(POLL_INTERVAL);
+        assertTrue(reader.isAlive());
+
+        Database.getBufferPool().transactionComplete(writer);
+        reader.join();
+        assertTrue(count[0] > 0);
+        assertTrue(Database.getBufferPool().holdsLock(tid, BTreeRootPtrPage.getId(bf.getId())));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Lookups of existing keys find them while other threads insert tuples
+     * that split leaf and internal pages.
+     */
+    @Test
+    public void lookupsDuringInserts() throws Exception {
+        Database.resetBufferPool(500);
+        final HashMap<Integer, Integer> counts = new HashMap<Integer, Integer>();
+        for (ArrayList<Integer> tuple : tuples) {
+            Integer c = counts.get(tuple.get(0));
+            counts.put(tuple.get(0), c == null ? 1 : c + 1);
+        }
+        final ArrayList<Integer> keys = new ArrayList<Integer>(counts.keySet());
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+
+        ArrayList<Thread> writers = new ArrayList<Thread>();
+        for (int w = 0; w < 2; w++) {
+            final Random rand = new Random(w);
+            writers.add(new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < 100; i++) {
+                            TransactionId tid = new TransactionId();
+                            try {
+                                for (int j = 0; j < 10; j++) {
+                                    // new keys fall between the existing ones
+                                    int key;
+                                    do {
+                                        key = rand.nextInt(BTreeUtility.MAX_RAND_VALUE);
+                                    } while (counts.containsKey(key));
+                                    Database.getBufferPool().insertTuple(tid, bf.getId(),
+                                            BTreeUtility.getBTreeTuple(key, 2));
+                                }
+                                Database.getBufferPool().transactionComplete(tid);
+                            } catch (TransactionAbortedException e) {
+                                Database.getBufferPool().transactionComplete(tid, false);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            });
+        }
+        ArrayList<Thread> readers = new ArrayList<Thread>();
+        for (int r = 0; r < 4; r++) {
+            final Random rand = new Random(100 + r);
+            readers.add(new Thread() {
+                public void run() {
+                    try {
+                        while (!done) {
+                            int key = keys.get(rand.nextInt(keys.size()));
+                            assertEquals(counts.get(key).intValue(), lookup(bf, key));
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            });
+        }
+        for (Thread t : writers) {
+            t.start();
+        }
+        for (Thread t : readers) {
+            t.start();
+        }
+        for (Thread t : writers) {
+            t.join();
+        }
+        done = true;
+        for (Thread t : readers) {
+            t.join();
+        }
+        if (!errors.isEmpty()) {
+            throw new AssertionError(errors.get(0));
+        }
+
+        TransactionId tid = new TransactionId();
+        BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BTreeOptimisticDescentTest.class);
+    }
+}
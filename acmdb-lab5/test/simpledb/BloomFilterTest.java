@@ -0,0 +1,183 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BloomFilterTest extends SimpleDbTestBase {
+    private static final int ROWS = 50000;
+
+    /** Counts the number of readPage operations. */
+    private static class InstrumentedHeapFile extends HeapFile {
+        int readCount = 0;
+
+        InstrumentedHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) throws NoSuchElementException {
+            readCount++;
+            return super.readPage(pid);
+        }
+    }
+
+    private File f;
+    private InstrumentedHeapFile hf;
+
+    /**
+     * Maps row i to a value of the second field; the values are distinct
+     * and spread out, so every page has a wide range of them.
+     */
+    private static int value(int i) {
+        return (int) ((i * 7919L) % 1000003);
+    }
+
+    /**
+     * Creates a table with rows (i, value(i)).
+     */
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < ROWS; i++) {
+            ArrayList<Integer> tuple = new ArrayList<Integer>();
+            tuple.add(i);
+            tuple.add(value(i));
+            tuples.add(tuple);
+        }
+        f = File.createTempFile("bloom", ".dat");
+        f.deleteOnExit();
+        SegmentBloomFilters.getBloomFile(f).deleteOnExit();
+        ZoneMap.getZoneFile(f).deleteOnExit();
+        HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), 2);
+        hf = open();
+    }
+
+    private InstrumentedHeapFile open() {
+        InstrumentedHeapFile file = new InstrumentedHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(file, SystemTestUtil.getUUID());
+        return file;
+    }
+
+    /**
+     * Counts the tuples whose second field is v, from a cold buffer pool.
+     */
+    private int lookup(InstrumentedHeapFile file, int v) throws Exception {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        file.readCount = 0;
+        TransactionId tid = new TransactionId();
+        Predicate p = new Predicate(1, Predicate.Op.EQUALS, new IntField(v));
+        SeqScan scan = new SeqScan(tid, file.getId(), "");
+        assertTrue(scan.pushDownPredicate(p));
+        Filter filter = new Filter(p, scan);
+        filter.open();
+        int n = 0;
+        while (filter.hasNext()) {
+            filter.next();
+            n++;
+        }
+        filter.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return n;
+    }
+
+    /**
+     * A filter never rules out a value that was added, and rarely admits
+     * one that was not.
+     */
+    @Test
+    public void falsePositives() {
+        BloomFilter filter = new BloomFilter(10000 * SegmentBloomFilters.BITS_PER_VALUE, 7);
+        for (int i = 0; i < 10000; i++) {
+            filter.add(new IntField(value(i)));
+        }
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(filter.mightContain(new IntField(value(i))));
+        }
+        int positives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (filter.mightContain(new IntField(-1 - i))) {
+                positives++;
+            }
+        }
+        assertTrue(positives < 300);
+
+        BloomFilter strings = new BloomFilter(640, 7);
+        strings.add(new StringField("hello", Type.STRING_LEN));
+        assertTrue(strings.mightContain(new StringField("hello", Type.STRING_LEN)));
+        assertFalse(strings.mightContain(new StringField("world", Type.STRING_LEN)));
+    }
+
+    /**
+     * A lookup only reads the segments whose filter may hold the value.
+     */
+    @Test
+    public void skipsSegments() throws Exception {
+        int numPages = hf.numPages();
+        assertTrue(numPages > 4 * SegmentBloomFilters.SEGMENT_PAGES);
+
+        // without a filter, every page is read
+        assertEquals(1, lookup(hf, value(ROWS / 2)));
+        assertEquals(numPages, hf.readCount);
+
+        hf.createBloomFilter(1);
+        assertTrue(hf.getBloomFilters().hasFilter(1));
+        assertFalse(hf.getBloomFilters().hasFilter(0));
+        for (int i : new int[] { 0, ROWS / 3, ROWS - 1 }) {
+            assertEquals(1, lookup(hf, value(i)));
+            assertTrue(hf.readCount <= 2 * SegmentBloomFilters.SEGMENT_PAGES);
+        }
+        assertEquals(0, lookup(hf, -42));
+        assertTrue(hf.readCount <= SegmentBloomFilters.SEGMENT_PAGES);
+    }
+
+    /**
+     * Inserted and appended tuples are added to the filters, and the filters
+     * are stored beside the file.
+     */
+    @Test
+    public void insertAndPersist() throws Exception {
+        hf.createBloomFilter(1);
+
+        TransactionId tid = new TransactionId();
+        Tuple t = BTreeUtility.getBTreeTuple(-7, 2);
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(1, lookup(hf, -7));
+
+        StringBuilder rows = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            rows.append(ROWS + i).append(',').append(-1000 - i).append('\n');
+        }
+        new HeapFileLoader(hf.getTupleDesc(), ',').load(new ByteArrayInputStream(rows.toString().getBytes("UTF-8")),
+                hf);
+        assertEquals(1, lookup(hf, -1500));
+
+        InstrumentedHeapFile reopened = open();
+        assertTrue(reopened.getBloomFilters().hasFilter(1));
+        assertEquals(1, lookup(reopened, -7));
+        assertEquals(1, lookup(reopened, -1999));
+        assertEquals(1, lookup(reopened, value(123)));
+        assertEquals(0, lookup(reopened, -42));
+        assertTrue(reopened.readCount <= SegmentBloomFilters.SEGMENT_PAGES);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BloomFilterTest.class);
+    }
+}
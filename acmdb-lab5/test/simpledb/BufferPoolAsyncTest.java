@@ -0,0 +1,130 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolAsyncTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private BufferPool bp;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, 15000, null, null);
+        bp = Database.getBufferPool();
+    }
+
+    /**
+     * Many reads can be in flight at once, and each returns the same copy of
+     * the page as getPage.
+     */
+    @Test
+    public void manyReadsInFlight() throws Exception {
+        TransactionId tid = new TransactionId();
+        ArrayList<Future<Page>> futures = new ArrayList<Future<Page>>();
+        for (int i = 0; i < hf.numPages(); i++) {
+            futures.add(bp.getPageAsync(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY));
+        }
+        // ask for every page twice
+        for (int i = 0; i < hf.numPages(); i++) {
+            futures.add(bp.getPageAsync(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY));
+        }
+
+        for (int i = 0; i < futures.size(); i++) {
+            HeapPageId pid = new HeapPageId(hf.getId(), i % hf.numPages());
+            Page page = futures.get(i).get();
+            assertEquals(pid, page.getId());
+            assertSame(page, bp.getPage(tid, pid, Permissions.READ_ONLY));
+        }
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * An asynchronous read waits for a conflicting lock without blocking the
+     * caller.
+     */
+    @Test
+    public void waitsForLock() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        TransactionId writer = new TransactionId();
+        TransactionId reader = new TransactionId();
+        Page page = bp.getPage(writer, pid, Permissions.READ_WRITE);
+
+        Future<Page> future = bp.getPageAsync(reader, pid, Permissions.READ_ONLY);
+        try {
+            future.get(100, TimeUnit.MILLISECONDS);
+            fail("read should wait for the write lock");
+        } catch (TimeoutException e) {
+            // expected
+        }
+
+        bp.transactionComplete(writer);
+        assertSame(page, future.get());
+        assertTrue(bp.holdsLock(reader, pid));
+        bp.transactionComplete(reader);
+    }
+
+    /**
+     * A read still waiting for its lock when the transaction completes fails,
+     * and does not keep the lock it is granted afterwards.
+     */
+    @Test
+    public void completedWhileWaiting() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        TransactionId writer = new TransactionId();
+        TransactionId reader = new TransactionId();
+        bp.getPage(writer, pid, Permissions.READ_WRITE);
+
+        Future<Page> future = bp.getPageAsync(reader, pid, Permissions.READ_ONLY);
+        bp.transactionComplete(reader);
+        bp.transactionComplete(writer);
+        try {
+            future.get();
+            fail("the read should fail once its transaction completed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TransactionAbortedException);
+        }
+        assertFalse(bp.holdsLock(reader, pid));
+
+        TransactionId next = new TransactionId();
+        assertNotNull(bp.getPageAsync(next, pid, Permissions.READ_WRITE).get(10, TimeUnit.SECONDS));
+        bp.transactionComplete(next);
+    }
+
+    /**
+     * Errors from the read are reported through the future.
+     */
+    @Test
+    public void reportsErrors() throws Exception {
+        TransactionId tid = new TransactionId();
+        Future<Page> future = bp.getPageAsync(tid, new HeapPageId(hf.getId(), hf.numPages() + 10),
+                Permissions.READ_ONLY);
+        try {
+            future.get();
+            fail("reading past the end of the file should fail");
+        } catch (ExecutionException e) {
+            // expected
+        }
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolAsyncTest.class);
+    }
+}
@@ -0,0 +1,175 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ColumnarFileTest extends SimpleDbTestBase {
+    private static final int ROWS = 1000;
+
+    private ColumnarFile file;
+    private String tableName;
+    private TupleDesc td;
+
+    /**
+     * Creates a columnar table with three columns, where row i holds
+     * (i, "row" + i, 2 * i).
+     */
+    @Before
+    public void setUp() throws Exception {
+        td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE },
+                new String[] { "a", "b", "c" });
+        File f = File.createTempFile("columnar", ".dat");
+        f.deleteOnExit();
+        file = new ColumnarFile(f, td);
+        tableName = "columnar_" + SystemTestUtil.getUUID().replace("-", "");
+        Database.getCatalog().addTable(file, tableName);
+
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < ROWS; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(i));
+            t.setField(1, new StringField("row" + i, Type.STRING_LEN));
+            t.setField(2, new IntField(2 * i));
+            Database.getBufferPool().insertTuple(tid, file.getId(), t);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for ColumnarFile.iterator() over all columns
+     */
+    @Test
+    public void readAllColumns() throws Exception {
+        assertTrue(file.numPages() > 1);
+
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = file.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int a = ((IntField) t.getField(0)).getValue();
+            assertEquals("row" + a, ((StringField) t.getField(1)).getValue());
+            assertEquals(2 * a, ((IntField) t.getField(2)).getValue());
+            n++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(ROWS, n);
+    }
+
+    /**
+     * Only the projected columns are decoded.
+     */
+    @Test
+    public void readProjectedColumns() throws Exception {
+        TransactionId tid = new TransactionId();
+        SeqScan ss = new SeqScan(tid, file.getId(), "t");
+        assertTrue(ss.projectColumns(new boolean[] { false, false, true }));
+        ss.open();
+        int n = 0;
+        long sum = 0;
+        while (ss.hasNext()) {
+            Tuple t = ss.next();
+            assertNull(t.getField(0));
+            assertNull(t.getField(1));
+            sum += ((IntField) t.getField(2)).getValue();
+            n++;
+        }
+        ss.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(ROWS, n);
+        assertEquals((long) ROWS * (ROWS - 1), sum);
+    }
+
+    /**
+     * Pages survive a round trip through getPageData, and deleted slots are
+     * reused.
+     */
+    @Test
+    public void pageRoundTrip() throws Exception {
+        HeapPageId pid = new HeapPageId(file.getId(), 0);
+        ColumnarPage page = (ColumnarPage) file.readPage(pid);
+        assertEquals(0, page.getNumEmptySlots());
+
+        Tuple first = page.iterator().next();
+        page.deleteTuple(first);
+        assertEquals(1, page.getNumEmptySlots());
+
+        Tuple t = new Tuple(td);
+        t.setField(0, new IntField(-1));
+        t.setField(1, new StringField("new", Type.STRING_LEN));
+        t.setField(2, new IntField(-2));
+        page.insertTuple(t);
+        assertEquals(first.getRecordId(), t.getRecordId());
+
+        ColumnarPage copy = new ColumnarPage(pid, page.getPageData());
+        Iterator<Tuple> it = copy.iterator();
+        Tuple read = it.next();
+        assertEquals(-1, copy.getInt(0, 0));
+        assertEquals("new", copy.getString(0, 1));
+        assertEquals(-2, ((IntField) read.getField(2)).getValue());
+    }
+
+    /**
+     * Queries planned by LogicalPlan only read the columns they reference.
+     */
+    @Test
+    public void planProjectsColumns() throws Exception {
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(tableName, new TableStats(file.getId(), 1000));
+
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                "SELECT t.b FROM " + tableName + " t WHERE t.a < 10;");
+        DbIterator plan = lp.physicalPlan(tid, stats, false);
+        plan.open();
+        int n = 0;
+        while (plan.hasNext()) {
+            Tuple t = plan.next();
+            assertTrue(((StringField) t.getField(0)).getValue().startsWith("row"));
+            n++;
+        }
+        plan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(10, n);
+    }
+
+    /**
+     * Tables marked as columnar in the catalog are loaded as ColumnarFiles.
+     */
+    @Test
+    public void loadColumnarSchema() throws Exception {
+        File catalog = File.createTempFile("catalog", ".txt");
+        catalog.deleteOnExit();
+        FileWriter w = new FileWriter(catalog);
+        w.write("columnar_test (id int pk, name varchar(20)) columnar\n");
+        w.close();
+        Database.getCatalog().loadSchema(catalog.getAbsolutePath());
+
+        DbFile f = Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId("columnar_test"));
+        assertTrue(f instanceof ColumnarFile);
+        assertEquals(20, ((ColumnarFile) f).getMaxLength(1));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ColumnarFileTest.class);
+    }
+}
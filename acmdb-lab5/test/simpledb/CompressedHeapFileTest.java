@@ -0,0 +1,295 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class CompressedHeapFileTest extends SimpleDbTestBase {
+
+    /**
+     * Pages of int and string columns decompress to the bytes they were
+     * compressed from, and take up less space.
+     */
+    @Test
+    public void codecRoundTrip() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.INT_TYPE, Type.STRING_TYPE });
+        HeapPageId pid = new HeapPageId(-1, 0);
+        Database.getCatalog().addTable(new TestUtil.SkeletonFile(-1, td), SystemTestUtil.getUUID());
+        HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+        for (int i = 0; page.getNumEmptySlots() > 0; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(1000 + i));
+            t.setField(1, new IntField(i % 3 == 0 ? -i * 7919 : i));
+            t.setField(2, new StringField(i % 2 == 0 ? "even" : "odd é", Type.STRING_LEN));
+            page.insertTuple(t);
+        }
+        // leave a hole in the page
+        page.deleteTuple(page.iterator().next());
+
+        HeapPageCodec codec = new HeapPageCodec(td, BufferPool.getPageSize());
+        byte[] data = page.getPageData();
+        byte[] compressed = codec.compress(data);
+        assertTrue(compressed.length < data.length / 4);
+        assertArrayEquals(data, codec.decompress(compressed));
+
+        byte[] empty = HeapPage.createEmptyPageData();
+        assertArrayEquals(empty, codec.decompress(codec.compress(empty)));
+    }
+
+    /**
+     * A heap file compressed with CompressedHeapFile.compress holds the same
+     * tuples in fewer bytes.
+     */
+    @Test
+    public void compressHeapFile() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(3, 5000, 100, null, tuples);
+
+        File dest = File.createTempFile("compressed", ".dat");
+        dest.deleteOnExit();
+        CompressedHeapFile.getMapFile(dest).deleteOnExit();
+        HeapFile.deleteSideFilesOnExit(dest);
+        CompressedHeapFile.compress(hf.getFile(), dest, hf.getTupleDesc());
+
+        CompressedHeapFile chf = new CompressedHeapFile(dest, hf.getTupleDesc());
+        Database.getCatalog().addTable(chf, SystemTestUtil.getUUID());
+        assertEquals(hf.numPages(), chf.numPages());
+        assertTrue(chf.getPhysicalSize() < hf.getFile().length() / 2);
+        SystemTestUtil.matchTuples(chf, tuples);
+    }
+
+    /**
+     * Inserted and deleted tuples survive reopening the file.
+     */
+    @Test
+    public void insertAndReopen() throws Exception {
+        File f = File.createTempFile("compressed", ".dat");
+        f.deleteOnExit();
+        CompressedHeapFile.getMapFile(f).deleteOnExit();
+        HeapFile.deleteSideFilesOnExit(f);
+        TupleDesc td = Utility.getTupleDesc(2);
+        CompressedHeapFile chf = new CompressedHeapFile(f, td);
+        Database.getCatalog().addTable(chf, SystemTestUtil.getUUID());
+        assertEquals(0, chf.numPages());
+
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 2000; i++) {
+            Database.getBufferPool().insertTuple(tid, chf.getId(), Utility.getHeapTuple(new int[] { i, i / 10 }));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+
+        tid = new TransactionId();
+        DbFileIterator it = chf.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (((IntField) t.getField(0)).getValue() % 2 == 0) {
+                Database.getBufferPool().deleteTuple(tid, t);
+            } else {
+                expected.add(SystemTestUtil.tupleToList(t));
+            }
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertTrue(chf.numPages() > 1);
+
+        Database.reset();
+        CompressedHeapFile reopened = new CompressedHeapFile(f, td);
+        Database.getCatalog().addTable(reopened, SystemTestUtil.getUUID());
+        assertEquals(chf.numPages(), reopened.numPages());
+        SystemTestUtil.matchTuples(reopened, expected);
+    }
+
+    /**
+     * Pages that grow a tuple at a time are moved rarely, into space they
+     * can grow into and into the space other pages left, so that the file
+     * stays within a small factor of the compressed size of its pages.
+     */
+    @Test
+    public void growingPagesReuseSpace() throws Exception {
+        File f = File.createTempFile("compressed", ".dat");
+        f.deleteOnExit();
+        CompressedHeapFile.getMapFile(f).deleteOnExit();
+        HeapFile.deleteSideFilesOnExit(f);
+        TupleDesc td = Utility.getTupleDesc(2);
+        CompressedHeapFile chf = new CompressedHeapFile(f, td);
+        Database.getCatalog().addTable(chf, SystemTestUtil.getUUID());
+
+        Random rand = new Random(0);
+        for (int i = 0; i < 1500; i++) {
+            TransactionId tid = new TransactionId();
+            Database.getBufferPool().insertTuple(tid, chf.getId(),
+                    Utility.getHeapTuple(new int[] { rand.nextInt(), i }));
+            Database.getBufferPool().transactionComplete(tid);
+        }
+        assertTrue(chf.numPages() > 1);
+
+        HeapPageCodec codec = new HeapPageCodec(td, BufferPool.getPageSize());
+        long compressed = 0;
+        for (int i = 0; i < chf.numPages(); i++) {
+            compressed += codec.compress(chf.readPage(new HeapPageId(chf.getId(), i)).getPageData()).length;
+        }
+        assertTrue(f.length() < 3 * compressed);
+        // the page map holds a fixed size record per page
+        assertEquals(4 + 16 * chf.numPages(), CompressedHeapFile.getMapFile(f).length());
+    }
+
+    /**
+     * Bulk appends and commits that flush pages into the same file do not
+     * wait for each other: a commit holds the buffer pool while it writes
+     * into the file, so an append must not call the buffer pool while it
+     * holds the file.
+     */
+    @Test
+    public void appendWhileCommitting() throws Exception {
+        File f = File.createTempFile("compressed", ".dat");
+        f.deleteOnExit();
+        CompressedHeapFile.getMapFile(f).deleteOnExit();
+        HeapFile.deleteSideFilesOnExit(f);
+        TupleDesc td = Utility.getTupleDesc(2);
+        final CompressedHeapFile chf = new CompressedHeapFile(f, td);
+        Database.getCatalog().addTable(chf, SystemTestUtil.getUUID());
+
+        final Exception[] failure = new Exception[2];
+        Thread appender = new Thread() {
+            public void run() {
+                try {
+                    for (int i = 0; i < 200; i++) {
+                        chf.appendPages(ByteBuffer.wrap(HeapPage.createEmptyPageData()));
+                    }
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            }
+        };
+        final ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        Thread committer = new Thread() {
+            public void run() {
+                try {
+                    for (int i = 0; i < 200; i++) {
+                        TransactionId tid = new TransactionId();
+                        Tuple t = Utility.getHeapTuple(new int[] { i, i });
+                        expected.add(SystemTestUtil.tupleToList(t));
+                        Database.getBufferPool().insertTuple(tid, chf.getId(), t);
+                        Database.getBufferPool().transactionComplete(tid);
+                    }
+                } catch (Exception e) {
+                    failure[1] = e;
+                }
+            }
+        };
+        // deadlocked threads must not keep the test JVM alive
+        appender.setDaemon(true);
+        committer.setDaemon(true);
+        appender.start();
+        committer.start();
+        appender.join(60000);
+        committer.join(60000);
+        assertFalse(appender.isAlive());
+        assertFalse(committer.isAlive());
+        assertNull(failure[0]);
+        assertNull(failure[1]);
+        SystemTestUtil.matchTuples(chf, expected);
+    }
+
+    /**
+     * The secondary indexes of a table are updated for appended pages after
+     * the file is unlocked: the index transactions may wait for a
+     * transaction that needs the file to commit.
+     */
+    @Test
+    public void appendIndexedWhileCommitting() throws Exception {
+        File f = File.createTempFile("compressed", ".dat");
+        f.deleteOnExit();
+        CompressedHeapFile.getMapFile(f).deleteOnExit();
+        HeapFile.deleteSideFilesOnExit(f);
+        SecondaryIndex.getIndexFile(f, 1).deleteOnExit();
+        TupleDesc td = Utility.getTupleDesc(2);
+        final CompressedHeapFile chf = new CompressedHeapFile(f, td);
+        Database.getCatalog().addTable(chf, SystemTestUtil.getUUID());
+        SecondaryIndex.create(chf.getId(), 1);
+
+        // holds the leaf of the index until it commits
+        final TransactionId tid = new TransactionId();
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        Tuple t = Utility.getHeapTuple(new int[] { 0, 0 });
+        expected.add(SystemTestUtil.tupleToList(t));
+        Database.getBufferPool().insertTuple(tid, chf.getId(), t);
+
+        HeapPage page = new HeapPage(new HeapPageId(chf.getId(), 1), HeapPage.createEmptyPageData());
+        for (int i = 1; page.getNumEmptySlots() > 0; i++) {
+            t = Utility.getHeapTuple(new int[] { i, i });
+            expected.add(SystemTestUtil.tupleToList(t));
+            page.insertTuple(t);
+        }
+        final ByteBuffer data = ByteBuffer.wrap(page.getPageData());
+        final Exception[] failure = new Exception[2];
+        Thread appender = new Thread() {
+            public void run() {
+                try {
+                    chf.appendPages(data);
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            }
+        };
+        Thread committer = new Thread() {
+            public void run() {
+                try {
+                    Database.getBufferPool().transactionComplete(tid);
+                } catch (Exception e) {
+                    failure[1] = e;
+                }
+            }
+        };
+        // deadlocked threads must not keep the test JVM alive
+        appender.setDaemon(true);
+        committer.setDaemon(true);
+        appender.start();
+        // let the index transaction of the append wait for the leaf
+        Thread.sleep(500);
+        committer.start();
+        appender.join(60000);
+        committer.join(60000);
+        assertFalse(appender.isAlive());
+        assertFalse(committer.isAlive());
+        assertNull(failure[0]);
+        assertNull(failure[1]);
+        SystemTestUtil.matchTuples(chf, expected);
+
+        TransactionId lookup = new TransactionId();
+        DbFileIterator it = Database.getCatalog().getIndex(chf.getId(), 1).iterator(lookup,
+                new IndexPredicate(Predicate.Op.GREATER_THAN_OR_EQ, new IntField(0)), new ArrayList<Predicate>());
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(lookup);
+        assertEquals(expected.size(), n);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CompressedHeapFileTest.class);
+    }
+}
@@ -0,0 +1,213 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ExtentAllocatorTest extends SimpleDbTestBase {
+    private static final int PAGES_PER_EXTENT = 4;
+
+    private File f;
+    private int pageSize;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        pageSize = BufferPool.getPageSize();
+        ExtentAllocator.setExtentSize(PAGES_PER_EXTENT * pageSize);
+        f = File.createTempFile("extents", ".dat");
+        f.deleteOnExit();
+        HeapFile.deleteSideFilesOnExit(f);
+    }
+
+    @After
+    public void tearDown() {
+        ExtentAllocator.resetExtentSize();
+    }
+
+    /**
+     * The file grows by whole extents while numPages grows one page at a
+     * time.
+     */
+    @Test
+    public void allocateInExtents() throws Exception {
+        ExtentAllocator extents = new ExtentAllocator(f, 0);
+        assertEquals(0, extents.numPages());
+
+        for (int i = 0; i < PAGES_PER_EXTENT; i++) {
+            assertEquals(i, extents.allocatePage());
+            assertEquals(i + 1, extents.numPages());
+            assertEquals(PAGES_PER_EXTENT * pageSize, f.length());
+        }
+        assertEquals(PAGES_PER_EXTENT, extents.allocatePage());
+        assertEquals(2 * PAGES_PER_EXTENT * pageSize, f.length());
+    }
+
+    /**
+     * Pages are numbered after the header, and writing past the high-water
+     * mark moves it.
+     */
+    @Test
+    public void headerAndWrites() throws Exception {
+        ExtentAllocator extents = new ExtentAllocator(f, 9);
+        assertEquals(0, extents.allocatePage());
+        assertEquals(9 + PAGES_PER_EXTENT * pageSize, f.length());
+
+        extents.pageWritten(2);
+        assertEquals(3, extents.numPages());
+        extents.pageWritten(1);
+        assertEquals(3, extents.numPages());
+    }
+
+    /**
+     * Changes to the file made without the allocator are picked up.
+     */
+    @Test
+    public void externalAppend() throws Exception {
+        ExtentAllocator extents = new ExtentAllocator(f, 0);
+        extents.allocatePage();
+
+        FileOutputStream out = new FileOutputStream(f, true);
+        out.write(new byte[pageSize]);
+        out.close();
+        assertEquals(PAGES_PER_EXTENT + 1, extents.numPages());
+    }
+
+    /**
+     * Inserting into a HeapFile allocates pages from the preallocated extent.
+     */
+    @Test
+    public void heapFileInsert() throws Exception {
+        f.delete();
+        HeapFile hf = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        assertEquals(1, hf.numPages());
+        assertEquals(pageSize, f.length());
+
+        TransactionId tid = new TransactionId();
+        int perPage = pageSize * 8 / (hf.getTupleDesc().getSize() * 8 + 1);
+        for (int i = 0; i < 2 * perPage + 1; i++) {
+            Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(3, hf.numPages());
+        assertEquals((1 + PAGES_PER_EXTENT) * pageSize, f.length());
+    }
+
+    /**
+     * The high-water mark is found again when the file is reopened, and the
+     * record of it is cleared once the last preallocated page is in use.
+     */
+    @Test
+    public void reopen() throws Exception {
+        ExtentAllocator extents = new ExtentAllocator(f, 9);
+        extents.allocatePage();
+        extents.allocatePage();
+
+        extents = new ExtentAllocator(f, 9);
+        assertEquals(2, extents.numPages());
+        for (int i = 2; i < PAGES_PER_EXTENT; i++) {
+            assertEquals(i, extents.allocatePage());
+            assertEquals(i + 1, new ExtentAllocator(f, 9).numPages());
+        }
+        assertEquals(9 + PAGES_PER_EXTENT * pageSize, f.length());
+
+        // the last page is all zeros once it is allocated
+        byte[] data = new byte[pageSize];
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        raf.seek(9 + (PAGES_PER_EXTENT - 1) * pageSize);
+        raf.readFully(data);
+        raf.close();
+        assertArrayEquals(new byte[pageSize], data);
+    }
+
+    /**
+     * Reopening a HeapFile does not count the preallocated pages as pages
+     * of the table.
+     */
+    @Test
+    public void heapFileReopen() throws Exception {
+        f.delete();
+        HeapFile hf = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        TransactionId tid = new TransactionId();
+        int perPage = pageSize * 8 / (hf.getTupleDesc().getSize() * 8 + 1);
+        for (int i = 0; i < 2 * perPage + 1; i++) {
+            Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(3, hf.numPages());
+
+        Database.reset();
+        hf = Utility.openHeapFile(2, f);
+        assertEquals(3, hf.numPages());
+        tid = new TransactionId();
+        for (int i = 0; i < perPage; i++) {
+            Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(4, hf.numPages());
+        assertEquals((1 + PAGES_PER_EXTENT) * pageSize, f.length());
+    }
+
+    /**
+     * A BTreeFile that grows after it was reopened uses the pages
+     * preallocated before, instead of leaking them.
+     */
+    @Test
+    public void bTreeFileReopen() throws Exception {
+        f.delete();
+        BTreeFile bf = BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0);
+        int i = 0;
+        while (bf.numPages() < 3) {
+            TransactionId tid = new TransactionId();
+            Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(i++, 2));
+            Database.getBufferPool().transactionComplete(tid);
+        }
+        int numPages = bf.numPages();
+        long length = f.length();
+        assertTrue(numPages < (length - BTreeRootPtrPage.getPageSize()) / pageSize);
+
+        Database.reset();
+        bf = BTreeUtility.openBTreeFile(2, f, 0);
+        assertEquals(numPages, bf.numPages());
+        while (bf.numPages() == numPages) {
+            TransactionId tid = new TransactionId();
+            Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(i++, 2));
+            Database.getBufferPool().transactionComplete(tid);
+        }
+        assertEquals(length, f.length());
+        assertEquals(i, countTuples(bf));
+    }
+
+    private int countTuples(DbFile file) throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = file.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return n;
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ExtentAllocatorTest.class);
+    }
+}
@@ -124,6 +124,21 @@ public class FilterTest extends SimpleDbTestBase {
         op.close();
     }
 
+    /**
+     * Unit test for Filter.setChildren()
+     */
+    @Test
+    public void setChildren() throws Exception {
+        Predicate pred = new Predicate(0, Predicate.Op.LESS_THAN, TestUtil.getField(2));
+        Filter op = new Filter(pred, scan);
+        DbIterator child = new TestUtil.MockScan(0, 5, testWidth);
+        op.setChildren(new DbIterator[] { child });
+        assertTrue(op.getChildren()[0] == child);
+        op.open();
+        TestUtil.compareDbIterators(op, new TestUtil.MockScan(0, 2, testWidth));
+        op.close();
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,105 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.HashMap;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class FreePageCacheTest extends SimpleDbTestBase {
+    private BTreeFile bf;
+
+    @Before
+    public void setUp() throws Exception {
+        File f = File.createTempFile("free", ".dat");
+        f.deleteOnExit();
+        f.delete();
+        bf = BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0, 5);
+    }
+
+    private void free(int pageNo, boolean commit) throws Exception {
+        TransactionId tid = new TransactionId();
+        HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+        bf.setEmptyPage(tid, dirtypages, pageNo);
+        complete(tid, dirtypages, commit);
+    }
+
+    private int allocate(boolean commit) throws Exception {
+        TransactionId tid = new TransactionId();
+        HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+        int pageNo = bf.getEmptyPageNo(tid, dirtypages);
+        complete(tid, dirtypages, commit);
+        return pageNo;
+    }
+
+    private static void complete(TransactionId tid, HashMap<PageId, Page> dirtypages, boolean commit)
+            throws Exception {
+        for (Page p : dirtypages.values()) {
+            p.markDirty(true, tid);
+        }
+        Database.getBufferPool().transactionComplete(tid, commit);
+    }
+
+    /**
+     * Pages freed by a committed transaction are reused, lowest first, and
+     * the file is extended once there are none left.
+     */
+    @Test
+    public void reuseAfterCommit() throws Exception {
+        free(4, true);
+        free(2, true);
+        assertEquals(2, allocate(true));
+        assertEquals(4, allocate(true));
+        assertEquals(bf.numPages() + 1, allocate(true));
+    }
+
+    /**
+     * A page freed by an aborted transaction stays in use, and a page taken
+     * by an aborted transaction is free again.
+     */
+    @Test
+    public void abort() throws Exception {
+        free(3, false);
+        assertEquals(bf.numPages() + 1, allocate(true));
+
+        free(3, true);
+        assertEquals(3, allocate(false));
+        assertEquals(3, allocate(true));
+    }
+
+    /**
+     * A transaction reuses the pages it freed itself, but other transactions
+     * only once it has completed; until then they extend the file without
+     * waiting for the lock on the header page.
+     */
+    @Test
+    public void pendingFree() throws Exception {
+        free(2, true);
+        assertEquals(2, allocate(true));
+        // build the cache, which finds no free page
+        assertEquals(bf.numPages() + 1, allocate(true));
+
+        TransactionId tid = new TransactionId();
+        HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+        bf.setEmptyPage(tid, dirtypages, 3);
+        bf.setEmptyPage(tid, dirtypages, 4);
+        assertEquals(bf.numPages() + 1, allocate(true));
+        assertEquals(3, bf.getEmptyPageNo(tid, dirtypages));
+        complete(tid, dirtypages, true);
+
+        assertEquals(4, allocate(true));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FreePageCacheTest.class);
+    }
+}
@@ -0,0 +1,171 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class HashFileTest extends SimpleDbTestBase {
+    private static final int ROWS = 20000;
+    /** Number of tuples inserted per transaction, so each one fits in the buffer pool */
+    private static final int BATCH = 20;
+
+    /** Counts the number of readPage operations. */
+    private static class InstrumentedHashFile extends HashFile {
+        int readCount = 0;
+
+        InstrumentedHashFile(File f, int key, TupleDesc td) {
+            super(f, key, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            readCount++;
+            return super.readPage(pid);
+        }
+    }
+
+    private File f;
+    private InstrumentedHashFile hf;
+
+    /**
+     * Creates a hash file on the first field with rows (i, 2i).
+     */
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        f = File.createTempFile("hash", ".dat");
+        f.delete();
+        f.deleteOnExit();
+        hf = open();
+        for (int i = 0; i < ROWS; i += BATCH) {
+            TransactionId tid = new TransactionId();
+            for (int j = i; j < i + BATCH; j++) {
+                Database.getBufferPool().insertTuple(tid, hf.getId(), BTreeUtility.getBTreeTuple(new int[] { j, 2 * j }));
+            }
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
+    private InstrumentedHashFile open() {
+        InstrumentedHashFile file = new InstrumentedHashFile(f, 0, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(file, SystemTestUtil.getUUID());
+        return file;
+    }
+
+    private ArrayList<Tuple> lookup(HashFile file, Predicate.Op op, int key) throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = file.indexIterator(tid, new IndexPredicate(op, new IntField(key)));
+        it.open();
+        ArrayList<Tuple> result = new ArrayList<Tuple>();
+        while (it.hasNext()) {
+            result.add(it.next());
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return result;
+    }
+
+    /**
+     * Every tuple is found by its key, and a lookup reads about one page
+     * once the meta and directory pages are cached.
+     */
+    @Test
+    public void lookups() throws Exception {
+        HashMetaPage meta = (HashMetaPage) hf.readPage(new HashPageId(hf.getId(), 0, HashPageId.META));
+        assertTrue(meta.getNumBuckets() > 1);
+
+        for (int i = 0; i < ROWS; i += 97) {
+            ArrayList<Tuple> found = lookup(hf, Predicate.Op.EQUALS, i);
+            assertEquals(1, found.size());
+            assertEquals(2 * i, found.get(0).getInt(1));
+        }
+        assertEquals(0, lookup(hf, Predicate.Op.EQUALS, -1).size());
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        lookup(hf, Predicate.Op.EQUALS, 0);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        hf.readCount = 0;
+        int lookups = 0;
+        for (int i = 1; i < ROWS; i += 397) {
+            // keep only the meta and directory pages cached
+            Database.getBufferPool().discardPage(
+                    lookup(hf, Predicate.Op.EQUALS, i).get(0).getRecordId().getPageId());
+            lookups++;
+        }
+        assertTrue(hf.readCount <= 2 * lookups);
+    }
+
+    /**
+     * A scan returns every tuple once, and predicates other than EQUALS are
+     * answered by filtering a scan.
+     */
+    @Test
+    public void scans() throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        boolean[] seen = new boolean[ROWS];
+        int n = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertFalse(seen[t.getInt(0)]);
+            seen[t.getInt(0)] = true;
+            n++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(ROWS, n);
+        assertEquals(100, lookup(hf, Predicate.Op.LESS_THAN, 100).size());
+    }
+
+    /**
+     * Duplicate keys, deletes and aborted inserts.
+     */
+    @Test
+    public void updates() throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 3; i++) {
+            Database.getBufferPool().insertTuple(tid, hf.getId(), BTreeUtility.getBTreeTuple(new int[] { 7, -i }));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        ArrayList<Tuple> found = lookup(hf, Predicate.Op.EQUALS, 7);
+        assertEquals(4, found.size());
+
+        tid = new TransactionId();
+        Database.getBufferPool().deleteTuple(tid, found.get(0));
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(3, lookup(hf, Predicate.Op.EQUALS, 7).size());
+
+        tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, hf.getId(), BTreeUtility.getBTreeTuple(new int[] { -5, 0 }));
+        Database.getBufferPool().transactionComplete(tid, false);
+        assertEquals(0, lookup(hf, Predicate.Op.EQUALS, -5).size());
+    }
+
+    /**
+     * The file can be opened again.
+     */
+    @Test
+    public void reopen() throws Exception {
+        Database.reset();
+        HashFile reopened = open();
+        assertEquals(1, lookup(reopened, Predicate.Op.EQUALS, 12345).size());
+        assertEquals(0, lookup(reopened, Predicate.Op.EQUALS, ROWS).size());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HashFileTest.class);
+    }
+}
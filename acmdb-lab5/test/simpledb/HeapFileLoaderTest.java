@@ -0,0 +1,151 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class HeapFileLoaderTest extends SimpleDbTestBase {
+
+    private static File writeText(String text) throws Exception {
+        File f = File.createTempFile("loader", ".txt");
+        f.deleteOnExit();
+        FileWriter w = new FileWriter(f);
+        w.write(text);
+        w.close();
+        return f;
+    }
+
+    private static HeapFile emptyHeapFile(TupleDesc td) throws Exception {
+        File f = File.createTempFile("loader", ".dat");
+        f.deleteOnExit();
+        HeapFile.deleteSideFilesOnExit(f);
+        HeapFile hf = new HeapFile(f, td);
+        Database.getCatalog().addTable(hf, "loader_" + SystemTestUtil.getUUID().replace("-", ""));
+        return hf;
+    }
+
+    /**
+     * A file that fits in one chunk is loaded into the same bytes as
+     * HeapFileEncoder writes, and a file of many chunks holds the same tuples.
+     */
+    @Test
+    public void loadInts() throws Exception {
+        Random rand = new Random(42);
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            ArrayList<Integer> tuple = new ArrayList<Integer>();
+            for (int j = 0; j < 3; j++) {
+                tuple.add(rand.nextInt() >> rand.nextInt(32));
+            }
+            tuples.add(tuple);
+            text.append(tuple.get(0)).append(',').append(tuple.get(1)).append(',').append(tuple.get(2));
+            text.append('\n');
+        }
+        File in = writeText(text.toString());
+        TupleDesc td = Utility.getTupleDesc(3);
+
+        File encoded = File.createTempFile("encoder", ".dat");
+        encoded.deleteOnExit();
+        HeapFileEncoder.convert(in, encoded, BufferPool.getPageSize(), 3);
+        HeapFile hf = emptyHeapFile(td);
+        assertEquals(5000, new HeapFileLoader(td, ',').load(in, hf));
+        assertArrayEquals(Files.readAllBytes(encoded.toPath()), Files.readAllBytes(hf.getFile().toPath()));
+
+        HeapFile chunked = emptyHeapFile(td);
+        assertEquals(5000, new HeapFileLoader(td, ',', 4, 1000).load(in, chunked));
+        SystemTestUtil.matchTuples(chunked, tuples);
+    }
+
+    /**
+     * Strings, a custom separator, blank lines, Windows line endings, bad
+     * lines and a missing newline at the end of the file are all handled.
+     */
+    @Test
+    public void loadMixedLines() throws Exception {
+        String longString = new String(new char[Type.STRING_LEN + 10]).replace('\0', 'x');
+        File in = writeText("1| one\r\n\n  2 |two words \n3|" + longString + "\nfour|4\n5|too|many\n-6|six");
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+        HeapFile hf = emptyHeapFile(td);
+        assertEquals(4, new HeapFileLoader(td, '|', 2, 8).load(in, hf));
+
+        ArrayList<String> actual = new ArrayList<String>();
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            actual.add(t.getInt(0) + ":" + t.getString(1));
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(Arrays.asList("1:one", "2:two words", "3:" + longString.substring(0, Type.STRING_LEN), "-6:six"),
+                actual);
+    }
+
+    /**
+     * COPY appends the tuples of a file to a table.
+     */
+    @Test
+    public void copyStatement() throws Exception {
+        File in = writeText("1,10\n2,20\n3,30\n");
+        HeapFile hf = emptyHeapFile(Utility.getTupleDesc(2));
+        String name = Database.getCatalog().getTableName(hf.getId());
+
+        Parser p = new Parser();
+        p.processNextStatement("COPY " + name + " FROM '" + in.getAbsolutePath() + "';");
+        p.processNextStatement("copy " + name + " from '" + in.getAbsolutePath() + "' delimiter ','");
+
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (int round = 0; round < 2; round++) {
+            for (int i = 1; i <= 3; i++) {
+                expected.add(new ArrayList<Integer>(Arrays.asList(i, 10 * i)));
+            }
+        }
+        SystemTestUtil.matchTuples(hf, expected);
+    }
+
+    /**
+     * Loading into a compressed heap file compresses the pages.
+     */
+    @Test
+    public void loadCompressed() throws Exception {
+        StringBuilder text = new StringBuilder();
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < 3000; i++) {
+            text.append(i).append(',').append(i % 7).append('\n');
+            tuples.add(new ArrayList<Integer>(Arrays.asList(i, i % 7)));
+        }
+        File f = File.createTempFile("loader", ".dat");
+        f.deleteOnExit();
+        HeapFile.deleteSideFilesOnExit(f);
+        CompressedHeapFile.getMapFile(f).deleteOnExit();
+        new FileOutputStream(f).close();
+        CompressedHeapFile chf = new CompressedHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(chf, "loader_" + SystemTestUtil.getUUID().replace("-", ""));
+
+        assertEquals(3000, new HeapFileLoader(chf.getTupleDesc(), ',').load(writeText(text.toString()), chf));
+        assertTrue(chf.getPhysicalSize() < chf.numPages() * BufferPool.getPageSize() / 4);
+        SystemTestUtil.matchTuples(chf, tuples);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HeapFileLoaderTest.class);
+    }
+}
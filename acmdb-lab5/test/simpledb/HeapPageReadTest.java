@@ -107,6 +107,42 @@ public class HeapPageReadTest extends SimpleDbTestBase {
             assertFalse(page.isSlotUsed(i));
     }
 
+    /**
+     * Unit test for HeapPage.getInt()
+     */
+    @Test
+    public void getInt() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+
+        for (int i = 0; i < EXAMPLE_VALUES.length; ++i) {
+            assertEquals(EXAMPLE_VALUES[i][0], page.getInt(i, 0));
+            assertEquals(EXAMPLE_VALUES[i][1], page.getInt(i, 1));
+        }
+    }
+
+    /**
+     * Unit test for HeapPage.iterator(List)
+     */
+    @Test
+    public void testFilteredIterator() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        Predicate p = new Predicate(0, Predicate.Op.LESS_THAN, new IntField(20000));
+        Iterator<Tuple> it = page.iterator(Arrays.asList(p));
+
+        int matches = 0;
+        for (int[] tuple : EXAMPLE_VALUES) {
+            if (tuple[0] < 20000) {
+                assertTrue(it.hasNext());
+                Tuple tup = it.next();
+                assertEquals(tuple[0], ((IntField) tup.getField(0)).getValue());
+                assertEquals(tuple[1], ((IntField) tup.getField(1)).getValue());
+                matches++;
+            }
+        }
+        assertFalse(it.hasNext());
+        assertEquals(7, matches);
+    }
+
     /**
      * JUnit suite target
      */
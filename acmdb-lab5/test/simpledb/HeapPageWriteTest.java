@@ -88,6 +88,29 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Changing a tuple after inserting it does not change the page.
+     */
+    @Test
+    public void insertedTupleNotShared() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        Tuple addition = Utility.getHeapTuple(-1234, 2);
+        page.insertTuple(addition);
+        addition.setField(0, new IntField(5678));
+
+        int found = 0;
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext()) {
+            Tuple tup = it.next();
+            assertTrue(tup != addition);
+            if (tup.getRecordId().equals(addition.getRecordId())) {
+                assertEquals(new IntField(-1234), tup.getField(0));
+                found++;
+            }
+        }
+        assertEquals(1, found);
+    }
+
     /**
      * Unit test for HeapPage.deleteTuple() with false tuples
      */
@@ -182,4 +182,55 @@ public class IntHistogramTest {
         Assert.assertTrue(h.estimateSelectivity(Op.NOT_EQUALS, 3) < 0.001);
         Assert.assertTrue(h.estimateSelectivity(Op.NOT_EQUALS, 8) > 0.01);
     }
+
+    /**
+     * Values outside the range widen it, and removed values are no longer
+     * counted.
+     */
+    @Test
+    public void addOutOfRangeTest() {
+        IntHistogram h = new IntHistogram(10, 1, 10);
+        for (int i = 1; i <= 10; i++) {
+            h.addValue(i);
+        }
+        h.addValue(100, 10);
+        Assert.assertEquals(0.5, h.estimateSelectivity(Op.GREATER_THAN, 50), 0.01);
+        Assert.assertTrue(h.estimateSelectivity(Op.EQUALS, 100) > 0.01);
+        Assert.assertEquals(1.0, h.estimateSelectivity(Op.GREATER_THAN, -100), 0.0);
+
+        h.addValue(100, -10);
+        h.addValue(-7, -1);
+        Assert.assertEquals(0.0, h.estimateSelectivity(Op.GREATER_THAN, 50), 0.0);
+        Assert.assertEquals(1.0, h.estimateSelectivity(Op.LESS_THAN, 50), 0.0);
+    }
+
+    /**
+     * The full int range fits in the histogram, and widening a small range
+     * to the extreme values keeps the values counted so far.
+     */
+    @Test
+    public void extremeValuesTest() {
+        IntHistogram h = new IntHistogram(1, Integer.MIN_VALUE, Integer.MAX_VALUE);
+        h.addValue(Integer.MIN_VALUE);
+        h.addValue(Integer.MAX_VALUE);
+        Assert.assertEquals(1.0, h.estimateSelectivity(Op.GREATER_THAN_OR_EQ, Integer.MIN_VALUE), 0.0);
+        Assert.assertEquals(0.0, h.estimateSelectivity(Op.GREATER_THAN, Integer.MAX_VALUE), 0.0);
+
+        h = new IntHistogram(100, 0, 99);
+        for (int i = 0; i < 100; i++) {
+            h.addValue(i);
+        }
+        h.addValue(Integer.MAX_VALUE);
+        h.addValue(Integer.MIN_VALUE);
+        // the estimates are coarse now, but still add up
+        double less = h.estimateSelectivity(Op.LESS_THAN, 50);
+        Assert.assertTrue(less >= 0.0 && less <= 1.0);
+        Assert.assertEquals(1.0, less + h.estimateSelectivity(Op.GREATER_THAN_OR_EQ, 50), 0.01);
+        Assert.assertEquals(1.0 / 102, h.estimateSelectivity(Op.LESS_THAN, Integer.MIN_VALUE + 1), 0.01);
+        Assert.assertEquals(1.0, h.estimateSelectivity(Op.LESS_THAN_OR_EQ, Integer.MAX_VALUE), 0.0);
+
+        h.addValue(Integer.MAX_VALUE, -1);
+        h.addValue(Integer.MIN_VALUE, -1);
+        Assert.assertEquals(1.0, h.estimateSelectivity(Op.NOT_EQUALS, Integer.MAX_VALUE), 0.02);
+    }
 }
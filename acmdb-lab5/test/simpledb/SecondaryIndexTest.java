@@ -0,0 +1,275 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SecondaryIndexTest extends SimpleDbTestBase {
+    private static final int ROWS = 5000;
+
+    private File f;
+    private HeapFile hf;
+    private String name;
+
+    /**
+     * Maps row i to a value of the second field; the values are a
+     * permutation of 0..ROWS-1, so they are not in the order of the file.
+     */
+    private static int value(int i) {
+        return (int) ((i * 7919L) % ROWS);
+    }
+
+    /**
+     * Creates a table with rows (i, value(i)).
+     */
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < ROWS; i++) {
+            ArrayList<Integer> tuple = new ArrayList<Integer>();
+            tuple.add(i);
+            tuple.add(value(i));
+            tuples.add(tuple);
+        }
+        f = File.createTempFile("index", ".dat");
+        f.deleteOnExit();
+        HeapFile.deleteSideFilesOnExit(f);
+        SecondaryIndex.getIndexFile(f, 1).deleteOnExit();
+        HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), 2);
+        name = "index_" + SystemTestUtil.getUUID().replace("-", "");
+        hf = new HeapFile(f, Utility.getTupleDesc(2, "f"));
+        Database.getCatalog().addTable(hf, name);
+    }
+
+    /**
+     * Reads the tuples whose second field satisfies op v through the index,
+     * checking that they come in page order.
+     */
+    private ArrayList<Tuple> lookup(Predicate.Op op, int v) throws Exception {
+        TransactionId tid = new TransactionId();
+        IndexScan scan = new IndexScan(tid, Database.getCatalog().getIndex(hf.getId(), 1),
+                new IndexPredicate(op, new IntField(v)), "t");
+        scan.open();
+        ArrayList<Tuple> result = new ArrayList<Tuple>();
+        int lastPage = -1;
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            assertTrue(t.getField(1).compare(op, new IntField(v)));
+            int pageNo = t.getRecordId().getPageId().pageNumber();
+            assertTrue(pageNo >= lastPage);
+            lastPage = pageNo;
+            result.add(t);
+        }
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return result;
+    }
+
+    /**
+     * Point and range lookups return the tuples a scan finds.
+     */
+    @Test
+    public void lookups() throws Exception {
+        SecondaryIndex index = SecondaryIndex.create(hf.getId(), 1);
+        assertSame(index, Database.getCatalog().getIndex(hf.getId(), 1));
+        assertNull(Database.getCatalog().getIndex(hf.getId(), 0));
+
+        ArrayList<Tuple> found = lookup(Predicate.Op.EQUALS, value(1234));
+        assertEquals(1, found.size());
+        assertEquals(1234, found.get(0).getInt(0));
+        assertEquals(0, lookup(Predicate.Op.EQUALS, -1).size());
+        assertEquals(100, lookup(Predicate.Op.LESS_THAN, 100).size());
+        assertEquals(ROWS - 4000, lookup(Predicate.Op.GREATER_THAN_OR_EQ, 4000).size());
+
+        try {
+            SecondaryIndex.create(hf.getId(), 1);
+            fail("the field is already indexed");
+        } catch (DbException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Inserted, deleted and appended tuples are reflected in the index, and
+     * aborted inserts are not.
+     */
+    @Test
+    public void maintenance() throws Exception {
+        SecondaryIndex.create(hf.getId(), 1);
+
+        TransactionId tid = new TransactionId();
+        Tuple t = BTreeUtility.getBTreeTuple(new int[] { ROWS, -5 });
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(1, lookup(Predicate.Op.EQUALS, -5).size());
+
+        tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, hf.getId(), BTreeUtility.getBTreeTuple(new int[] { ROWS, -6 }));
+        Database.getBufferPool().transactionComplete(tid, false);
+        assertEquals(0, lookup(Predicate.Op.EQUALS, -6).size());
+
+        Tuple victim = lookup(Predicate.Op.EQUALS, value(42)).get(0);
+        tid = new TransactionId();
+        Database.getBufferPool().deleteTuple(tid, victim);
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(0, lookup(Predicate.Op.EQUALS, value(42)).size());
+        assertEquals(1, lookup(Predicate.Op.LESS_THAN, 0).size());
+
+        StringBuilder rows = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            rows.append(ROWS + i).append(',').append(-1000 - i).append('\n');
+        }
+        new HeapFileLoader(hf.getTupleDesc(), ',').load(new ByteArrayInputStream(rows.toString().getBytes("UTF-8")),
+                hf);
+        assertEquals(1, lookup(Predicate.Op.EQUALS, -1999).size());
+        assertEquals(1001, lookup(Predicate.Op.LESS_THAN, 0).size());
+    }
+
+    /**
+     * A DELETE reading the tuples through the index removes their entries
+     * while the scan is open, also when many tuples share the key.
+     */
+    @Test
+    public void deleteThroughIndex() throws Exception {
+        SecondaryIndex index = SecondaryIndex.create(hf.getId(), 1);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 2000; i++) {
+            Database.getBufferPool().insertTuple(tid, hf.getId(), BTreeUtility.getBTreeTuple(new int[] { i, -7 }));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(2000, lookup(Predicate.Op.EQUALS, -7).size());
+
+        tid = new TransactionId();
+        Delete delete = new Delete(tid, new IndexScan(tid, index, new IndexPredicate(Predicate.Op.LESS_THAN, new IntField(100)), "t"));
+        delete.open();
+        assertEquals(2100, delete.next().getInt(0));
+        delete.close();
+        Database.getBufferPool().transactionComplete(tid);
+
+        assertEquals(0, lookup(Predicate.Op.LESS_THAN, 100).size());
+        assertEquals(ROWS - 100, lookup(Predicate.Op.GREATER_THAN_OR_EQ, 0).size());
+        tid = new TransactionId();
+        BTreeChecker.checkRep(index.getBTreeFile(), tid, new HashMap<PageId, Page>(), false);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Tuples moved by a vacuum are found at their new place.
+     */
+    @Test
+    public void vacuum() throws Exception {
+        SecondaryIndex.create(hf.getId(), 1);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        ArrayList<Tuple> deleted = new ArrayList<Tuple>();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (t.getInt(0) % 10 != 0 && deleted.size() < 40) {
+                deleted.add(t);
+            }
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        for (Tuple t : deleted) {
+            tid = new TransactionId();
+            Database.getBufferPool().deleteTuple(tid, t);
+            Database.getBufferPool().transactionComplete(tid);
+        }
+
+        new Vacuum(hf).run();
+        ArrayList<Tuple> all = lookup(Predicate.Op.GREATER_THAN_OR_EQ, 0);
+        assertEquals(ROWS - deleted.size(), all.size());
+        for (Tuple t : all) {
+            assertEquals(value(t.getInt(0)), t.getInt(1));
+        }
+    }
+
+    /**
+     * CREATE INDEX builds an index that the planner uses for selective
+     * predicates, and the index is found again when the table is reopened.
+     */
+    @Test
+    public void statementAndPlanner() throws Exception {
+        new Parser().processNextStatement("CREATE INDEX ON " + name + "(f1);");
+        assertNotNull(Database.getCatalog().getIndex(hf.getId(), 1));
+
+        TableStats.setTableStats(name, new TableStats(hf.getId(), TableStats.IOCOSTPERPAGE));
+        TransactionId tid = new TransactionId();
+        Parser p = new Parser();
+        DbIterator plan = p.generateLogicalPlan(tid, "SELECT * FROM " + name + " t WHERE t.f1 = 42;")
+                .physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertNotNull(findScan(plan).getIndex());
+        plan = p.generateLogicalPlan(tid, "SELECT * FROM " + name + " t WHERE t.f1 > 42;")
+                .physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertNull(findScan(plan).getIndex());
+        plan = p.generateLogicalPlan(tid, "SELECT * FROM " + name + " t WHERE t.f0 = 42;")
+                .physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertNull(findScan(plan).getIndex());
+        Database.getBufferPool().transactionComplete(tid);
+
+        Database.reset();
+        hf = new HeapFile(f, Utility.getTupleDesc(2, "f"));
+        Database.getCatalog().addTable(hf, name);
+        assertNull(Database.getCatalog().getIndex(hf.getId(), 1));
+        SecondaryIndex.openAll(name, hf);
+        assertNotNull(Database.getCatalog().getIndex(hf.getId(), 1));
+        assertEquals(1, lookup(Predicate.Op.EQUALS, value(7)).size());
+    }
+
+    /**
+     * Queries that read only the indexed field are answered from the index
+     * entries alone, in key order.
+     */
+    @Test
+    public void indexOnlyScan() throws Exception {
+        SecondaryIndex.create(hf.getId(), 1);
+        TableStats.setTableStats(name, new TableStats(hf.getId(), TableStats.IOCOSTPERPAGE));
+        TransactionId tid = new TransactionId();
+        Parser p = new Parser();
+        DbIterator plan = p.generateLogicalPlan(tid, "SELECT t.f1 FROM " + name + " t WHERE t.f1 < 1000;")
+                .physicalPlan(tid, TableStats.getStatsMap(), false);
+        SeqScan scan = findScan(plan);
+        assertTrue(scan instanceof IndexScan);
+        assertTrue(scan.isIndexOnly());
+        plan.open();
+        int expected = 0;
+        while (plan.hasNext()) {
+            assertEquals(expected++, ((IntField) plan.next().getField(0)).getValue());
+        }
+        plan.close();
+        assertEquals(1000, expected);
+
+        // reading another field of the table needs the tuples
+        plan = p.generateLogicalPlan(tid, "SELECT t.f0 FROM " + name + " t WHERE t.f1 < 1000;")
+                .physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertFalse(findScan(plan).isIndexOnly());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static SeqScan findScan(DbIterator it) {
+        while (!(it instanceof SeqScan)) {
+            it = ((Operator) it).getChildren()[0];
+        }
+        return (SeqScan) it;
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SecondaryIndexTest.class);
+    }
+}
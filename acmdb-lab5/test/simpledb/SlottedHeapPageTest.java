@@ -0,0 +1,214 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class SlottedHeapPageTest extends SimpleDbTestBase {
+    private static final int MAX_LEN = 16;
+
+    private SlottedHeapFile file;
+    private HeapPageId pid;
+    private TupleDesc td;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before
+    public void addTable() throws Exception {
+        td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+        File f = File.createTempFile("slotted", ".dat");
+        f.deleteOnExit();
+        file = new SlottedHeapFile(f, td, new int[] { 0, MAX_LEN });
+        Database.getCatalog().addTable(file);
+        pid = new HeapPageId(file.getId(), 0);
+    }
+
+    private Tuple getTuple(int i, String s) {
+        Tuple t = new Tuple(td);
+        t.setField(0, new IntField(i));
+        t.setField(1, new StringField(s, Type.STRING_LEN));
+        return t;
+    }
+
+    private static int count(Iterator<Tuple> it) {
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Short strings take up less space than fixed-length ones, so many more
+     * tuples fit on a page than on a HeapPage.
+     */
+    @Test
+    public void fillPage() throws Exception {
+        SlottedHeapPage page = new SlottedHeapPage(pid, SlottedHeapPage.createEmptyPageData());
+        int heapPageTuples = BufferPool.getPageSize() * 8 / (td.getSize() * 8 + 1);
+
+        int inserted = 0;
+        while (page.hasRoomFor(getTuple(inserted, "v" + inserted))) {
+            page.insertTuple(getTuple(inserted, "v" + inserted));
+            inserted++;
+        }
+        assertTrue(inserted > 5 * heapPageTuples);
+        assertEquals(inserted, count(page.iterator()));
+
+        try {
+            page.insertTuple(getTuple(inserted, "v" + inserted));
+            throw new Exception("page should be full; expected DbException");
+        } catch (DbException e) {
+            // explicitly ignored
+        }
+    }
+
+    /**
+     * Characters up to U+00FF are stored as they are; a string with other
+     * characters is rejected without changing the page.
+     */
+    @Test
+    public void charset() throws Exception {
+        SlottedHeapPage page = new SlottedHeapPage(pid, SlottedHeapPage.createEmptyPageData());
+        page.insertTuple(getTuple(1, "caf\u00e9 \u00ff"));
+        try {
+            page.insertTuple(getTuple(2, "\u4e2d\u6587"));
+            throw new Exception("expected DbException");
+        } catch (DbException e) {
+            // explicitly ignored
+        }
+
+        page = new SlottedHeapPage(pid, page.getPageData());
+        Iterator<Tuple> it = page.iterator();
+        assertEquals("caf\u00e9 \u00ff", it.next().getString(1));
+        assertFalse(it.hasNext());
+    }
+
+    /**
+     * Pages survive a round trip through getPageData, and strings are
+     * truncated to the declared maximum length.
+     */
+    @Test
+    public void roundTrip() throws Exception {
+        SlottedHeapPage page = new SlottedHeapPage(pid, SlottedHeapPage.createEmptyPageData());
+        page.insertTuple(getTuple(1, "short"));
+        page.insertTuple(getTuple(2, "a string longer than sixteen characters"));
+        page.insertTuple(getTuple(3, ""));
+
+        SlottedHeapPage copy = new SlottedHeapPage(pid, page.getPageData());
+        Iterator<Tuple> it = copy.iterator();
+        assertEquals("short", ((StringField) it.next().getField(1)).getValue());
+        Tuple t = it.next();
+        assertEquals(2, ((IntField) t.getField(0)).getValue());
+        assertEquals("a string longer ", ((StringField) t.getField(1)).getValue());
+        assertEquals(new RecordId(pid, 1), t.getRecordId());
+        assertEquals("", ((StringField) it.next().getField(1)).getValue());
+        assertTrue(!it.hasNext());
+    }
+
+    /**
+     * Space freed by deletes is reused, compacting the page if necessary,
+     * without changing the RecordIds of the remaining tuples.
+     */
+    @Test
+    public void deleteAndReuse() throws Exception {
+        SlottedHeapPage page = new SlottedHeapPage(pid, SlottedHeapPage.createEmptyPageData());
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        int i = 0;
+        while (page.hasRoomFor(getTuple(i, "x"))) {
+            Tuple t = getTuple(i++, "x");
+            page.insertTuple(t);
+            tuples.add(t);
+        }
+
+        // free every other record; each hole is too small for a longer string
+        int freed = 0;
+        for (int j = 0; j < tuples.size(); j += 2) {
+            page.deleteTuple(tuples.get(j));
+            freed++;
+        }
+        int reinserted = 0;
+        while (page.hasRoomFor(getTuple(-1, "0123456789abcdef"))) {
+            page.insertTuple(getTuple(-1, "0123456789abcdef"));
+            reinserted++;
+        }
+        assertTrue(reinserted > 0 && reinserted < freed);
+
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int key = ((IntField) t.getField(0)).getValue();
+            if (key >= 0) {
+                assertEquals(tuples.get(key).getRecordId(), t.getRecordId());
+                assertEquals("x", ((StringField) t.getField(1)).getValue());
+            }
+        }
+        assertEquals(tuples.size() - freed + reinserted, count(page.iterator()));
+    }
+
+    /**
+     * Tables with VARCHAR columns are loaded as SlottedHeapFiles.
+     */
+    @Test
+    public void loadVarcharSchema() throws Exception {
+        File catalog = File.createTempFile("catalog", ".txt");
+        catalog.deleteOnExit();
+        FileWriter w = new FileWriter(catalog);
+        w.write("varchar_test (id int pk, name varchar(20), note string)\n");
+        w.close();
+        Database.getCatalog().loadSchema(catalog.getAbsolutePath());
+
+        DbFile f = Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId("varchar_test"));
+        assertTrue(f instanceof SlottedHeapFile);
+        assertEquals(20, ((SlottedHeapFile) f).getMaxLength(1));
+        assertEquals(Type.STRING_LEN, ((SlottedHeapFile) f).getMaxLength(2));
+        assertEquals(Type.STRING_TYPE, f.getTupleDesc().getFieldType(1));
+    }
+
+    /**
+     * Inserts through the BufferPool spill over onto new pages.
+     */
+    @Test
+    public void insertIntoFile() throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 1000; i++) {
+            Database.getBufferPool().insertTuple(tid, file.getId(), getTuple(i, "value " + i));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        assertTrue(file.numPages() > 1);
+
+        tid = new TransactionId();
+        DbFileIterator it = file.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertEquals("value " + ((IntField) t.getField(0)).getValue(), ((StringField) t.getField(1)).getValue());
+            n++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(1000, n);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SlottedHeapPageTest.class);
+    }
+}
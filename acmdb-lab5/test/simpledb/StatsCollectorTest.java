@@ -0,0 +1,145 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class StatsCollectorTest extends SimpleDbTestBase {
+
+    /**
+     * Merging sketches of parts of the values gives the same histogram as
+     * one sketch of all of them.
+     */
+    @Test
+    public void sketchMerge() {
+        Random rand = new Random(42);
+        IntSketch all = new IntSketch(64);
+        IntSketch[] parts = new IntSketch[4];
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = new IntSketch(64);
+        }
+        for (int i = 0; i < 10000; i++) {
+            // each part sees a different range, so they have different widths
+            int part = i % parts.length;
+            int v = rand.nextInt(100 << (4 * part)) - 5000;
+            all.add(v);
+            parts[part].add(v);
+        }
+        IntSketch merged = new IntSketch(64);
+        for (IntSketch part : parts) {
+            merged.merge(part);
+        }
+        assertEquals(all.count(), merged.count());
+        assertEquals(all.min(), merged.min());
+        assertEquals(all.max(), merged.max());
+
+        IntHistogram a = all.toHistogram(100);
+        IntHistogram b = merged.toHistogram(100);
+        for (int v = all.min() - 1; v <= all.max() + 1; v += 997) {
+            assertEquals(a.estimateSelectivity(Predicate.Op.LESS_THAN, v),
+                    b.estimateSelectivity(Predicate.Op.LESS_THAN, v), 0.0);
+        }
+    }
+
+    /**
+     * A sketch of values in a small range keeps every value apart.
+     */
+    @Test
+    public void sketchExact() {
+        IntSketch sketch = new IntSketch();
+        IntHistogram expected = new IntHistogram(100, 0, 99);
+        for (int i = 0; i < 1000; i++) {
+            sketch.add(i % 100);
+            expected.addValue(i % 100);
+        }
+        IntHistogram hist = sketch.toHistogram(100);
+        for (int v = -1; v <= 100; v++) {
+            for (Predicate.Op op : new Predicate.Op[] { Predicate.Op.EQUALS, Predicate.Op.GREATER_THAN }) {
+                assertEquals(expected.estimateSelectivity(op, v), hist.estimateSelectivity(op, v), 1e-9);
+            }
+        }
+    }
+
+    /**
+     * Tables that fit in the sample are read entirely, and give the same
+     * estimates as a scan.
+     */
+    @Test
+    public void fullSample() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(3, 3000, 200, null, tuples);
+        TableStats scanned = new TableStats(hf.getId(), 1000);
+        TableStats sampled = new StatsCollector(1024, 4).collect(hf.getId(), 1000);
+        assertEquals(3000, sampled.totalTuples());
+        assertEquals(scanned.estimateScanCost(), sampled.estimateScanCost(), 0.0);
+        for (int v : new int[] { -1, 0, 42, 100, 199, 250 }) {
+            assertEquals(scanned.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(v)),
+                    sampled.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(v)), 1e-9);
+        }
+
+        HeapFile empty = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        assertEquals(0, new StatsCollector().collect(empty.getId(), 1000).totalTuples());
+    }
+
+    /**
+     * A sample of a large table estimates the number of tuples and the
+     * selectivities closely.
+     */
+    @Test
+    public void sampledTable() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 200000, 10000, null, null);
+        int numPages = hf.numPages();
+        StatsCollector collector = new StatsCollector(numPages / 10, 4);
+        TableStats stats = collector.collect(hf.getId(), 1000);
+        assertEquals(200000, stats.totalTuples(), 2000);
+        for (int v : new int[] { 1000, 5000, 9000 }) {
+            assertEquals(v / 10000.0, stats.estimateSelectivity(1, Predicate.Op.LESS_THAN, new IntField(v)), 0.03);
+        }
+        assertEquals(0.0, stats.estimateSelectivity(1, Predicate.Op.LESS_THAN, new IntField(-1)), 0.0);
+    }
+
+    /**
+     * The leaves of a B+ tree are sampled, the smallest and largest keys
+     * come from the edge leaves, and the key histogram follows the
+     * separators.
+     */
+    @Test
+    public void sampledBTree() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 50000, 100000, null, tuples, 0);
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (ArrayList<Integer> tuple : tuples) {
+            min = Math.min(min, tuple.get(0));
+            max = Math.max(max, tuple.get(0));
+        }
+
+        TableStats exact = new StatsCollector().collect(bf.getId(), 1000);
+        assertEquals(50000, exact.totalTuples());
+
+        TableStats sampled = new StatsCollector(20, 4).collect(bf.getId(), 1000);
+        assertEquals(50000, sampled.totalTuples(), 2500);
+        assertEquals(0.0, sampled.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(min)), 0.0);
+        assertEquals(1.0, sampled.estimateSelectivity(0, Predicate.Op.LESS_THAN_OR_EQ, new IntField(max)), 0.0);
+        for (int v : new int[] { 10000, 50000, 90000 }) {
+            assertEquals(v / 100000.0, sampled.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(v)),
+                    0.03);
+        }
+        assertEquals(0.5, sampled.estimateSelectivity(1, Predicate.Op.LESS_THAN, new IntField(50000)), 0.1);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(StatsCollectorTest.class);
+    }
+}
@@ -0,0 +1,132 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class TableStatsFileTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private String name;
+    private File statsFile;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, 5000, 100, null, new ArrayList<ArrayList<Integer>>());
+        name = "stats_" + SystemTestUtil.getUUID().replace("-", "");
+        Database.getCatalog().addTable(hf, name);
+        statsFile = File.createTempFile("table", ".stats");
+        statsFile.delete();
+        statsFile.deleteOnExit();
+    }
+
+    private void insertRows(int rows) throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < rows; i++) {
+            Database.getBufferPool().insertTuple(tid, hf.getId(), BTreeUtility.getBTreeTuple(i, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Saved statistics are read back with the same estimates, and are not
+     * recomputed from the table.
+     */
+    @Test
+    public void saveAndLoad() throws Exception {
+        TableStats.loadStatistics(statsFile);
+        TableStats stats = TableStats.getTableStats(name);
+        assertEquals(5000, stats.totalTuples());
+        TableStats.saveStatistics();
+        assertTrue(statsFile.exists());
+        int[] values = new int[] { -5, 0, 17, 50, 99, 150 };
+        Predicate.Op[] ops = new Predicate.Op[] { Predicate.Op.EQUALS, Predicate.Op.GREATER_THAN,
+                Predicate.Op.LESS_THAN_OR_EQ };
+        double[] expected = new double[values.length * ops.length];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = stats.estimateSelectivity(1, ops[i % ops.length], new IntField(values[i / ops.length]));
+        }
+
+        insertRows(100);
+        TableStats.loadStatistics(statsFile);
+        TableStats loaded = TableStats.getTableStats(name);
+        assertNotSame(stats, loaded);
+        assertEquals(5000, loaded.totalTuples());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i],
+                    loaded.estimateSelectivity(1, ops[i % ops.length], new IntField(values[i / ops.length])), 0.0);
+        }
+    }
+
+    /**
+     * Tables whose saved statistics are missing or have another schema are
+     * scanned instead.
+     */
+    @Test
+    public void missingOrStale() throws Exception {
+        TableStats.loadStatistics(statsFile);
+        TableStats.saveStatistics();
+
+        HeapFile other = SystemTestUtil.createRandomHeapFile(3, 700, null, null);
+        String otherName = Database.getCatalog().getTableName(other.getId());
+        // same name as the saved table, different schema
+        HeapFile renamed = SystemTestUtil.createRandomHeapFile(3, 300, null, null);
+        Database.getCatalog().addTable(renamed, name);
+
+        TableStats.loadStatistics(statsFile);
+        assertEquals(700, TableStats.getTableStats(otherName).totalTuples());
+        assertEquals(300, TableStats.getTableStats(name).totalTuples());
+    }
+
+    /**
+     * ANALYZE refreshes the statistics of one table, or of all of them, and
+     * saves them.
+     */
+    @Test
+    public void analyzeStatement() throws Exception {
+        HeapFile other = SystemTestUtil.createRandomHeapFile(2, 200, null, null);
+        String otherName = Database.getCatalog().getTableName(other.getId());
+        TableStats.loadStatistics(statsFile);
+        TableStats.saveStatistics();
+        insertRows(100);
+
+        Parser p = new Parser();
+        p.processNextStatement("ANALYZE " + name + ";");
+        assertEquals(5100, TableStats.getTableStats(name).totalTuples());
+        TableStats.loadStatistics(statsFile);
+        assertEquals(5100, TableStats.getTableStats(name).totalTuples());
+
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, other.getId(), BTreeUtility.getBTreeTuple(1, 2));
+        Database.getBufferPool().transactionComplete(tid);
+        p.processNextStatement("analyze");
+        TableStats.loadStatistics(statsFile);
+        assertEquals(201, TableStats.getTableStats(otherName).totalTuples());
+    }
+
+    /**
+     * The statistics file lives next to the catalog.
+     */
+    @Test
+    public void statsFileName() {
+        File dir = new File("some/dir").getAbsoluteFile();
+        assertEquals(new File(dir, "catalog.stats"), TableStats.getStatsFile("some/dir/catalog.txt"));
+        assertEquals(new File(dir, "catalog.stats"), TableStats.getStatsFile("some/dir/catalog"));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TableStatsFileTest.class);
+    }
+}
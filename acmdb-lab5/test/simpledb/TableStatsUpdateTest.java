@@ -0,0 +1,118 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class TableStatsUpdateTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private String name;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, 2000, 100, null, new ArrayList<ArrayList<Integer>>());
+        name = Database.getCatalog().getTableName(hf.getId());
+        TableStats.setTableStats(name, new TableStats(hf.getId(), TableStats.IOCOSTPERPAGE));
+    }
+
+    @After
+    public void tearDown() {
+        TableStats.setAutoAnalyzeFraction(TableStats.DEFAULT_AUTO_ANALYZE_FRACTION);
+    }
+
+    private ArrayList<Tuple> insertRows(int rows, int value) throws Exception {
+        ArrayList<Tuple> inserted = new ArrayList<Tuple>();
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < rows; i++) {
+            Tuple t = BTreeUtility.getBTreeTuple(value, 2);
+            Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+            inserted.add(t);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        return inserted;
+    }
+
+    /**
+     * Inserts and deletes update the number of tuples and the histograms,
+     * including values outside the range the statistics were computed over.
+     */
+    @Test
+    public void incrementalUpdate() throws Exception {
+        TableStats.setAutoAnalyzeFraction(0);
+        TableStats stats = TableStats.getTableStats(name);
+        assertEquals(0.0, stats.estimateSelectivity(1, Predicate.Op.GREATER_THAN, new IntField(500)), 0.0);
+
+        ArrayList<Tuple> inserted = insertRows(200, 1000);
+        assertSame(stats, TableStats.getTableStats(name));
+        assertEquals(2200, stats.totalTuples());
+        assertEquals(200.0 / 2200, stats.estimateSelectivity(1, Predicate.Op.GREATER_THAN, new IntField(500)), 0.01);
+
+        TransactionId tid = new TransactionId();
+        for (Tuple t : inserted) {
+            Database.getBufferPool().deleteTuple(tid, t);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(2000, stats.totalTuples());
+        assertEquals(0.0, stats.estimateSelectivity(1, Predicate.Op.GREATER_THAN, new IntField(500)), 0.0);
+    }
+
+    /**
+     * Values at the ends of the int range can be added to and removed from
+     * statistics computed over a small range.
+     */
+    @Test
+    public void extremeValues() throws Exception {
+        TableStats.setAutoAnalyzeFraction(0);
+        TableStats stats = TableStats.getTableStats(name);
+        ArrayList<Tuple> inserted = insertRows(1, Integer.MAX_VALUE);
+        inserted.addAll(insertRows(1, Integer.MIN_VALUE));
+        assertEquals(2002, stats.totalTuples());
+        assertEquals(1.0 / 2002, stats.estimateSelectivity(1, Predicate.Op.LESS_THAN, new IntField(0)), 0.01);
+
+        TransactionId tid = new TransactionId();
+        for (Tuple t : inserted) {
+            Database.getBufferPool().deleteTuple(tid, t);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(2000, stats.totalTuples());
+    }
+
+    /**
+     * Once enough of a table has changed, it is analyzed again in the
+     * background.
+     */
+    @Test
+    public void autoAnalyze() throws Exception {
+        TableStats stats = TableStats.getTableStats(name);
+        TableStats.setAutoAnalyzeFraction(1);
+        insertRows(1000, 5);
+        assertSame(stats, TableStats.getTableStats(name));
+
+        TableStats.setAutoAnalyzeFraction(0.1);
+        insertRows(1, 5);
+        for (int i = 0; i < 100 && TableStats.getTableStats(name) == stats; i++) {
+            Thread.sleep(50);
+        }
+        TableStats analyzed = TableStats.getTableStats(name);
+        assertNotSame(stats, analyzed);
+        int total = analyzed.totalTuples();
+        assertTrue(total == 3000 || total == 3001);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TableStatsUpdateTest.class);
+    }
+}
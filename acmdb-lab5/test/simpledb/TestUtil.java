@@ -387,6 +387,7 @@ public class TestUtil {
                 throw new RuntimeException(e);
             }
             emptyFile.deleteOnExit();
+            HeapFile.deleteSideFilesOnExit(emptyFile);
         }
 
         protected void setUp() throws Exception {
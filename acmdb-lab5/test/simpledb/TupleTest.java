@@ -1,6 +1,8 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import junit.framework.JUnit4TestAdapter;
 
 import org.junit.Test;
@@ -30,6 +32,42 @@ public class TupleTest extends SimpleDbTestBase {
         assertEquals(new IntField(37), tup.getField(1));
     }
 
+    /**
+     * Unit test for the typed accessors Tuple.getInt(), Tuple.setInt(),
+     * Tuple.getString() and Tuple.copyField()
+     */
+    @Test
+    public void typedFields() {
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE });
+        Tuple tup = new Tuple(td);
+        assertNull(tup.getField(0));
+        assertNull(tup.getField(1));
+
+        tup.setInt(0, 42);
+        tup.setField(1, new StringField("abc", Type.STRING_LEN));
+        tup.setField(2, new IntField(-7));
+        assertEquals(42, tup.getInt(0));
+        assertEquals(new IntField(42), tup.getField(0));
+        assertEquals("abc", tup.getString(1));
+        assertEquals(-7, tup.getInt(2));
+
+        Tuple copy = new Tuple(td);
+        for (int i = 0; i < td.numFields(); i++) {
+            copy.copyField(i, tup, i);
+        }
+        assertEquals(42, copy.getInt(0));
+        assertEquals("abc", copy.getString(1));
+        assertEquals(new IntField(-7), copy.getField(2));
+
+        // the IntField of an int field is created once, and dropped when the field changes
+        assertSame(tup.getField(0), tup.getField(0));
+        tup.setInt(0, 5);
+        assertEquals(new IntField(5), tup.getField(0));
+
+        tup.setField(0, null);
+        assertNull(tup.getField(0));
+    }
+
     /**
      * Unit test for Tuple.getTupleDesc()
      */
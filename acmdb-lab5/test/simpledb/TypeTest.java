@@ -0,0 +1,65 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class TypeTest extends SimpleDbTestBase {
+
+    private static byte[] serialize(Field f) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        f.serialize(dos);
+        dos.flush();
+        return baos.toByteArray();
+    }
+
+    /**
+     * Fields written to a ByteBuffer have the same bytes as fields written to
+     * a DataOutputStream, and parse back to the same value either way.
+     */
+    @Test
+    public void byteBufferMatchesStream() throws Exception {
+        Field[] fields = new Field[] { new IntField(-123456789), new StringField("", Type.STRING_LEN),
+                new StringField("café", Type.STRING_LEN) };
+        for (Field f : fields) {
+            Type type = f.getType();
+            byte[] expected = serialize(f);
+            assertEquals(type.getLen(), expected.length);
+
+            // write at an offset into a dirty, reused buffer
+            ByteBuffer buf = ByteBuffer.allocate(type.getLen() + 3);
+            for (int i = 0; i < buf.capacity(); i++) {
+                buf.put(i, (byte) 0x7F);
+            }
+            f.serialize(buf, 3);
+            byte[] actual = new byte[type.getLen()];
+            System.arraycopy(buf.array(), 3, actual, 0, actual.length);
+            assertArrayEquals(expected, actual);
+            assertEquals(0, buf.position());
+
+            assertEquals(f, type.parse(buf, 3));
+            assertEquals(f, type.parse(ByteBuffer.allocateDirect(expected.length).put(expected), 0));
+            if (type == Type.INT_TYPE) {
+                assertEquals(f, type.parse(new DataInputStream(new ByteArrayInputStream(expected))));
+            }
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TypeTest.class);
+    }
+}
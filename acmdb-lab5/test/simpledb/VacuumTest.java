@@ -0,0 +1,161 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class VacuumTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private ArrayList<ArrayList<Integer>> kept;
+    private int perPage;
+
+    /**
+     * Creates a table and deletes nine tuples out of ten from it.
+     */
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, 10000, null, null);
+        perPage = BufferPool.getPageSize() * 8 / (hf.getTupleDesc().getSize() * 8 + 1);
+        kept = new ArrayList<ArrayList<Integer>>();
+
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        ArrayList<Tuple> deleted = new ArrayList<Tuple>();
+        for (int i = 0; it.hasNext(); i++) {
+            Tuple t = it.next();
+            if (i % 10 == 0) {
+                kept.add(SystemTestUtil.tupleToList(t));
+            } else {
+                deleted.add(t);
+            }
+        }
+        it.close();
+        for (Tuple t : deleted) {
+            Database.getBufferPool().deleteTuple(tid, t);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private int minPages() {
+        return (kept.size() + perPage - 1) / perPage;
+    }
+
+    /**
+     * The remaining tuples are packed into the first pages, and the rest of
+     * the file is truncated.
+     */
+    @Test
+    public void compact() throws Exception {
+        int before = hf.numPages();
+        assertEquals(before - minPages(), new Vacuum(hf).run());
+        assertEquals(minPages(), hf.numPages());
+        assertEquals((long) minPages() * BufferPool.getPageSize(), hf.getFile().length());
+        SystemTestUtil.matchTuples(hf, kept);
+
+        // nothing left to do
+        assertEquals(0, new Vacuum(hf).run());
+        SystemTestUtil.matchTuples(hf, kept);
+    }
+
+    /**
+     * Each step moves at most one batch of tuples, and the table is intact
+     * in between.
+     */
+    @Test
+    public void steps() throws Exception {
+        Vacuum vacuum = new Vacuum(hf, 100);
+        int steps = 0;
+        while (vacuum.step()) {
+            steps++;
+            SystemTestUtil.matchTuples(hf, kept);
+        }
+        assertTrue(steps >= 5);
+        assertEquals(minPages(), hf.numPages());
+        SystemTestUtil.matchTuples(hf, kept);
+    }
+
+    /**
+     * Tuples inserted while a vacuum is running are kept.
+     */
+    @Test
+    public void concurrentInserts() throws Exception {
+        final ArrayList<ArrayList<Integer>> inserted = new ArrayList<ArrayList<Integer>>();
+        final Exception[] error = new Exception[1];
+        Thread inserter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 50; i++) {
+                        TransactionId tid = new TransactionId();
+                        Tuple t = BTreeUtility.getBTreeTuple(i, 2);
+                        try {
+                            Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+                            Database.getBufferPool().transactionComplete(tid);
+                            inserted.add(SystemTestUtil.tupleToList(t));
+                        } catch (TransactionAbortedException e) {
+                            Database.getBufferPool().transactionComplete(tid, false);
+                        }
+                    }
+                } catch (Exception e) {
+                    error[0] = e;
+                }
+            }
+        };
+        inserter.start();
+        new Vacuum(hf, 50).run();
+        inserter.join();
+        assertNull(error[0]);
+
+        kept.addAll(inserted);
+        SystemTestUtil.matchTuples(hf, kept);
+    }
+
+    /**
+     * Pages appended after a vacuum are read from the file, not from the
+     * empty pages it truncated.
+     */
+    @Test
+    public void loadAfterVacuum() throws Exception {
+        new Vacuum(hf).run();
+        StringBuilder rows = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            rows.append(i).append(',').append(-i).append('\n');
+            ArrayList<Integer> row = new ArrayList<Integer>();
+            row.add(i);
+            row.add(-i);
+            kept.add(row);
+        }
+        HeapFileLoader loader = new HeapFileLoader(hf.getTupleDesc(), ',');
+        assertEquals(2000, loader.load(new java.io.ByteArrayInputStream(rows.toString().getBytes("UTF-8")), hf));
+        SystemTestUtil.matchTuples(hf, kept);
+    }
+
+    /**
+     * VACUUM compacts a table by name.
+     */
+    @Test
+    public void vacuumStatement() throws Exception {
+        String name = "vacuum_" + SystemTestUtil.getUUID().replace("-", "");
+        Database.getCatalog().addTable(hf, name);
+        new Parser().processNextStatement("VACUUM " + name + ";");
+        assertEquals(minPages(), hf.numPages());
+        SystemTestUtil.matchTuples(hf, kept);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(VacuumTest.class);
+    }
+}
@@ -0,0 +1,253 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ZoneMapTest extends SimpleDbTestBase {
+    private static final int ROWS = 10000;
+
+    /** Counts the number of readPage operations. */
+    private static class InstrumentedHeapFile extends HeapFile {
+        int readCount = 0;
+
+        InstrumentedHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) throws NoSuchElementException {
+            readCount++;
+            return super.readPage(pid);
+        }
+    }
+
+    private File f;
+    private InstrumentedHeapFile hf;
+
+    /**
+     * Creates a table whose first field is sorted: row i is (i, -i).
+     */
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < ROWS; i++) {
+            ArrayList<Integer> tuple = new ArrayList<Integer>();
+            tuple.add(i);
+            tuple.add(-i);
+            tuples.add(tuple);
+        }
+        f = File.createTempFile("zonemap", ".dat");
+        f.deleteOnExit();
+        ZoneMap.getZoneFile(f).deleteOnExit();
+        HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), 2);
+        hf = open();
+    }
+
+    private InstrumentedHeapFile open() {
+        InstrumentedHeapFile file = new InstrumentedHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(file, SystemTestUtil.getUUID());
+        return file;
+    }
+
+    private int count(HeapFile file, Predicate p) throws Exception {
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, file.getId(), "");
+        assertTrue(scan.pushDownPredicate(p));
+        Filter filter = new Filter(p, scan);
+        filter.open();
+        int n = 0;
+        while (filter.hasNext()) {
+            filter.next();
+            n++;
+        }
+        filter.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return n;
+    }
+
+    /**
+     * The ranges are learned by a first scan; after that, a selective
+     * predicate only reads the pages that may match.
+     */
+    @Test
+    public void skipsPages() throws Exception {
+        int numPages = hf.numPages();
+        assertFalse(hf.getZoneMap().isKnown(0));
+        assertEquals(ROWS, count(hf, new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(0))));
+        assertEquals(numPages, hf.readCount);
+        for (int i = 0; i < numPages; i++) {
+            assertTrue(hf.getZoneMap().isKnown(i));
+        }
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        hf.readCount = 0;
+        assertEquals(100, count(hf, new Predicate(0, Predicate.Op.LESS_THAN, new IntField(100))));
+        assertEquals(1, hf.readCount);
+
+        hf.readCount = 0;
+        assertEquals(1, count(hf, new Predicate(1, Predicate.Op.EQUALS, new IntField(-(ROWS - 1)))));
+        assertEquals(1, hf.readCount);
+
+        hf.readCount = 0;
+        assertEquals(0, count(hf, new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(ROWS))));
+        assertEquals(0, hf.readCount);
+    }
+
+    /**
+     * An inserted tuple widens the range of its page at once, and the exact
+     * ranges of written pages are stored beside the file when flushed.
+     */
+    @Test
+    public void insertAndPersist() throws Exception {
+        // scan everything, so the ranges of all pages are known
+        count(hf, new Predicate(0, Predicate.Op.NOT_EQUALS, new IntField(-1)));
+        TransactionId tid = new TransactionId();
+        Tuple t = BTreeUtility.getBTreeTuple(2 * ROWS, 2);
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        int pageNo = t.getRecordId().getPageId().pageNumber();
+        assertTrue(hf.getZoneMap().mayMatch(pageNo, Arrays.asList(
+                new Predicate(0, Predicate.Op.EQUALS, new IntField(2 * ROWS)))));
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(1, count(hf, new Predicate(0, Predicate.Op.EQUALS, new IntField(2 * ROWS))));
+
+        // a new HeapFile on the same data reads the stored range of the
+        // page that was written
+        assertFalse(open().getZoneMap().isKnown(pageNo));
+        hf.getZoneMap().flush();
+        HeapFile reopened = open();
+        assertTrue(reopened.getZoneMap().isKnown(pageNo));
+        assertFalse(reopened.getZoneMap().isKnown(pageNo == 0 ? 1 : 0));
+        assertEquals(1, count(reopened, new Predicate(0, Predicate.Op.EQUALS, new IntField(2 * ROWS))));
+        assertEquals(1, count(reopened, new Predicate(1, Predicate.Op.EQUALS, new IntField(-5))));
+    }
+
+    /**
+     * The ranges of written pages are stored once a batch of them is
+     * complete, and a page about to be written again has its stored range
+     * marked unknown first.
+     */
+    @Test
+    public void batchedWrites() throws Exception {
+        // write all but one page of a batch, past the end of the file too
+        for (int i = 0; i < ZoneMap.WRITE_BATCH_PAGES - 1; i++) {
+            hf.writePage(page(i));
+        }
+        assertFalse(open().getZoneMap().isKnown(0));
+
+        hf.writePage(page(ZoneMap.WRITE_BATCH_PAGES - 1));
+        ZoneMap stored = open().getZoneMap();
+        for (int i = 0; i < ZoneMap.WRITE_BATCH_PAGES; i++) {
+            assertTrue(stored.isKnown(i));
+        }
+        assertFalse(stored.isKnown(ZoneMap.WRITE_BATCH_PAGES));
+
+        hf.getZoneMap().pageWriting(0);
+        assertFalse(open().getZoneMap().isKnown(0));
+        assertTrue(open().getZoneMap().isKnown(1));
+    }
+
+    private HeapPage page(int pageNo) throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), pageNo);
+        if (pageNo < hf.numPages()) {
+            return (HeapPage) hf.readPage(pid);
+        }
+        return new HeapPage(pid, HeapPage.createEmptyPageData());
+    }
+
+    /**
+     * A scan locks the pages it skips, so a transaction writing one of them
+     * makes the scan wait.
+     */
+    @Test
+    public void skippedPagesLocked() throws Exception {
+        count(hf, new Predicate(0, Predicate.Op.NOT_EQUALS, new IntField(-1)));
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        hf.readCount = 0;
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, hf.getId(), "");
+        Predicate p = new Predicate(0, Predicate.Op.LESS_THAN, new IntField(100));
+        assertTrue(scan.pushDownPredicate(p));
+        scan.open();
+        while (scan.hasNext()) {
+            scan.next();
+        }
+        scan.close();
+        assertEquals(1, hf.readCount);
+        for (int i = 0; i < hf.numPages(); i++) {
+            assertTrue(Database.getBufferPool().holdsLock(tid, new HeapPageId(hf.getId(), i)));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+
+        final HeapPageId last = new HeapPageId(hf.getId(), hf.numPages() - 1);
+        TransactionId writer = new TransactionId();
+        Database.getBufferPool().getPage(writer, last, Permissions.READ_WRITE);
+        final int[] found = { -1 };
+        Thread reader = new Thread() {
+            public void run() {
+                try {
+                    found[0] = count(hf, new Predicate(0, Predicate.Op.LESS_THAN, new IntField(100)));
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        reader.start();
+        Thread.sleep(100);
+        assertTrue(reader.isAlive());
+        Database.getBufferPool().transactionComplete(writer);
+        reader.join();
+        assertEquals(100, found[0]);
+    }
+
+    /**
+     * Deleted tuples narrow the ranges once the pages are written, and
+     * selectivity estimates use them even when the histograms are stale.
+     */
+    @Test
+    public void selectivity() throws Exception {
+        TableStats stats = new TableStats(hf.getId(), 1000);
+        count(hf, new Predicate(0, Predicate.Op.NOT_EQUALS, new IntField(-1)));
+        assertEquals(0.5, stats.estimateSelectivity(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(ROWS / 2)),
+                0.05);
+
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        ArrayList<Tuple> deleted = new ArrayList<Tuple>();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (t.getInt(0) >= ROWS / 2) {
+                deleted.add(t);
+            }
+        }
+        it.close();
+        for (Tuple t : deleted) {
+            Database.getBufferPool().deleteTuple(tid, t);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+
+        assertEquals(0.0, stats.estimateSelectivity(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(ROWS / 2)),
+                0.0);
+        assertEquals(0, count(hf, new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(ROWS / 2))));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ZoneMapTest.class);
+    }
+}